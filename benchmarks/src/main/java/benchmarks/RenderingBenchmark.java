@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures rendering the {@code /results} page from a user's insights, with
+ * the tracks of a recorded top-tracks response (of 5, 20 or 50 tracks) as the
+ * top tracks of every time range, their artists as the top artists, and audio
+ * features for each track.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderingBenchmark {
+	private static final MethodHandle FROM_JSON = Targets.method("Track", "fromJson", InputStream.class);
+	private static final MethodHandle NEW_ARTIST = Targets.constructor("Artist", String.class, String.class,
+			List.class);
+	private static final MethodHandle NEW_AUDIO_FEATURES = Targets.constructor("AudioFeatures", String.class,
+			double.class, double.class, double.class);
+	private static final MethodHandle NEW_INSIGHTS = Targets.constructor("Insights", Map.class, Map.class,
+			Map.class, List.class);
+	private static final MethodHandle RENDER_INSIGHTS;
+
+	static {
+		try {
+			RENDER_INSIGHTS = Targets.method("Server", "renderInsights", Class.forName("Insights"));
+		} catch (ClassNotFoundException cnfe) {
+			throw new ExceptionInInitializerError(cnfe);
+		}
+	}
+
+	@Param({ "top-tracks-5.json", "top-tracks-20.json", "top-tracks-50.json" })
+	public String payload;
+
+	private Object insights;
+
+	@Setup
+	public void setup() throws Throwable {
+		byte[] body = Targets.payload(this.payload);
+		List<?> tracks = (List<?>) FROM_JSON.invoke((InputStream) new ByteArrayInputStream(body));
+
+		JSONArray items = new JSONObject(new String(body, StandardCharsets.UTF_8)).getJSONArray("items");
+		Random random = new Random(17L);
+		List<Object> artists = new ArrayList<>();
+		Map<String, Object> audioFeatures = new HashMap<>();
+		for (int i = 0; i < items.length(); i++) {
+			JSONObject item = items.getJSONObject(i);
+			JSONObject artist = item.getJSONArray("artists").getJSONObject(0);
+			artists.add(NEW_ARTIST.invoke(artist.getString("id"), artist.getString("name"),
+					(List<?>) Arrays.asList("indie", "pop")));
+			audioFeatures.put(item.getString("id"), NEW_AUDIO_FEATURES.invoke(item.getString("id"),
+					60.0 + random.nextDouble() * 120.0, random.nextDouble(), random.nextDouble()));
+		}
+
+		Map<Object, Object> topTracks = new HashMap<>();
+		Map<Object, Object> topArtists = new HashMap<>();
+		for (Object range : Class.forName("Insights$TimeRange").getEnumConstants()) {
+			topTracks.put(range, tracks);
+			topArtists.put(range, artists);
+		}
+		this.insights = NEW_INSIGHTS.invoke((Map<?, ?>) topTracks, (Map<?, ?>) topArtists,
+				(Map<?, ?>) audioFeatures, (List<?>) Collections.emptyList());
+	}
+
+	@Benchmark
+	public Object renderInsights() throws Throwable {
+		return RENDER_INSIGHTS.invoke(this.insights);
+	}
+}
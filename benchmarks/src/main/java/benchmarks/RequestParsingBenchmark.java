@@ -0,0 +1,167 @@
+package benchmarks;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the helpers {@code Server} runs on every request: looking up
+ * cookies and query parameters, building the query string of the Spotify
+ * authorization redirect, and generating and parsing session IDs. The inputs
+ * are shaped like what the server sees on {@code /results}, {@code /callback}
+ * and {@code /login}. The {@code parse*} benchmarks are the original
+ * parse-everything-into-a-map versions of the lookups, and
+ * {@code newHexSessionId} the original session ID generation, kept as a
+ * baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestParsingBenchmark {
+	private static final MethodHandle COOKIE = Targets.method("RequestFields", "cookie", String.class, String.class);
+	private static final MethodHandle QUERY_PARAMETER = Targets.method("RequestFields", "queryParameter", String.class,
+			String.class);
+	private static final MethodHandle NEW_SESSION_ID = Targets.method("Server", "newSessionId");
+	private static final MethodHandle PARSE_SESSION_ID = Targets.method("SessionId", "parse", String.class);
+	private static final MethodHandle NEW_KVP = Targets.constructor("Server$KVP", Object.class, Object.class);
+
+	/**
+	 * A {@code Cookie} header with a session, as sent to {@code /results}, along
+	 * with the kind of cookies a browser also tends to send.
+	 */
+	private String cookieHeader;
+	/**
+	 * The query string of a {@code /callback} request.
+	 */
+	private String callbackQuery;
+	/**
+	 * The parameters of the {@code /login} redirect, as a {@code Server.KVP[]}.
+	 */
+	private Object authorizeParameters;
+	private MethodHandle generateURLEscapedKVPs;
+	/**
+	 * The text of a session ID, as sent in the session cookie.
+	 */
+	private String sessionId;
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	@Setup
+	public void setup() throws Throwable {
+		Random random = new Random(17L);
+		this.sessionId = NEW_SESSION_ID.invoke().toString();
+		this.cookieHeader = "_ga=GA1.1.1234567890.1700000000; spotify_oauth_state=3fa2c1; session=" + this.sessionId
+				+ "; theme=dark";
+
+		StringBuilder code = new StringBuilder(300);
+		while (code.length() < 300) {
+			code.append((char) ('A' + random.nextInt(26)));
+			code.append((char) ('a' + random.nextInt(26)));
+			code.append(random.nextInt(10));
+			code.append(random.nextBoolean() ? '-' : '_');
+		}
+		this.callbackQuery = "code=" + code + "&state=3fa2c1";
+
+		Class<?> kvp = Class.forName("Server$KVP");
+		Object[][] parameters = { { "response_type", "code" }, { "show_dialog", "true" },
+				{ "client_id", "0123456789abcdef0123456789abcdef" }, { "scope", "user-read-email user-top-read" },
+				{ "redirect_uri", "https://localhost/callback" }, { "state", "3fa2c1" } };
+		Object kvps = Array.newInstance(kvp, parameters.length);
+		for (int i = 0; i < parameters.length; i++) {
+			Array.set(kvps, i, NEW_KVP.invoke(parameters[i][0], parameters[i][1]));
+		}
+		this.authorizeParameters = kvps;
+		// Takes the array as is, rather than collecting the arguments into one.
+		this.generateURLEscapedKVPs = Targets.method("Server", "generateURLEscapedKVPs", kvps.getClass())
+				.asFixedArity();
+	}
+
+	@Benchmark
+	public Object parseCookieHeader() {
+		return RequestParsingBenchmark.parseCookieHeader(this.cookieHeader).get("session");
+	}
+
+	@Benchmark
+	public Object cookie() throws Throwable {
+		return COOKIE.invoke(this.cookieHeader, "session");
+	}
+
+	@Benchmark
+	public Object parseQueryString() {
+		Map<String, List<String>> query = RequestParsingBenchmark.parseQueryString(this.callbackQuery);
+		return query.get("state").get(0) + query.get("code").get(0);
+	}
+
+	@Benchmark
+	public Object queryParameter() throws Throwable {
+		return (String) QUERY_PARAMETER.invoke(this.callbackQuery, "state")
+				+ (String) QUERY_PARAMETER.invoke(this.callbackQuery, "code");
+	}
+
+	@Benchmark
+	public Object generateURLEscapedKVPs() throws Throwable {
+		return this.generateURLEscapedKVPs.invoke(this.authorizeParameters);
+	}
+
+	@Benchmark
+	public Object newSessionId() throws Throwable {
+		return NEW_SESSION_ID.invoke().toString();
+	}
+
+	@Benchmark
+	public Object newHexSessionId() {
+		byte[] sessionIdBytes = new byte[64];
+		this.secureRandom.nextBytes(sessionIdBytes);
+		StringBuilder idBuilder = new StringBuilder(128);
+		for (byte b : sessionIdBytes) {
+			idBuilder.append(String.format("%02x", b));
+		}
+		return idBuilder.toString();
+	}
+
+	@Benchmark
+	public Object parseSessionId() throws Throwable {
+		return PARSE_SESSION_ID.invoke(this.sessionId);
+	}
+
+	/**
+	 * How {@code Server} used to parse {@code Cookie} headers.
+	 */
+	private static Map<String, String> parseCookieHeader(String cookieHeaderValue) {
+		Map<String, String> output = new HashMap<>();
+		String[] cookies = cookieHeaderValue.split(";");
+		for (String rawCookie : cookies) {
+			String[] nameAndVal = rawCookie.split("=");
+			output.put(nameAndVal[0].trim(), nameAndVal[1].trim());
+		}
+		return output;
+	}
+
+	/**
+	 * How {@code Server} used to parse query strings.
+	 */
+	private static Map<String, List<String>> parseQueryString(String query) {
+		Map<String, List<String>> output = new HashMap<>();
+		if (query != null) {
+			String[] keyValuePairs = query.split("&");
+			for (String queryKvp : keyValuePairs) {
+				String[] keyAndValue = queryKvp.split("=", 2);
+				String key = URLDecoder.decode(keyAndValue[0], StandardCharsets.UTF_8);
+				String value = URLDecoder.decode(keyAndValue[1], StandardCharsets.UTF_8);
+				if (!output.containsKey(key)) {
+					output.put(key, new ArrayList<>());
+				}
+				output.get(key).add(value);
+			}
+		}
+		return output;
+	}
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Measures finding the route of a request with {@code Router}, with the
+ * server's own routes, two API routes with path parameters, and enough
+ * generated ones to make {@code routes} in all. {@code prefixScan} is how the JDK's server picks
+ * a context, the longest of the registered prefixes, followed by the exact
+ * path check {@code Server} used to do, kept as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+	private static final MethodHandle NEW_ROUTER = Targets.constructor("Router");
+	private static final MethodHandle ADD = Targets.method("Router", "add", String.class, String.class,
+			Consumer.class);
+	private static final MethodHandle MATCH = Targets.method("Router", "match", String.class, String.class);
+	private static final List<String> SERVER_ROUTES = List.of("/", "/index.html", "/si.png", "/static/*",
+			"/login", "/callback", "/results", "/logout", "/api/top-tracks/{range}", "/api/artists/{id}");
+
+	@Param({ "10", "100", "1000" })
+	public int routes;
+
+	private Object router;
+	/**
+	 * The patterns of the routes, with parameters and {@code *} left out, as
+	 * {@code createContext} prefixes.
+	 */
+	private List<String> prefixes;
+
+	@Setup
+	public void setup() throws Throwable {
+		this.router = NEW_ROUTER.invoke();
+		this.prefixes = new ArrayList<>();
+		Consumer<HttpExchange> handler = (HttpExchange t) -> {
+		};
+		for (int i = 0; i < this.routes; i++) {
+			String pattern = i < SERVER_ROUTES.size() ? SERVER_ROUTES.get(i)
+					: "/api/resource" + i + (i % 2 == 0 ? "/{id}" : "/{id}/items/{item}");
+			ADD.invoke(this.router, "GET", pattern, handler);
+			this.prefixes.add(pattern.replaceAll("\\{[^}]*\\}.*|\\*$", ""));
+		}
+	}
+
+	@Benchmark
+	public Object matchLiteral() throws Throwable {
+		return MATCH.invoke(this.router, "GET", "/results");
+	}
+
+	@Benchmark
+	public Object matchParameter() throws Throwable {
+		return MATCH.invoke(this.router, "GET", "/api/artists/0TnOYISbd1XYRBk9myaseg");
+	}
+
+	@Benchmark
+	public Object matchMissing() throws Throwable {
+		return MATCH.invoke(this.router, "GET", "/results/missing");
+	}
+
+	@Benchmark
+	public Object prefixScan() {
+		String path = "/results";
+		String best = null;
+		for (String prefix : this.prefixes) {
+			if (path.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+				best = prefix;
+			}
+		}
+		return best != null && best.equals(path);
+	}
+}
@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+/**
+ * Looks up the code being benchmarked. The server's classes live in the unnamed
+ * package, which can't be referenced from the named package JMH requires, so
+ * they're reached through {@code MethodHandle}s instead.
+ */
+final class Targets {
+	private Targets() {
+	}
+
+	/**
+	 * Returns a handle to the (possibly non-public) method {@code name} of the
+	 * class {@code className}. For an instance method, the receiver is the
+	 * handle's first parameter.
+	 *
+	 * @param className - The binary name of the class declaring the method.
+	 * @param name      - The name of the method.
+	 * @param params    - The parameter types of the method.
+	 * @return A handle to the method.
+	 */
+	static MethodHandle method(String className, String name, Class<?>... params) {
+		try {
+			Method method = Class.forName(className).getDeclaredMethod(name, params);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException(roe);
+		}
+	}
+
+	/**
+	 * Returns a handle to the (possibly non-public) constructor of the class
+	 * {@code className}.
+	 *
+	 * @param className - The binary name of the class.
+	 * @param params    - The parameter types of the constructor.
+	 * @return A handle to the constructor.
+	 */
+	static MethodHandle constructor(String className, Class<?>... params) {
+		try {
+			Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(params);
+			constructor.setAccessible(true);
+			return MethodHandles.lookup().unreflectConstructor(constructor);
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException(roe);
+		}
+	}
+
+	/**
+	 * Reads the recorded payload {@code name} from the {@code payloads} resource
+	 * directory.
+	 *
+	 * @param name - The file name of the payload.
+	 * @return The bytes of the payload.
+	 */
+	static byte[] payload(String name) {
+		try (InputStream in = Targets.class.getResourceAsStream("/payloads/" + name)) {
+			if (in == null) {
+				throw new IllegalArgumentException("No such payload: " + name);
+			}
+			return in.readAllBytes();
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+}
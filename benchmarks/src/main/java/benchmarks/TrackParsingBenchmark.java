@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.json.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the original way {@code /results} turned a top-tracks response into
+ * {@code Track}s (parse the body, re-serialize {@code items}, then parse every
+ * track again in {@code new Track(String)}) with the single-pass
+ * {@code Track.fromJson(InputStream)} decoder, over recorded responses of 5, 20
+ * and 50 tracks. {@code Track.fromJsonArray} and {@code new Track(String)} are
+ * also measured on their own. Run with {@code -prof gc} to see the allocation
+ * difference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrackParsingBenchmark {
+	private static final MethodHandle FROM_JSON_ARRAY = Targets.method("Track", "fromJsonArray", String.class);
+	private static final MethodHandle FROM_JSON = Targets.method("Track", "fromJson", InputStream.class);
+	private static final MethodHandle NEW_TRACK = Targets.constructor("Track", String.class);
+
+	@Param({ "top-tracks-5.json", "top-tracks-20.json", "top-tracks-50.json" })
+	public String payload;
+
+	private byte[] body;
+	/**
+	 * The {@code items} of the payload, serialized as {@code fromJsonArray} takes
+	 * them.
+	 */
+	private String items;
+	/**
+	 * Each of the {@code items} of the payload, serialized as
+	 * {@code new Track(String)} takes them.
+	 */
+	private String[] tracks;
+
+	@Setup
+	public void setup() {
+		this.body = Targets.payload(this.payload);
+		JSONArray items = new JSONObject(new String(this.body, StandardCharsets.UTF_8)).getJSONArray("items");
+		this.items = items.toString();
+		this.tracks = new String[items.length()];
+		for (int i = 0; i < this.tracks.length; i++) {
+			this.tracks[i] = items.getJSONObject(i).toString();
+		}
+	}
+
+	@Benchmark
+	public List<?> jsonObjectRoundTrips() throws Throwable {
+		String responseRaw = new String(this.body, StandardCharsets.UTF_8);
+		JSONArray response = new JSONObject(responseRaw).getJSONArray("items");
+		return (List<?>) FROM_JSON_ARRAY.invoke(response.toString());
+	}
+
+	@Benchmark
+	public List<?> fromJsonArray() throws Throwable {
+		return (List<?>) FROM_JSON_ARRAY.invoke(this.items);
+	}
+
+	@Benchmark
+	public List<Object> trackConstructor() throws Throwable {
+		List<Object> output = new ArrayList<>(this.tracks.length);
+		for (String track : this.tracks) {
+			output.add(NEW_TRACK.invoke(track));
+		}
+		return output;
+	}
+
+	@Benchmark
+	public List<?> streaming() throws Throwable {
+		return (List<?>) FROM_JSON.invoke((InputStream) new ByteArrayInputStream(this.body));
+	}
+}
@@ -0,0 +1,286 @@
+package loadtest;
+
+import java.net.*;
+import java.net.http.*;
+import java.security.*;
+import java.security.cert.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.net.ssl.*;
+
+import org.HdrHistogram.*;
+
+/**
+ * Drives simulated users through the server the way a browser would: each one
+ * repeatedly logs in ({@code /login}, Spotify's {@code /authorize}, then
+ * {@code /callback}), loads {@code /results} a few times, and logs out. Users
+ * run concurrently without a thread each, so thousands can be simulated from
+ * one machine. Throughput and latency percentiles of each step are reported
+ * periodically and at the end.
+ *
+ * <p>
+ * Spotify's {@code /authorize} is followed wherever {@code /login} points, so
+ * the server must be using {@link MockSpotify}. The server's certificate isn't
+ * verified, so that a self-signed one can be used.
+ *
+ * <p>
+ * Options:
+ * <ul>
+ * <li>{@code target} - The base URL of the server. Defaults to
+ * {@code https://localhost:8443}.</li>
+ * <li>{@code users} - The number of concurrent users. Defaults to 1000.</li>
+ * <li>{@code durationSeconds} - How long to run for. Defaults to 60.</li>
+ * <li>{@code rampUpSeconds} - How long to take to start all the users.
+ * Defaults to 10.</li>
+ * <li>{@code resultsPerLogin} - How many times each user loads
+ * {@code /results} per login. Defaults to 3.</li>
+ * <li>{@code thinkMillis} - How long users pause between requests. Defaults to
+ * 0.</li>
+ * <li>{@code reportSeconds} - How often progress is reported. Defaults to
+ * 10.</li>
+ * </ul>
+ */
+final class LoadDriver {
+	/**
+	 * The steps of a flow, in order.
+	 */
+	private enum Step {
+		LOGIN, AUTHORIZE, CALLBACK, RESULTS, LOGOUT
+	}
+
+	/**
+	 * The largest latency recorded, in microseconds (one minute).
+	 */
+	private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1L);
+
+	private final URI target;
+	private final int resultsPerLogin;
+	private final long thinkMillis;
+	private final long deadlineNanos;
+	private final HttpClient client;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "load-driver-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/**
+	 * The latencies of each step, in microseconds.
+	 */
+	private final Map<Step, Recorder> latencies = new EnumMap<>(Step.class);
+	/**
+	 * Everything recorded by {@link #latencies}, up to the last report.
+	 */
+	private final Map<Step, Histogram> totals = new EnumMap<>(Step.class);
+	/**
+	 * The responses of each step, by status code (or the exception that failed the
+	 * request).
+	 */
+	private final Map<Step, ConcurrentMap<String, LongAdder>> statuses = new EnumMap<>(Step.class);
+	private final LongAdder flows = new LongAdder();
+	private final LongAdder failedFlows = new LongAdder();
+	private final AtomicInteger running = new AtomicInteger();
+
+	private LoadDriver(LoadTest.Options options, long deadlineNanos) throws GeneralSecurityException {
+		String target = options.get("target", "https://localhost:8443");
+		this.target = URI.create(target.endsWith("/") ? target : target + "/");
+		this.resultsPerLogin = options.getInt("resultsPerLogin", 3);
+		this.thinkMillis = options.getInt("thinkMillis", 0);
+		this.deadlineNanos = deadlineNanos;
+		SSLContext trustAll = SSLContext.getInstance("TLS");
+		trustAll.init(null, new TrustManager[] { new X509TrustManager() {
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		} }, new SecureRandom());
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.sslContext(trustAll)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofSeconds(10))
+				.executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2))
+				.build();
+		for (Step step : Step.values()) {
+			this.latencies.put(step, new Recorder(MAX_LATENCY_MICROS, 3));
+			this.totals.put(step, new Histogram(MAX_LATENCY_MICROS, 3));
+			this.statuses.put(step, new ConcurrentSkipListMap<>());
+		}
+	}
+
+	/**
+	 * Runs the load test described by {@code options}, then prints the final
+	 * report.
+	 *
+	 * @param options - The options of the run.
+	 */
+	static void run(LoadTest.Options options) throws Exception {
+		// The server's certificate is likely self-signed for localhost, and issued to
+		// some other name.
+		System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+		int users = options.getInt("users", 1000);
+		long durationSeconds = options.getInt("durationSeconds", 60);
+		long rampUpMillis = TimeUnit.SECONDS.toMillis(options.getInt("rampUpSeconds", 10));
+		long reportSeconds = options.getInt("reportSeconds", 10);
+		long startNanos = System.nanoTime();
+		LoadDriver driver = new LoadDriver(options, startNanos + TimeUnit.SECONDS.toNanos(durationSeconds));
+		System.out.println("Driving " + users + " users against " + driver.target + " for " + durationSeconds + "s");
+
+		CountDownLatch finished = new CountDownLatch(users);
+		for (int user = 0; user < users; user++) {
+			long delay = users == 1 ? 0L : rampUpMillis * user / (users - 1);
+			driver.scheduler.schedule(() -> {
+				driver.running.incrementAndGet();
+				driver.loop().whenComplete((Void result, Throwable error) -> {
+					driver.running.decrementAndGet();
+					finished.countDown();
+				});
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		driver.scheduler.scheduleAtFixedRate(() -> driver.report(startNanos, false), reportSeconds, reportSeconds,
+				TimeUnit.SECONDS);
+		finished.await();
+		driver.report(startNanos, true);
+		System.exit(0);
+	}
+
+	/**
+	 * Runs flows for one user until the deadline has passed.
+	 */
+	private CompletableFuture<Void> loop() {
+		if (System.nanoTime() - this.deadlineNanos >= 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return this.flow().handle((Void result, Throwable error) -> {
+			if (error != null) {
+				this.failedFlows.increment();
+			} else {
+				this.flows.increment();
+			}
+			return null;
+		}).thenCompose((Object ignored) -> this.loop());
+	}
+
+	/**
+	 * Runs one login, results and logout flow.
+	 */
+	private CompletableFuture<Void> flow() {
+		return this.request(Step.LOGIN, this.target.resolve("login"), null, 302)
+				.thenCompose((HttpResponse<Void> login) -> {
+					String state = LoadDriver.cookie(login, "spotify_oauth_state");
+					URI authorize = LoadDriver.location(login);
+					return this.request(Step.AUTHORIZE, authorize, null, 302).thenCompose(
+							(HttpResponse<Void> authorized) -> this.request(Step.CALLBACK,
+									LoadDriver.location(authorized), "spotify_oauth_state=" + state, 302));
+				}).thenCompose((HttpResponse<Void> callback) -> {
+					String session = "session=" + LoadDriver.cookie(callback, "session");
+					CompletableFuture<HttpResponse<Void>> results = CompletableFuture.completedFuture(null);
+					for (int i = 0; i < this.resultsPerLogin; i++) {
+						results = results.thenCompose((HttpResponse<Void> previous) -> this.request(Step.RESULTS,
+								this.target.resolve("results"), session, 200));
+					}
+					return results.thenCompose((HttpResponse<Void> previous) -> this.request(Step.LOGOUT,
+							this.target.resolve("logout"), session, 302));
+				}).thenApply((HttpResponse<Void> logout) -> null);
+	}
+
+	/**
+	 * Sends a {@code GET} for {@code uri} after the think time, recording its
+	 * latency and status code under {@code step}. The returned future fails if
+	 * the response doesn't have {@code expectedStatus}.
+	 */
+	private CompletableFuture<HttpResponse<Void>> request(Step step, URI uri, String cookie, int expectedStatus) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET();
+		if (cookie != null) {
+			request.header("Cookie", cookie);
+		}
+		CompletableFuture<Void> thought = new CompletableFuture<>();
+		if (this.thinkMillis > 0) {
+			this.scheduler.schedule(() -> thought.complete(null), this.thinkMillis, TimeUnit.MILLISECONDS);
+		} else {
+			thought.complete(null);
+		}
+		return thought.thenCompose((Void ignored) -> {
+			long startNanos = System.nanoTime();
+			return this.client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+					.whenComplete((HttpResponse<Void> response, Throwable error) -> {
+						long micros = (System.nanoTime() - startNanos) / 1000L;
+						this.latencies.get(step).recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+						String status = response != null ? Integer.toString(response.statusCode())
+								: LoadDriver.unwrap(error).getClass().getSimpleName();
+						this.statuses.get(step).computeIfAbsent(status, (String s) -> new LongAdder()).increment();
+					});
+		}).thenApply((HttpResponse<Void> response) -> {
+			if (response.statusCode() != expectedStatus) {
+				throw new IllegalStateException(step + " returned " + response.statusCode());
+			}
+			return response;
+		});
+	}
+
+	/**
+	 * Strips the {@code CompletionException}s around the cause of a failure.
+	 */
+	private static Throwable unwrap(Throwable error) {
+		while (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the {@code Location} of a redirect.
+	 */
+	private static URI location(HttpResponse<?> response) {
+		String location = response.headers().firstValue("Location")
+				.orElseThrow(() -> new IllegalStateException("No Location in the response to " + response.uri()));
+		return response.uri().resolve(location);
+	}
+
+	/**
+	 * Returns the value of cookie {@code name} set by a response.
+	 */
+	private static String cookie(HttpResponse<?> response, String name) {
+		for (String setCookie : response.headers().allValues("Set-Cookie")) {
+			if (setCookie.startsWith(name + "=")) {
+				int end = setCookie.indexOf(';');
+				return setCookie.substring(name.length() + 1, end < 0 ? setCookie.length() : end);
+			}
+		}
+		throw new IllegalStateException("No " + name + " cookie in the response to " + response.uri());
+	}
+
+	/**
+	 * Prints the throughput so far, and the latency percentiles of each step.
+	 */
+	private synchronized void report(long startNanos, boolean last) {
+		double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%n%s after %.0fs: %d users running, %d flows (%.1f/s), %d failed%n",
+				last ? "Finished" : "Progress", elapsedSeconds, this.running.get(), this.flows.sum(),
+				this.flows.sum() / elapsedSeconds, this.failedFlows.sum()));
+		report.append(String.format("%-10s %10s %9s %9s %9s %9s %9s %9s  %s%n", "step", "requests", "req/s",
+				"p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "statuses"));
+		for (Step step : Step.values()) {
+			Histogram total = this.totals.get(step);
+			total.add(this.latencies.get(step).getIntervalHistogram());
+			long count = total.getTotalCount();
+			report.append(String.format("%-10s %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f  %s%n",
+					step.name().toLowerCase(Locale.ROOT), count, count / elapsedSeconds,
+					total.getValueAtPercentile(50.0) / 1000.0, total.getValueAtPercentile(90.0) / 1000.0,
+					total.getValueAtPercentile(99.0) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+					total.getMaxValue() / 1000.0, this.statuses.get(step)));
+		}
+		System.out.print(report);
+	}
+}
@@ -0,0 +1,63 @@
+package loadtest;
+
+import java.util.*;
+
+/**
+ * The entry point of the load-test harness. The first argument picks what to
+ * run, and the rest are its options, as {@code --name=value}:
+ *
+ * <ul>
+ * <li>{@code mock} - Runs {@link MockSpotify}, a stand-in for the Spotify
+ * account service and web API.</li>
+ * <li>{@code drive} - Runs {@link LoadDriver}, which logs simulated users in
+ * and loads their results against a running server.</li>
+ * </ul>
+ */
+public final class LoadTest {
+	private LoadTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0 || !(args[0].equals("mock") || args[0].equals("drive"))) {
+			System.err.println("Usage: java -jar loadtest.jar (mock|drive) [--option=value ...]");
+			System.exit(2);
+		}
+		Options options = new Options(Arrays.copyOfRange(args, 1, args.length));
+		if (args[0].equals("mock")) {
+			MockSpotify.start(options);
+		} else {
+			LoadDriver.run(options);
+		}
+	}
+
+	/**
+	 * Command line options, given as {@code --name=value}.
+	 */
+	static final class Options {
+		private final Map<String, String> values = new HashMap<>();
+
+		Options(String[] args) {
+			for (String arg : args) {
+				int equals = arg.indexOf('=');
+				if (!arg.startsWith("--") || equals < 0) {
+					throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+				}
+				this.values.put(arg.substring(2, equals), arg.substring(equals + 1));
+			}
+		}
+
+		String get(String name, String defaultValue) {
+			return this.values.getOrDefault(name, defaultValue);
+		}
+
+		int getInt(String name, int defaultValue) {
+			String value = this.values.get(name);
+			return value == null ? defaultValue : Integer.parseInt(value);
+		}
+
+		double getDouble(String name, double defaultValue) {
+			String value = this.values.get(name);
+			return value == null ? defaultValue : Double.parseDouble(value);
+		}
+	}
+}
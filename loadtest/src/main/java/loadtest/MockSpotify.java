@@ -0,0 +1,294 @@
+package loadtest;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A stand-in for the parts of the Spotify account service and web API the
+ * server uses, so that it can be load tested without being rate limited by
+ * (or rate limiting) the real thing. Point the server at it with
+ * {@code -Dsi.spotify.accountsUrl=http://localhost:8081/} and
+ * {@code -Dsi.spotify.apiUrl=http://localhost:8081/}.
+ *
+ * <p>
+ * It serves:
+ * <ul>
+ * <li>{@code GET /authorize} - Redirects straight back to {@code redirect_uri}
+ * with a new code, as if the user had logged in and allowed access.</li>
+ * <li>{@code POST /api/token} - Grants an access token for any code or refresh
+ * token.</li>
+ * <li>{@code GET /v1/me} - A profile whose id is derived from the access
+ * token.</li>
+ * <li>{@code GET /v1/me/top/tracks} and {@code GET /v1/me/top/artists} -
+ * Pages of items drawn from a fixed catalog, different for each access token
+ * and time range.</li>
+ * <li>{@code GET /v1/audio-features} - Features for any track ids.</li>
+ * </ul>
+ *
+ * <p>
+ * Options:
+ * <ul>
+ * <li>{@code port} - Defaults to 8081.</li>
+ * <li>{@code latencyMillis} - The minimum time taken to answer an API request.
+ * Defaults to 20.</li>
+ * <li>{@code jitterMillis} - The maximum random time added to that. Defaults
+ * to 30.</li>
+ * <li>{@code errorRate} - The fraction of API requests answered with a
+ * {@code 500}. Defaults to 0.</li>
+ * <li>{@code rateLimitRate} - The fraction of API requests answered with a
+ * {@code 429}. Defaults to 0.</li>
+ * <li>{@code retryAfterSeconds} - The {@code Retry-After} of those. Defaults to
+ * 1.</li>
+ * <li>{@code topItems} - The number of top tracks and artists each user has.
+ * Defaults to 100.</li>
+ * <li>{@code tokenExpiresSeconds} - The lifetime of access tokens. Defaults to
+ * 3600.</li>
+ * </ul>
+ */
+final class MockSpotify {
+	/**
+	 * The number of distinct tracks and artists users' top items are drawn from.
+	 */
+	private static final int CATALOG_SIZE = 5000;
+
+	private final int latencyMillis;
+	private final int jitterMillis;
+	private final double errorRate;
+	private final double rateLimitRate;
+	private final int retryAfterSeconds;
+	private final int topItems;
+	private final int tokenExpiresSeconds;
+	/**
+	 * Delays responses without holding a thread while they wait, then builds and
+	 * sends them.
+	 */
+	private final ScheduledExecutorService delays = Executors
+			.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), (Runnable r) -> {
+				Thread thread = new Thread(r, "mock-spotify-worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+	/**
+	 * The number of responses sent, by path and status code.
+	 */
+	private final ConcurrentMap<String, LongAdder> responses = new ConcurrentSkipListMap<>();
+
+	private MockSpotify(LoadTest.Options options) {
+		this.latencyMillis = options.getInt("latencyMillis", 20);
+		this.jitterMillis = options.getInt("jitterMillis", 30);
+		this.errorRate = options.getDouble("errorRate", 0.0);
+		this.rateLimitRate = options.getDouble("rateLimitRate", 0.0);
+		this.retryAfterSeconds = options.getInt("retryAfterSeconds", 1);
+		this.topItems = options.getInt("topItems", 100);
+		this.tokenExpiresSeconds = options.getInt("tokenExpiresSeconds", 3600);
+	}
+
+	/**
+	 * Starts a mock on the port given by {@code options}, and reports how many
+	 * requests it has answered every 10 seconds.
+	 *
+	 * @param options - The options of the mock.
+	 * @throws IOException If the port can't be bound.
+	 */
+	static void start(LoadTest.Options options) throws IOException {
+		MockSpotify mock = new MockSpotify(options);
+		int port = options.getInt("port", 8081);
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2));
+		server.createContext("/authorize", mock::authorize);
+		server.createContext("/api/token", (HttpExchange t) -> mock.api(t, mock::token));
+		server.createContext("/v1/me", (HttpExchange t) -> mock.api(t, mock::me));
+		server.createContext("/v1/me/top/", (HttpExchange t) -> mock.api(t, mock::top));
+		server.createContext("/v1/audio-features", (HttpExchange t) -> mock.api(t, mock::audioFeatures));
+		server.start();
+		System.out.println("Mock Spotify listening on port " + port);
+		mock.delays.scheduleAtFixedRate(mock::report, 10L, 10L, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Answers an API request with {@code handler}, after the configured latency,
+	 * unless it's picked to fail.
+	 */
+	private void api(HttpExchange t, Handler handler) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long delay = this.latencyMillis + (this.jitterMillis > 0 ? random.nextInt(this.jitterMillis + 1) : 0);
+		double roll = random.nextDouble();
+		Runnable respond;
+		if (roll < this.rateLimitRate) {
+			respond = () -> {
+				t.getResponseHeaders().set("Retry-After", Integer.toString(this.retryAfterSeconds));
+				this.send(t, 429, "{\"error\":{\"status\":429,\"message\":\"API rate limit exceeded\"}}");
+			};
+		} else if (roll < this.rateLimitRate + this.errorRate) {
+			respond = () -> this.send(t, 500, "{\"error\":{\"status\":500,\"message\":\"Server error\"}}");
+		} else {
+			respond = () -> {
+				try {
+					this.send(t, 200, handler.handle(t));
+				} catch (RuntimeException | IOException e) {
+					this.send(t, 400, "{\"error\":{\"status\":400,\"message\":\"" + e.getMessage() + "\"}}");
+				}
+			};
+		}
+		this.delays.schedule(respond, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Produces the body of a successful API response.
+	 */
+	@FunctionalInterface
+	private interface Handler {
+		String handle(HttpExchange t) throws IOException;
+	}
+
+	private void authorize(HttpExchange t) {
+		Map<String, String> query = MockSpotify.parseQuery(t.getRequestURI().getRawQuery());
+		String redirectUri = query.get("redirect_uri");
+		if (redirectUri == null) {
+			this.send(t, 400, "{\"error\":\"invalid_request\"}");
+			return;
+		}
+		String location = redirectUri + "?code=" + UUID.randomUUID() + "&state="
+				+ URLEncoder.encode(query.getOrDefault("state", ""), StandardCharsets.UTF_8);
+		t.getResponseHeaders().set("Location", location);
+		this.send(t, 302, "");
+	}
+
+	private String token(HttpExchange t) throws IOException {
+		Map<String, String> form = MockSpotify
+				.parseQuery(new String(t.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+		String grantType = form.get("grant_type");
+		if (!"authorization_code".equals(grantType) && !"refresh_token".equals(grantType)) {
+			throw new IllegalArgumentException("unsupported grant_type " + grantType);
+		}
+		return "{\"access_token\":\"" + UUID.randomUUID() + "\",\"token_type\":\"Bearer\",\"scope\":"
+				+ "\"user-read-email user-top-read\",\"expires_in\":" + this.tokenExpiresSeconds
+				+ ",\"refresh_token\":\"" + UUID.randomUUID() + "\"}";
+	}
+
+	private String me(HttpExchange t) {
+		if (!t.getRequestURI().getPath().equals("/v1/me")) {
+			throw new IllegalArgumentException("unknown path " + t.getRequestURI().getPath());
+		}
+		// Users are told apart by their token, as they are for their top items.
+		int user = Math.floorMod(Objects.hashCode(t.getRequestHeaders().getFirst("Authorization")), 1000000);
+		return "{\"id\":\"mockuser" + user + "\",\"display_name\":\"Mock User " + user + "\",\"type\":\"user\"}";
+	}
+
+	private String top(HttpExchange t) {
+		String type = t.getRequestURI().getPath().substring("/v1/me/top/".length());
+		if (!type.equals("tracks") && !type.equals("artists")) {
+			throw new IllegalArgumentException("unknown type " + type);
+		}
+		Map<String, String> query = MockSpotify.parseQuery(t.getRequestURI().getRawQuery());
+		int limit = Integer.parseInt(query.getOrDefault("limit", "20"));
+		int offset = Integer.parseInt(query.getOrDefault("offset", "0"));
+		// Each user (by token) and time range gets its own, stable, list.
+		int seed = Objects.hash(t.getRequestHeaders().getFirst("Authorization"), query.get("time_range"));
+		StringBuilder body = new StringBuilder(limit * 200);
+		body.append("{\"items\":[");
+		int end = Math.min(offset + limit, this.topItems);
+		for (int i = offset; i < end; i++) {
+			if (i != offset) {
+				body.append(',');
+			}
+			int item = Math.floorMod(seed + i * 7919, CATALOG_SIZE);
+			int artist = item % (CATALOG_SIZE / 5);
+			if (type.equals("tracks")) {
+				body.append("{\"id\":\"").append(MockSpotify.id('t', item)).append("\",\"name\":\"Track ").append(item)
+						.append("\",\"artists\":[{\"id\":\"").append(MockSpotify.id('a', artist))
+						.append("\",\"name\":\"Artist ").append(artist).append("\"}],\"popularity\":50}");
+			} else {
+				body.append("{\"id\":\"").append(MockSpotify.id('a', item)).append("\",\"name\":\"Artist ")
+						.append(item).append("\",\"genres\":[\"indie\",\"pop\"],\"popularity\":50}");
+			}
+		}
+		body.append("],\"total\":").append(this.topItems).append(",\"limit\":").append(limit).append(",\"offset\":")
+				.append(offset).append('}');
+		return body.toString();
+	}
+
+	private String audioFeatures(HttpExchange t) {
+		String ids = MockSpotify.parseQuery(t.getRequestURI().getRawQuery()).getOrDefault("ids", "");
+		StringBuilder body = new StringBuilder();
+		body.append("{\"audio_features\":[");
+		boolean first = true;
+		for (String id : ids.split(",")) {
+			if (id.isEmpty()) {
+				continue;
+			}
+			if (!first) {
+				body.append(',');
+			}
+			first = false;
+			int hash = id.hashCode();
+			body.append("{\"id\":\"").append(id).append("\",\"tempo\":").append(60 + Math.floorMod(hash, 120))
+					.append(",\"energy\":").append(Math.floorMod(hash >> 8, 100) / 100.0).append(",\"danceability\":")
+					.append(Math.floorMod(hash >> 16, 100) / 100.0).append('}');
+		}
+		body.append("]}");
+		return body.toString();
+	}
+
+	/**
+	 * Returns a Spotify-like 22 character id for catalog item {@code index}.
+	 */
+	private static String id(char kind, int index) {
+		StringBuilder id = new StringBuilder(22).append(kind).append("mock");
+		String digits = Integer.toString(index);
+		for (int i = id.length() + digits.length(); i < 22; i++) {
+			id.append('0');
+		}
+		return id.append(digits).toString();
+	}
+
+	private void send(HttpExchange t, int status, String body) {
+		this.responses.computeIfAbsent(t.getHttpContext().getPath() + " " + status, (String key) -> new LongAdder())
+				.increment();
+		try {
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length != 0) {
+				t.getResponseHeaders().set("Content-Type", "application/json");
+			}
+			t.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+			if (bytes.length != 0) {
+				t.getResponseBody().write(bytes);
+			}
+		} catch (IOException ioe) {
+			// The client went away.
+		} finally {
+			t.close();
+		}
+	}
+
+	private void report() {
+		StringBuilder report = new StringBuilder("Mock Spotify responses:");
+		for (Map.Entry<String, LongAdder> entry : this.responses.entrySet()) {
+			report.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue().sum());
+		}
+		System.out.println(report);
+	}
+
+	/**
+	 * Parses a query string or form body, keeping the first value of each name.
+	 */
+	static Map<String, String> parseQuery(String query) {
+		Map<String, String> output = new HashMap<>();
+		if (query == null || query.isEmpty()) {
+			return output;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+			String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+			output.putIfAbsent(name, value);
+		}
+		return output;
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+import java.util.*;
+
+//The Artist class stores information of a Spotify artist. Artists are
+//immutable. Like Track, names, ids and genres are shared between all sessions
+//through StringPool.SHARED, and decoded artists are resolved through
+//Artist.CANONICAL.
+public class Artist {
+	private static final String[] NO_GENRES = new String[0];
+	// The canonical Artist of each Spotify id, shared by all sessions. Its
+	// capacity is set by si.cache.artists.maxEntries (20000 by default).
+	static final TinyLfuCache<String, Artist> CANONICAL = new TinyLfuCache<>(
+			Integer.getInteger("si.cache.artists.maxEntries", 20000));
+
+	private final String id;
+	private final String name;
+	private final String[] genres;
+
+	// pre-condition : Takes in the Spotify id of the artist (may be null), the
+	//                 name of the artist, and a List<String> of its genres.
+	// post-condition: Constructs a new Artist object.
+	public Artist(String id, String name, List<String> genres) {
+		String[] pooled = genres.isEmpty() ? NO_GENRES : genres.toArray(NO_GENRES);
+		for (int i = 0; i < pooled.length; i++) {
+			pooled[i] = StringPool.SHARED.intern(pooled[i]);
+		}
+		this.id = StringPool.SHARED.intern(id);
+		this.name = StringPool.SHARED.intern(name);
+		this.genres = pooled;
+	}
+
+	// pre-condition : Takes in a JsonReader positioned at an artist object.
+	// post-condition: Returns the Artist the object represents. Only the fields
+	//                 an Artist keeps are decoded; everything else is skipped.
+	static Artist read(JsonReader reader) throws IOException {
+		String id = null;
+		String name = null;
+		List<String> genres = new ArrayList<>(4);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("id")) {
+				id = reader.nextStringOrNull();
+			} else if (field.equals("name")) {
+				name = reader.nextString();
+			} else if (field.equals("genres")) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					genres.add(reader.nextString());
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return canonical(new Artist(id, name, genres));
+	}
+
+	// pre-condition : Takes in an Artist.
+	// post-condition: Returns the cached Artist equal to artist if there is
+	//                 one, otherwise artist itself (which is cached if
+	//                 admitted). Artists with no id are returned as-is.
+	static Artist canonical(Artist artist) {
+		return artist.id == null ? artist : CANONICAL.intern(artist.id, artist);
+	}
+
+	// post-condition: Returns String of the Spotify id of the artist, or null.
+	public String getId() {
+		return id;
+	}
+
+	// post-condition: Returns String of the name of the artist.
+	public String getName() {
+		return name;
+	}
+
+	// post-condition: Returns an unmodifiable, RandomAccess List<String> of the
+	//                 genres of the artist.
+	public List<String> getGenres() {
+		return Collections.unmodifiableList(Arrays.asList(genres));
+	}
+
+	// post-condition: Returns true if o is an Artist with the same id, name and
+	//                 genres as this one.
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Artist)) {
+			return false;
+		}
+		Artist other = (Artist) o;
+		return Objects.equals(id, other.id) && Objects.equals(name, other.name)
+				&& Arrays.equals(genres, other.genres);
+	}
+
+	// post-condition: Returns a hash code consistent with equals.
+	public int hashCode() {
+		return id != null ? id.hashCode() : Objects.hashCode(name);
+	}
+
+	// post-condition: Returns String representation of Artist.
+	public String toString() {
+		return name + " " + Arrays.toString(genres);
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Bounds the number of asynchronous tasks that can be in flight at once without
+ * blocking any threads. Tasks submitted while all permits are taken are queued
+ * and started (in submission order) as earlier tasks complete.
+ */
+class AsyncLimiter {
+	/**
+	 * The maximum number of tasks that can be in flight at once.
+	 */
+	private final int maxInFlight;
+	/**
+	 * The number of tasks currently in flight. Guarded by {@code this}.
+	 */
+	private int inFlight;
+	/**
+	 * Tasks waiting for a permit. Guarded by {@code this}.
+	 */
+	private final Deque<Runnable> waiting = new ArrayDeque<>();
+
+	/**
+	 * Constructs a new {@code AsyncLimiter}.
+	 *
+	 * @param maxInFlight - The maximum number of tasks that can be in flight at
+	 *                    once. Must be positive.
+	 */
+	AsyncLimiter(int maxInFlight) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Starts {@code task} once a permit is available. The permit is released when
+	 * the future returned by {@code task} completes.
+	 *
+	 * @param <T>  - The type of the task's result.
+	 * @param task - Starts the task. Cannot be null.
+	 * @return A future completed with the result of {@code task}.
+	 */
+	<T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		Runnable start = () -> {
+			CompletableFuture<T> started;
+			try {
+				started = task.get();
+			} catch (RuntimeException re) {
+				started = new CompletableFuture<>();
+				started.completeExceptionally(re);
+			}
+			started.whenComplete((value, error) -> {
+				this.release();
+				if (error != null) {
+					result.completeExceptionally(error);
+				} else {
+					result.complete(value);
+				}
+			});
+		};
+
+		boolean runNow;
+		synchronized (this) {
+			runNow = this.inFlight < this.maxInFlight;
+			if (runNow) {
+				this.inFlight++;
+			} else {
+				this.waiting.addLast(start);
+			}
+		}
+		if (runNow) {
+			start.run();
+		}
+		return result;
+	}
+
+	/**
+	 * Releases a permit, handing it straight to the next waiting task if there is
+	 * one.
+	 */
+	private void release() {
+		Runnable next;
+		synchronized (this) {
+			next = this.waiting.pollFirst();
+			if (next == null) {
+				this.inFlight--;
+			}
+		}
+		if (next != null) {
+			next.run();
+		}
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a permit.
+	 *
+	 * @return The number of tasks waiting for a permit.
+	 */
+	synchronized int waiting() {
+		return this.waiting.size();
+	}
+}
@@ -0,0 +1,120 @@
+import java.io.*;
+import java.util.*;
+
+//The AudioFeatures class stores the audio features Spotify computes for a
+//track: its tempo, energy and danceability. AudioFeatures are immutable.
+public class AudioFeatures {
+	private final String trackId;
+	private final double tempo;
+	private final double energy;
+	private final double danceability;
+
+	// pre-condition : Takes in the Spotify id of the track (null for averages),
+	//                 its tempo in beats per minute, and its energy and
+	//                 danceability (both between 0.0 and 1.0).
+	// post-condition: Constructs a new AudioFeatures object.
+	public AudioFeatures(String trackId, double tempo, double energy, double danceability) {
+		this.trackId = trackId;
+		this.tempo = tempo;
+		this.energy = energy;
+		this.danceability = danceability;
+	}
+
+	// pre-condition : Takes in a Collection<AudioFeatures>.
+	// post-condition: Returns AudioFeatures (with no track id) holding the mean
+	//                 of each feature, or null if features is empty.
+	public static AudioFeatures average(Collection<AudioFeatures> features) {
+		if (features.isEmpty()) {
+			return null;
+		}
+		double tempo = 0.0, energy = 0.0, danceability = 0.0;
+		for (AudioFeatures current : features) {
+			tempo += current.tempo;
+			energy += current.energy;
+			danceability += current.danceability;
+		}
+		int count = features.size();
+		return new AudioFeatures(null, tempo / count, energy / count, danceability / count);
+	}
+
+	// pre-condition : Takes in an InputStream of a UTF-8 JSON response of the
+	//                 Spotify audio features endpoint (whose features are under
+	//                 "audio_features", with nulls for unknown tracks).
+	// post-condition: Returns List<AudioFeatures> of the features, without the
+	//                 nulls. Throws an IOException if the stream can't be read
+	//                 or isn't valid JSON.
+	public static List<AudioFeatures> fromJson(InputStream in) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		List<AudioFeatures> features = new ArrayList<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("audio_features")) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (reader.peek() == JsonReader.Token.NULL) {
+						reader.skipValue();
+					} else {
+						features.add(read(reader));
+					}
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return features;
+	}
+
+	// pre-condition : Takes in a JsonReader positioned at an audio features
+	//                 object.
+	// post-condition: Returns the AudioFeatures the object represents.
+	static AudioFeatures read(JsonReader reader) throws IOException {
+		String trackId = null;
+		double tempo = 0.0, energy = 0.0, danceability = 0.0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("id")) {
+				trackId = reader.nextStringOrNull();
+			} else if (field.equals("tempo")) {
+				tempo = reader.nextDouble();
+			} else if (field.equals("energy")) {
+				energy = reader.nextDouble();
+			} else if (field.equals("danceability")) {
+				danceability = reader.nextDouble();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return new AudioFeatures(trackId, tempo, energy, danceability);
+	}
+
+	// post-condition: Returns String of the Spotify id of the track, or null
+	//                 for averages.
+	public String getTrackId() {
+		return trackId;
+	}
+
+	// post-condition: Returns the tempo of the track in beats per minute.
+	public double getTempo() {
+		return tempo;
+	}
+
+	// post-condition: Returns the energy of the track, between 0.0 and 1.0.
+	public double getEnergy() {
+		return energy;
+	}
+
+	// post-condition: Returns the danceability of the track, between 0.0 and
+	//                 1.0.
+	public double getDanceability() {
+		return danceability;
+	}
+
+	// post-condition: Returns String representation of AudioFeatures.
+	public String toString() {
+		return String.format("%.0f BPM, energy %.2f, danceability %.2f", tempo, energy, danceability);
+	}
+}
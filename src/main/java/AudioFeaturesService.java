@@ -0,0 +1,266 @@
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Looks up the {@link AudioFeatures} of tracks, for all sessions at once.
+ *
+ * <p>
+ * Track ids requested by any session within a short batch window are gathered
+ * and fetched together, up to {@value #MAX_BATCH_SIZE} per call to Spotify's
+ * audio features endpoint. Results are kept in a process-wide cache keyed by
+ * track id, so a popular track is only fetched once no matter how many users
+ * have it in their top tracks. Ids that are already being fetched are joined
+ * rather than requested again. Failed lookups aren't cached.
+ *
+ * <p>
+ * Audio features don't depend on the user, so a batch is fetched with the
+ * access token of any session that contributed to it. If Spotify rejects that
+ * token ({@code 401} or {@code 403}), only the ids that session asked for fail;
+ * the others are fetched again with the tokens of the sessions that asked for
+ * them.
+ */
+class AudioFeaturesService {
+	/**
+	 * The Spotify web API endpoint that returns the audio features of several
+	 * tracks.
+	 */
+	private static final URI SPOTIFY_AUDIO_FEATURES = SpotifyClient.API_URL.resolve("v1/audio-features");
+	/**
+	 * The most ids Spotify accepts per request.
+	 */
+	static final int MAX_BATCH_SIZE = 100;
+
+	/**
+	 * Ids gathered into one request.
+	 */
+	private static class Batch {
+		private final Map<String, CompletableFuture<AudioFeatures>> features = new LinkedHashMap<>();
+		/**
+		 * The {@code Authorization} header of the session that asked for each id.
+		 */
+		private final Map<String, String> authorizations = new HashMap<>();
+		/**
+		 * The {@code Authorization} header the batch is fetched with.
+		 */
+		private String authorization;
+	}
+
+	private final SpotifyClient client;
+	private final int batchSize;
+	private final long batchWindowMillis;
+	/**
+	 * The features of each track, by id, completed with null for tracks Spotify
+	 * has no features for. Holds lookups in flight as well as finished ones, and
+	 * evicts the least recently used once full. Guarded by {@code this}.
+	 */
+	private final LinkedHashMap<String, CompletableFuture<AudioFeatures>> cache;
+	/**
+	 * The batch being gathered. Guarded by {@code this}.
+	 */
+	private Batch pending = new Batch();
+	/**
+	 * Sends {@link #pending} when its window closes, or null if it's empty.
+	 * Guarded by {@code this}.
+	 */
+	private ScheduledFuture<?> pendingFlush;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "audio-features");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Constructs a new {@code AudioFeaturesService}.
+	 *
+	 * @param client      - The client used to make requests.
+	 * @param batchSize   - The most ids per request, at most
+	 *                    {@value #MAX_BATCH_SIZE}.
+	 * @param batchWindow - How long ids are gathered before a batch that isn't
+	 *                    full is sent.
+	 * @param maxEntries  - The number of tracks whose features are cached.
+	 */
+	AudioFeaturesService(SpotifyClient client, int batchSize, Duration batchWindow, int maxEntries) {
+		if (batchSize <= 0 || batchSize > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE);
+		}
+		this.client = client;
+		this.batchSize = batchSize;
+		this.batchWindowMillis = batchWindow.toMillis();
+		this.cache = new LinkedHashMap<String, CompletableFuture<AudioFeatures>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<AudioFeatures>> eldest) {
+				// Evicting a lookup in flight is harmless: whoever is waiting on it still gets
+				// its result.
+				return this.size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Creates an {@code AudioFeaturesService} configured by the
+	 * {@code si.audioFeatures.*} system properties.
+	 *
+	 * @param client - The client used to make requests.
+	 * @return The new {@code AudioFeaturesService}.
+	 */
+	static AudioFeaturesService fromSystemProperties(SpotifyClient client) {
+		return new AudioFeaturesService(client, Integer.getInteger("si.audioFeatures.batchSize", MAX_BATCH_SIZE),
+				Duration.ofMillis(Long.getLong("si.audioFeatures.batchWindowMillis", 20L)),
+				Integer.getInteger("si.audioFeatures.maxEntries", 100000));
+	}
+
+	/**
+	 * Looks up the audio features of tracks.
+	 *
+	 * @param trackIds      - The Spotify ids of the tracks. Nulls are ignored.
+	 * @param authorization - The {@code Authorization} header to use if some of
+	 *                      the tracks have to be fetched.
+	 * @return A future completed with the features of each track Spotify has
+	 *         features for, by id, or completed exceptionally if some of the
+	 *         tracks couldn't be looked up.
+	 */
+	CompletableFuture<Map<String, AudioFeatures>> get(Collection<String> trackIds, String authorization) {
+		Map<String, CompletableFuture<AudioFeatures>> lookups = new LinkedHashMap<>();
+		List<Batch> full = new ArrayList<>();
+		synchronized (this) {
+			for (String trackId : trackIds) {
+				if (trackId == null || lookups.containsKey(trackId)) {
+					continue;
+				}
+				CompletableFuture<AudioFeatures> lookup = this.cache.get(trackId);
+				if (lookup == null) {
+					lookup = new CompletableFuture<>();
+					this.cache.put(trackId, lookup);
+					this.pending.features.put(trackId, lookup);
+					this.pending.authorizations.put(trackId, authorization);
+					this.pending.authorization = authorization;
+					if (this.pending.features.size() >= this.batchSize) {
+						full.add(this.takePending());
+					}
+				}
+				lookups.put(trackId, lookup);
+			}
+			if (!this.pending.features.isEmpty() && this.pendingFlush == null) {
+				this.pendingFlush = this.scheduler.schedule(this::flush, this.batchWindowMillis,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+		for (Batch batch : full) {
+			this.send(batch);
+		}
+
+		return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[0]))
+				.thenApply((Void ignored) -> {
+					Map<String, AudioFeatures> features = new HashMap<>();
+					for (Map.Entry<String, CompletableFuture<AudioFeatures>> lookup : lookups.entrySet()) {
+						AudioFeatures trackFeatures = lookup.getValue().join();
+						if (trackFeatures != null) {
+							features.put(lookup.getKey(), trackFeatures);
+						}
+					}
+					return features;
+				});
+	}
+
+	/**
+	 * Returns the number of tracks whose features are cached or being fetched.
+	 *
+	 * @return The number of tracks whose features are cached or being fetched.
+	 */
+	synchronized int size() {
+		return this.cache.size();
+	}
+
+	/**
+	 * Sends the pending batch once its window has closed.
+	 */
+	private void flush() {
+		Batch batch;
+		synchronized (this) {
+			this.pendingFlush = null;
+			if (this.pending.features.isEmpty()) {
+				return;
+			}
+			batch = this.takePending();
+		}
+		this.send(batch);
+	}
+
+	/**
+	 * Replaces the pending batch with an empty one, and returns it. Must be called
+	 * while holding the lock on {@code this}.
+	 */
+	private Batch takePending() {
+		Batch batch = this.pending;
+		this.pending = new Batch();
+		return batch;
+	}
+
+	/**
+	 * Fails the lookups of a batch that couldn't be fetched. If the batch's token
+	 * was rejected, the ids other sessions asked for are fetched again with their
+	 * own tokens instead.
+	 */
+	private void fail(Batch batch, Throwable error) {
+		Map<String, Batch> retries = new LinkedHashMap<>();
+		Throwable cause = SpotifyClient.unwrap(error);
+		if (cause instanceof SpotifyApiException && (((SpotifyApiException) cause).statusCode() == 401
+				|| ((SpotifyApiException) cause).statusCode() == 403)) {
+			for (Map.Entry<String, CompletableFuture<AudioFeatures>> lookup : batch.features.entrySet()) {
+				String authorization = batch.authorizations.get(lookup.getKey());
+				if (!authorization.equals(batch.authorization)) {
+					Batch retry = retries.computeIfAbsent(authorization, (String key) -> {
+						Batch newBatch = new Batch();
+						newBatch.authorization = key;
+						return newBatch;
+					});
+					retry.features.put(lookup.getKey(), lookup.getValue());
+					retry.authorizations.put(lookup.getKey(), authorization);
+				}
+			}
+		}
+		List<Map.Entry<String, CompletableFuture<AudioFeatures>>> failed = new ArrayList<>();
+		for (Map.Entry<String, CompletableFuture<AudioFeatures>> lookup : batch.features.entrySet()) {
+			if (!retries.containsKey(batch.authorizations.get(lookup.getKey()))) {
+				failed.add(lookup);
+			}
+		}
+		synchronized (this) {
+			// Lets a later request try again.
+			for (Map.Entry<String, CompletableFuture<AudioFeatures>> lookup : failed) {
+				this.cache.remove(lookup.getKey(), lookup.getValue());
+			}
+		}
+		for (Map.Entry<String, CompletableFuture<AudioFeatures>> lookup : failed) {
+			lookup.getValue().completeExceptionally(error);
+		}
+		for (Batch retry : retries.values()) {
+			this.send(retry);
+		}
+	}
+
+	/**
+	 * Fetches the features of a batch, completing each of its lookups.
+	 */
+	private void send(Batch batch) {
+		URI uri = URI.create(SPOTIFY_AUDIO_FEATURES + "?ids=" + String.join(",", batch.features.keySet()));
+		this.client.get(uri, "application/json", batch.authorization, Server.jsonBody(AudioFeatures::fromJson))
+				.whenComplete((List<AudioFeatures> features, Throwable error) -> {
+					if (error != null) {
+						this.fail(batch, error);
+						return;
+					}
+					Map<String, AudioFeatures> byId = new HashMap<>();
+					for (AudioFeatures trackFeatures : features) {
+						byId.put(trackFeatures.getTrackId(), trackFeatures);
+					}
+					for (Map.Entry<String, CompletableFuture<AudioFeatures>> lookup : batch.features.entrySet()) {
+						lookup.getValue().complete(byId.get(lookup.getKey()));
+					}
+				});
+	}
+}
@@ -0,0 +1,90 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A pool of equally sized direct {@code ByteBuffer}s. Direct buffers are
+ * expensive to allocate and are only freed by the garbage collector, so
+ * {@link NioHttpServer} takes one from here whenever a connection has bytes to
+ * hold on to, and gives it back as soon as it's empty. Idle keep-alive
+ * connections hold no buffers at all.
+ *
+ * <p>
+ * Not thread-safe: a pool belongs to the selector thread of one server.
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	/**
+	 * The free buffers, most recently released first (they're the likeliest to
+	 * still be in the CPU cache).
+	 */
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+	/**
+	 * The number of buffers allocated and not garbage, i.e. held by connections
+	 * or free in the pool. Only written by the selector thread.
+	 */
+	private volatile int allocated;
+
+	/**
+	 * Constructs a new, empty, {@code BufferPool}.
+	 *
+	 * @param bufferSize - The capacity of each buffer, in bytes.
+	 * @param maxPooled  - The maximum number of free buffers kept. Buffers released
+	 *                   beyond that are left to the garbage collector.
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating one if it's empty.
+	 *
+	 * @return The buffer.
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = this.free.pollFirst();
+		if (buffer == null) {
+			this.allocated++;
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer taken by {@link #acquire()} to the pool. It mustn't be used
+	 * afterwards.
+	 *
+	 * @param buffer - The buffer. May be null, in which case nothing happens.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (this.free.size() < this.maxPooled) {
+			this.free.addFirst(buffer);
+		} else {
+			this.allocated--;
+		}
+	}
+
+	/**
+	 * Returns the capacity of each buffer.
+	 *
+	 * @return The capacity of each buffer, in bytes.
+	 */
+	int bufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Returns the number of buffers allocated by this pool that are still in use
+	 * or pooled.
+	 *
+	 * @return The number of buffers.
+	 */
+	int allocated() {
+		return this.allocated;
+	}
+}
@@ -0,0 +1,210 @@
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * A hierarchical timer wheel that tracks when keys expire. Time is split into
+ * ticks of {@code tickDuration}, and keys are kept in one of {@value #LEVELS}
+ * wheels of {@value #SLOTS} slots each: level 0 holds keys expiring within the
+ * next {@value #SLOTS} ticks, level 1 within the next {@value #SLOTS}^2 ticks,
+ * and so on. Advancing the wheel by a tick only touches the one level-0 slot
+ * that's due (plus, every {@value #SLOTS}^n ticks, one slot of level n, whose
+ * keys are moved down a level), so expiring keys never requires scanning all of
+ * them. Scheduling, rescheduling and removing a key are O(1).
+ *
+ * <p>
+ * This class is thread-safe. The expiry callback is run without holding the
+ * wheel's lock.
+ *
+ * @param <K> - The type of the keys.
+ */
+class ExpiryWheel<K> {
+	/**
+	 * The number of bits used to index a slot within a level.
+	 */
+	private static final int SLOT_BITS = 6;
+	/**
+	 * The number of slots per level.
+	 */
+	private static final int SLOTS = 1 << SLOT_BITS;
+	/**
+	 * The number of levels. With one-minute ticks, the wheel covers about 31
+	 * years.
+	 */
+	private static final int LEVELS = 4;
+
+	/**
+	 * Where a key is currently stored.
+	 */
+	private static class Entry<K> {
+		private final K key;
+		private final long tick;
+		private int level;
+		private int slot;
+
+		private Entry(K key, long tick) {
+			this.key = key;
+			this.tick = tick;
+		}
+	}
+
+	/**
+	 * The length of a tick, in milliseconds.
+	 */
+	private final long tickMillis;
+	/**
+	 * Called with each key as it expires.
+	 */
+	private final Consumer<K> onExpiry;
+	/**
+	 * The slots of each level. Guarded by {@code this}.
+	 */
+	private final List<List<Map<K, Entry<K>>>> wheels = new ArrayList<>(LEVELS);
+	/**
+	 * The entry of each key in the wheel. Guarded by {@code this}.
+	 */
+	private final Map<K, Entry<K>> entries = new HashMap<>();
+	/**
+	 * The last tick that has been processed. Guarded by {@code this}.
+	 */
+	private long currentTick;
+
+	/**
+	 * Constructs a new {@code ExpiryWheel} starting at the current time.
+	 *
+	 * @param tickDuration - The granularity of expiry times. Keys expire up to one
+	 *                     tick late.
+	 * @param onExpiry     - Called with each key as it expires.
+	 */
+	ExpiryWheel(Duration tickDuration, Consumer<K> onExpiry) {
+		this.tickMillis = tickDuration.toMillis();
+		this.onExpiry = onExpiry;
+		this.currentTick = System.currentTimeMillis() / this.tickMillis;
+		for (int level = 0; level < LEVELS; level++) {
+			List<Map<K, Entry<K>>> slots = new ArrayList<>(SLOTS);
+			for (int slot = 0; slot < SLOTS; slot++) {
+				slots.add(new HashMap<>());
+			}
+			this.wheels.add(slots);
+		}
+	}
+
+	/**
+	 * Schedules {@code key} to expire at {@code expiresAtMillis}, replacing any
+	 * expiry already scheduled for it.
+	 *
+	 * @param key             - The key to schedule. Cannot be null.
+	 * @param expiresAtMillis - The epoch millisecond the key expires at.
+	 */
+	synchronized void schedule(K key, long expiresAtMillis) {
+		this.removeEntry(key);
+		// Rounds up so that keys never expire early.
+		Entry<K> entry = new Entry<>(key, (expiresAtMillis + this.tickMillis - 1) / this.tickMillis);
+		this.entries.put(key, entry);
+		// The current tick has already been processed, so the earliest a new key can
+		// expire is the next one.
+		this.place(entry, this.currentTick + 1);
+	}
+
+	/**
+	 * Stops tracking {@code key}. It won't be passed to the expiry callback.
+	 *
+	 * @param key - The key to remove.
+	 */
+	synchronized void remove(K key) {
+		this.removeEntry(key);
+	}
+
+	/**
+	 * Returns the number of keys being tracked.
+	 *
+	 * @return The number of keys being tracked.
+	 */
+	synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Advances the wheel to {@code nowMillis}, passing every key that has expired
+	 * by then to the expiry callback.
+	 *
+	 * @param nowMillis - The current epoch millisecond.
+	 */
+	void advance(long nowMillis) {
+		List<K> expired = new ArrayList<>();
+		synchronized (this) {
+			long nowTick = nowMillis / this.tickMillis;
+			while (this.currentTick < nowTick) {
+				this.currentTick++;
+				// Moves keys down from the higher levels whose slot has just come due, from
+				// the top down so that keys can cascade through several levels at once.
+				for (int level = LEVELS - 1; level > 0; level--) {
+					long levelMask = (1L << (SLOT_BITS * level)) - 1;
+					if ((this.currentTick & levelMask) == 0) {
+						this.cascade(level, this.slotOf(this.currentTick, level));
+					}
+				}
+				Map<K, Entry<K>> due = this.wheels.get(0).get(this.slotOf(this.currentTick, 0));
+				for (Entry<K> entry : due.values()) {
+					this.entries.remove(entry.key);
+					expired.add(entry.key);
+				}
+				due.clear();
+			}
+		}
+		for (K key : expired) {
+			this.onExpiry.accept(key);
+		}
+	}
+
+	/**
+	 * Re-places every entry of a slot, which moves each of them to a lower level.
+	 */
+	private void cascade(int level, int slot) {
+		Map<K, Entry<K>> bucket = this.wheels.get(level).get(slot);
+		List<Entry<K>> moving = new ArrayList<>(bucket.values());
+		bucket.clear();
+		for (Entry<K> entry : moving) {
+			// The current tick's level-0 slot is processed right after cascading.
+			this.place(entry, this.currentTick);
+		}
+	}
+
+	/**
+	 * Puts {@code entry} in the slot of the lowest level whose range covers its
+	 * expiry. Entries due before {@code minTick} are placed at {@code minTick}.
+	 */
+	private void place(Entry<K> entry, long minTick) {
+		long tick = Math.max(entry.tick, minTick);
+		long delta = tick - this.currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+			// Past the end of the wheel; parks the key in the furthest slot, from which
+			// it'll be placed again when that slot comes due.
+			tick = this.currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+		}
+		entry.level = level;
+		entry.slot = this.slotOf(tick, level);
+		this.wheels.get(level).get(entry.slot).put(entry.key, entry);
+	}
+
+	/**
+	 * Removes the entry of {@code key}, if there is one.
+	 */
+	private void removeEntry(K key) {
+		Entry<K> entry = this.entries.remove(key);
+		if (entry != null) {
+			this.wheels.get(entry.level).get(entry.slot).remove(key);
+		}
+	}
+
+	/**
+	 * Returns the slot of {@code tick} within {@code level}.
+	 */
+	private int slotOf(long tick, int level) {
+		return (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+	}
+}
@@ -0,0 +1,74 @@
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A consistent hash ring: maps keys to one of a set of nodes, such that adding
+ * or removing a node only moves the keys of that node. Each node is placed at
+ * {@code virtualNodes} points of a 32-bit ring, and a key belongs to the node
+ * of the first point at or after its hash, wrapping around.
+ *
+ * <p>
+ * The points are derived from the node names alone, so every server that
+ * builds a ring from the same names agrees on the owner of every key.
+ * Immutable, and so thread-safe.
+ */
+class HashRing {
+	private final int[] points;
+	private final String[] owners;
+
+	/**
+	 * Constructs a new {@code HashRing}.
+	 *
+	 * @param nodes        - The names of the nodes. Cannot be empty.
+	 * @param virtualNodes - The number of points each node is placed at. More
+	 *                     points spread keys more evenly between nodes.
+	 */
+	HashRing(Collection<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("A hash ring needs at least one node");
+		}
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+		// Sorted by point, then by name, so that (unlikely) collisions are broken
+		// the same way everywhere.
+		TreeMap<Integer, String> ring = new TreeMap<>();
+		for (String node : new TreeSet<>(nodes)) {
+			for (int i = 0; i < virtualNodes; i++) {
+				byte[] digest = sha256.digest((node + "#" + i).getBytes(StandardCharsets.UTF_8));
+				int point = ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8)
+						| (digest[3] & 0xFF);
+				ring.putIfAbsent(point, node);
+			}
+		}
+		this.points = new int[ring.size()];
+		this.owners = new String[ring.size()];
+		int i = 0;
+		for (Map.Entry<Integer, String> entry : ring.entrySet()) {
+			this.points[i] = entry.getKey();
+			this.owners[i] = entry.getValue();
+			i++;
+		}
+	}
+
+	/**
+	 * Returns the node that owns a key.
+	 *
+	 * @param hash - The hash of the key. Should be uniformly distributed.
+	 * @return The name of the node.
+	 */
+	String owner(int hash) {
+		int index = Arrays.binarySearch(this.points, hash);
+		if (index < 0) {
+			index = -index - 1;
+			if (index == this.points.length) {
+				index = 0;
+			}
+		}
+		return this.owners[index];
+	}
+}
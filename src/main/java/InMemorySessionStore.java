@@ -0,0 +1,38 @@
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A {@link SessionStore} that only keeps sessions in memory. Sessions are lost
+ * when the server restarts.
+ */
+class InMemorySessionStore implements SessionStore {
+	/**
+	 * The map of session IDs to sessions.
+	 */
+	private final ConcurrentMap<SessionId, Session> sessions = new ConcurrentHashMap<>();
+
+	@Override
+	public Session get(SessionId id) {
+		return this.sessions.get(id);
+	}
+
+	@Override
+	public void put(SessionId id, Session session) {
+		this.sessions.put(id, session);
+	}
+
+	@Override
+	public Session remove(SessionId id) {
+		return this.sessions.remove(id);
+	}
+
+	@Override
+	public int size() {
+		return this.sessions.size();
+	}
+
+	@Override
+	public void forEach(BiConsumer<SessionId, Session> action) {
+		this.sessions.forEach(action);
+	}
+}
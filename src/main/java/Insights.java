@@ -0,0 +1,156 @@
+import java.util.*;
+
+/**
+ * Everything the server knows about a user's listening: their top tracks and
+ * top artists over each of Spotify's time ranges, and the audio features of
+ * those tracks. Instances are built by {@link InsightsPipeline} and are
+ * immutable.
+ *
+ * <p>
+ * Insights may be partial, when some of the requests they're built from
+ * failed. {@link #missing()} then describes what's absent, and the lists of
+ * the affected time ranges are empty or cut short. Audio features are only
+ * enrichment, so failing to look them up doesn't make insights partial;
+ * {@link #hasAudioFeatures()} tells instead.
+ */
+class Insights {
+	/**
+	 * The periods Spotify computes top items over.
+	 */
+	enum TimeRange {
+		SHORT_TERM("short_term", "the last 4 weeks"), MEDIUM_TERM("medium_term", "the last 6 months"),
+		LONG_TERM("long_term", "all time");
+
+		/**
+		 * The value of the {@code time_range} query parameter.
+		 */
+		final String parameter;
+		/**
+		 * A description of the period, for display.
+		 */
+		final String description;
+
+		TimeRange(String parameter, String description) {
+			this.parameter = parameter;
+			this.description = description;
+		}
+	}
+
+	private final Map<TimeRange, List<Track>> topTracks;
+	private final Map<TimeRange, List<Artist>> topArtists;
+	private final Map<String, AudioFeatures> audioFeatures;
+	private final boolean hasAudioFeatures;
+	private final List<String> missing;
+
+	/**
+	 * Constructs a new {@code Insights}. The maps and lists are copied.
+	 *
+	 * @param topTracks     - The top tracks of each time range, most listened
+	 *                      first.
+	 * @param topArtists    - The top artists of each time range, most listened
+	 *                      first.
+	 * @param audioFeatures - The audio features of the top tracks, by track id, or
+	 *                      null if they couldn't be looked up.
+	 * @param missing       - Descriptions of the parts that couldn't be fetched.
+	 */
+	Insights(Map<TimeRange, List<Track>> topTracks, Map<TimeRange, List<Artist>> topArtists,
+			Map<String, AudioFeatures> audioFeatures, List<String> missing) {
+		this.topTracks = Insights.copy(topTracks);
+		this.topArtists = Insights.copy(topArtists);
+		this.hasAudioFeatures = audioFeatures != null;
+		this.audioFeatures = audioFeatures == null ? Collections.emptyMap()
+				: Collections.unmodifiableMap(new HashMap<>(audioFeatures));
+		this.missing = Collections.unmodifiableList(new ArrayList<>(missing));
+	}
+
+	/**
+	 * Returns the user's top tracks over {@code range}.
+	 *
+	 * @param range - The time range.
+	 * @return An unmodifiable list of the tracks, most listened first.
+	 */
+	List<Track> topTracks(TimeRange range) {
+		return this.topTracks.get(range);
+	}
+
+	/**
+	 * Returns the user's top artists over {@code range}.
+	 *
+	 * @param range - The time range.
+	 * @return An unmodifiable list of the artists, most listened first.
+	 */
+	List<Artist> topArtists(TimeRange range) {
+		return this.topArtists.get(range);
+	}
+
+	/**
+	 * Returns the audio features of {@code track}.
+	 *
+	 * @param track - One of the top tracks.
+	 * @return The track's audio features, or null if they aren't known.
+	 */
+	AudioFeatures audioFeatures(Track track) {
+		return track.getId() == null ? null : this.audioFeatures.get(track.getId());
+	}
+
+	/**
+	 * Returns the average audio features of the user's top tracks over
+	 * {@code range}.
+	 *
+	 * @param range - The time range.
+	 * @return The average of the features of the tracks whose features are known,
+	 *         or null if none are.
+	 */
+	AudioFeatures averageAudioFeatures(TimeRange range) {
+		List<AudioFeatures> features = new ArrayList<>();
+		for (Track track : this.topTracks.get(range)) {
+			AudioFeatures trackFeatures = this.audioFeatures(track);
+			if (trackFeatures != null) {
+				features.add(trackFeatures);
+			}
+		}
+		return AudioFeatures.average(features);
+	}
+
+	/**
+	 * Returns whether the audio features of the top tracks were looked up.
+	 *
+	 * @return Whether the audio features were looked up. If not,
+	 *         {@link #audioFeatures(Track)} is null for every track.
+	 */
+	boolean hasAudioFeatures() {
+		return this.hasAudioFeatures;
+	}
+
+	/**
+	 * Returns whether some of the insights couldn't be fetched.
+	 *
+	 * @return Whether some of the insights couldn't be fetched.
+	 */
+	boolean isPartial() {
+		return !this.missing.isEmpty();
+	}
+
+	/**
+	 * Returns descriptions of the parts of the insights that couldn't be fetched.
+	 *
+	 * @return An unmodifiable list of descriptions, empty if nothing is missing.
+	 */
+	List<String> missing() {
+		return this.missing;
+	}
+
+	/**
+	 * Copies {@code map} into an unmodifiable {@code EnumMap} of unmodifiable
+	 * lists, with an empty list for every time range that isn't in it.
+	 */
+	private static <T> Map<TimeRange, List<T>> copy(Map<TimeRange, List<T>> map) {
+		Map<TimeRange, List<T>> copy = new EnumMap<>(TimeRange.class);
+		for (TimeRange range : TimeRange.values()) {
+			List<T> items = map.get(range);
+			copy.put(range, items == null ? Collections.emptyList()
+					: Collections.unmodifiableList(new ArrayList<>(items)));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+}
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fetches a user's {@link Insights} from the Spotify web API: their top tracks
+ * and top artists over every {@link Insights.TimeRange}, each walked through
+ * {@code offset}/{@code limit} pages up to {@code maxItems} items, and then the
+ * audio features of those tracks (through the shared
+ * {@link AudioFeaturesService}).
+ *
+ * <p>
+ * Every page is requested up front, in parallel, rather than one after
+ * another, so fetching a user's insights takes about as long as the slowest
+ * single request. The requests of one fetch go through their own
+ * {@link AsyncLimiter}, which caps how many of them may be in flight at once
+ * (on top of {@link SpotifyClient}'s per-host limit, which is shared by all
+ * users).
+ *
+ * <p>
+ * A failed request doesn't fail the whole fetch: the items it (and any later
+ * page of the same list) would have provided are left out, and the result is
+ * marked as partial. Only if every request fails is the fetch failed, with the
+ * first error. Failing to look up the audio features leaves the insights
+ * without them, but not partial.
+ */
+class InsightsPipeline {
+	/**
+	 * The Spotify web API endpoint that {@code tracks} and {@code artists} are
+	 * resolved against to list the current user's top items.
+	 */
+	private static final URI SPOTIFY_TOP = SpotifyClient.API_URL.resolve("v1/me/top/");
+	/**
+	 * The largest page Spotify serves.
+	 */
+	private static final int MAX_PAGE_SIZE = 50;
+
+	/**
+	 * Reads one item of a list from a {@link JsonReader}.
+	 *
+	 * @param <T> - The type of the items.
+	 */
+	@FunctionalInterface
+	interface ItemReader<T> {
+		T read(JsonReader reader) throws IOException;
+	}
+
+	private final SpotifyClient client;
+	private final AudioFeaturesService audioFeatures;
+	/**
+	 * The number of items requested per page.
+	 */
+	private final int pageSize;
+	/**
+	 * The number of items fetched per list (i.e., per type and time range).
+	 */
+	private final int maxItems;
+	/**
+	 * The number of requests of one fetch that may be in flight at once.
+	 */
+	private final int maxConcurrent;
+	/**
+	 * The fetches in flight, by session, so that concurrent page loads of one
+	 * user (e.g., several tabs) share a fetch.
+	 */
+	private final SingleFlight<Session, Insights> inFlight = new SingleFlight<>();
+
+	/**
+	 * Constructs a new {@code InsightsPipeline}.
+	 *
+	 * @param client        - The client used to make requests.
+	 * @param audioFeatures - Looks up the audio features of the top tracks.
+	 * @param pageSize      - The number of items requested per page, at most
+	 *                      {@value #MAX_PAGE_SIZE}.
+	 * @param maxItems      - The number of items fetched per list.
+	 * @param maxConcurrent - The number of requests of one fetch that may be in
+	 *                      flight at once.
+	 */
+	InsightsPipeline(SpotifyClient client, AudioFeaturesService audioFeatures, int pageSize, int maxItems,
+			int maxConcurrent) {
+		if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_PAGE_SIZE);
+		}
+		this.client = client;
+		this.audioFeatures = audioFeatures;
+		this.pageSize = pageSize;
+		this.maxItems = maxItems;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * Creates an {@code InsightsPipeline} configured by the {@code si.insights.*}
+	 * system properties.
+	 *
+	 * @param client        - The client used to make requests.
+	 * @param audioFeatures - Looks up the audio features of the top tracks.
+	 * @return The new {@code InsightsPipeline}.
+	 */
+	static InsightsPipeline fromSystemProperties(SpotifyClient client, AudioFeaturesService audioFeatures) {
+		return new InsightsPipeline(client, audioFeatures, Integer.getInteger("si.insights.pageSize", MAX_PAGE_SIZE),
+				Integer.getInteger("si.insights.maxItems", 100), Integer.getInteger("si.insights.maxConcurrent", 12));
+	}
+
+	/**
+	 * Fetches the insights of the user of {@code session}, refreshing its access
+	 * token first if needed. If a fetch for {@code session} is already in flight,
+	 * its result is shared instead.
+	 *
+	 * @param session - The session of the user.
+	 * @return A future completed with the user's insights, which may be partial.
+	 */
+	CompletableFuture<Insights> fetch(Session session) {
+		return this.fetch(session, UpstreamScheduler.Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Fetches the insights of the user of {@code session}, as
+	 * {@link #fetch(Session)} does, with the requests for the top items waiting in
+	 * the given lane.
+	 *
+	 * @param session  - The session of the user.
+	 * @param priority - The lane the requests for the top items wait in.
+	 * @return A future completed with the user's insights, which may be partial.
+	 */
+	CompletableFuture<Insights> fetch(Session session, UpstreamScheduler.Priority priority) {
+		return this.inFlight.execute(session, () -> session.softRefresh()
+				.thenCompose((Void ignored) -> this.fetch("Bearer " + session.currentToken(), priority)));
+	}
+
+	/**
+	 * Fetches all lists in parallel, then the audio features of their tracks, and
+	 * merges them into an {@code Insights}.
+	 */
+	private CompletableFuture<Insights> fetch(String authorization, UpstreamScheduler.Priority priority) {
+		Fetch fetch = new Fetch(authorization, priority);
+		Map<Insights.TimeRange, CompletableFuture<List<Track>>> tracks = new EnumMap<>(Insights.TimeRange.class);
+		Map<Insights.TimeRange, CompletableFuture<List<Artist>>> artists = new EnumMap<>(Insights.TimeRange.class);
+		List<CompletableFuture<?>> all = new ArrayList<>();
+		for (Insights.TimeRange range : Insights.TimeRange.values()) {
+			CompletableFuture<List<Track>> rangeTracks = fetch.list("tracks", range, Track::read);
+			CompletableFuture<List<Artist>> rangeArtists = fetch.list("artists", range, Artist::read);
+			tracks.put(range, rangeTracks);
+			artists.put(range, rangeArtists);
+			all.add(rangeTracks);
+			all.add(rangeArtists);
+		}
+		return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).thenCompose((Void ignored) -> {
+			if (fetch.succeeded.get() == 0) {
+				throw new CompletionException(fetch.firstError.get());
+			}
+			Map<Insights.TimeRange, List<Track>> topTracks = new EnumMap<>(Insights.TimeRange.class);
+			Map<Insights.TimeRange, List<Artist>> topArtists = new EnumMap<>(Insights.TimeRange.class);
+			Set<String> trackIds = new HashSet<>();
+			for (Insights.TimeRange range : Insights.TimeRange.values()) {
+				// Each list's future is already complete, and never completes exceptionally.
+				topTracks.put(range, tracks.get(range).join());
+				topArtists.put(range, artists.get(range).join());
+				for (Track track : topTracks.get(range)) {
+					trackIds.add(track.getId());
+				}
+			}
+			return this.audioFeatures.get(trackIds, authorization)
+					.handle((Map<String, AudioFeatures> features, Throwable error) -> {
+						// Without its audio features, the result is still complete (and cached as
+						// such), just without the enrichment.
+						return new Insights(topTracks, topArtists, error == null ? features : null, fetch.missing);
+					});
+		});
+	}
+
+	/**
+	 * The state of one fetch of a user's insights.
+	 */
+	private class Fetch {
+		private final String authorization;
+		private final UpstreamScheduler.Priority priority;
+		private final AsyncLimiter limiter = new AsyncLimiter(InsightsPipeline.this.maxConcurrent);
+		private final List<String> missing = Collections.synchronizedList(new ArrayList<>());
+		private final AtomicInteger succeeded = new AtomicInteger();
+		private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+		private Fetch(String authorization, UpstreamScheduler.Priority priority) {
+			this.authorization = authorization;
+			this.priority = priority;
+		}
+
+		/**
+		 * Requests every page of one list at once, and concatenates them in order once
+		 * they've all completed. The returned future never completes exceptionally;
+		 * if a page fails, the list stops before it.
+		 */
+		private <T> CompletableFuture<List<T>> list(String type, Insights.TimeRange range, ItemReader<T> reader) {
+			int pageSize = InsightsPipeline.this.pageSize;
+			List<CompletableFuture<List<T>>> pages = new ArrayList<>();
+			for (int offset = 0; offset < InsightsPipeline.this.maxItems; offset += pageSize) {
+				int limit = Math.min(pageSize, InsightsPipeline.this.maxItems - offset);
+				URI uri = SPOTIFY_TOP.resolve(
+						type + "?time_range=" + range.parameter + "&limit=" + limit + "&offset=" + offset);
+				pages.add(this.limiter.submit(() -> InsightsPipeline.this.client.get(uri, "application/json",
+						this.authorization, Server.jsonBody((InputStream in) -> InsightsPipeline.readItems(in, reader)),
+						this.priority))
+						.handle((List<T> items, Throwable error) -> {
+							if (error != null) {
+								this.firstError.compareAndSet(null, SpotifyClient.unwrap(error));
+								return null;
+							}
+							this.succeeded.incrementAndGet();
+							return items;
+						}));
+			}
+			return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply((Void ignored) -> {
+				// Pages can overlap if the user's top items shifted between requests, so
+				// items already seen are skipped.
+				Set<T> merged = new LinkedHashSet<>();
+				for (int page = 0; page < pages.size(); page++) {
+					List<T> items = pages.get(page).join();
+					if (items == null) {
+						this.missing.add("top " + type + " of " + range.description + " from #" + (merged.size() + 1));
+						break;
+					}
+					merged.addAll(items);
+					if (items.size() < Math.min(pageSize, InsightsPipeline.this.maxItems - page * pageSize)) {
+						// The list has run out; later pages are empty.
+						break;
+					}
+				}
+				return new ArrayList<>(merged);
+			});
+		}
+	}
+
+	/**
+	 * Reads the items of a Spotify paging object with {@code reader}.
+	 */
+	private static <T> List<T> readItems(InputStream in, ItemReader<T> reader) throws IOException {
+		JsonReader json = new JsonReader(in);
+		List<T> items = Collections.emptyList();
+		json.beginObject();
+		while (json.hasNext()) {
+			if (json.nextName().equals("items")) {
+				items = new ArrayList<>();
+				json.beginArray();
+				while (json.hasNext()) {
+					items.add(reader.read(json));
+				}
+				json.endArray();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		return items;
+	}
+}
@@ -0,0 +1,489 @@
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * A minimal pull parser for JSON read straight from an {@code InputStream}. The
+ * structure of the document is walked one token at a time, and only the
+ * strings the caller actually asks for are ever turned into {@code String}s;
+ * everything passed over with {@link JsonReader#skipValue()} is scanned without
+ * allocating.
+ *
+ * <p>
+ * Separators ({@literal ,} and {@literal :}) are treated like whitespace, so
+ * the reader trusts the document to be well formed rather than validating it.
+ * It's meant for the responses of the Spotify web API, not for arbitrary input.
+ */
+class JsonReader {
+	/**
+	 * The kinds of tokens {@link JsonReader#peek()} can return.
+	 */
+	enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	/**
+	 * The stream the document is read from.
+	 */
+	private final InputStream in;
+	/**
+	 * Bytes read from {@code in} but not yet consumed.
+	 */
+	private final byte[] buffer = new byte[8192];
+	/**
+	 * The position of the next unconsumed byte in {@code buffer}.
+	 */
+	private int pos;
+	/**
+	 * The number of valid bytes in {@code buffer}.
+	 */
+	private int limit;
+	/**
+	 * Scratch space used to collect the bytes of strings and numbers.
+	 */
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Constructs a new {@code JsonReader}.
+	 *
+	 * @param in - The stream to read the document from. Should be UTF-8 encoded.
+	 */
+	JsonReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Returns the kind of the next token without consuming it.
+	 *
+	 * @return The kind of the next token.
+	 * @throws IOException If the stream can't be read or the next token isn't
+	 *                     valid JSON.
+	 */
+	Token peek() throws IOException {
+		int c = this.peekByte();
+		switch (c) {
+		case -1:
+			return Token.END_DOCUMENT;
+		case '{':
+			return Token.BEGIN_OBJECT;
+		case '}':
+			return Token.END_OBJECT;
+		case '[':
+			return Token.BEGIN_ARRAY;
+		case ']':
+			return Token.END_ARRAY;
+		case '"':
+			return Token.STRING;
+		case 't':
+		case 'f':
+			return Token.BOOLEAN;
+		case 'n':
+			return Token.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return Token.NUMBER;
+			}
+			throw this.syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	/**
+	 * Consumes the opening brace of an object.
+	 */
+	void beginObject() throws IOException {
+		this.expect('{');
+	}
+
+	/**
+	 * Consumes the closing brace of an object.
+	 */
+	void endObject() throws IOException {
+		this.expect('}');
+	}
+
+	/**
+	 * Consumes the opening bracket of an array.
+	 */
+	void beginArray() throws IOException {
+		this.expect('[');
+	}
+
+	/**
+	 * Consumes the closing bracket of an array.
+	 */
+	void endArray() throws IOException {
+		this.expect(']');
+	}
+
+	/**
+	 * Returns whether the current object or array has another element.
+	 *
+	 * @return Whether the current object or array has another element.
+	 * @throws IOException If the stream can't be read.
+	 */
+	boolean hasNext() throws IOException {
+		int c = this.peekByte();
+		return c != '}' && c != ']' && c != -1;
+	}
+
+	/**
+	 * Consumes the name of the next property of the current object.
+	 *
+	 * @return The name of the property.
+	 * @throws IOException If the stream can't be read or the next token isn't a
+	 *                     name.
+	 */
+	String nextName() throws IOException {
+		return this.nextString();
+	}
+
+	/**
+	 * Consumes a string value.
+	 *
+	 * @return The string value.
+	 * @throws IOException If the stream can't be read or the next token isn't a
+	 *                     string.
+	 */
+	String nextString() throws IOException {
+		this.expect('"');
+		return this.readString(true);
+	}
+
+	/**
+	 * Consumes a string value, or a {@code null}.
+	 *
+	 * @return The string value, or null if the value was {@code null}.
+	 * @throws IOException If the stream can't be read or the next token isn't a
+	 *                     string or {@code null}.
+	 */
+	String nextStringOrNull() throws IOException {
+		if (this.peek() == Token.NULL) {
+			this.skipValue();
+			return null;
+		}
+		return this.nextString();
+	}
+
+	/**
+	 * Consumes a number value.
+	 *
+	 * @return The number value.
+	 * @throws IOException If the stream can't be read or the next token isn't a
+	 *                     number.
+	 */
+	double nextDouble() throws IOException {
+		if (this.peek() != Token.NUMBER) {
+			throw this.syntaxError("Expected a number");
+		}
+		int length = this.readLiteral(true);
+		return Double.parseDouble(new String(this.scratch, 0, length, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Consumes an integral number value.
+	 *
+	 * @return The number value.
+	 * @throws IOException If the stream can't be read or the next token isn't an
+	 *                     integral number.
+	 */
+	long nextLong() throws IOException {
+		if (this.peek() != Token.NUMBER) {
+			throw this.syntaxError("Expected a number");
+		}
+		int length = this.readLiteral(true);
+		long value = 0;
+		boolean negative = this.scratch[0] == '-';
+		for (int i = negative ? 1 : 0; i < length; i++) {
+			byte b = this.scratch[i];
+			if (b < '0' || b > '9') {
+				throw this.syntaxError("Expected an integer");
+			}
+			value = value * 10 + (b - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Consumes a boolean value.
+	 *
+	 * @return The boolean value.
+	 * @throws IOException If the stream can't be read or the next token isn't a
+	 *                     boolean.
+	 */
+	boolean nextBoolean() throws IOException {
+		if (this.peek() != Token.BOOLEAN) {
+			throw this.syntaxError("Expected a boolean");
+		}
+		int length = this.readLiteral(true);
+		return length == 4;
+	}
+
+	/**
+	 * Consumes the next value, including everything nested inside of it, without
+	 * decoding it.
+	 *
+	 * @throws IOException If the stream can't be read or the value isn't valid
+	 *                     JSON.
+	 */
+	void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch (this.peek()) {
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				this.pos++;
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				this.pos++;
+				depth--;
+				break;
+			case STRING:
+				this.pos++;
+				this.readString(false);
+				break;
+			case NUMBER:
+			case BOOLEAN:
+			case NULL:
+				this.readLiteral(false);
+				break;
+			case END_DOCUMENT:
+			default:
+				throw this.syntaxError("Unexpected end of document");
+			}
+		} while (depth > 0);
+	}
+
+	/**
+	 * Consumes the next token, which must start with {@code c}.
+	 */
+	private void expect(char c) throws IOException {
+		if (this.peekByte() != c) {
+			throw this.syntaxError("Expected '" + c + "'");
+		}
+		this.pos++;
+	}
+
+	/**
+	 * Skips whitespace and separators, then returns (without consuming) the next
+	 * byte, or -1 at the end of the stream.
+	 */
+	private int peekByte() throws IOException {
+		while (true) {
+			if (this.pos == this.limit && !this.fill()) {
+				return -1;
+			}
+			byte b = this.buffer[this.pos];
+			if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',' || b == ':') {
+				this.pos++;
+			} else {
+				return b;
+			}
+		}
+	}
+
+	/**
+	 * Reads more of the stream into {@code buffer}. Returns false at the end of
+	 * the stream.
+	 */
+	private boolean fill() throws IOException {
+		int read = this.in.read(this.buffer, 0, this.buffer.length);
+		if (read <= 0) {
+			return false;
+		}
+		this.pos = 0;
+		this.limit = read;
+		return true;
+	}
+
+	/**
+	 * Makes at least {@code count} bytes available from {@code pos}, moving the
+	 * unread ones to the start of {@code buffer}. Returns false if the stream ends
+	 * first.
+	 */
+	private boolean require(int count) throws IOException {
+		if (this.limit - this.pos >= count) {
+			return true;
+		}
+		System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+		this.limit -= this.pos;
+		this.pos = 0;
+		while (this.limit < count) {
+			int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+			if (read <= 0) {
+				return false;
+			}
+			this.limit += read;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the rest of a string whose opening quote has been consumed. If
+	 * {@code decode} is false, the string is skipped and null is returned.
+	 */
+	private String readString(boolean decode) throws IOException {
+		int length = 0;
+		while (true) {
+			if (this.pos == this.limit && !this.fill()) {
+				throw this.syntaxError("Unterminated string");
+			}
+			byte b = this.buffer[this.pos++];
+			if (b == '"') {
+				return decode ? new String(this.scratch, 0, length, StandardCharsets.UTF_8) : null;
+			}
+			if (b == '\\') {
+				if (this.pos == this.limit && !this.fill()) {
+					throw this.syntaxError("Unterminated string");
+				}
+				byte escaped = this.buffer[this.pos++];
+				if (!decode) {
+					continue;
+				}
+				switch (escaped) {
+				case 'b':
+					length = this.append(length, '\b');
+					break;
+				case 'f':
+					length = this.append(length, '\f');
+					break;
+				case 'n':
+					length = this.append(length, '\n');
+					break;
+				case 'r':
+					length = this.append(length, '\r');
+					break;
+				case 't':
+					length = this.append(length, '\t');
+					break;
+				case 'u':
+					length = this.appendCodePoint(length, this.readUnicodeEscape());
+					break;
+				default:
+					length = this.append(length, escaped);
+				}
+			} else if (decode) {
+				length = this.append(length, b);
+			}
+		}
+	}
+
+	/**
+	 * Reads the code point of a {@code \\u} escape (whose {@code \\u} has been
+	 * consumed), combining surrogate pairs. The escape after a high surrogate is
+	 * only consumed if it's the matching low surrogate; otherwise it's left to be
+	 * read on its own.
+	 */
+	private int readUnicodeEscape() throws IOException {
+		char c = this.readHex();
+		if (Character.isHighSurrogate(c) && this.require(6) && this.buffer[this.pos] == '\\'
+				&& this.buffer[this.pos + 1] == 'u') {
+			int low = this.hexAt(this.pos + 2);
+			if (low != -1 && Character.isLowSurrogate((char) low)) {
+				this.pos += 6;
+				return Character.toCodePoint(c, (char) low);
+			}
+		}
+		return Character.isSurrogate(c) ? '?' : c;
+	}
+
+	/**
+	 * Returns the value of the four hex digits at {@code offset} in
+	 * {@code buffer}, or -1 if they aren't all hex digits.
+	 */
+	private int hexAt(int offset) {
+		int value = 0;
+		for (int i = offset; i < offset + 4; i++) {
+			int digit = Character.digit(this.buffer[i], 16);
+			if (digit == -1) {
+				return -1;
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Reads four hex digits.
+	 */
+	private char readHex() throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(this.peekRaw(), 16);
+			if (digit == -1) {
+				throw this.syntaxError("Invalid unicode escape");
+			}
+			this.pos++;
+			value = (value << 4) | digit;
+		}
+		return (char) value;
+	}
+
+	/**
+	 * Returns (without consuming) the next byte, without skipping whitespace.
+	 */
+	private int peekRaw() throws IOException {
+		if (this.pos == this.limit && !this.fill()) {
+			throw this.syntaxError("Unexpected end of document");
+		}
+		return this.buffer[this.pos];
+	}
+
+	/**
+	 * Reads a number, boolean or null literal. If {@code keep} is true, its bytes
+	 * are copied to {@code scratch}. Returns its length.
+	 */
+	private int readLiteral(boolean keep) throws IOException {
+		int length = 0;
+		while (this.pos < this.limit || this.fill()) {
+			byte b = this.buffer[this.pos];
+			if (b == ',' || b == '}' || b == ']' || b == ':' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+				break;
+			}
+			this.pos++;
+			length = keep ? this.append(length, b) : length + 1;
+		}
+		return length;
+	}
+
+	/**
+	 * Appends {@code b} to {@code scratch} at {@code length}, growing it if
+	 * needed. Returns the new length.
+	 */
+	private int append(int length, int b) {
+		if (length == this.scratch.length) {
+			byte[] grown = new byte[this.scratch.length * 2];
+			System.arraycopy(this.scratch, 0, grown, 0, length);
+			this.scratch = grown;
+		}
+		this.scratch[length] = (byte) b;
+		return length + 1;
+	}
+
+	/**
+	 * Appends the UTF-8 encoding of {@code codePoint} to {@code scratch}. Returns
+	 * the new length.
+	 */
+	private int appendCodePoint(int length, int codePoint) {
+		if (codePoint < 0x80) {
+			return this.append(length, codePoint);
+		} else if (codePoint < 0x800) {
+			length = this.append(length, 0xC0 | (codePoint >> 6));
+		} else if (codePoint < 0x10000) {
+			length = this.append(length, 0xE0 | (codePoint >> 12));
+			length = this.append(length, 0x80 | ((codePoint >> 6) & 0x3F));
+		} else {
+			length = this.append(length, 0xF0 | (codePoint >> 18));
+			length = this.append(length, 0x80 | ((codePoint >> 12) & 0x3F));
+			length = this.append(length, 0x80 | ((codePoint >> 6) & 0x3F));
+		}
+		return this.append(length, 0x80 | (codePoint & 0x3F));
+	}
+
+	/**
+	 * Creates an exception describing malformed input.
+	 */
+	private IOException syntaxError(String message) {
+		return new IOException("Malformed JSON: " + message);
+	}
+}
@@ -0,0 +1,396 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A {@link SessionStore} backed by an append-only log on disk, so that sessions
+ * (and their refresh tokens) survive restarts.
+ *
+ * <p>
+ * All sessions are kept in memory and served from there; the log is only read
+ * once, at startup. Writes are batched behind the request path: changed
+ * session IDs are collected in a map, and a background thread appends the
+ * latest state of each one to the log every {@code flushInterval}. Once the log
+ * holds more than twice as many records as there are live sessions, it's
+ * compacted by writing the live sessions to a new file and atomically replacing
+ * the old one.
+ *
+ * <p>
+ * The log starts with {@link #MAGIC} and {@link #VERSION}, followed by
+ * records. Each record is a type byte ({@link #PUT} or {@link #REMOVE}), the
+ * session ID as written by {@link SessionId#writeTo(DataOutput)}, and, for
+ * {@code PUT}s, the session as written by {@link Session#writeTo(DataOutput)}. A truncated record at the end of the log
+ * (e.g., from a crash mid-write) is discarded at startup.
+ */
+class LogSessionStore implements SessionStore {
+	private static final int MAGIC = 0x5349534C; // "SISL"
+	private static final int VERSION = 2;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	/**
+	 * Stands in for a removed session in {@link #dirty}.
+	 */
+	private static final Session REMOVED = new Session("", 0L, "", 0L);
+	/**
+	 * Logs smaller than this many records are never compacted.
+	 */
+	private static final long MIN_RECORDS_TO_COMPACT = 1024;
+
+	/**
+	 * The sessions, served from memory.
+	 */
+	private final ConcurrentMap<SessionId, Session> sessions = new ConcurrentHashMap<>();
+	/**
+	 * The sessions changed since the last flush, or {@link #REMOVED} for removed
+	 * ones.
+	 */
+	private final ConcurrentMap<SessionId, Session> dirty = new ConcurrentHashMap<>();
+	/**
+	 * The path of the log.
+	 */
+	private final Path path;
+	/**
+	 * The open log. Only used by the flushing thread (after construction).
+	 */
+	private FileChannel channel;
+	private DataOutputStream out;
+	/**
+	 * The length of the log after the last successful flush, which always ends on
+	 * a record boundary. Only used by the flushing thread (after construction).
+	 */
+	private long flushedLength;
+	/**
+	 * Set when a flush failed, and anything it wrote still has to be cut off the
+	 * log before the next one. Only used by the flushing thread.
+	 */
+	private boolean unflushed;
+	/**
+	 * The number of records in the log. Only used by the flushing thread (after
+	 * construction).
+	 */
+	private long records;
+
+	/**
+	 * Constructs a new {@code LogSessionStore}, replaying the log at {@code path}
+	 * (which is created if it doesn't exist). Expired sessions are dropped.
+	 *
+	 * @param path          - The path of the log.
+	 * @param flushInterval - How often changes are written to the log.
+	 * @throws IOException If the log can't be read or created.
+	 */
+	LogSessionStore(Path path, Duration flushInterval) throws IOException {
+		this.path = path;
+		long validLength = this.replay();
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		LogSessionStore.restrictPermissions(path);
+		if (validLength == 0) {
+			this.channel.truncate(0);
+			this.out = this.openStream(this.channel);
+			this.writeHeader(this.out);
+		} else {
+			// Drops anything after the last complete record.
+			this.channel.truncate(validLength);
+			this.channel.position(validLength);
+			this.out = this.openStream(this.channel);
+		}
+		this.out.flush();
+		this.flushedLength = this.channel.size();
+
+		long now = System.currentTimeMillis() / 1000L;
+		this.sessions.entrySet().removeIf((Map.Entry<SessionId, Session> e) -> e.getValue().sessionExpiresAt() < now);
+		for (Map.Entry<SessionId, Session> entry : this.sessions.entrySet()) {
+			this.watch(entry.getKey(), entry.getValue());
+		}
+
+		ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+			Thread thread = new Thread(r, "session-log");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long intervalMillis = flushInterval.toMillis();
+		flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(5L, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			this.flushQuietly();
+		}, "session-log-shutdown"));
+	}
+
+	@Override
+	public Session get(SessionId id) {
+		return this.sessions.get(id);
+	}
+
+	@Override
+	public void put(SessionId id, Session session) {
+		this.sessions.put(id, session);
+		this.watch(id, session);
+		this.dirty.put(id, session);
+	}
+
+	@Override
+	public Session remove(SessionId id) {
+		Session removed = this.sessions.remove(id);
+		if (removed != null) {
+			removed.setUpdateListener(null);
+			this.dirty.put(id, REMOVED);
+		}
+		return removed;
+	}
+
+	@Override
+	public int size() {
+		return this.sessions.size();
+	}
+
+	@Override
+	public void forEach(BiConsumer<SessionId, Session> action) {
+		this.sessions.forEach(action);
+	}
+
+	/**
+	 * Marks the session as dirty whenever its tokens change.
+	 */
+	private void watch(SessionId id, Session session) {
+		session.setUpdateListener(() -> {
+			if (this.sessions.get(id) == session) {
+				this.dirty.put(id, session);
+			}
+		});
+	}
+
+	/**
+	 * Reads the log into {@link #sessions}. Returns the length of the log up to
+	 * the end of the last complete record, or 0 if there's no usable log.
+	 */
+	private long replay() throws IOException {
+		if (!Files.exists(this.path)) {
+			return 0L;
+		}
+		try (CountingInputStream counting = new CountingInputStream(
+				new BufferedInputStream(Files.newInputStream(this.path)));
+				DataInputStream in = new DataInputStream(counting)) {
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException(this.path + " is not a session log");
+				}
+				int version = in.readInt();
+				if (version < VERSION) {
+					// Older logs keyed sessions by IDs that are no longer issued; their users
+					// just log in again.
+					System.err.println("Discarding the sessions in " + this.path + ", an older (version " + version
+							+ ") session log");
+					return 0L;
+				} else if (version != VERSION) {
+					throw new IOException(this.path + " is a newer (version " + version + ") session log");
+				}
+			} catch (EOFException eofe) {
+				return 0L;
+			}
+			long validLength = counting.count;
+			while (true) {
+				try {
+					byte type = in.readByte();
+					SessionId id = SessionId.readFrom(in);
+					if (type == PUT) {
+						this.sessions.put(id, Session.readFrom(in));
+					} else if (type == REMOVE) {
+						this.sessions.remove(id);
+					} else {
+						throw new IOException("Corrupt session log record at " + validLength);
+					}
+					this.records++;
+					validLength = counting.count;
+				} catch (EOFException eofe) {
+					return validLength;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes all dirty sessions to the log, compacting it if needed. Errors are
+	 * logged, and the affected sessions are retried on the next flush. A flush
+	 * that fails partway (e.g., on a full disk) is cut off the log, so that the
+	 * retry doesn't append after a partial record.
+	 */
+	private synchronized void flushQuietly() {
+		if (this.dirty.isEmpty()) {
+			return;
+		}
+		Map<SessionId, Session> batch = new HashMap<>();
+		long recordsBefore = this.records;
+		try {
+			if (this.unflushed) {
+				this.discardUnflushed();
+			}
+			for (SessionId id : new ArrayList<>(this.dirty.keySet())) {
+				Session session = this.dirty.remove(id);
+				if (session == null) {
+					continue;
+				}
+				batch.put(id, session);
+				this.writeRecord(this.out, id, session);
+				this.records++;
+			}
+			this.out.flush();
+			this.channel.force(false);
+			this.flushedLength = this.channel.size();
+		} catch (IOException ioe) {
+			System.err.println("Error writing the session log: " + ioe);
+			for (Map.Entry<SessionId, Session> entry : batch.entrySet()) {
+				this.dirty.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+			this.records = recordsBefore;
+			this.unflushed = true;
+			try {
+				this.discardUnflushed();
+			} catch (IOException discardError) {
+				System.err.println("Error truncating the session log, retrying on the next flush: " + discardError);
+			}
+			return;
+		}
+		try {
+			if (this.records >= MIN_RECORDS_TO_COMPACT && this.records > 2L * this.sessions.size()) {
+				this.compact();
+			}
+		} catch (IOException ioe) {
+			System.err.println("Error compacting the session log: " + ioe);
+		}
+	}
+
+	/**
+	 * Drops whatever was written since the last successful flush, buffered or in
+	 * the file, so that the log ends on a record boundary again.
+	 */
+	private void discardUnflushed() throws IOException {
+		// The buffered bytes may end in a partial record; they're dropped with the
+		// stream.
+		if (!this.channel.isOpen()) {
+			this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		this.out = this.openStream(this.channel);
+		this.channel.truncate(this.flushedLength);
+		this.unflushed = false;
+	}
+
+	/**
+	 * Replaces the log with one that only holds the live sessions.
+	 */
+	private void compact() throws IOException {
+		Path compacted = this.path.resolveSibling(this.path.getFileName() + ".compact");
+		long written = 0L;
+		try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			LogSessionStore.restrictPermissions(compacted);
+			DataOutputStream compactedOut = this.openStream(compactedChannel);
+			this.writeHeader(compactedOut);
+			for (Map.Entry<SessionId, Session> entry : this.sessions.entrySet()) {
+				this.writeRecord(compactedOut, entry.getKey(), entry.getValue());
+				written++;
+			}
+			compactedOut.flush();
+			compactedChannel.force(true);
+		}
+		long compactedLength = Files.size(compacted);
+		Files.move(compacted, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.flushedLength = compactedLength;
+		this.records = written;
+
+		this.channel.close();
+		try {
+			this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException ioe) {
+			// Reopened by the next flush.
+			this.unflushed = true;
+			throw ioe;
+		}
+		this.out = this.openStream(this.channel);
+		// Sessions changed while compacting are still in the dirty map, so the next
+		// flush appends them to the new log.
+	}
+
+	/**
+	 * Writes one record for {@code session}, which may be {@link #REMOVED}.
+	 */
+	private void writeRecord(DataOutputStream out, SessionId id, Session session) throws IOException {
+		if (session == REMOVED) {
+			out.writeByte(REMOVE);
+			id.writeTo(out);
+		} else {
+			out.writeByte(PUT);
+			id.writeTo(out);
+			session.writeTo(out);
+		}
+	}
+
+	/**
+	 * Writes the header at the start of a log.
+	 */
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**
+	 * Wraps {@code channel} in a buffered {@code DataOutputStream} that doesn't
+	 * close the channel.
+	 */
+	private DataOutputStream openStream(FileChannel channel) {
+		return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+	}
+
+	/**
+	 * Makes the file at {@code path} only readable by its owner, since it holds
+	 * Spotify tokens (or, for other callers, other personal data). Does nothing
+	 * on file systems without POSIX permissions.
+	 *
+	 * @param path - The path of the file.
+	 * @throws IOException If the permissions can't be changed.
+	 */
+	static void restrictPermissions(Path path) throws IOException {
+		try {
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException uoe) {
+			// Not a POSIX file system.
+		}
+	}
+
+	/**
+	 * An {@code InputStream} that counts the bytes read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				this.count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				this.count += read;
+			}
+			return read;
+		}
+	}
+}
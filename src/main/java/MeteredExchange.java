@@ -0,0 +1,172 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * An {@code HttpExchange} that records, into {@link Metrics#SHARED}, the status
+ * code of its response and how long the server took to start sending it.
+ * Everything else is delegated to the wrapped exchange. Since handlers may
+ * respond asynchronously, latency is measured up to the call to
+ * {@link #sendResponseHeaders(int, long)} rather than the return of the
+ * handler, and the request's {@link RequestExecutor} slot is freed when the
+ * exchange is closed.
+ */
+class MeteredExchange extends HttpExchange {
+	/**
+	 * The metrics of one route: its latency, and its responses by status code.
+	 * Looked up once per route rather than once per request.
+	 */
+	static class Route {
+		/**
+		 * The highest status code counted by its own series; anything above is
+		 * counted as 599.
+		 */
+		private static final int MAX_STATUS = 599;
+
+		private final String name;
+		private final Metrics.Timer latency;
+		private final AtomicReferenceArray<Metrics.Counter> responses = new AtomicReferenceArray<>(MAX_STATUS + 1);
+
+		/**
+		 * Constructs a new {@code Route}.
+		 *
+		 * @param name - The name of the route, as used in the {@code route} label.
+		 */
+		Route(String name) {
+			this.name = name;
+			this.latency = Metrics.SHARED.timer("si_http_request_duration_seconds",
+					"Time from handling a request to sending its response headers.", Metrics.labels("route", name));
+		}
+
+		/**
+		 * Returns the counter of responses with {@code status}.
+		 */
+		private Metrics.Counter responses(int status) {
+			int index = Math.min(Math.max(status, 0), MAX_STATUS);
+			Metrics.Counter counter = this.responses.get(index);
+			if (counter == null) {
+				counter = Metrics.SHARED.counter("si_http_requests_total", "Requests handled, by route and status code.",
+						Metrics.labels("route", this.name, "status", Integer.toString(index)));
+				this.responses.set(index, counter);
+			}
+			return counter;
+		}
+	}
+
+	private final HttpExchange exchange;
+	private final Route route;
+	/**
+	 * Run once the exchange is closed.
+	 */
+	private final Runnable onClose;
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * Constructs a new {@code MeteredExchange}, starting its clock.
+	 *
+	 * @param exchange - The exchange to wrap.
+	 * @param route    - The route the request was matched to.
+	 * @param onClose  - Run once the exchange is closed (possibly more than once).
+	 */
+	MeteredExchange(HttpExchange exchange, Route route, Runnable onClose) {
+		this.exchange = exchange;
+		this.route = route;
+		this.onClose = onClose;
+	}
+
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+		try {
+			this.exchange.sendResponseHeaders(rCode, responseLength);
+		} finally {
+			this.route.latency.recordSince(this.startNanos);
+			this.route.responses(rCode).increment();
+		}
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return this.exchange.getRequestHeaders();
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return this.exchange.getResponseHeaders();
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return this.exchange.getRequestURI();
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return this.exchange.getRequestMethod();
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return this.exchange.getHttpContext();
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.exchange.close();
+		} finally {
+			this.onClose.run();
+		}
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return this.exchange.getRequestBody();
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return this.exchange.getResponseBody();
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return this.exchange.getRemoteAddress();
+	}
+
+	@Override
+	public int getResponseCode() {
+		return this.exchange.getResponseCode();
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return this.exchange.getLocalAddress();
+	}
+
+	@Override
+	public String getProtocol() {
+		return this.exchange.getProtocol();
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return this.exchange.getAttribute(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		this.exchange.setAttribute(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		this.exchange.setStreams(i, o);
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return this.exchange.getPrincipal();
+	}
+}
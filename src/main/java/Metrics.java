@@ -0,0 +1,328 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.HdrHistogram.*;
+
+/**
+ * A registry of counters, gauges and latency histograms, rendered in the
+ * Prometheus text format by {@link #scrape()}. Each metric is a family of
+ * series that share a name, a type and a help text, and differ by their labels.
+ *
+ * <p>
+ * Recording is lock-free: counters are {@code LongAdder}s, and timers record
+ * into an HdrHistogram {@code Recorder}, whose writers never wait on each other
+ * or on a scrape. Only scrapes synchronize, to fold what was recorded since the
+ * last one into each timer's recent histograms. Timers' quantiles cover the
+ * last five minutes (as of the last scrape), while their counts and sums cover
+ * everything since startup. Gauges and counters kept elsewhere (e.g., a cache's
+ * hit count) are read when scraped.
+ *
+ * <p>
+ * This class is thread-safe.
+ */
+class Metrics {
+	/**
+	 * The registry everything in the server records into.
+	 */
+	static final Metrics SHARED = new Metrics();
+
+	/**
+	 * The quantiles reported for each timer.
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	/**
+	 * The largest latency a timer can record, in microseconds (one hour). Longer
+	 * latencies are recorded as this.
+	 */
+	private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1L);
+	/**
+	 * How long each of a timer's recent histograms covers, in milliseconds.
+	 */
+	private static final long WINDOW_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1L);
+	/**
+	 * The number of recent histograms a timer's quantiles are computed over.
+	 */
+	private static final int WINDOW_BUCKETS = 5;
+
+	/**
+	 * The metrics, by name, sorted so that scrapes are stable.
+	 */
+	private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+	/**
+	 * A counter that can only go up.
+	 */
+	static class Counter {
+		private final LongAdder count = new LongAdder();
+
+		private Counter() {
+		}
+
+		/**
+		 * Adds one to the counter.
+		 */
+		void increment() {
+			this.count.increment();
+		}
+	}
+
+	/**
+	 * Records latencies into histograms, reported as a summary whose quantiles
+	 * cover the last {@link #WINDOW_BUCKETS} minutes.
+	 */
+	static class Timer {
+		private final Recorder recorder = new Recorder(MAX_LATENCY_MICROS, 3);
+		private final LongAdder sumNanos = new LongAdder();
+		/**
+		 * What was scraped in each of the last {@link #WINDOW_BUCKETS} minutes, as a
+		 * ring indexed by minute. Guarded by {@code this}.
+		 */
+		private final Histogram[] buckets = new Histogram[WINDOW_BUCKETS];
+		/**
+		 * The minute (since the epoch) each of {@link #buckets} holds. Guarded by
+		 * {@code this}.
+		 */
+		private final long[] bucketMinutes = new long[WINDOW_BUCKETS];
+		/**
+		 * The sum of the buckets still in the window, rebuilt on each scrape. Guarded
+		 * by {@code this}.
+		 */
+		private final Histogram window = new Histogram(MAX_LATENCY_MICROS, 3);
+		/**
+		 * The number of latencies recorded up to the last scrape. Guarded by
+		 * {@code this}.
+		 */
+		private long count;
+		/**
+		 * Handed back to the recorder on each scrape so that it doesn't allocate a new
+		 * one. Guarded by {@code this}.
+		 */
+		private Histogram interval;
+
+		private Timer() {
+			for (int i = 0; i < WINDOW_BUCKETS; i++) {
+				this.buckets[i] = new Histogram(MAX_LATENCY_MICROS, 3);
+				this.bucketMinutes[i] = Long.MIN_VALUE;
+			}
+		}
+
+		/**
+		 * Records a latency.
+		 *
+		 * @param nanos - The latency, in nanoseconds.
+		 */
+		void record(long nanos) {
+			long micros = Math.min(Math.max(0L, nanos / 1000L), MAX_LATENCY_MICROS);
+			this.recorder.recordValue(micros);
+			this.sumNanos.add(Math.max(0L, nanos));
+		}
+
+		/**
+		 * Records the time elapsed since {@code startNanos}.
+		 *
+		 * @param startNanos - A {@code System.nanoTime()} taken when the timed
+		 *                   operation started.
+		 */
+		void recordSince(long startNanos) {
+			this.record(System.nanoTime() - startNanos);
+		}
+
+		/**
+		 * Folds what was recorded since the last scrape into the current minute's
+		 * bucket, and returns the sum of the buckets still in the window.
+		 */
+		private synchronized Histogram snapshot() {
+			this.interval = this.recorder.getIntervalHistogram(this.interval);
+			this.count += this.interval.getTotalCount();
+			long minute = System.currentTimeMillis() / WINDOW_BUCKET_MILLIS;
+			int index = (int) (minute % WINDOW_BUCKETS);
+			if (this.bucketMinutes[index] != minute) {
+				this.buckets[index].reset();
+				this.bucketMinutes[index] = minute;
+			}
+			this.buckets[index].add(this.interval);
+			this.window.reset();
+			for (int i = 0; i < WINDOW_BUCKETS; i++) {
+				if (minute - this.bucketMinutes[i] < WINDOW_BUCKETS) {
+					this.window.add(this.buckets[i]);
+				}
+			}
+			return this.window;
+		}
+	}
+
+	/**
+	 * The series of one metric.
+	 */
+	private static class Family {
+		private final String type;
+		private final String help;
+		/**
+		 * The series, by their rendered labels.
+		 */
+		private final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+		private Family(String type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	/**
+	 * Returns the counter {@code name} with {@code labels}, creating it if needed.
+	 *
+	 * @param name   - The name of the metric, which should end in {@code _total}.
+	 * @param help   - What the metric counts.
+	 * @param labels - The labels of the series, as rendered by
+	 *               {@link #labels(String...)}.
+	 * @return The counter.
+	 */
+	Counter counter(String name, String help, String labels) {
+		return (Counter) this.series(name, "counter", help, labels, Counter::new);
+	}
+
+	/**
+	 * Returns the timer {@code name} with {@code labels}, creating it if needed.
+	 *
+	 * @param name   - The name of the metric, which should end in
+	 *               {@code _seconds}.
+	 * @param help   - What the metric times.
+	 * @param labels - The labels of the series, as rendered by
+	 *               {@link #labels(String...)}.
+	 * @return The timer.
+	 */
+	Timer timer(String name, String help, String labels) {
+		return (Timer) this.series(name, "summary", help, labels, Timer::new);
+	}
+
+	/**
+	 * Registers a gauge whose value is read from {@code value} when scraped.
+	 *
+	 * @param name   - The name of the metric.
+	 * @param help   - What the metric measures.
+	 * @param labels - The labels of the series, as rendered by
+	 *               {@link #labels(String...)}.
+	 * @param value  - Returns the current value.
+	 */
+	void gauge(String name, String help, String labels, LongSupplier value) {
+		this.series(name, "gauge", help, labels, () -> value);
+	}
+
+	/**
+	 * Registers a counter that's kept elsewhere, and read from {@code value} when
+	 * scraped.
+	 *
+	 * @param name   - The name of the metric, which should end in {@code _total}.
+	 * @param help   - What the metric counts.
+	 * @param labels - The labels of the series, as rendered by
+	 *               {@link #labels(String...)}.
+	 * @param value  - Returns the current count.
+	 */
+	void counter(String name, String help, String labels, LongSupplier value) {
+		this.series(name, "counter", help, labels, () -> value);
+	}
+
+	/**
+	 * Returns the series {@code name} with {@code labels}, creating it (and its
+	 * family) if needed.
+	 */
+	private Object series(String name, String type, String help, String labels, Supplier<Object> factory) {
+		Family family = this.families.computeIfAbsent(name, (String n) -> new Family(type, help));
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+		}
+		// Looked up first, since the series usually exists and get doesn't lock.
+		Object series = family.series.get(labels);
+		return series != null ? series : family.series.computeIfAbsent(labels, (String l) -> factory.get());
+	}
+
+	/**
+	 * Renders labels for use as the {@code labels} of a series.
+	 *
+	 * @param namesAndValues - The name of each label followed by its value.
+	 * @return The labels, e.g. {@code route="/",status="200"}.
+	 */
+	static String labels(String... namesAndValues) {
+		StringBuilder output = new StringBuilder();
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+			if (output.length() != 0) {
+				output.append(',');
+			}
+			output.append(namesAndValues[i]).append("=\"");
+			String value = namesAndValues[i + 1];
+			for (int c = 0; c < value.length(); c++) {
+				char ch = value.charAt(c);
+				if (ch == '\\' || ch == '"') {
+					output.append('\\').append(ch);
+				} else if (ch == '\n') {
+					output.append("\\n");
+				} else {
+					output.append(ch);
+				}
+			}
+			output.append('"');
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Renders every metric in the Prometheus text exposition format (version
+	 * 0.0.4).
+	 *
+	 * @return The rendered metrics.
+	 */
+	String scrape() {
+		StringBuilder output = new StringBuilder(4096);
+		for (Map.Entry<String, Family> entry : this.families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			output.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			output.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> series : family.series.entrySet()) {
+				String labels = series.getKey();
+				Object value = series.getValue();
+				if (value instanceof Counter) {
+					Metrics.sample(output, name, labels, ((Counter) value).count.sum());
+				} else if (value instanceof LongSupplier) {
+					Metrics.sample(output, name, labels, ((LongSupplier) value).getAsLong());
+				} else {
+					Timer timer = (Timer) value;
+					long count;
+					synchronized (timer) {
+						Histogram histogram = timer.snapshot();
+						count = timer.count;
+						boolean empty = histogram.getTotalCount() == 0;
+						for (double quantile : QUANTILES) {
+							String quantileLabels = (labels.isEmpty() ? "" : labels + ",") + "quantile=\""
+									+ quantile + "\"";
+							Metrics.sample(output, name, quantileLabels,
+									empty ? Double.NaN : histogram.getValueAtPercentile(quantile * 100.0) / 1e6);
+						}
+					}
+					Metrics.sample(output, name + "_sum", labels, timer.sumNanos.sum() / 1e9);
+					Metrics.sample(output, name + "_count", labels, count);
+				}
+			}
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Appends a sample line.
+	 */
+	private static void sample(StringBuilder output, String name, String labels, double value) {
+		output.append(name);
+		if (!labels.isEmpty()) {
+			output.append('{').append(labels).append('}');
+		}
+		output.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			output.append((long) value);
+		} else {
+			output.append(value);
+		}
+		output.append('\n');
+	}
+}
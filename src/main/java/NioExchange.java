@@ -0,0 +1,578 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.net.ssl.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * An exchange of {@link NioHttpServer}. Behaves like the exchanges of
+ * {@code com.sun.net.httpserver}'s own server, so handlers can't tell the
+ * engines apart, except that the response is buffered in memory and handed to
+ * the connection in one go once the exchange is closed (read-only buffers
+ * written to the body through {@link WritableByteChannel}, such as mapped
+ * files, are kept as they are rather than copied). That lets handlers
+ * respond from any thread, at any time, while the connection writes responses
+ * to pipelined requests in the order the requests came in. Since the whole
+ * body is known by then, responses are never chunked.
+ *
+ * <p>
+ * The same class serves http and https connections; {@link #getSSLSession()}
+ * is null for the former.
+ */
+class NioExchange extends HttpsExchange {
+	private static final byte[] NO_BYTES = new byte[0];
+	/**
+	 * The largest chunk that bytes written from arrays are copied into.
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+	/**
+	 * The value of the {@code Date} header, refreshed at most once a second.
+	 */
+	private static volatile String date = "";
+	private static volatile long dateSecond = -1L;
+
+	private final NioHttpServer.Connection connection;
+	private final HttpContext context;
+	private final String method;
+	private final URI uri;
+	private final String protocol;
+	private final Headers requestHeaders;
+	private final Headers responseHeaders = new Headers();
+	/**
+	 * Whether the client allows the connection to be reused after this exchange.
+	 */
+	private final boolean keepAlive;
+	private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+	private final ResponseBody body = new ResponseBody();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private InputStream requestBody;
+	private OutputStream responseBody = this.body;
+	private int responseCode = -1;
+	/**
+	 * The encoded status line and headers, once they've been sent.
+	 */
+	private byte[] head;
+	/**
+	 * The promised length of the body, or -1 if it can be any length.
+	 */
+	private long fixedLength;
+	/**
+	 * Whether the response has no body at all.
+	 */
+	private boolean noBody;
+	private boolean closeConnection;
+	/**
+	 * The response, set once the exchange is closed, or null if it failed and the
+	 * connection has to be dropped.
+	 */
+	private ByteBuffer[] response;
+	/**
+	 * Set after {@link #response} once the exchange is over.
+	 */
+	private volatile boolean done;
+
+	/**
+	 * Constructs a new {@code NioExchange} for a request.
+	 *
+	 * @param connection     - The connection the request came in on.
+	 * @param context        - The context that handles the request.
+	 * @param method         - The request method.
+	 * @param uri            - The request target.
+	 * @param protocol       - The protocol of the request, e.g. {@code HTTP/1.1}.
+	 * @param requestHeaders - The request headers.
+	 * @param requestBody    - The request body. May still be filled in by the
+	 *                       connection until the exchange is handled.
+	 * @param keepAlive      - Whether the client allows the connection to be
+	 *                       reused.
+	 */
+	NioExchange(NioHttpServer.Connection connection, HttpContext context, String method, URI uri, String protocol,
+			Headers requestHeaders, byte[] requestBody, boolean keepAlive) {
+		this.connection = connection;
+		this.context = context;
+		this.method = method;
+		this.uri = uri;
+		this.protocol = protocol;
+		this.requestHeaders = requestHeaders;
+		this.requestBody = new ByteArrayInputStream(requestBody);
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Creates an exchange that's already over, answering a request with an error
+	 * from the server itself (e.g., because it was malformed, or no context
+	 * matched it).
+	 *
+	 * @param connection - The connection the request came in on.
+	 * @param statusCode - The status code of the response.
+	 * @param keepAlive  - Whether the connection can be reused afterwards.
+	 * @return The exchange.
+	 */
+	static NioExchange error(NioHttpServer.Connection connection, int statusCode, boolean keepAlive) {
+		NioExchange exchange = new NioExchange(connection, null, "", null, "HTTP/1.1", new Headers(), NO_BYTES,
+				keepAlive);
+		byte[] message = (statusCode + " " + NioExchange.reason(statusCode) + "\n").getBytes(StandardCharsets.US_ASCII);
+		exchange.responseHeaders.set("Content-Type", "text/plain");
+		try {
+			exchange.sendResponseHeaders(statusCode, message.length);
+			exchange.body.write(message);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		exchange.close();
+		return exchange;
+	}
+
+	/**
+	 * Runs the filters and handler of the exchange's context. If they throw, the
+	 * exchange is closed without a response, and the connection dropped.
+	 */
+	void handle() {
+		HttpHandler handler = this.context.getHandler();
+		if (handler == null) {
+			this.fail(HttpURLConnection.HTTP_INTERNAL_ERROR);
+			return;
+		}
+		try {
+			new Filter.Chain(this.context.getFilters(), handler).doFilter(this);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Error handling " + this.method + " " + this.uri + ": " + e);
+			this.abort();
+		}
+	}
+
+	/**
+	 * Answers the request with an error instead of handling it, if it hasn't been
+	 * answered yet.
+	 *
+	 * @param statusCode - The status code of the response.
+	 */
+	void fail(int statusCode) {
+		if (this.responseCode >= 0) {
+			this.abort();
+			return;
+		}
+		this.responseHeaders.clear();
+		this.responseHeaders.set("Connection", "close");
+		try {
+			this.sendResponseHeaders(statusCode, -1L);
+		} catch (IOException ioe) {
+			this.abort();
+			return;
+		}
+		this.close();
+	}
+
+	/**
+	 * Ends the exchange without a response, dropping the connection.
+	 */
+	private void abort() {
+		if (this.closed.compareAndSet(false, true)) {
+			this.complete(null);
+		}
+	}
+
+	/**
+	 * Returns whether the exchange is over, i.e. whether {@link #response()} is
+	 * ready.
+	 */
+	boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * Returns the response to send, once {@link #isDone()}.
+	 *
+	 * @return The buffers of the response, in order, or null if the exchange
+	 *         failed and the connection has to be dropped.
+	 */
+	ByteBuffer[] response() {
+		return this.response;
+	}
+
+	/**
+	 * Returns whether the connection has to be closed after the response.
+	 */
+	boolean closesConnection() {
+		return this.closeConnection;
+	}
+
+	private void complete(ByteBuffer[] response) {
+		this.response = response;
+		this.done = true;
+		this.connection.completed();
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return this.requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return this.responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return this.uri;
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return this.method;
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return this.context;
+	}
+
+	/**
+	 * Ends the exchange, handing the response to the connection. If headers were
+	 * never sent, or fewer bytes were written than promised, the connection is
+	 * dropped instead.
+	 */
+	@Override
+	public void close() {
+		if (!this.closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.requestBody.close();
+		} catch (IOException ioe) {
+			// Nothing to release.
+		}
+		if (this.head == null || (this.fixedLength > 0 && this.body.count != this.fixedLength)) {
+			this.complete(null);
+			return;
+		}
+		if (this.fixedLength < 0) {
+			byte[] length = ("Content-Length: " + this.body.count + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			byte[] head = Arrays.copyOf(this.head, this.head.length + length.length);
+			System.arraycopy(length, 0, head, this.head.length, length.length);
+			this.head = head;
+		}
+		List<ByteBuffer> chunks = this.body.chunks();
+		ByteBuffer[] response = new ByteBuffer[chunks.size() + 1];
+		response[0] = ByteBuffer.wrap(this.head);
+		for (int i = 0; i < chunks.size(); i++) {
+			response[i + 1] = chunks.get(i);
+		}
+		this.complete(response);
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return this.requestBody;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return this.responseBody;
+	}
+
+	/**
+	 * Encodes the status line and headers, to be sent when the exchange is closed.
+	 * {@code responseLength} has the same meaning as for the JDK's server: a
+	 * positive length promises exactly that many bytes, 0 any number of bytes, and
+	 * -1 no body.
+	 */
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+		if (this.head != null) {
+			throw new IOException("Headers already sent");
+		}
+		boolean noContentLengthHeader = rCode / 100 == 1 || rCode == HttpURLConnection.HTTP_NO_CONTENT;
+		if (this.method.equals("HEAD") || rCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			// Any Content-Length set by the handler describes the body a GET would have.
+			this.noBody = true;
+		} else if (noContentLengthHeader || responseLength < 0) {
+			this.noBody = true;
+			if (!noContentLengthHeader) {
+				this.responseHeaders.set("Content-Length", "0");
+			}
+		} else if (responseLength > 0) {
+			this.fixedLength = responseLength;
+			this.responseHeaders.set("Content-Length", Long.toString(responseLength));
+		} else {
+			this.fixedLength = -1L;
+			this.responseHeaders.remove("Content-Length");
+		}
+		this.closeConnection = !this.keepAlive || this.connection.isStopping()
+				|| "close".equalsIgnoreCase(this.responseHeaders.getFirst("Connection"));
+		if (this.closeConnection) {
+			this.responseHeaders.set("Connection", "close");
+		} else if (this.protocol.equals("HTTP/1.0")) {
+			this.responseHeaders.set("Connection", "keep-alive");
+		}
+		if (!this.responseHeaders.containsKey("Date")) {
+			this.responseHeaders.set("Date", NioExchange.date());
+		}
+		this.responseCode = rCode;
+		this.head = this.encodeHead(rCode, this.fixedLength < 0);
+	}
+
+	/**
+	 * Encodes the status line and headers. If {@code deferLength}, the
+	 * {@code Content-Length} header is left to be filled in on close.
+	 */
+	private byte[] encodeHead(int rCode, boolean deferLength) throws IOException {
+		StringBuilder head = new StringBuilder(256);
+		head.append("HTTP/1.1 ").append(rCode).append(' ').append(NioExchange.reason(rCode)).append("\r\n");
+		for (Map.Entry<String, List<String>> header : this.responseHeaders.entrySet()) {
+			for (String value : header.getValue()) {
+				if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+					throw new IOException("Illegal character in the value of response header " + header.getKey());
+				}
+				head.append(header.getKey()).append(": ").append(value).append("\r\n");
+			}
+		}
+		if (!deferLength) {
+			head.append("\r\n");
+		}
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return this.connection.remoteAddress();
+	}
+
+	@Override
+	public int getResponseCode() {
+		return this.responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return this.connection.localAddress();
+	}
+
+	@Override
+	public String getProtocol() {
+		return this.protocol;
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return this.attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			this.attributes.remove(name);
+		} else {
+			this.attributes.put(name, value);
+		}
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) {
+			this.requestBody = i;
+		}
+		if (o != null) {
+			this.responseBody = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+
+	@Override
+	public SSLSession getSSLSession() {
+		return this.connection.sslSession();
+	}
+
+	/**
+	 * Returns the reason phrase of a status code.
+	 */
+	private static String reason(int statusCode) {
+		switch (statusCode) {
+		case 200:
+			return "OK";
+		case 204:
+			return "No Content";
+		case 206:
+			return "Partial Content";
+		case 301:
+			return "Moved Permanently";
+		case 302:
+			return "Found";
+		case 303:
+			return "See Other";
+		case 304:
+			return "Not Modified";
+		case 307:
+			return "Temporary Redirect";
+		case 400:
+			return "Bad Request";
+		case 403:
+			return "Forbidden";
+		case 404:
+			return "Not Found";
+		case 405:
+			return "Method Not Allowed";
+		case 413:
+			return "Payload Too Large";
+		case 416:
+			return "Range Not Satisfiable";
+		case 429:
+			return "Too Many Requests";
+		case 431:
+			return "Request Header Fields Too Large";
+		case 500:
+			return "Internal Server Error";
+		case 501:
+			return "Not Implemented";
+		case 503:
+			return "Service Unavailable";
+		case 505:
+			return "HTTP Version Not Supported";
+		default:
+			return "";
+		}
+	}
+
+	/**
+	 * Returns the current time, formatted for the {@code Date} header.
+	 */
+	private static String date() {
+		long second = System.currentTimeMillis() / 1000L;
+		if (second != dateSecond) {
+			date = DateTimeFormatter.RFC_1123_DATE_TIME
+					.format(ZonedDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneOffset.UTC));
+			dateSecond = second;
+		}
+		return date;
+	}
+
+	/**
+	 * Buffers the response body as a list of chunks, enforcing the length promised
+	 * by {@link NioExchange#sendResponseHeaders(int, long)}. Bytes written from
+	 * arrays are copied into chunks of up to {@link #CHUNK_SIZE}, which grow as
+	 * they're needed rather than being sized by the promised length. Read-only
+	 * buffers written through {@link #write(ByteBuffer)} (e.g., a mapped static
+	 * file) are kept as they are, so a large file is never copied onto the heap;
+	 * their contents mustn't change until the response has been sent. Closing it
+	 * closes the exchange.
+	 */
+	private class ResponseBody extends OutputStream implements WritableByteChannel {
+		private final List<ByteBuffer> chunks = new ArrayList<>();
+		/**
+		 * The chunk being filled by writes of arrays, or null.
+		 */
+		private byte[] current;
+		private int currentCount;
+		private long count;
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!this.accept(len)) {
+				return;
+			}
+			this.count += len;
+			while (len > 0) {
+				if (this.current == null || this.currentCount == this.current.length) {
+					if (this.current != null && this.current.length < CHUNK_SIZE) {
+						this.current = Arrays.copyOf(this.current,
+								Math.min(CHUNK_SIZE, Math.max(this.currentCount + len, this.current.length * 2)));
+					} else {
+						this.seal();
+						this.current = new byte[Math.min(CHUNK_SIZE, Math.max(512, len))];
+					}
+				}
+				int copied = Math.min(len, this.current.length - this.currentCount);
+				System.arraycopy(b, off, this.current, this.currentCount, copied);
+				this.currentCount += copied;
+				off += copied;
+				len -= copied;
+			}
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int length = src.remaining();
+			if (!this.accept(length)) {
+				return 0;
+			}
+			if (src.isReadOnly()) {
+				this.seal();
+				this.chunks.add(src.slice());
+				src.position(src.limit());
+				this.count += length;
+			} else {
+				byte[] copy = new byte[length];
+				src.get(copy);
+				this.write(copy, 0, length);
+			}
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !NioExchange.this.closed.get();
+		}
+
+		@Override
+		public void close() {
+			NioExchange.this.close();
+		}
+
+		/**
+		 * Checks that {@code len} more bytes may be written.
+		 *
+		 * @return Whether there's anything to write.
+		 */
+		private boolean accept(int len) throws IOException {
+			if (NioExchange.this.closed.get()) {
+				throw new IOException("Stream closed");
+			} else if (NioExchange.this.head == null) {
+				throw new IOException("Response headers not sent yet");
+			} else if (len == 0) {
+				return false;
+			} else if (NioExchange.this.noBody) {
+				throw new IOException("The response has no body");
+			} else if (NioExchange.this.fixedLength > 0 && this.count + len > NioExchange.this.fixedLength) {
+				throw new IOException("Too many bytes to write to the response");
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the chunk being filled to {@link #chunks}.
+		 */
+		private void seal() {
+			if (this.currentCount > 0) {
+				this.chunks.add(ByteBuffer.wrap(this.current, 0, this.currentCount));
+			}
+			this.current = null;
+			this.currentCount = 0;
+		}
+
+		/**
+		 * Returns the chunks of the body, in order, once it's complete.
+		 */
+		private List<ByteBuffer> chunks() {
+			this.seal();
+			return this.chunks;
+		}
+	}
+}
@@ -0,0 +1,1173 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * An HTTP/1.1 server built directly on a NIO selector, as an alternative to
+ * the JDK's own {@code com.sun.net.httpserver} implementation. It's a drop-in
+ * {@code HttpsServer}: contexts, handlers, filters and executors work the same
+ * way, so every route of {@code Server} runs on either
+ * engine (chosen by {@code si.server.engine}).
+ *
+ * <p>
+ * One selector thread accepts connections, reads and parses requests, and
+ * writes responses; handlers run on the executor, as with the JDK's server.
+ * Compared to that server:
+ * <ul>
+ * <li>Connections are kept alive between requests, and pipelined requests are
+ * handled concurrently, up to {@code si.server.nio.maxPipelined} per
+ * connection. Responses are still sent in the order of the requests.</li>
+ * <li>Bytes are read and written through direct buffers from a
+ * {@link BufferPool}, held by a connection only while it has bytes in flight.
+ * TLS is done with an {@code SSLEngine} on the same buffers.</li>
+ * <li>Connections idle for {@code si.server.nio.idleSeconds}, or taking that
+ * long to send a request, are closed. At most
+ * {@code si.server.nio.maxConnections} are open at once; beyond that,
+ * connections wait in the accept backlog.</li>
+ * </ul>
+ *
+ * <p>
+ * Request bodies must have a {@code Content-Length} (of at most 1 MiB); chunked
+ * request bodies are answered with a {@code 501}. Authenticators aren't
+ * supported.
+ */
+class NioHttpServer extends HttpsServer {
+	private static final long IDLE_NANOS = TimeUnit.SECONDS
+			.toNanos(Integer.getInteger("si.server.nio.idleSeconds", 30));
+	private static final int MAX_CONNECTIONS = Integer.getInteger("si.server.nio.maxConnections", 10000);
+	private static final int MAX_PIPELINED = Integer.getInteger("si.server.nio.maxPipelined", 16);
+	private static final int MAX_HEADER_BYTES = Integer.getInteger("si.server.nio.maxHeaderBytes", 16 * 1024);
+	private static final int POOLED_BUFFERS = Integer.getInteger("si.server.nio.pooledBuffers", 1024);
+	private static final int MAX_BODY_BYTES = 1024 * 1024;
+	/**
+	 * How often idle connections are looked for, in milliseconds.
+	 */
+	private static final long REAP_INTERVAL_MILLIS = 1000L;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	private static final byte[] NO_BYTES = new byte[0];
+
+	private final List<Context> contexts = new CopyOnWriteArrayList<>();
+	/**
+	 * The connections with exchanges that have been closed since the selector
+	 * thread last looked.
+	 */
+	private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private ServerSocketChannel listener;
+	private volatile HttpsConfigurator configurator;
+	private volatile Executor executor;
+	private volatile boolean stopping;
+	private volatile long stopDeadlineNanos;
+	/**
+	 * The number of open connections. Only written by the selector thread.
+	 */
+	private volatile int connections;
+	private Thread thread;
+	private Selector selector;
+	private SelectionKey acceptKey;
+	private BufferPool pool;
+
+	/**
+	 * Constructs a new {@code NioHttpServer}, bound to {@code address} unless it's
+	 * null. Like the JDK's server, it's an https server once
+	 * {@link #setHttpsConfigurator(HttpsConfigurator)} has been called, and an
+	 * http one otherwise.
+	 *
+	 * @param address - The address to listen on. May be null, in which case
+	 *                {@link #bind(InetSocketAddress, int)} must be called before
+	 *                starting the server.
+	 * @param backlog - The maximum number of connections waiting to be accepted,
+	 *                or 0 for the system default.
+	 * @throws IOException If the address can't be bound.
+	 */
+	NioHttpServer(InetSocketAddress address, int backlog) throws IOException {
+		if (address != null) {
+			this.bind(address, backlog);
+		}
+	}
+
+	@Override
+	public void bind(InetSocketAddress addr, int backlog) throws IOException {
+		if (this.listener != null) {
+			throw new BindException("Already bound to " + this.getAddress());
+		}
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			listener.bind(addr, backlog);
+			listener.configureBlocking(false);
+		} catch (IOException ioe) {
+			listener.close();
+			throw ioe;
+		}
+		this.listener = listener;
+	}
+
+	@Override
+	public void start() {
+		if (this.listener == null) {
+			throw new IllegalStateException("Not bound");
+		} else if (this.thread != null) {
+			throw new IllegalStateException("Already started");
+		}
+		int bufferSize = MAX_HEADER_BYTES;
+		HttpsConfigurator configurator = this.configurator;
+		if (configurator != null) {
+			// Leaves room for a whole TLS record to be decrypted behind the start of a
+			// request.
+			SSLSession session = configurator.getSSLContext().createSSLEngine().getSession();
+			bufferSize = Math.max(MAX_HEADER_BYTES + session.getApplicationBufferSize(),
+					session.getPacketBufferSize());
+		}
+		try {
+			this.selector = Selector.open();
+			this.acceptKey = this.listener.register(this.selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		this.pool = new BufferPool(bufferSize, POOLED_BUFFERS);
+		this.thread = new Thread(this::run, "nio-http-" + this.getAddress().getPort());
+		this.thread.start();
+	}
+
+	@Override
+	public void setExecutor(Executor executor) {
+		if (this.thread != null) {
+			throw new IllegalStateException("Already started");
+		}
+		this.executor = executor;
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * Stops accepting connections, closes the idle ones, and waits up to
+	 * {@code delay} seconds for the exchanges in progress to finish before closing
+	 * the rest.
+	 */
+	@Override
+	public void stop(int delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("Negative delay");
+		}
+		if (this.thread == null) {
+			try {
+				this.listener.close();
+			} catch (IOException ioe) {
+				// Nothing was listening yet.
+			}
+			return;
+		}
+		this.stopDeadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay);
+		this.stopping = true;
+		this.selector.wakeup();
+		try {
+			this.terminated.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public HttpContext createContext(String path, HttpHandler handler) {
+		Context context = this.createContext(path);
+		context.setHandler(handler);
+		return context;
+	}
+
+	@Override
+	public Context createContext(String path) {
+		if (path == null || !path.startsWith("/")) {
+			throw new IllegalArgumentException("Invalid context path: " + path);
+		}
+		Context context = new Context(path);
+		synchronized (this.contexts) {
+			for (Context existing : this.contexts) {
+				if (existing.path.equals(path)) {
+					throw new IllegalArgumentException("A context already exists for " + path);
+				}
+			}
+			this.contexts.add(context);
+		}
+		return context;
+	}
+
+	@Override
+	public void removeContext(String path) {
+		synchronized (this.contexts) {
+			if (!this.contexts.removeIf((Context context) -> context.path.equals(path))) {
+				throw new IllegalArgumentException("No context exists for " + path);
+			}
+		}
+	}
+
+	@Override
+	public void removeContext(HttpContext context) {
+		if (!this.contexts.remove(context)) {
+			throw new IllegalArgumentException("Not a context of this server: " + context.getPath());
+		}
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		try {
+			return (InetSocketAddress) this.listener.getLocalAddress();
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	@Override
+	public void setHttpsConfigurator(HttpsConfigurator config) {
+		if (config == null) {
+			throw new IllegalArgumentException("Null configurator");
+		}
+		this.configurator = config;
+	}
+
+	@Override
+	public HttpsConfigurator getHttpsConfigurator() {
+		return this.configurator;
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 *
+	 * @return The number of open connections.
+	 */
+	int connections() {
+		return this.connections;
+	}
+
+	/**
+	 * Returns the number of direct buffers allocated for connections, whether in
+	 * use or pooled.
+	 *
+	 * @return The number of buffers, or 0 if the server hasn't been started.
+	 */
+	int buffers() {
+		BufferPool pool = this.pool;
+		return pool == null ? 0 : pool.allocated();
+	}
+
+	/**
+	 * The loop of the selector thread.
+	 */
+	private void run() {
+		long nextReapNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REAP_INTERVAL_MILLIS);
+		try {
+			while (!(this.stopping && this.drainForStop())) {
+				this.selector.select(REAP_INTERVAL_MILLIS);
+				Connection connection;
+				while ((connection = this.completed.poll()) != null) {
+					connection.onCompleted();
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					} else if (key == this.acceptKey) {
+						this.accept();
+					} else {
+						((Connection) key.attachment()).onReady();
+					}
+				}
+				long now = System.nanoTime();
+				if (now - nextReapNanos >= 0) {
+					this.reap(now);
+					nextReapNanos = now + TimeUnit.MILLISECONDS.toNanos(REAP_INTERVAL_MILLIS);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("The NIO HTTP server on " + this.getAddress() + " failed: " + e);
+		} finally {
+			for (SelectionKey key : this.selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			try {
+				this.listener.close();
+				this.selector.close();
+			} catch (IOException ioe) {
+				// Already closing.
+			}
+			this.terminated.countDown();
+		}
+	}
+
+	/**
+	 * Once stopping, stops listening, and closes connections as they become idle.
+	 *
+	 * @return Whether all connections are closed, or the stop delay is over.
+	 */
+	private boolean drainForStop() throws IOException {
+		if (this.listener.isOpen()) {
+			this.acceptKey.cancel();
+			this.listener.close();
+		}
+		boolean busy = false;
+		for (SelectionKey key : this.selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof Connection) {
+				Connection connection = (Connection) key.attachment();
+				if (connection.isIdle()) {
+					connection.close();
+				} else {
+					busy = true;
+				}
+			}
+		}
+		return !busy || System.nanoTime() - this.stopDeadlineNanos >= 0;
+	}
+
+	/**
+	 * Accepts as many waiting connections as allowed. Once
+	 * {@link #MAX_CONNECTIONS} are open, stops accepting until one closes.
+	 */
+	private void accept() {
+		while (this.connections < MAX_CONNECTIONS) {
+			SocketChannel channel;
+			try {
+				channel = this.listener.accept();
+			} catch (IOException ioe) {
+				// E.g., out of file descriptors; tries again on the next select.
+				System.err.println("Error accepting a connection: " + ioe);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				new Connection(channel);
+			} catch (IOException | RuntimeException e) {
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+					// Dropping it anyway.
+				}
+			}
+		}
+		this.acceptKey.interestOps(0);
+	}
+
+	/**
+	 * Closes the connections that have been idle for too long.
+	 */
+	private void reap(long now) {
+		for (SelectionKey key : this.selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof Connection) {
+				Connection connection = (Connection) key.attachment();
+				if (connection.isExpired(now)) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the context whose path is the longest prefix of {@code path}, the
+	 * same way the JDK's server matches requests to contexts.
+	 */
+	private Context findContext(String path) {
+		Context match = null;
+		for (Context context : this.contexts) {
+			if (path.startsWith(context.path) && (match == null || context.path.length() > match.path.length())) {
+				match = context;
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Creates the {@code SSLEngine} of a new connection, configured by the
+	 * {@code HttpsConfigurator} the same way the JDK's server does it.
+	 */
+	private SSLEngine createEngine(HttpsConfigurator configurator, InetSocketAddress remote) {
+		SSLEngine engine = configurator.getSSLContext().createSSLEngine(remote.getHostString(), remote.getPort());
+		engine.setUseClientMode(false);
+		Parameters parameters = new Parameters(configurator, remote);
+		configurator.configure(parameters);
+		if (parameters.sslParameters != null) {
+			engine.setSSLParameters(parameters.sslParameters);
+		} else {
+			if (parameters.getCipherSuites() != null) {
+				engine.setEnabledCipherSuites(parameters.getCipherSuites());
+			}
+			if (parameters.getProtocols() != null) {
+				engine.setEnabledProtocols(parameters.getProtocols());
+			}
+			engine.setNeedClientAuth(parameters.getNeedClientAuth());
+			engine.setWantClientAuth(parameters.getWantClientAuth());
+		}
+		return engine;
+	}
+
+	/**
+	 * Returns whether a {@code Connection} header lists {@code token}.
+	 */
+	private static boolean hasToken(Headers headers, String token) {
+		List<String> values = headers.get("Connection");
+		if (values != null) {
+			for (String value : values) {
+				for (String listed : value.split(",")) {
+					if (listed.trim().equalsIgnoreCase(token)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * One connection, and the requests read from it. Only used by the selector
+	 * thread, except for {@link #completed()}.
+	 */
+	class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final InetSocketAddress localAddress;
+		private final InetSocketAddress remoteAddress;
+		/**
+		 * The engine that encrypts the connection, or null for plain http.
+		 */
+		private final SSLEngine engine;
+		/**
+		 * The exchanges of the requests read, in order, until their responses are
+		 * handed over to {@link #writes}.
+		 */
+		private final ArrayDeque<NioExchange> exchanges = new ArrayDeque<>();
+		/**
+		 * The responses to write, in order.
+		 */
+		private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+		/**
+		 * The bytes of requests read but not yet parsed (decrypted, with TLS), in
+		 * write mode. Null whenever it would be empty.
+		 */
+		private ByteBuffer in;
+		/**
+		 * The TLS records read but not yet decrypted, in write mode. Null whenever it
+		 * would be empty.
+		 */
+		private ByteBuffer netIn;
+		/**
+		 * The bytes to write to the socket (encrypted, with TLS), in write mode. Null
+		 * whenever it would be empty.
+		 */
+		private ByteBuffer out;
+		/**
+		 * The exchange whose request body is being read, if any, and its body so
+		 * far.
+		 */
+		private NioExchange awaitingBody;
+		private byte[] body;
+		private int bodyLength;
+		private long lastActiveNanos = System.nanoTime();
+		/**
+		 * When the first bytes of the request being read arrived, or 0 if there's no
+		 * request being read.
+		 */
+		private long requestStartNanos;
+		/**
+		 * Whether the client has closed its side of the connection.
+		 */
+		private boolean endOfInput;
+		/**
+		 * Whether no more requests will be read from the connection.
+		 */
+		private boolean inputDone;
+		/**
+		 * Whether the connection is closed once everything in {@link #writes} has
+		 * been written.
+		 */
+		private boolean closeWhenFlushed;
+		private boolean closed;
+
+		private Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+			this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+			HttpsConfigurator configurator = NioHttpServer.this.configurator;
+			this.engine = configurator == null ? null
+					: NioHttpServer.this.createEngine(configurator, this.remoteAddress);
+			this.key = channel.register(NioHttpServer.this.selector, SelectionKey.OP_READ, this);
+			NioHttpServer.this.connections++;
+		}
+
+		InetSocketAddress localAddress() {
+			return this.localAddress;
+		}
+
+		InetSocketAddress remoteAddress() {
+			return this.remoteAddress;
+		}
+
+		SSLSession sslSession() {
+			return this.engine == null ? null : this.engine.getSession();
+		}
+
+		boolean isStopping() {
+			return NioHttpServer.this.stopping;
+		}
+
+		/**
+		 * Called, from any thread, when one of the connection's exchanges is closed.
+		 */
+		void completed() {
+			NioHttpServer.this.completed.add(this);
+			NioHttpServer.this.selector.wakeup();
+		}
+
+		/**
+		 * Sends the responses that are now ready.
+		 */
+		private void onCompleted() {
+			if (this.closed) {
+				return;
+			}
+			try {
+				this.pump();
+			} catch (IOException | RuntimeException e) {
+				this.close();
+			}
+		}
+
+		/**
+		 * Handles the socket becoming readable or writable.
+		 */
+		private void onReady() {
+			try {
+				if (this.key.isWritable() && this.engine != null) {
+					this.handshake();
+				}
+				if (this.key.isReadable()) {
+					this.read();
+				}
+				this.pump();
+			} catch (IOException | RuntimeException e) {
+				this.close();
+			}
+		}
+
+		/**
+		 * Parses and dispatches whatever requests can be, writes whatever responses
+		 * are ready, and then waits for whatever's next.
+		 */
+		private void pump() throws IOException {
+			do {
+				this.process();
+			} while (this.drain());
+			this.flush();
+			if (this.closed) {
+				return;
+			}
+			if (this.writes.isEmpty() && this.out == null
+					&& (this.closeWhenFlushed || (this.inputDone && this.exchanges.isEmpty()))) {
+				this.finish();
+				return;
+			}
+			int ops = 0;
+			if (!this.inputDone && (this.exchanges.size() < MAX_PIPELINED || this.awaitingBody != null)) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (this.out != null
+					|| (this.engine != null && this.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (this.key.interestOps() != ops) {
+				this.key.interestOps(ops);
+			}
+		}
+
+		/**
+		 * Reads from the socket into {@link #in}, or {@link #netIn} with TLS.
+		 */
+		private void read() throws IOException {
+			ByteBuffer target;
+			if (this.engine == null) {
+				target = this.in == null ? (this.in = NioHttpServer.this.pool.acquire()) : this.in;
+			} else {
+				target = this.netIn == null ? (this.netIn = NioHttpServer.this.pool.acquire()) : this.netIn;
+			}
+			if (!target.hasRemaining()) {
+				return;
+			}
+			int read = this.channel.read(target);
+			if (read < 0) {
+				this.endOfInput = true;
+				if (this.engine != null) {
+					try {
+						this.engine.closeInbound();
+					} catch (SSLException ssle) {
+						// The client closed without a close_notify; nothing more to read either way.
+					}
+				}
+			} else if (read > 0) {
+				this.lastActiveNanos = System.nanoTime();
+			}
+		}
+
+		/**
+		 * Decrypts and parses as much as possible of what's been read.
+		 */
+		private void process() throws IOException {
+			boolean progress = true;
+			while (progress) {
+				progress = false;
+				if (this.engine != null && this.netIn != null && !this.inputDone) {
+					progress = this.unwrap();
+				}
+				progress |= this.parse();
+			}
+			if (this.endOfInput && !this.inputDone) {
+				this.inputDone = true;
+				if (this.awaitingBody != null) {
+					// The request was cut off.
+					this.exchanges.removeLast();
+					this.awaitingBody = null;
+					this.body = null;
+				}
+			}
+			this.releaseEmptyBuffers();
+		}
+
+		/**
+		 * Decrypts the records in {@link #netIn} into {@link #in}, doing the TLS
+		 * handshake along the way.
+		 *
+		 * @return Whether anything was consumed or produced.
+		 */
+		private boolean unwrap() throws IOException {
+			boolean progress = false;
+			this.netIn.flip();
+			try {
+				while (this.netIn.hasRemaining()) {
+					if (this.in == null) {
+						this.in = NioHttpServer.this.pool.acquire();
+					}
+					SSLEngineResult result = this.engine.unwrap(this.netIn, this.in);
+					boolean moved = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+					progress |= moved;
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						this.endOfInput = true;
+						break;
+					} else if (result.getStatus() != SSLEngineResult.Status.OK) {
+						// Either a partial record, or no room left in `in` until it's parsed.
+						break;
+					}
+					HandshakeStatus status = result.getHandshakeStatus();
+					if (status == HandshakeStatus.NEED_TASK || status == HandshakeStatus.NEED_WRAP) {
+						this.handshake();
+						if (this.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+							// Waits for the socket to take what's been wrapped.
+							break;
+						}
+					} else if (!moved) {
+						break;
+					}
+				}
+			} finally {
+				this.netIn.compact();
+			}
+			this.handshake();
+			return progress;
+		}
+
+		/**
+		 * Moves the TLS handshake along for as long as it doesn't need to read:
+		 * runs the engine's tasks, and wraps its messages into {@link #out}.
+		 */
+		private void handshake() throws IOException {
+			while (true) {
+				HandshakeStatus status = this.engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					Runnable task;
+					while ((task = this.engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					if (this.out == null) {
+						this.out = NioHttpServer.this.pool.acquire();
+					}
+					SSLEngineResult result = this.engine.wrap(EMPTY, this.out);
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !this.writeOut()) {
+						// Carries on once the socket is writable.
+						return;
+					} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						return;
+					}
+				} else {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Parses the requests in {@link #in}, and dispatches them to their handlers.
+		 *
+		 * @return Whether anything was consumed.
+		 */
+		private boolean parse() {
+			if (this.in == null || this.in.position() == 0 || this.inputDone) {
+				return false;
+			}
+			this.in.flip();
+			int start = this.in.position();
+			try {
+				while (this.in.hasRemaining() && !this.inputDone) {
+					if (this.awaitingBody != null) {
+						int length = Math.min(this.in.remaining(), this.body.length - this.bodyLength);
+						this.in.get(this.body, this.bodyLength, length);
+						this.bodyLength += length;
+						if (this.bodyLength == this.body.length) {
+							NioExchange exchange = this.awaitingBody;
+							this.awaitingBody = null;
+							this.body = null;
+							this.dispatch(exchange);
+						}
+						continue;
+					} else if (this.exchanges.size() >= MAX_PIPELINED) {
+						// Reads on once some of the responses have been sent.
+						break;
+					}
+					this.skipEmptyLines();
+					int headEnd = this.headEnd();
+					if (headEnd < 0) {
+						if (this.in.remaining() >= MAX_HEADER_BYTES) {
+							this.reject(431);
+						}
+						break;
+					}
+					this.readRequest(headEnd);
+				}
+				return this.in.position() != start;
+			} finally {
+				this.in.compact();
+				if (this.in.position() == 0 && this.awaitingBody == null) {
+					this.requestStartNanos = 0L;
+				} else if (this.requestStartNanos == 0L) {
+					this.requestStartNanos = System.nanoTime();
+				}
+			}
+		}
+
+		/**
+		 * Skips the empty lines clients may send before a request.
+		 */
+		private void skipEmptyLines() {
+			while (this.in.hasRemaining() && (this.in.get(this.in.position()) == '\r'
+					|| this.in.get(this.in.position()) == '\n')) {
+				this.in.get();
+			}
+		}
+
+		/**
+		 * Returns the index just past the empty line that ends the request line and
+		 * headers in {@link #in}, or -1 if they haven't all been read yet.
+		 */
+		private int headEnd() {
+			int limit = this.in.limit();
+			for (int i = this.in.position(); i < limit; i++) {
+				if (this.in.get(i) == '\n') {
+					if (i + 1 < limit && this.in.get(i + 1) == '\n') {
+						return i + 2;
+					} else if (i + 2 < limit && this.in.get(i + 1) == '\r' && this.in.get(i + 2) == '\n') {
+						return i + 3;
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Reads the request line and headers up to {@code headEnd}, and either
+		 * dispatches the request or starts reading its body.
+		 */
+		private void readRequest(int headEnd) {
+			byte[] raw = new byte[headEnd - this.in.position()];
+			this.in.get(raw);
+			String head = new String(raw, StandardCharsets.ISO_8859_1);
+
+			int lineEnd = head.indexOf('\n');
+			String requestLine = head.substring(0,
+					lineEnd > 0 && head.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd);
+			int methodEnd = requestLine.indexOf(' ');
+			int targetEnd = requestLine.lastIndexOf(' ');
+			if (methodEnd <= 0 || targetEnd <= methodEnd + 1) {
+				this.reject(HttpURLConnection.HTTP_BAD_REQUEST);
+				return;
+			}
+			String method = requestLine.substring(0, methodEnd);
+			String target = requestLine.substring(methodEnd + 1, targetEnd);
+			String protocol = requestLine.substring(targetEnd + 1);
+			if (!protocol.equals("HTTP/1.1") && !protocol.equals("HTTP/1.0")) {
+				this.reject(protocol.startsWith("HTTP/") ? HttpURLConnection.HTTP_VERSION
+						: HttpURLConnection.HTTP_BAD_REQUEST);
+				return;
+			}
+
+			Headers headers = new Headers();
+			URI uri;
+			long contentLength;
+			try {
+				int lineStart = lineEnd + 1;
+				while (lineStart < head.length()) {
+					lineEnd = head.indexOf('\n', lineStart);
+					String line = head.substring(lineStart,
+							lineEnd > lineStart && head.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd);
+					lineStart = lineEnd + 1;
+					if (line.isEmpty()) {
+						break;
+					}
+					int colon = line.indexOf(':');
+					// Rejects folded lines, and whitespace before the colon.
+					if (colon <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t'
+							|| Character.isWhitespace(line.charAt(colon - 1))) {
+						this.reject(HttpURLConnection.HTTP_BAD_REQUEST);
+						return;
+					}
+					headers.add(line.substring(0, colon), line.substring(colon + 1).trim());
+				}
+				uri = new URI(target);
+				String contentLengthHeader = headers.getFirst("Content-Length");
+				contentLength = contentLengthHeader == null ? 0L : Long.parseLong(contentLengthHeader);
+			} catch (URISyntaxException | IllegalArgumentException e) {
+				// Includes a NumberFormatException from the Content-Length.
+				this.reject(HttpURLConnection.HTTP_BAD_REQUEST);
+				return;
+			}
+			if (headers.containsKey("Transfer-Encoding")) {
+				this.reject(HttpURLConnection.HTTP_NOT_IMPLEMENTED);
+				return;
+			} else if (contentLength < 0) {
+				this.reject(HttpURLConnection.HTTP_BAD_REQUEST);
+				return;
+			} else if (contentLength > MAX_BODY_BYTES) {
+				this.reject(HttpURLConnection.HTTP_ENTITY_TOO_LARGE);
+				return;
+			}
+
+			boolean keepAlive = protocol.equals("HTTP/1.1") ? !NioHttpServer.hasToken(headers, "close")
+					: NioHttpServer.hasToken(headers, "keep-alive");
+			if (!keepAlive) {
+				this.inputDone = true;
+			}
+			String path = uri.getPath();
+			Context context = path == null ? null : NioHttpServer.this.findContext(path);
+			if (context == null) {
+				// Skipping the body isn't worth it; the connection is closed instead.
+				this.exchanges.addLast(NioExchange.error(this, HttpURLConnection.HTTP_NOT_FOUND,
+						keepAlive && contentLength == 0));
+				if (contentLength != 0) {
+					this.inputDone = true;
+				}
+				return;
+			}
+			byte[] body = contentLength == 0 ? NO_BYTES : new byte[(int) contentLength];
+			NioExchange exchange = new NioExchange(this, context, method, uri, protocol, headers, body, keepAlive);
+			this.exchanges.addLast(exchange);
+			if (contentLength == 0) {
+				this.dispatch(exchange);
+			} else {
+				this.awaitingBody = exchange;
+				this.body = body;
+				this.bodyLength = 0;
+			}
+		}
+
+		/**
+		 * Answers a request that can't be handled with an error, and reads nothing
+		 * more from the connection.
+		 */
+		private void reject(int statusCode) {
+			this.inputDone = true;
+			this.exchanges.addLast(NioExchange.error(this, statusCode, false));
+		}
+
+		/**
+		 * Runs the handler of {@code exchange} on the server's executor.
+		 */
+		private void dispatch(NioExchange exchange) {
+			Executor executor = NioHttpServer.this.executor;
+			if (executor == null) {
+				exchange.handle();
+				return;
+			}
+			try {
+				executor.execute(exchange::handle);
+			} catch (RejectedExecutionException ree) {
+				exchange.fail(HttpURLConnection.HTTP_UNAVAILABLE);
+			}
+		}
+
+		/**
+		 * Moves the responses of the exchanges that are over, from the oldest up to
+		 * the first one still in progress, to {@link #writes}.
+		 *
+		 * @return Whether any exchange was over.
+		 */
+		private boolean drain() {
+			boolean drained = false;
+			NioExchange exchange;
+			while ((exchange = this.exchanges.peekFirst()) != null && exchange.isDone()) {
+				this.exchanges.removeFirst();
+				drained = true;
+				ByteBuffer[] response = exchange.response();
+				if (response != null) {
+					Collections.addAll(this.writes, response);
+				}
+				if (response == null || exchange.closesConnection()) {
+					// Whatever follows is dropped; its handlers will find the connection
+					// gone.
+					this.closeWhenFlushed = true;
+					this.inputDone = true;
+					this.exchanges.clear();
+					this.awaitingBody = null;
+					this.body = null;
+				}
+			}
+			return drained;
+		}
+
+		/**
+		 * Writes as much of {@link #writes} as the socket takes.
+		 */
+		private void flush() throws IOException {
+			while (true) {
+				if (this.out != null && !this.writeOut()) {
+					return;
+				}
+				ByteBuffer next = this.writes.peekFirst();
+				if (next == null) {
+					return;
+				}
+				if (this.out == null) {
+					this.out = NioHttpServer.this.pool.acquire();
+				}
+				if (this.engine == null) {
+					int length = Math.min(this.out.remaining(), next.remaining());
+					int limit = next.limit();
+					next.limit(next.position() + length);
+					this.out.put(next);
+					next.limit(limit);
+				} else {
+					SSLEngineResult result = this.engine.wrap(next, this.out);
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new SSLException("The TLS session was closed");
+					}
+					if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+						this.handshake();
+					}
+				}
+				if (!next.hasRemaining()) {
+					this.writes.removeFirst();
+				}
+			}
+		}
+
+		/**
+		 * Writes {@link #out} to the socket, releasing it once empty.
+		 *
+		 * @return Whether everything was written.
+		 */
+		private boolean writeOut() throws IOException {
+			this.out.flip();
+			int written = this.channel.write(this.out);
+			boolean all = !this.out.hasRemaining();
+			this.out.compact();
+			if (written > 0) {
+				this.lastActiveNanos = System.nanoTime();
+			}
+			if (all) {
+				NioHttpServer.this.pool.release(this.out);
+				this.out = null;
+			}
+			return all;
+		}
+
+		/**
+		 * Gives back the input buffers that hold nothing.
+		 */
+		private void releaseEmptyBuffers() {
+			if (this.in != null && this.in.position() == 0) {
+				NioHttpServer.this.pool.release(this.in);
+				this.in = null;
+			}
+			if (this.netIn != null && this.netIn.position() == 0) {
+				NioHttpServer.this.pool.release(this.netIn);
+				this.netIn = null;
+			}
+		}
+
+		/**
+		 * Returns whether nothing is being read, handled or written.
+		 */
+		private boolean isIdle() {
+			return this.exchanges.isEmpty() && this.writes.isEmpty() && this.out == null && this.in == null;
+		}
+
+		/**
+		 * Returns whether the connection has been idle, or reading a request, for too
+		 * long. Connections waiting on handlers never expire.
+		 */
+		private boolean isExpired(long now) {
+			if (this.exchanges.size() > (this.awaitingBody == null ? 0 : 1)) {
+				return false;
+			}
+			long since = this.requestStartNanos != 0L ? this.requestStartNanos : this.lastActiveNanos;
+			return now - since > IDLE_NANOS;
+		}
+
+		/**
+		 * Closes the connection once everything has been written, with a
+		 * {@code close_notify} for TLS.
+		 */
+		private void finish() {
+			if (this.engine != null) {
+				try {
+					this.engine.closeOutbound();
+					this.out = NioHttpServer.this.pool.acquire();
+					this.engine.wrap(EMPTY, this.out);
+					this.out.flip();
+					this.channel.write(this.out);
+				} catch (IOException ioe) {
+					// Closing anyway.
+				}
+			}
+			this.close();
+		}
+
+		/**
+		 * Closes the connection at once. Exchanges still in progress are dropped.
+		 */
+		void close() {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.key.cancel();
+			try {
+				this.channel.close();
+			} catch (IOException ioe) {
+				// Closed anyway.
+			}
+			BufferPool pool = NioHttpServer.this.pool;
+			pool.release(this.in);
+			pool.release(this.netIn);
+			pool.release(this.out);
+			this.in = this.netIn = this.out = null;
+			this.exchanges.clear();
+			this.writes.clear();
+			NioHttpServer.this.connections--;
+			if (!NioHttpServer.this.stopping && NioHttpServer.this.acceptKey.isValid()
+					&& NioHttpServer.this.acceptKey.interestOps() == 0) {
+				NioHttpServer.this.acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			}
+		}
+	}
+
+	/**
+	 * A context of a {@code NioHttpServer}.
+	 */
+	private class Context extends HttpContext {
+		private final String path;
+		private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		private final List<Filter> filters = new CopyOnWriteArrayList<>();
+		private volatile HttpHandler handler;
+
+		private Context(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public HttpHandler getHandler() {
+			return this.handler;
+		}
+
+		@Override
+		public void setHandler(HttpHandler handler) {
+			if (handler == null) {
+				throw new NullPointerException("Null handler");
+			} else if (this.handler != null) {
+				throw new IllegalArgumentException("The handler is already set");
+			}
+			this.handler = handler;
+		}
+
+		@Override
+		public String getPath() {
+			return this.path;
+		}
+
+		@Override
+		public HttpServer getServer() {
+			return NioHttpServer.this;
+		}
+
+		@Override
+		public Map<String, Object> getAttributes() {
+			return this.attributes;
+		}
+
+		@Override
+		public List<Filter> getFilters() {
+			return this.filters;
+		}
+
+		@Override
+		public com.sun.net.httpserver.Authenticator setAuthenticator(com.sun.net.httpserver.Authenticator auth) {
+			throw new UnsupportedOperationException("Authenticators aren't supported by the NIO engine");
+		}
+
+		@Override
+		public com.sun.net.httpserver.Authenticator getAuthenticator() {
+			return null;
+		}
+	}
+
+	/**
+	 * Collects what an {@code HttpsConfigurator} sets for a connection.
+	 */
+	private static class Parameters extends HttpsParameters {
+		private final HttpsConfigurator configurator;
+		private final InetSocketAddress clientAddress;
+		private SSLParameters sslParameters;
+
+		private Parameters(HttpsConfigurator configurator, InetSocketAddress clientAddress) {
+			this.configurator = configurator;
+			this.clientAddress = clientAddress;
+		}
+
+		@Override
+		public HttpsConfigurator getHttpsConfigurator() {
+			return this.configurator;
+		}
+
+		@Override
+		public InetSocketAddress getClientAddress() {
+			return this.clientAddress;
+		}
+
+		@Override
+		public void setSSLParameters(SSLParameters params) {
+			this.sslParameters = params;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * A bounded, least-recently-used cache of asynchronously loaded values with
+ * stale-while-revalidate semantics. Each value is:
+ * <ul>
+ * <li><b>fresh</b> for {@code ttl} after it was loaded, during which it's
+ * returned as-is;</li>
+ * <li><b>stale</b> for a further {@code staleWindow}, during which it's still
+ * returned immediately, but a (single) background reload is started;</li>
+ * <li><b>expired</b> after that, at which point callers wait on a reload.</li>
+ * </ul>
+ * Concurrent requests for a key that's being loaded share the same load.
+ * Failed loads are not cached; a failed background reload leaves the stale
+ * value in place.
+ *
+ * @param <K> - The type of the keys.
+ * @param <V> - The type of the values.
+ */
+class RefreshingCache<K, V> {
+	/**
+	 * A cached value and its bookkeeping. All fields are guarded by the cache.
+	 */
+	private static class Entry<V> {
+		/**
+		 * The most recently loaded value, or null if no load has succeeded yet.
+		 */
+		private V value;
+		/**
+		 * The epoch millisecond {@code value} was loaded at.
+		 */
+		private long loadedAt;
+		/**
+		 * The load in progress for this entry, or null if there isn't one.
+		 */
+		private CompletableFuture<V> loading;
+	}
+
+	/**
+	 * How long a value is fresh for, in milliseconds.
+	 */
+	private final long ttlMillis;
+	/**
+	 * How long a value may be served stale after its TTL, in milliseconds.
+	 */
+	private final long staleMillis;
+	/**
+	 * The entries, in access order. Guarded by {@code this}.
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries;
+	/**
+	 * Counters for fresh hits, stale hits and misses.
+	 */
+	private final LongAdder hits = new LongAdder(), staleHits = new LongAdder(), misses = new LongAdder();
+
+	/**
+	 * Constructs a new {@code RefreshingCache}.
+	 *
+	 * @param maxEntries  - The maximum number of entries; the least recently used
+	 *                    entry is evicted past this. Must be positive.
+	 * @param ttl         - How long a value is fresh for.
+	 * @param staleWindow - How long a value may be served stale after its TTL.
+	 */
+	RefreshingCache(int maxEntries, Duration ttl, Duration staleWindow) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.ttlMillis = ttl.toMillis();
+		this.staleMillis = staleWindow.toMillis();
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, RefreshingCache.Entry<V>> eldest) {
+				return this.size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the value for {@code key}, loading it with {@code loader} if it's
+	 * missing or expired, and reloading it in the background if it's stale.
+	 *
+	 * @param key    - The key to look up. Cannot be null.
+	 * @param loader - Starts a load of the value for {@code key}. Cannot be null.
+	 * @return A future completed with the value for {@code key}.
+	 */
+	CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> loader) {
+		long now = System.currentTimeMillis();
+		Entry<V> entry;
+		CompletableFuture<V> result;
+		boolean startLoad = false;
+		synchronized (this) {
+			entry = this.entries.get(key);
+			if (entry == null) {
+				entry = new Entry<>();
+				this.entries.put(key, entry);
+			}
+			long age = now - entry.loadedAt;
+			if (entry.value != null && age < this.ttlMillis) {
+				this.hits.increment();
+				return CompletableFuture.completedFuture(entry.value);
+			}
+			boolean stale = entry.value != null && age < this.ttlMillis + this.staleMillis;
+			if (entry.loading == null) {
+				entry.loading = new CompletableFuture<>();
+				startLoad = true;
+			}
+			if (stale) {
+				this.staleHits.increment();
+				result = CompletableFuture.completedFuture(entry.value);
+			} else {
+				this.misses.increment();
+				result = entry.loading;
+			}
+		}
+		if (startLoad) {
+			this.load(key, entry, loader);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs {@code loader} and stores its result in {@code entry}.
+	 */
+	private void load(K key, Entry<V> entry, Supplier<CompletableFuture<V>> loader) {
+		CompletableFuture<V> loading;
+		synchronized (this) {
+			loading = entry.loading;
+		}
+		CompletableFuture<V> started;
+		try {
+			started = loader.get();
+		} catch (RuntimeException re) {
+			started = new CompletableFuture<>();
+			started.completeExceptionally(re);
+		}
+		started.whenComplete((V value, Throwable error) -> {
+			synchronized (this) {
+				entry.loading = null;
+				if (error == null) {
+					entry.value = value;
+					entry.loadedAt = System.currentTimeMillis();
+				} else if (entry.value == null && this.entries.get(key) == entry) {
+					this.entries.remove(key);
+				}
+			}
+			if (error != null) {
+				loading.completeExceptionally(error);
+			} else {
+				loading.complete(value);
+			}
+		});
+	}
+
+	/**
+	 * Removes the value for {@code key}, if there is one.
+	 *
+	 * @param key - The key to remove.
+	 */
+	synchronized void invalidate(K key) {
+		this.entries.remove(key);
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 *
+	 * @return The number of entries in the cache.
+	 */
+	synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found a fresh value.
+	 *
+	 * @return The number of lookups that found a fresh value.
+	 */
+	long hitCount() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that were served a stale value.
+	 *
+	 * @return The number of lookups that were served a stale value.
+	 */
+	long staleHitCount() {
+		return this.staleHits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that had to wait for a load.
+	 *
+	 * @return The number of lookups that had to wait for a load.
+	 */
+	long missCount() {
+		return this.misses.sum();
+	}
+}
@@ -0,0 +1,647 @@
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * A {@link SessionStore} shared by several servers (e.g., behind a load
+ * balancer), so that any of them can serve any user.
+ *
+ * <p>
+ * Every server keeps all sessions in memory and serves lookups from there.
+ * Changes are collected in a map, like {@link LogSessionStore} does, and a
+ * background thread sends the latest state of each changed session to every
+ * peer every {@code flushInterval}, over one TCP connection per peer. A peer
+ * that (re)connects is first sent every session, so servers that start late or
+ * restart catch up. Changes made on one server are visible on the others after
+ * about {@code flushInterval}. A peer that stops reading is disconnected once
+ * writes to it have made no progress for a few seconds, so it can't hold up the
+ * others; a slow but steady one (e.g., catching up on every session) is not.
+ *
+ * <p>
+ * Copies are merged so that the order they arrive in doesn't matter: a
+ * removed session stays removed (its ID is remembered until the session would
+ * have expired), and otherwise the copy whose token expires last wins. Tokens
+ * received from peers are copied into the existing {@link Session}, so that
+ * references held elsewhere stay current.
+ *
+ * <p>
+ * Each session is owned by one of the servers currently connected, picked by
+ * a {@link HashRing} over their names, and only its owner refreshes its token
+ * in the background. When a server leaves, only its sessions move to other
+ * servers.
+ *
+ * <p>
+ * Peers authenticate each other with HMAC-SHA256 challenges keyed by the
+ * {@code replication_secret} resource, which must be the same on every server.
+ * Sessions (including Spotify tokens) are sent unencrypted, so replication must
+ * stay on a private network.
+ */
+class ReplicatedSessionStore implements SessionStore {
+	private static final int MAGIC = 0x53495352; // "SISR"
+	private static final int VERSION = 1;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte HEARTBEAT = 3;
+	private static final int NONCE_BYTES = 32;
+	/**
+	 * Stands in for a removed session in {@link #dirty}.
+	 */
+	private static final Session REMOVED = new Session("", 0L, "", 0L);
+	/**
+	 * The points each server has on the ring.
+	 */
+	private static final int VIRTUAL_NODES = 128;
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+	private static final long RETRY_MILLIS = 1000L;
+	private static final long HEARTBEAT_MILLIS = 1000L;
+	/**
+	 * How long a connection from a peer may be silent before it's considered
+	 * dead.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+	/**
+	 * How long writes to a peer may go without getting a chunk out before its
+	 * connection is closed.
+	 */
+	private static final long WRITE_TIMEOUT_MILLIS = 5000L;
+	/**
+	 * How often the progress of writes to a peer is checked.
+	 */
+	private static final long WRITE_CHECK_MILLIS = 500L;
+	private static final long PURGE_INTERVAL_MILLIS = 60000L;
+
+	private final ConcurrentMap<SessionId, Session> sessions = new ConcurrentHashMap<>();
+	/**
+	 * The IDs of removed sessions, to the epoch second they can be forgotten at.
+	 */
+	private final ConcurrentMap<SessionId, Long> removed = new ConcurrentHashMap<>();
+	/**
+	 * The sessions changed here since the last batch, or {@link #REMOVED} for
+	 * removed ones.
+	 */
+	private final ConcurrentMap<SessionId, Session> dirty = new ConcurrentHashMap<>();
+	/**
+	 * The name of this server, as the other servers know it.
+	 */
+	private final String self;
+	private final List<Peer> peers = new ArrayList<>();
+	private final byte[] secret;
+	private final SecureRandom random = new SecureRandom();
+	/**
+	 * Closes the connections of peers whose writes run past their deadline, which
+	 * fails the blocked write on the replicating thread.
+	 */
+	private final ScheduledExecutorService writeDeadlines = Executors
+			.newSingleThreadScheduledExecutor((Runnable r) -> {
+				Thread thread = new Thread(r, "session-replication-deadlines");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private volatile HashRing ring;
+	private volatile Listener listener;
+	private volatile int connectedPeers;
+	/**
+	 * When tombstones in {@link #removed} were last purged. Only used by the
+	 * replicating thread.
+	 */
+	private long purgedAt;
+
+	/**
+	 * Constructs a new {@code ReplicatedSessionStore}, listening for peers on
+	 * {@code self} and starting to connect to the others.
+	 *
+	 * @param self          - The {@code host:port} this server listens for peers
+	 *                      on, which is also its name.
+	 * @param peers         - The {@code host:port} of every server sharing the
+	 *                      sessions. May include {@code self}.
+	 * @param flushInterval - How often changes are sent to peers.
+	 * @throws IOException If {@code self} can't be listened on, or the
+	 *                     {@code replication_secret} resource can't be read.
+	 */
+	ReplicatedSessionStore(String self, List<String> peers, Duration flushInterval) throws IOException {
+		this.self = self;
+		try (InputStream in = ReplicatedSessionStore.class.getResourceAsStream("replication_secret")) {
+			if (in == null) {
+				throw new FileNotFoundException("The replication_secret resource is missing");
+			}
+			this.secret = in.readAllBytes();
+		}
+		for (String peer : new TreeSet<>(peers)) {
+			if (!peer.equals(self)) {
+				this.peers.add(new Peer(peer, ReplicatedSessionStore.address(peer)));
+			}
+		}
+		this.ring = new HashRing(List.of(self), VIRTUAL_NODES);
+
+		ServerSocket serverSocket = new ServerSocket();
+		serverSocket.bind(ReplicatedSessionStore.address(self));
+		Thread acceptor = new Thread(() -> this.accept(serverSocket), "session-replication-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ScheduledExecutorService replicator = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+			Thread thread = new Thread(r, "session-replication");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long intervalMillis = flushInterval.toMillis();
+		replicator.scheduleWithFixedDelay(this::replicate, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Parses a {@code host:port}.
+	 */
+	private static InetSocketAddress address(String hostAndPort) {
+		int colon = hostAndPort.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Expected host:port, got " + hostAndPort);
+		}
+		return new InetSocketAddress(hostAndPort.substring(0, colon),
+				Integer.parseInt(hostAndPort.substring(colon + 1)));
+	}
+
+	@Override
+	public Session get(SessionId id) {
+		return this.sessions.get(id);
+	}
+
+	@Override
+	public void put(SessionId id, Session session) {
+		this.sessions.put(id, session);
+		this.watch(id, session);
+		this.dirty.put(id, session);
+	}
+
+	@Override
+	public Session remove(SessionId id) {
+		Session removed = this.sessions.remove(id);
+		long forgetAt = removed != null ? removed.sessionExpiresAt()
+				: Instant.now().getEpochSecond() + Server.SESSION_LENGTH_SECONDS;
+		this.removed.put(id, forgetAt);
+		this.dirty.put(id, REMOVED);
+		if (removed != null) {
+			removed.setUpdateListener(null);
+		}
+		return removed;
+	}
+
+	@Override
+	public int size() {
+		return this.sessions.size();
+	}
+
+	@Override
+	public void forEach(BiConsumer<SessionId, Session> action) {
+		this.sessions.forEach(action);
+	}
+
+	@Override
+	public boolean owns(SessionId id) {
+		return this.ring.owner(id.hashCode()).equals(this.self);
+	}
+
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the number of peers this server is currently sending changes to.
+	 *
+	 * @return The number of connected peers.
+	 */
+	int connectedPeers() {
+		return this.connectedPeers;
+	}
+
+	/**
+	 * Returns the number of changes waiting to be sent to peers.
+	 *
+	 * @return The number of changed sessions.
+	 */
+	int pending() {
+		return this.dirty.size();
+	}
+
+	/**
+	 * Marks the session as dirty whenever its tokens change here.
+	 */
+	private void watch(SessionId id, Session session) {
+		session.setUpdateListener(() -> {
+			if (this.sessions.get(id) == session) {
+				this.dirty.put(id, session);
+			}
+		});
+	}
+
+	/**
+	 * Merges a copy of a session received from a peer.
+	 */
+	private void merge(SessionId id, Session copy) {
+		if (this.removed.containsKey(id)) {
+			return;
+		}
+		Session current = this.sessions.putIfAbsent(id, copy);
+		if (current == null) {
+			this.watch(id, copy);
+			current = copy;
+		} else if (copy.tokenExpiresAt() > current.tokenExpiresAt()) {
+			current.copyTokensFrom(copy);
+		} else {
+			return;
+		}
+		// Removed by a peer in the meantime.
+		if (this.removed.containsKey(id)) {
+			this.sessions.remove(id, current);
+			return;
+		}
+		Listener listener = this.listener;
+		if (listener != null) {
+			listener.put(id, current);
+		}
+	}
+
+	/**
+	 * Applies the removal of a session by a peer.
+	 */
+	private void mergeRemoval(SessionId id, long forgetAt) {
+		this.removed.merge(id, forgetAt, Math::max);
+		Session session = this.sessions.remove(id);
+		if (session != null) {
+			session.setUpdateListener(null);
+			Listener listener = this.listener;
+			if (listener != null) {
+				listener.removed(id, session);
+			}
+		}
+	}
+
+	/**
+	 * Sends the changed sessions to every peer, (re)connecting to peers that
+	 * aren't connected, and updates the ring if peers came or went. Run by the
+	 * replicating thread every {@code flushInterval}.
+	 */
+	private void replicate() {
+		try {
+			long now = System.currentTimeMillis();
+			if (now - this.purgedAt >= PURGE_INTERVAL_MILLIS) {
+				long nowSeconds = now / 1000L;
+				this.removed.values().removeIf((Long forgetAt) -> forgetAt < nowSeconds);
+				this.purgedAt = now;
+			}
+
+			Map<SessionId, Session> batch = new HashMap<>();
+			for (SessionId id : new ArrayList<>(this.dirty.keySet())) {
+				Session session = this.dirty.remove(id);
+				if (session != null) {
+					batch.put(id, session);
+				}
+			}
+
+			boolean membershipChanged = false;
+			int connected = 0;
+			for (Peer peer : this.peers) {
+				if (peer.out == null) {
+					if (now < peer.retryAt) {
+						continue;
+					}
+					try {
+						// Sends everything, which includes this batch.
+						peer.connect();
+						ScheduledFuture<?> deadline = peer.writeDeadline();
+						try {
+							this.sendAll(peer.out);
+							peer.out.flush();
+						} finally {
+							deadline.cancel(false);
+						}
+						peer.wroteAt = now;
+						membershipChanged = true;
+						System.err.println("Sharing sessions with " + peer.name);
+					} catch (IOException | GeneralSecurityException e) {
+						peer.disconnect(now, e);
+					}
+				} else {
+					ScheduledFuture<?> deadline = peer.writeDeadline();
+					try {
+						if (!batch.isEmpty()) {
+							for (Map.Entry<SessionId, Session> entry : batch.entrySet()) {
+								this.writeRecord(peer.out, entry.getKey(), entry.getValue());
+							}
+							peer.wroteAt = now;
+						} else if (now - peer.wroteAt >= HEARTBEAT_MILLIS) {
+							peer.out.writeByte(HEARTBEAT);
+							peer.wroteAt = now;
+						}
+						peer.out.flush();
+					} catch (IOException ioe) {
+						peer.disconnect(now, ioe);
+						membershipChanged = true;
+					} finally {
+						deadline.cancel(false);
+					}
+				}
+				if (peer.out != null) {
+					connected++;
+				}
+			}
+			this.connectedPeers = connected;
+
+			if (membershipChanged) {
+				List<String> members = new ArrayList<>();
+				members.add(this.self);
+				for (Peer peer : this.peers) {
+					if (peer.out != null) {
+						members.add(peer.name);
+					}
+				}
+				this.ring = new HashRing(members, VIRTUAL_NODES);
+				Listener listener = this.listener;
+				if (listener != null) {
+					listener.ownershipChanged();
+				}
+			}
+		} catch (RuntimeException re) {
+			// Keeps the replicating thread alive.
+			System.err.println("Error replicating sessions: " + re);
+		}
+	}
+
+	/**
+	 * Writes every session and removal known here.
+	 */
+	private void sendAll(DataOutputStream out) throws IOException {
+		for (Map.Entry<SessionId, Long> entry : this.removed.entrySet()) {
+			out.writeByte(REMOVE);
+			entry.getKey().writeTo(out);
+			out.writeLong(entry.getValue());
+		}
+		for (Map.Entry<SessionId, Session> entry : this.sessions.entrySet()) {
+			this.writeRecord(out, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes one record for {@code session}, which may be {@link #REMOVED}.
+	 */
+	private void writeRecord(DataOutputStream out, SessionId id, Session session) throws IOException {
+		if (session == REMOVED) {
+			Long forgetAt = this.removed.get(id);
+			if (forgetAt == null) {
+				// Already purged; the session has expired everywhere anyway.
+				return;
+			}
+			out.writeByte(REMOVE);
+			id.writeTo(out);
+			out.writeLong(forgetAt);
+		} else {
+			out.writeByte(PUT);
+			id.writeTo(out);
+			session.writeTo(out);
+		}
+	}
+
+	/**
+	 * Accepts connections from peers, reading each on its own thread.
+	 */
+	private void accept(ServerSocket serverSocket) {
+		while (true) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException ioe) {
+				System.err.println("Error accepting a session peer: " + ioe);
+				continue;
+			}
+			Thread reader = new Thread(() -> this.receive(socket),
+					"session-replication-" + socket.getRemoteSocketAddress());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * Authenticates a peer that connected to this server, then merges the
+	 * records it sends until it disconnects.
+	 */
+	private void receive(Socket socket) {
+		String peer = String.valueOf(socket.getRemoteSocketAddress());
+		try {
+			socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			// The peer sends its challenge; this server answers it along with its own.
+			ReplicatedSessionStore.readHeader(in);
+			byte[] peerNonce = new byte[NONCE_BYTES];
+			in.readFully(peerNonce);
+			byte[] nonce = this.nonce();
+			ReplicatedSessionStore.writeHeader(out);
+			out.write(nonce);
+			out.write(this.mac('S', peerNonce, nonce));
+			out.flush();
+			byte[] expected = this.mac('C', peerNonce, nonce);
+			byte[] peerMac = new byte[expected.length];
+			in.readFully(peerMac);
+			if (!MessageDigest.isEqual(peerMac, expected)) {
+				throw new IOException("Authentication failed");
+			}
+			peer = in.readUTF();
+
+			while (true) {
+				byte type = in.readByte();
+				if (type == PUT) {
+					SessionId id = SessionId.readFrom(in);
+					this.merge(id, Session.readFrom(in));
+				} else if (type == REMOVE) {
+					SessionId id = SessionId.readFrom(in);
+					this.mergeRemoval(id, in.readLong());
+				} else if (type != HEARTBEAT) {
+					throw new IOException("Corrupt record of type " + type);
+				}
+			}
+		} catch (EOFException eofe) {
+			// The peer disconnected.
+		} catch (IOException | GeneralSecurityException e) {
+			System.err.println("Stopped receiving sessions from " + peer + ": " + e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				// Done with it anyway.
+			}
+		}
+	}
+
+	private byte[] nonce() {
+		byte[] nonce = new byte[NONCE_BYTES];
+		this.random.nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * Returns the answer to a challenge: the HMAC of both nonces, and of which
+	 * side of the connection is answering, so that one side's answer can't be
+	 * replayed as the other's.
+	 */
+	private byte[] mac(char side, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(this.secret, "HmacSHA256"));
+		mac.update((byte) side);
+		mac.update(clientNonce);
+		return mac.doFinal(serverNonce);
+	}
+
+	private static void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	private static void readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a session peer");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported session replication version " + version);
+		}
+	}
+
+	/**
+	 * A server this one sends its changes to. Only used by the replicating
+	 * thread.
+	 */
+	private class Peer {
+		private final String name;
+		private final InetSocketAddress address;
+		private Socket socket;
+		/**
+		 * The stream to the peer, or null if it isn't connected.
+		 */
+		private DataOutputStream out;
+		/**
+		 * The epoch millisecond to try connecting again at.
+		 */
+		private long retryAt;
+		/**
+		 * The epoch millisecond something was last written to the peer at.
+		 */
+		private long wroteAt;
+		/**
+		 * Whether the last failure has been logged, so that a peer that's down is
+		 * only reported once.
+		 */
+		private boolean reported;
+		/**
+		 * Set by {@link #writeDeadlines} when it closed the connection.
+		 */
+		private volatile boolean writeTimedOut;
+		/**
+		 * The {@code System.nanoTime()} the last chunk was written to the socket at,
+		 * or the current writes started at.
+		 */
+		private volatile long progressAt;
+
+		private Peer(String name, InetSocketAddress address) {
+			this.name = name;
+			this.address = address;
+		}
+
+		/**
+		 * Connects to the peer, and answers its challenge.
+		 */
+		private void connect() throws IOException, GeneralSecurityException {
+			Socket socket = new Socket();
+			try {
+				socket.connect(this.address, CONNECT_TIMEOUT_MILLIS);
+				socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				OutputStream progress = new FilterOutputStream(socket.getOutputStream()) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						this.out.write(b, off, len);
+						Peer.this.progressAt = System.nanoTime();
+					}
+				};
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(progress, 64 * 1024));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+				byte[] nonce = ReplicatedSessionStore.this.nonce();
+				ReplicatedSessionStore.writeHeader(out);
+				out.write(nonce);
+				out.flush();
+				ReplicatedSessionStore.readHeader(in);
+				byte[] peerNonce = new byte[NONCE_BYTES];
+				in.readFully(peerNonce);
+				byte[] expected = ReplicatedSessionStore.this.mac('S', nonce, peerNonce);
+				byte[] peerMac = new byte[expected.length];
+				in.readFully(peerMac);
+				if (!MessageDigest.isEqual(peerMac, expected)) {
+					throw new IOException("Authentication failed");
+				}
+				out.write(ReplicatedSessionStore.this.mac('C', nonce, peerNonce));
+				out.writeUTF(ReplicatedSessionStore.this.self);
+
+				this.socket = socket;
+				this.out = out;
+				this.reported = false;
+				this.writeTimedOut = false;
+			} catch (IOException | GeneralSecurityException | RuntimeException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Watches the writes started now, closing the connection if they go
+		 * {@link #WRITE_TIMEOUT_MILLIS} without getting a chunk out. The returned
+		 * future must be cancelled once they've finished.
+		 */
+		private ScheduledFuture<?> writeDeadline() {
+			Socket socket = this.socket;
+			this.progressAt = System.nanoTime();
+			long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS);
+			return ReplicatedSessionStore.this.writeDeadlines.scheduleWithFixedDelay(() -> {
+				if (System.nanoTime() - this.progressAt >= timeoutNanos) {
+					this.writeTimedOut = true;
+					try {
+						socket.close();
+					} catch (IOException ioe) {
+						// The blocked write fails either way.
+					}
+				}
+			}, WRITE_CHECK_MILLIS, WRITE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Closes the connection after {@code cause}, and waits a while before
+		 * connecting again.
+		 */
+		private void disconnect(long now, Exception cause) {
+			if (this.writeTimedOut) {
+				cause = new SocketTimeoutException("No progress writing for " + WRITE_TIMEOUT_MILLIS + " ms");
+			}
+			if (!this.reported) {
+				System.err.println("Can't share sessions with " + this.name + ": " + cause);
+				this.reported = true;
+			}
+			if (this.socket != null) {
+				try {
+					this.socket.close();
+				} catch (IOException ioe) {
+					// Already failed; nothing more to do.
+				}
+			}
+			this.socket = null;
+			this.out = null;
+			this.retryAt = now + RETRY_MILLIS;
+		}
+	}
+}
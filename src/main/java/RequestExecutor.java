@@ -0,0 +1,275 @@
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The {@code Executor} handed to {@code HttpServer#setExecutor(Executor)}. Wraps
+ * one of several thread models (selected by {@link RequestExecutor.Mode}) and
+ * limits how many requests may be queued, running or waiting to be answered at
+ * once. When that limit is reached, further requests are run inline on the
+ * dispatcher thread with {@link RequestExecutor#isShedding()} set, so that the
+ * handler can answer with a cheap {@code 503} rather than waiting behind slow
+ * requests.
+ *
+ * <p>
+ * Handlers may answer asynchronously, after they've returned. A request's slot
+ * is freed when its handler returns, unless the handler takes it with
+ * {@link RequestExecutor#takePermit()} to free it once the request is answered.
+ *
+ * <p>
+ * Configured through the following system properties:
+ * <ul>
+ * <li>{@code si.executor} - {@code platform} (the default), {@code workstealing}
+ * or {@code virtual}.</li>
+ * <li>{@code si.executor.threads} - The number of threads used by the
+ * {@code platform} and {@code workstealing} modes. Defaults to 4x the number of
+ * available processors.</li>
+ * <li>{@code si.executor.maxPending} - The maximum number of requests that can
+ * be queued, running or waiting to be answered before requests are shed.
+ * Defaults to 1024.</li>
+ * </ul>
+ */
+class RequestExecutor implements Executor {
+	/**
+	 * The thread models a {@code RequestExecutor} can use.
+	 */
+	enum Mode {
+		/**
+		 * A fixed-size pool of platform threads sharing one queue.
+		 */
+		PLATFORM,
+		/**
+		 * A {@code ForkJoinPool} with per-thread work-stealing queues.
+		 */
+		WORKSTEALING,
+		/**
+		 * One virtual thread per request. Requires a JVM that supports virtual
+		 * threads; otherwise {@link Mode#PLATFORM} is used.
+		 */
+		VIRTUAL
+	}
+
+	/**
+	 * Set while a request is being run inline because the executor is saturated.
+	 */
+	private static final ThreadLocal<Boolean> SHEDDING = ThreadLocal.withInitial(() -> false);
+	/**
+	 * The slot of the request being run by the current thread, until its handler
+	 * takes it.
+	 */
+	private static final ThreadLocal<Permit> PERMIT = new ThreadLocal<>();
+	/**
+	 * Returned by {@link #takePermit()} when the request has no slot to free.
+	 */
+	private static final Runnable NO_PERMIT = () -> {
+	};
+
+	/**
+	 * A request's slot in {@link RequestExecutor#pending}, freed at most once.
+	 */
+	private final class Permit implements Runnable {
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		@Override
+		public void run() {
+			if (this.released.compareAndSet(false, true)) {
+				RequestExecutor.this.pending.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * The name of this executor, also used to name its threads.
+	 */
+	private final String name;
+	/**
+	 * The executor that actually runs the requests.
+	 */
+	private final ExecutorService delegate;
+	/**
+	 * The maximum number of requests that can be queued or running at once.
+	 */
+	private final int maxPending;
+	/**
+	 * The number of requests currently queued, running or waiting to be answered.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	/**
+	 * The number of requests that have been shed since startup.
+	 */
+	private final LongAdder shed = new LongAdder();
+
+	/**
+	 * Constructs a new {@code RequestExecutor}.
+	 *
+	 * @param name       - Used to name the threads of this executor.
+	 * @param mode       - The thread model to use. Cannot be null.
+	 * @param threads    - The number of threads to use. Ignored in
+	 *                   {@link Mode#VIRTUAL}. Must be positive.
+	 * @param maxPending - The maximum number of requests that can be queued,
+	 *                   running or waiting to be answered before requests are
+	 *                   shed. Must be positive.
+	 */
+	RequestExecutor(String name, Mode mode, int threads, int maxPending) {
+		if (threads <= 0 || maxPending <= 0) {
+			throw new IllegalArgumentException("threads and maxPending must be positive");
+		}
+		this.name = name;
+		this.maxPending = maxPending;
+		this.delegate = RequestExecutor.createDelegate(name, mode, threads);
+	}
+
+	/**
+	 * Constructs a new {@code RequestExecutor} based on the {@code si.executor*}
+	 * system properties.
+	 *
+	 * @param name - Used to name the threads of this executor.
+	 * @return The new {@code RequestExecutor}.
+	 */
+	static RequestExecutor fromSystemProperties(String name) {
+		Mode mode = Mode.valueOf(System.getProperty("si.executor", "platform").toUpperCase(Locale.ROOT));
+		int threads = Integer.getInteger("si.executor.threads", Runtime.getRuntime().availableProcessors() * 4);
+		int maxPending = Integer.getInteger("si.executor.maxPending", 1024);
+		return new RequestExecutor(name, mode, threads, maxPending);
+	}
+
+	/**
+	 * Returns whether the request being handled by the current thread should be
+	 * shed (i.e., answered with a {@code 503}) because the executor is saturated.
+	 *
+	 * @return Whether the current request should be shed.
+	 */
+	static boolean isShedding() {
+		return SHEDDING.get();
+	}
+
+	/**
+	 * Takes the slot of the request being handled by the current thread, so that
+	 * it stays taken after the handler returns, until the returned
+	 * {@code Runnable} is run (which should be once the request is answered). If
+	 * the handler throws, the slot is freed anyway.
+	 *
+	 * @return Frees the slot. Safe to run more than once, and a no-op if the
+	 *         request has no slot (e.g., because it's being shed).
+	 */
+	static Runnable takePermit() {
+		Permit permit = PERMIT.get();
+		if (permit == null) {
+			return NO_PERMIT;
+		}
+		PERMIT.remove();
+		return permit;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (this.pending.incrementAndGet() > this.maxPending) {
+			this.pending.decrementAndGet();
+			this.runShed(command);
+			return;
+		}
+		Permit permit = new Permit();
+		try {
+			this.delegate.execute(() -> {
+				PERMIT.set(permit);
+				boolean completed = false;
+				try {
+					command.run();
+					completed = true;
+				} finally {
+					if (!completed || PERMIT.get() == permit) {
+						permit.run();
+					}
+					PERMIT.remove();
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			permit.run();
+			this.runShed(command);
+		}
+	}
+
+	/**
+	 * Runs {@code command} on the calling thread with
+	 * {@link RequestExecutor#isShedding()} set.
+	 *
+	 * @param command - The request to shed.
+	 */
+	private void runShed(Runnable command) {
+		this.shed.increment();
+		SHEDDING.set(true);
+		try {
+			command.run();
+		} finally {
+			SHEDDING.set(false);
+		}
+	}
+
+	/**
+	 * Returns the name of this executor.
+	 *
+	 * @return The name of this executor.
+	 */
+	String name() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the number of requests currently queued, running or waiting to be
+	 * answered.
+	 *
+	 * @return The number of requests currently queued, running or waiting to be
+	 *         answered.
+	 */
+	int pending() {
+		return this.pending.get();
+	}
+
+	/**
+	 * Returns the number of requests that have been shed since startup.
+	 *
+	 * @return The number of requests that have been shed since startup.
+	 */
+	long shedCount() {
+		return this.shed.sum();
+	}
+
+	/**
+	 * Creates the {@code ExecutorService} used for {@code mode}.
+	 */
+	private static ExecutorService createDelegate(String name, Mode mode, int threads) {
+		switch (mode) {
+		case WORKSTEALING:
+			return new ForkJoinPool(threads, pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName(name + "-" + thread.getPoolIndex());
+				return thread;
+			}, null, true);
+		case VIRTUAL:
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException roe) {
+				System.err.println("Virtual threads are not supported by this JVM, using platform threads.");
+				return RequestExecutor.createPlatformPool(name, threads);
+			}
+		case PLATFORM:
+		default:
+			return RequestExecutor.createPlatformPool(name, threads);
+		}
+	}
+
+	/**
+	 * Creates a fixed pool of {@code threads} daemon platform threads.
+	 */
+	private static ExecutorService createPlatformPool(String name, int threads) {
+		AtomicInteger threadNumber = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				(Runnable r) -> {
+					Thread thread = new Thread(r, name + "-" + threadNumber.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+}
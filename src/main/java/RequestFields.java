@@ -0,0 +1,145 @@
+import java.net.*;
+import java.nio.charset.*;
+
+/**
+ * Looks up single values in {@code Cookie} headers and query strings by
+ * scanning them in place. Handlers only ever need one or two values (the
+ * session cookie, or {@code state} and {@code code}), so nothing is split,
+ * collected into a map or decoded beyond the value asked for: the only
+ * allocation is the returned {@code String}, plus a decoding buffer when the
+ * value is percent-encoded.
+ */
+class RequestFields {
+	private RequestFields() {
+	}
+
+	/**
+	 * Returns the value of the cookie {@code name} in a {@code Cookie} header
+	 * (e.g., {@code "a=1; session=ab12"}).
+	 *
+	 * @param header - The value of a {@code Cookie} header. May be null.
+	 * @param name   - The name of the cookie.
+	 * @return The value of the first cookie named {@code name}, with surrounding
+	 *         whitespace removed, or null if there's no such cookie.
+	 */
+	static String cookie(String header, String name) {
+		if (header == null) {
+			return null;
+		}
+		int length = header.length();
+		int start = 0;
+		while (start < length) {
+			int end = header.indexOf(';', start);
+			if (end < 0) {
+				end = length;
+			}
+			int nameStart = RequestFields.skipWhitespace(header, start, end);
+			int equals = header.indexOf('=', nameStart);
+			if (equals >= 0 && equals < end) {
+				int nameEnd = RequestFields.trimWhitespace(header, nameStart, equals);
+				if (nameEnd - nameStart == name.length() && header.regionMatches(nameStart, name, 0, name.length())) {
+					int valueStart = RequestFields.skipWhitespace(header, equals + 1, end);
+					return header.substring(valueStart, RequestFields.trimWhitespace(header, valueStart, end));
+				}
+			}
+			start = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the value of the parameter {@code name} in a raw (still
+	 * percent-encoded) query string.
+	 *
+	 * @param rawQuery - The query string, without the leading {@code ?}. May be
+	 *                 null.
+	 * @param name     - The (decoded) name of the parameter.
+	 * @return The decoded value of the first parameter named {@code name}, an
+	 *         empty string if it has no value, or null if there's no such
+	 *         parameter or its value is malformed.
+	 */
+	static String queryParameter(String rawQuery, String name) {
+		if (rawQuery == null) {
+			return null;
+		}
+		int length = rawQuery.length();
+		int start = 0;
+		while (start < length) {
+			int end = rawQuery.indexOf('&', start);
+			if (end < 0) {
+				end = length;
+			}
+			int equals = rawQuery.indexOf('=', start);
+			int nameEnd = equals < 0 || equals > end ? end : equals;
+			if (RequestFields.nameMatches(rawQuery, start, nameEnd, name)) {
+				return nameEnd == end ? "" : RequestFields.decode(rawQuery, nameEnd + 1, end);
+			}
+			start = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether the encoded name between {@code start} and {@code end}
+	 * decodes to {@code name}. Names are only decoded when they're encoded, which
+	 * they rarely are.
+	 */
+	private static boolean nameMatches(String query, int start, int end, String name) {
+		if (end - start == name.length() && query.regionMatches(start, name, 0, name.length())) {
+			return true;
+		}
+		return RequestFields.isEncoded(query, start, end) && name.equals(RequestFields.decode(query, start, end));
+	}
+
+	/**
+	 * Decodes the encoded text between {@code start} and {@code end}.
+	 *
+	 * @return The decoded text, or null if it's malformed.
+	 */
+	private static String decode(String query, int start, int end) {
+		if (!RequestFields.isEncoded(query, start, end)) {
+			return query.substring(start, end);
+		}
+		try {
+			return URLDecoder.decode(query.substring(start, end), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException iae) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether there's anything to decode between {@code start} and
+	 * {@code end}.
+	 */
+	private static boolean isEncoded(String query, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = query.charAt(i);
+			if (c == '%' || c == '+') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the index of the first non-whitespace character from {@code start},
+	 * or {@code end} if there's none.
+	 */
+	private static int skipWhitespace(String s, int start, int end) {
+		while (start < end && (s.charAt(start) == ' ' || s.charAt(start) == '\t')) {
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * Returns {@code end} moved back over any whitespace, but not before
+	 * {@code start}.
+	 */
+	private static int trimWhitespace(String s, int start, int end) {
+		while (end > start && (s.charAt(end - 1) == ' ' || s.charAt(end - 1) == '\t')) {
+			end--;
+		}
+		return end;
+	}
+}
@@ -0,0 +1,369 @@
+import java.util.*;
+import java.util.function.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Maps the method and path of requests to the handlers registered for them,
+ * so that one {@code HttpContext} can serve every route of a server.
+ *
+ * <p>
+ * Routes are kept in a trie with one level per path segment. A segment of a
+ * pattern is either literal text, a parameter written {@code {name}} that
+ * matches any non-empty segment, or, as the last segment, {@code *}, which
+ * matches the rest of the path. Matching a path takes one hash lookup per
+ * segment (literal segments are preferred over parameters, and parameters
+ * over {@code *}), however many routes there are. The results of routes
+ * without parameters, and the {@code 404} and {@code 405} results, are built
+ * when routes are added rather than on each match.
+ *
+ * <p>
+ * Routes must all be added before the first call to
+ * {@link #match(String, String)}; matching is thread-safe from then on.
+ */
+class Router {
+	/**
+	 * Handles requests matched to a route.
+	 */
+	@FunctionalInterface
+	interface Handler {
+		/**
+		 * Handles a request.
+		 *
+		 * @param t     - The {@code HttpExchange} of the request.
+		 * @param match - The match of the request, holding the values of the path
+		 *              parameters.
+		 */
+		void handle(HttpExchange t, Match match);
+	}
+
+	/**
+	 * The result of matching a request: either a route, with the values of its
+	 * parameters, or the reason no route matched.
+	 */
+	static class Match {
+		private final int status;
+		private final Route route;
+		private final String[] values;
+		private final String allow;
+
+		private Match(int status, Route route, String[] values, String allow) {
+			this.status = status;
+			this.route = route;
+			this.values = values;
+			this.allow = allow;
+		}
+
+		/**
+		 * Returns the outcome of the match.
+		 *
+		 * @return {@code 200} if a route matched, {@code 404} if no route has the
+		 *         path, or {@code 405} if routes have the path, but not for the
+		 *         method.
+		 */
+		int status() {
+			return this.status;
+		}
+
+		/**
+		 * Returns the metrics route the request is counted under.
+		 *
+		 * @return The metrics route of the matched route, or null if no route
+		 *         matched.
+		 */
+		MeteredExchange.Route metricsRoute() {
+			return this.route == null ? null : this.route.metrics;
+		}
+
+		/**
+		 * Returns the value of a path parameter.
+		 *
+		 * @param name - The name of the parameter, as written in the pattern, without
+		 *             braces. {@code *} for the rest of the path.
+		 * @return The value of the parameter, or null if the route has none called
+		 *         {@code name}.
+		 */
+		String parameter(String name) {
+			if (this.route != null) {
+				String[] names = this.route.parameters;
+				for (int i = 0; i < names.length; i++) {
+					if (names[i].equals(name)) {
+						return this.values[i];
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the value of the {@code Allow} header of a {@code 405} response.
+		 *
+		 * @return The methods the path has routes for, or null if the status isn't
+		 *         {@code 405}.
+		 */
+		String allow() {
+			return this.allow;
+		}
+
+		/**
+		 * Runs the handler of the matched route.
+		 *
+		 * @param t - The {@code HttpExchange} of the request.
+		 * @throws IllegalStateException If no route matched.
+		 */
+		void handle(HttpExchange t) {
+			if (this.route == null) {
+				throw new IllegalStateException("No route matched");
+			}
+			this.route.handler.handle(t, this);
+		}
+	}
+
+	/**
+	 * A handler and what's needed to call it.
+	 */
+	private static class Route {
+		private final Handler handler;
+		private final MeteredExchange.Route metrics;
+		/**
+		 * The names of the path parameters, in the order they appear in.
+		 */
+		private final String[] parameters;
+		/**
+		 * The match of every request, if the route has no parameters.
+		 */
+		private final Match match;
+
+		Route(Handler handler, MeteredExchange.Route metrics, String[] parameters) {
+			this.handler = handler;
+			this.metrics = metrics;
+			this.parameters = parameters;
+			this.match = parameters.length == 0 ? new Match(200, this, parameters, null) : null;
+		}
+	}
+
+	/**
+	 * A node of the trie, reached by the segments of a path up to it.
+	 */
+	private static class Node {
+		private final Map<String, Node> literals = new HashMap<>();
+		private Node parameter;
+		/**
+		 * The routes matching the rest of the path, by method.
+		 */
+		private Map<String, Route> rest;
+		/**
+		 * The routes ending at this node, by method.
+		 */
+		private final Map<String, Route> routes = new HashMap<>();
+		private Match notAllowed;
+		private Match restNotAllowed;
+	}
+
+	private static final Match NOT_FOUND = new Match(404, null, null, null);
+	private static final String[] NO_VALUES = new String[0];
+
+	private final Node root = new Node();
+	/**
+	 * The most parameters of any route.
+	 */
+	private int maxParameters;
+
+	/**
+	 * Adds a route.
+	 *
+	 * @param method  - The method of the requests the route matches. Routes for
+	 *                {@code GET} also match {@code HEAD}, unless the path has a
+	 *                route for {@code HEAD} of its own.
+	 * @param pattern - The path of the requests the route matches, starting with
+	 *                {@code /}, e.g. {@code /api/artists/{id}}.
+	 * @param handler - Handles the requests the route matches.
+	 * @throws IllegalArgumentException If {@code pattern} is malformed, or a route
+	 *                                  already has the same method and pattern.
+	 */
+	void add(String method, String pattern, Handler handler) {
+		this.addRoute(method, List.of(pattern), handler);
+	}
+
+	/**
+	 * Adds a route whose handler doesn't take path parameters.
+	 *
+	 * @param method  - The method of the requests the route matches.
+	 * @param pattern - The path of the requests the route matches.
+	 * @param handler - Handles the requests the route matches.
+	 * @see #add(String, String, Handler)
+	 */
+	void add(String method, String pattern, Consumer<HttpExchange> handler) {
+		this.add(method, List.of(pattern), handler);
+	}
+
+	/**
+	 * Adds a route whose handler doesn't take path parameters, and that matches
+	 * any one of several paths (e.g. {@code /} and {@code /index.html}). Requests
+	 * to all of them are counted under the metrics route of the first.
+	 *
+	 * @param method   - The method of the requests the route matches.
+	 * @param patterns - The paths of the requests the route matches.
+	 * @param handler  - Handles the requests the route matches.
+	 * @see #add(String, String, Handler)
+	 */
+	void add(String method, List<String> patterns, Consumer<HttpExchange> handler) {
+		this.addRoute(method, patterns, (HttpExchange t, Match match) -> handler.accept(t));
+	}
+
+	private void addRoute(String method, List<String> patterns, Handler handler) {
+		MeteredExchange.Route metrics = new MeteredExchange.Route(patterns.get(0));
+		for (String pattern : patterns) {
+			if (!pattern.startsWith("/")) {
+				throw new IllegalArgumentException("Patterns must start with /: " + pattern);
+			}
+			String[] segments = pattern.substring(1).split("/", -1);
+			List<String> parameters = new ArrayList<>();
+			Node node = this.root;
+			boolean rest = false;
+			for (int i = 0; i < segments.length; i++) {
+				String segment = segments[i];
+				if (segment.equals("*")) {
+					if (i != segments.length - 1) {
+						throw new IllegalArgumentException("* must be the last segment: " + pattern);
+					}
+					parameters.add("*");
+					rest = true;
+				} else if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+					parameters.add(segment.substring(1, segment.length() - 1));
+					if (node.parameter == null) {
+						node.parameter = new Node();
+					}
+					node = node.parameter;
+				} else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0) {
+					throw new IllegalArgumentException("Malformed parameter in " + pattern);
+				} else {
+					node = node.literals.computeIfAbsent(segment, (String s) -> new Node());
+				}
+			}
+
+			Route route = new Route(handler, metrics, parameters.toArray(new String[0]));
+			this.maxParameters = Math.max(this.maxParameters, parameters.size());
+			if (rest) {
+				if (node.rest == null) {
+					node.rest = new HashMap<>();
+				}
+				if (node.rest.putIfAbsent(method, route) != null) {
+					throw new IllegalArgumentException("Duplicate route: " + method + " " + pattern);
+				}
+				node.restNotAllowed = Router.notAllowed(node.rest);
+			} else {
+				if (node.routes.putIfAbsent(method, route) != null) {
+					throw new IllegalArgumentException("Duplicate route: " + method + " " + pattern);
+				}
+				node.notAllowed = Router.notAllowed(node.routes);
+			}
+		}
+	}
+
+	/**
+	 * Builds the {@code 405} result of a path with {@code routes}.
+	 */
+	private static Match notAllowed(Map<String, Route> routes) {
+		Set<String> methods = new TreeSet<>(routes.keySet());
+		if (methods.contains("GET")) {
+			methods.add("HEAD");
+		}
+		return new Match(405, null, null, String.join(", ", methods));
+	}
+
+	/**
+	 * Finds the route for a request.
+	 *
+	 * @param method - The method of the request.
+	 * @param path   - The (decoded) path of the request.
+	 * @return The match. Never null: requests that match no route get a
+	 *         {@code 404} or {@code 405} result.
+	 */
+	Match match(String method, String path) {
+		if (path == null || !path.startsWith("/")) {
+			return NOT_FOUND;
+		}
+		String[] values = this.maxParameters == 0 ? NO_VALUES : new String[this.maxParameters];
+		Match match = this.match(this.root, method, path, 1, values, 0);
+		return match == null ? NOT_FOUND : match;
+	}
+
+	/**
+	 * Matches the segments of {@code path} from {@code start} on against the
+	 * subtrie at {@code node}, backtracking to parameters and {@code *} when
+	 * literal segments lead nowhere, or only to routes for other methods. A
+	 * {@code 405} is only returned if no branch has a route for {@code method},
+	 * and then the one of the most specific branch.
+	 *
+	 * @param values - The values of the parameters matched so far.
+	 * @param count  - The number of parameters matched so far.
+	 * @return The match, or null if there's none under {@code node}.
+	 */
+	private Match match(Node node, String method, String path, int start, String[] values, int count) {
+		int end = path.indexOf('/', start);
+		boolean last = end < 0;
+		if (last) {
+			end = path.length();
+		}
+
+		Match notAllowed = null;
+		Node literal = node.literals.isEmpty() ? null : node.literals.get(path.substring(start, end));
+		if (literal != null) {
+			Match match = last ? this.matchRoutes(literal, method, values, count)
+					: this.match(literal, method, path, end + 1, values, count);
+			if (match != null && match.status() != 405) {
+				return match;
+			}
+			notAllowed = match;
+		}
+		if (node.parameter != null && end > start && count < values.length) {
+			values[count] = path.substring(start, end);
+			Match match = last ? this.matchRoutes(node.parameter, method, values, count + 1)
+					: this.match(node.parameter, method, path, end + 1, values, count + 1);
+			if (match != null && match.status() != 405) {
+				return match;
+			} else if (notAllowed == null) {
+				notAllowed = match;
+			}
+		}
+		if (node.rest != null && count < values.length) {
+			Route route = Router.route(node.rest, method);
+			if (route != null) {
+				values[count] = path.substring(start);
+				return new Match(200, route, Arrays.copyOf(values, count + 1), null);
+			} else if (notAllowed == null) {
+				notAllowed = node.restNotAllowed;
+			}
+		}
+		return notAllowed;
+	}
+
+	/**
+	 * Matches a request whose path ends at {@code node}.
+	 */
+	private Match matchRoutes(Node node, String method, String[] values, int count) {
+		if (node.routes.isEmpty()) {
+			return null;
+		}
+		Route route = Router.route(node.routes, method);
+		if (route == null) {
+			return node.notAllowed;
+		} else if (route.match != null) {
+			return route.match;
+		}
+		return new Match(200, route, Arrays.copyOf(values, count), null);
+	}
+
+	/**
+	 * Returns the route for {@code method} in {@code routes}, falling back from
+	 * {@code HEAD} to {@code GET}.
+	 */
+	private static Route route(Map<String, Route> routes, String method) {
+		Route route = routes.get(method);
+		if (route == null && method.equals("HEAD")) {
+			route = routes.get("GET");
+		}
+		return route;
+	}
+}
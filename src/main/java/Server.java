@@ -1,5 +1,6 @@
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
 import java.nio.charset.*;
 import java.security.*;
 import java.time.*;
@@ -7,9 +8,6 @@ import java.time.format.*;
 import java.time.temporal.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.*;
-
-import javax.net.ssl.*;
 
 import org.json.*;
 
@@ -27,44 +25,74 @@ import com.sun.net.httpserver.*;
  */
 public class Server {
 	/**
-	 * The port the server will listen to for insecure connections (80/http).
+	 * The port the server will listen to for insecure connections (80/http by
+	 * default, set by {@code si.server.httpPort}).
+	 */
+	private static final int INSECURE_PORT = Integer.getInteger("si.server.httpPort", 80);
+	/**
+	 * The port the server will listen to for secure connections (443/https by
+	 * default, set by {@code si.server.httpsPort}).
+	 */
+	private static final int SECURE_PORT = Integer.getInteger("si.server.httpsPort", 443);
+	/**
+	 * The number of connections that may wait to be accepted, set by
+	 * {@code si.server.backlog}. 0 uses the system's default.
+	 */
+	private static final int BACKLOG = Integer.getInteger("si.server.backlog", 0);
+	/**
+	 * The HTTP implementation both servers run on, set by
+	 * {@code si.server.engine}: {@code jdk} (the default) for the JDK's own
+	 * {@code com.sun.net.httpserver} server, or {@code nio} for
+	 * {@link NioHttpServer}.
+	 */
+	private static final String ENGINE = System.getProperty("si.server.engine", "jdk");
+	/**
+	 * The hostname (used for http -> https redirects and the OAuth callback), set
+	 * by {@code si.server.hostname}.
+	 */
+	private static final String HOSTNAME = System.getProperty("si.server.hostname", "localhost");
+	/**
+	 * The base URL the server is reached at over https.
+	 */
+	private static final String SECURE_URL = "https://" + HOSTNAME + (SECURE_PORT == 443 ? "" : ":" + SECURE_PORT);
+	/**
+	 * Initialized in the main method to be the {@code index.html} resource.
 	 */
-	private static final int INSECURE_PORT = 80;
+	private static StaticAsset index;
 	/**
-	 * The port the server will listen to for secure connections (443/https).
+	 * Initialized in the main method to be the {@code notfound.html} resource.
 	 */
-	private static final int SECURE_PORT = 443;
+	private static StaticAsset notFound;
 	/**
-	 * Initialized in the main method to be the contents of the {@code index.html}
-	 * resource.
+	 * Initialized in the main method to be the {@code si.png} resource.
 	 */
-	private static byte[] index;
+	private static StaticAsset siLogo;
 	/**
-	 * Initialized in the main method to be the contents of the
-	 * {@code notfound.html} resource.
+	 * Initialized in the main method to serve {@code si.static.dir}, or null if
+	 * that isn't set.
 	 */
-	private static byte[] notFound;
+	private static StaticDirectory staticDirectory;
 	/**
-	 * Initialized in the main method to be the contents of the {@code si.png}
-	 * resource.
+	 * Initialized in the main method to record snapshots of users' top tracks
+	 * into {@code si.snapshots.path}, or null if that isn't set.
 	 */
-	private static byte[] siLogo;
+	private static SnapshotPipeline snapshots;
 
 	/**
 	 * The ID of this Spotify application as registered through their developer
 	 * portal. Initialized in the main method to be the contents of the
 	 * {@code spotify_client_id} resource.
 	 */
-	private static String spotifyClientId;
+	static String spotifyClientId;
 	/**
 	 * The secret used by this app to access the Spotify API. Initialized in the
 	 * main method to be the contents of the {@code spotify_client_secret} resource.
 	 */
-	private static String spotifyClientSecret;
+	static String spotifyClientSecret;
 	/**
 	 * The callback URL for the Spotify OAuth flow.
 	 */
-	private static final String SPOTIFY_OAUTH_CALLBACK = "https://localhost/callback";
+	static final String SPOTIFY_OAUTH_CALLBACK = SECURE_URL + "/callback";
 	/**
 	 * The scopes that the application needs to have access to on the Spotify API.
 	 */
@@ -75,12 +103,27 @@ public class Server {
 	private static final String STATE_COOKIE_NAME = "spotify_oauth_state";
 
 	/**
-	 * The hostname (used for http -> https redirects).
+	 * The loopback port {@code /metrics} is served on, set by
+	 * {@code si.metrics.port}. Negative to not serve metrics.
+	 */
+	private static final int METRICS_PORT = Integer.getInteger("si.metrics.port", 9464);
+	/**
+	 * The body of responses to requests with a method their path has no route
+	 * for.
+	 */
+	private static final byte[] METHOD_NOT_ALLOWED = "Method not allowed.".getBytes(StandardCharsets.UTF_8);
+	/**
+	 * The furthest back the history page compares against, in days.
+	 */
+	private static final int MAX_HISTORY_DAYS = 3650;
+	/**
+	 * The route requests that match no path are counted under.
 	 */
-	private static final String HOSTNAME = "localhost";
+	private static final MeteredExchange.Route UNMATCHED_ROUTE = new MeteredExchange.Route("unmatched");
 	/**
 	 * An {@code InputStream} pointing at the serialized {@code KeyStore} that
-	 * should be used for HTTPS. Should be of type JKS.
+	 * should be used for HTTPS, unless {@code si.tls.keyStore} is set. Should be
+	 * of type JKS.
 	 */
 	private static InputStream keyStore;
 	/**
@@ -90,20 +133,14 @@ public class Server {
 	private static char[] keyStorePassword;
 
 	/**
-	 * The map of session IDs to sessions.
+	 * The store of session IDs to sessions. Initialized in the main method based on
+	 * the {@code si.sessions.*} system properties.
 	 */
-	private static final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private static SessionStore sessions;
 	/**
 	 * The secure RNG used to generate session IDs.
 	 */
 	private static final SecureRandom secureRandom = new SecureRandom();
-	/**
-	 * The length of session IDs, in bytes. (Note: this is not the length of the
-	 * actual session IDs, rather it's the number of bytes used to generate them.
-	 * These bytes are then converted to hex and used as the session ID. As such,
-	 * the actual length of the session ID String is 2x this number.)
-	 */
-	private static final int SESSION_ID_LENGTH_BYTES = 64;
 	/**
 	 * The name of the session cookie.
 	 */
@@ -111,13 +148,50 @@ public class Server {
 	/**
 	 * The length of a session, in seconds.
 	 */
-	private static final long SESSION_LENGTH_SECONDS = Duration.of(30L, ChronoUnit.DAYS).getSeconds();
+	static final long SESSION_LENGTH_SECONDS = Duration.of(30L, ChronoUnit.DAYS).getSeconds();
+	/**
+	 * The client used for all requests to the Spotify account service and web API.
+	 */
+	static final SpotifyClient spotifyClient = SpotifyClient.fromSystemProperties();
+	/**
+	 * Looks up the audio features of tracks, with a cache shared by all sessions.
+	 */
+	private static final AudioFeaturesService audioFeatures = AudioFeaturesService
+			.fromSystemProperties(spotifyClient);
+	/**
+	 * Fetches users' top tracks and artists from the Spotify web API.
+	 */
+	private static final InsightsPipeline insightsPipeline = InsightsPipeline.fromSystemProperties(spotifyClient,
+			audioFeatures);
+	/**
+	 * Refreshes the Spotify access tokens of sessions in the background, shortly
+	 * before they expire.
+	 */
+	private static final TokenRefreshScheduler tokenRefreshScheduler = TokenRefreshScheduler.fromSystemProperties();
+	/**
+	 * Tracks when each session (by ID) expires, and ends it once it has.
+	 */
+	private static final ExpiryWheel<SessionId> sessionExpiry = new ExpiryWheel<>(Duration.ofMinutes(1),
+			Server::endSession);
+	/**
+	 * Each session's insights, keyed by session ID. A user's top tracks and
+	 * artists change slowly, so they're kept fresh for
+	 * {@code si.cache.insights.ttlSeconds} (one hour by default) and then served
+	 * stale for up to {@code si.cache.insights.staleSeconds} (one day by default)
+	 * while being refreshed in the background.
+	 */
+	private static final RefreshingCache<SessionId, Insights> insightsCache = new RefreshingCache<>(
+			Integer.getInteger("si.cache.insights.maxEntries", 10000),
+			Duration.ofSeconds(Long.getLong("si.cache.insights.ttlSeconds", Duration.ofHours(1).getSeconds())),
+			Duration.ofSeconds(Long.getLong("si.cache.insights.staleSeconds", Duration.ofDays(1).getSeconds())));
 
 	public static void main(String[] args) {
 		try {
-			Server.index = Server.class.getResourceAsStream("index.html").readAllBytes();
-			Server.notFound = Server.class.getResourceAsStream("notfound.html").readAllBytes();
-			Server.siLogo = Server.class.getResourceAsStream("si.png").readAllBytes();
+			// The HTML pages are revalidated on every use (which is cheap thanks to their
+			// ETags), while the logo can be cached for a day.
+			Server.index = StaticAsset.load("index.html", "text/html", "no-cache");
+			Server.notFound = StaticAsset.load("notfound.html", "text/html", "no-cache");
+			Server.siLogo = StaticAsset.load("si.png", "image/png", "public, max-age=86400");
 			Server.spotifyClientId = new String(Server.class.getResourceAsStream("spotify_client_id").readAllBytes());
 			Server.spotifyClientSecret = new String(
 					Server.class.getResourceAsStream("spotify_client_secret").readAllBytes());
@@ -128,21 +202,84 @@ public class Server {
 			System.err.println("Could not read a required resource: " + ioe);
 			System.exit(1);
 		}
+		try {
+			Server.sessions = SessionStore.fromSystemProperties();
+		} catch (IOException ioe) {
+			System.err.println("Could not open the session store: " + ioe);
+			System.exit(1);
+		}
+		try {
+			Server.staticDirectory = StaticDirectory.fromSystemProperties();
+		} catch (IOException ioe) {
+			System.err.println("Could not open the static directory: " + ioe);
+			System.exit(1);
+		}
+		try {
+			Server.snapshots = SnapshotPipeline.fromSystemProperties(spotifyClient, sessions,
+					(Session session) -> insightsPipeline.fetch(session, UpstreamScheduler.Priority.BACKGROUND));
+		} catch (IOException ioe) {
+			System.err.println("Could not open the snapshot file: " + ioe);
+			System.exit(1);
+		}
+		// Follows the sessions other servers add and remove, if the store is shared.
+		// Set before picking up the sessions already stored, so none are missed in
+		// between.
+		sessions.setListener(new SessionStore.Listener() {
+			@Override
+			public void put(SessionId sessionId, Session session) {
+				Server.watchSession(sessionId, session);
+			}
+
+			@Override
+			public void removed(SessionId sessionId, Session session) {
+				sessionExpiry.remove(sessionId);
+				tokenRefreshScheduler.unschedule(session);
+				insightsCache.invalidate(sessionId);
+			}
+
+			@Override
+			public void ownershipChanged() {
+				sessions.forEach((SessionId sessionId, Session session) -> {
+					if (sessions.owns(sessionId)) {
+						tokenRefreshScheduler.schedule(sessionId, session);
+					} else {
+						tokenRefreshScheduler.unschedule(session);
+					}
+				});
+			}
+		});
+		// A session whose refresh token Spotify rejected can't get another access
+		// token, so it's ended rather than left to fail every request.
+		tokenRefreshScheduler.setRevocationListener((SessionId sessionId, Session session) -> {
+			if (sessions.get(sessionId) == session) {
+				Server.endSession(sessionId);
+			}
+		});
+		// Picks back up the sessions restored from a persistent store.
+		sessions.forEach(Server::watchSession);
 
 		// Creates and starts a HTTP server to deal with upgrading HTTP requests to
 		// HTTPS ones.
 		HttpServer insecureServer = null;
 		try {
-			insecureServer = HttpServer.create(new InetSocketAddress(INSECURE_PORT), 0);
-		} catch (IOException ioe) {
+			insecureServer = Server.createServer(INSECURE_PORT);
+		} catch (IOException | IllegalArgumentException ioe) {
 			System.err.println("Failed to create HTTP server: " + ioe);
 			System.exit(1);
 		}
-		insecureServer.createContext("/", (HttpExchange t) -> {
+		RequestExecutor insecureExecutor = RequestExecutor.fromSystemProperties("http-worker");
+		insecureServer.setExecutor(insecureExecutor);
+		MeteredExchange.Route insecureRoute = new MeteredExchange.Route("http");
+		insecureServer.createContext("/", (HttpExchange exchange) -> {
+			HttpExchange t = new MeteredExchange(exchange, insecureRoute, RequestExecutor.takePermit());
+			if (RequestExecutor.isShedding()) {
+				Server.shed(t);
+				return;
+			}
 			URI uri = t.getRequestURI();
 			URI httpsUri;
 			try {
-				httpsUri = new URI("https", uri.getUserInfo(), HOSTNAME, 443, uri.getPath(), uri.getQuery(),
+				httpsUri = new URI("https", uri.getUserInfo(), HOSTNAME, SECURE_PORT, uri.getPath(), uri.getQuery(),
 						uri.getFragment());
 			} catch (URISyntaxException urise) {
 				throw new IllegalArgumentException(urise);
@@ -153,35 +290,34 @@ public class Server {
 
 		// Creates and starts the HTTPS server that does the bulk of the work.
 		HttpsServer server = null;
+		RequestExecutor secureExecutor = null;
 		try {
-			server = HttpsServer.create(new InetSocketAddress(SECURE_PORT), 0);
-
-			SSLContext sslCtx = SSLContext.getInstance("TLS");
-			KeyStore ks = KeyStore.getInstance("JKS");
-			ks.load(keyStore, keyStorePassword);
-
-			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-			kmf.init(ks, keyStorePassword);
-
-			TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-			tmf.init(ks);
+			server = Server.createSecureServer(SECURE_PORT);
 
-			sslCtx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-
-			server.setHttpsConfigurator(new HttpsConfigurator(sslCtx));
+			server.setHttpsConfigurator(TlsConfig.fromSystemProperties(keyStore, keyStorePassword));
+			secureExecutor = RequestExecutor.fromSystemProperties("https-worker");
+			server.setExecutor(secureExecutor);
 		} catch (Exception e) {
 			System.err.println("Failed to create HTTPS server: " + e);
 			System.exit(1);
 		}
 
-		Server.addPath(server, "/", List.of("/", "/index.html"), (HttpExchange t) -> {
-			Server.send(t, "text/html", index);
+		Router router = new Router();
+		router.add("GET", List.of("/", "/index.html"), (HttpExchange t) -> {
+			index.send(t);
 		});
-		Server.addPath(server, "/si.png", (HttpExchange t) -> {
-			Server.send(t, "image/png", siLogo);
+		router.add("GET", "/si.png", (HttpExchange t) -> {
+			siLogo.send(t);
 		});
 
-		Server.addPath(server, "/login", (HttpExchange t) -> {
+		if (staticDirectory != null) {
+			router.add("GET", StaticDirectory.PREFIX + "*", (HttpExchange t) -> {
+				if (!staticDirectory.serve(t)) {
+					notFound.send(t, HttpURLConnection.HTTP_NOT_FOUND);
+				}
+			});
+		}
+		router.add("GET", "/login", (HttpExchange t) -> {
 			// Random hex value from 0x000000 -> 0xFFFFFF
 			int stateNumber = (int) (Math.random() * (0xFFFFFF + 1));
 			String state = String.format("%06x", stateNumber);
@@ -189,7 +325,7 @@ public class Server {
 			Server.addCookie(t, STATE_COOKIE_NAME, state);
 
 			// @formatter:off
-			Server.redirect(t, "https://accounts.spotify.com/authorize?"
+			Server.redirect(t, SpotifyClient.ACCOUNTS_URL.resolve("authorize") + "?"
 							+ Server.generateURLEscapedKVPs(
 									new KVP<>("response_type", "code"),
 									new KVP<>("show_dialog", "true"),
@@ -199,209 +335,588 @@ public class Server {
 									new KVP<>("state", state))); 
 			// @formatter:on
 		});
-		Server.addPath(server, "/callback", (HttpExchange t) -> {
-			String rawCookies = t.getRequestHeaders().getFirst("Cookie");
-			Map<String, String> cookies = rawCookies == null ? new HashMap<>() : parseCookieHeader(rawCookies);
+		router.add("GET", "/callback", (HttpExchange t) -> {
+			SessionId existingSessionId = SessionId.parse(Server.cookie(t, SESSION_COOKIE_NAME));
 
-			if (cookies.containsKey(SESSION_COOKIE_NAME) && sessions.containsKey(cookies.get(SESSION_COOKIE_NAME))) {
-				Server.redirect(t, "https://" + HOSTNAME + "/results");
+			if (existingSessionId != null && sessions.get(existingSessionId) != null) {
+				Server.redirect(t, SECURE_URL + "/results");
 			} else {
-				String cookieState = null, queryState = null;
-				cookieState = cookies.get(STATE_COOKIE_NAME);
-
-				Map<String, List<String>> queryPairs = parseQueryString(t.getRequestURI().getQuery());
-				if (queryPairs.containsKey("state")) {
-					queryState = queryPairs.get("state").get(0);
-				}
+				String cookieState = Server.cookie(t, STATE_COOKIE_NAME);
+				String query = t.getRequestURI().getRawQuery();
+				String queryState = RequestFields.queryParameter(query, "state");
 
 				if (cookieState == null || queryState == null || !cookieState.equals(queryState)) {
 					Server.send(t, "text/plain", "State mismatch.", HttpURLConnection.HTTP_FORBIDDEN);
 				} else {
-					if (queryPairs.containsKey("error")) {
-						Server.send(t, "text/plain", "Error: " + queryPairs.get("error"));
+					String authorizationError = RequestFields.queryParameter(query, "error");
+					String code = RequestFields.queryParameter(query, "code");
+					if (authorizationError != null) {
+						Server.send(t, "text/plain", "Error: " + authorizationError);
+					} else if (code == null) {
+						Server.send(t, "text/plain", "Missing code.", HttpURLConnection.HTTP_BAD_REQUEST);
 					} else {
-						try {
-							System.out.println("Trying to create a session from: " + new String(t.getRequestBody().readAllBytes()) + "\n" + "\t" + queryPairs.get("code").get(0));
-							Session current = new Session(queryPairs.get("code").get(0));
-							byte[] sessionIdBytes = new byte[SESSION_ID_LENGTH_BYTES];
-							secureRandom.nextBytes(sessionIdBytes);
-							StringBuilder idBuilder = new StringBuilder(SESSION_ID_LENGTH_BYTES * 2);
-							for (byte b : sessionIdBytes) {
-								idBuilder.append(String.format("%02x", b));
+						Session.create(code).whenComplete((Session current, Throwable error) -> {
+							if (error != null) {
+								System.err.println("Error creating the session: " + SpotifyClient.unwrap(error));
+								Server.send(t, "text/plain", "Server error.", HttpURLConnection.HTTP_INTERNAL_ERROR);
+								return;
 							}
-							String sessionId = idBuilder.toString();
-
+							SessionId sessionId = Server.newSessionId();
 							sessions.put(sessionId, current);
-							Server.addCookie(t, SESSION_COOKIE_NAME, sessionId, true, true,
+							Server.watchSession(sessionId, current);
+							Server.addCookie(t, SESSION_COOKIE_NAME, sessionId.toString(), true, true,
 									Instant.now().plusSeconds(SESSION_LENGTH_SECONDS).getEpochSecond());
-						} catch (IOException ioe) {
-							System.err.println("Error creating the session: " + ioe);
-							Server.send(t, "text/plain", "Server error.", HttpURLConnection.HTTP_INTERNAL_ERROR);
-						}
-						Server.redirect(t, "/results");
+							Server.redirect(t, "/results");
+						});
 					}
 				}
 			}
 		});
-		Server.addPath(server, "/results", (HttpExchange t) -> {
-			String rawCookies = t.getRequestHeaders().getFirst("Cookie");
-			Map<String, String> cookies = rawCookies == null ? new HashMap<>() : parseCookieHeader(rawCookies);
+		router.add("GET", "/results", (HttpExchange t) -> {
+			SessionId sessionId = SessionId.parse(Server.cookie(t, SESSION_COOKIE_NAME));
+			Session session = sessionId == null ? null : sessions.get(sessionId);
 
-			if (!cookies.containsKey(SESSION_COOKIE_NAME) || !sessions.containsKey(cookies.get(SESSION_COOKIE_NAME))) {
+			if (session == null) {
 				Server.redirect(t, "/login");
 			} else {
-				Session session = sessions.get(cookies.get(SESSION_COOKIE_NAME));
-				try {
-					session.softRefresh();
-					URL spotifyApi = new URL("https://api.spotify.com/v1/me/top/tracks");
-					String responseRaw = Server.makeGetRequest(spotifyApi, "application/json",
-							"Bearer " + session.currentToken);
-					JSONArray response = new JSONObject(responseRaw).getJSONArray("items");
-					List<Track> topTracks = Track.fromJsonArray(response.toString());
-					
-					StringBuilder output = new StringBuilder("Your top tracks are:\n");
-					for (Track tr : topTracks) {
-						output.append(tr.getArtists().get(0));
-						output.append(" - ");
-						output.append(tr.getTitle());
-						output.append("\n");
-					}
-					
-					Server.send(t, "text/plain", output.toString());
-				} catch (IOException ioe) {
-					System.err.println("Error accessing the Spotify api: " + ioe);
-					Server.send(t, "text/plain", "Server error.", HttpURLConnection.HTTP_INTERNAL_ERROR);
-				}
+				insightsCache.get(sessionId, () -> insightsPipeline.fetch(session))
+						.thenApply((Insights insights) -> {
+							if (insights.isPartial()) {
+								// Serves what could be fetched, but tries again on the next request.
+								insightsCache.invalidate(sessionId);
+							} else if (snapshots != null) {
+								snapshots.record(session, insights);
+							}
+							return Server.renderInsights(insights);
+						}).whenComplete((String output, Throwable error) -> {
+							if (error != null) {
+								Server.sendSpotifyError(t, SpotifyClient.unwrap(error));
+							} else {
+								Server.send(t, "text/plain", output);
+							}
+						});
 			}
 		});
-		Server.addPath(server, "/logout", (HttpExchange t) -> {
+		if (snapshots != null) {
+			Router.Handler history = (HttpExchange t, Router.Match match) -> {
+				SessionId sessionId = SessionId.parse(Server.cookie(t, SESSION_COOKIE_NAME));
+				Session session = sessionId == null ? null : sessions.get(sessionId);
+				if (session == null) {
+					Server.redirect(t, "/login");
+					return;
+				}
+				Insights.TimeRange range = Server.timeRange(match.parameter("range"));
+				if (range == null) {
+					notFound.send(t, HttpURLConnection.HTTP_NOT_FOUND);
+					return;
+				}
+				int days = Server.days(RequestFields.queryParameter(t.getRequestURI().getRawQuery(), "days"));
+				if (days < 1) {
+					Server.send(t, "text/plain", "days must be a number of days from 1 to " + MAX_HISTORY_DAYS + ".",
+							HttpURLConnection.HTTP_BAD_REQUEST);
+					return;
+				}
+				// Looked up apart from reading the store, so that Spotify's errors and the
+				// store's are told apart.
+				snapshots.userId(session, UpstreamScheduler.Priority.INTERACTIVE)
+						.whenComplete((String userId, Throwable lookupError) -> {
+							if (lookupError != null) {
+								Server.sendSpotifyError(t, SpotifyClient.unwrap(lookupError));
+								return;
+							}
+							snapshots.diff(userId, range, days)
+									.whenComplete((SnapshotStore.Diff diff, Throwable error) -> {
+										if (error != null) {
+											System.err.println(
+													"Error reading the snapshots: " + SpotifyClient.unwrap(error));
+											Server.send(t, "text/plain", "Server error.",
+													HttpURLConnection.HTTP_INTERNAL_ERROR);
+										} else {
+											Server.send(t, "text/plain", Server.renderHistory(range, diff));
+										}
+									});
+						});
+			};
+			router.add("GET", "/history", history);
+			router.add("GET", "/history/{range}", history);
+		}
+		router.add("GET", "/logout", (HttpExchange t) -> {
+			SessionId sessionId = SessionId.parse(Server.cookie(t, SESSION_COOKIE_NAME));
+			if (sessionId != null) {
+				sessionExpiry.remove(sessionId);
+				Server.endSession(sessionId);
+			}
 			Server.clearCookie(t, SESSION_COOKIE_NAME, true, true);
 			Server.redirect(t, "/");
 		});
+		server.createContext("/", (HttpExchange exchange) -> {
+			Server.dispatch(router, exchange);
+		});
+		Server.registerMetrics(insecureExecutor, secureExecutor);
+		Server.registerMetrics("http", insecureServer);
+		Server.registerMetrics("https", server);
+		if (METRICS_PORT >= 0) {
+			try {
+				Server.serveMetrics(METRICS_PORT);
+			} catch (IOException ioe) {
+				System.err.println("Failed to create metrics server: " + ioe);
+				System.exit(1);
+			}
+		}
+		tokenRefreshScheduler.start();
+		if (snapshots != null) {
+			snapshots.start();
+		}
 		ScheduledExecutorService sessionUpdateScheduler = Executors.newScheduledThreadPool(1);
-		long currentEpochTime = Instant.now().getEpochSecond();
 		sessionUpdateScheduler.scheduleAtFixedRate(() -> {
-			Set<String> keys = Server.sessions.keySet();
-			for (String sessionId : keys) {
-				if (Server.sessions.get(sessionId).sessionExpiresAt < currentEpochTime) {
-					Server.sessions.remove(sessionId);
-				}
-			}
+			sessionExpiry.advance(System.currentTimeMillis());
 		}, 0L, 1L, TimeUnit.MINUTES);
 		server.start();
 	}
 
 	/**
-	 * Serves as a wrapper around
-	 * {@link com.sun.net.httpserver.HttpServer#createContext(String, HttpHandler)
-	 * HttpServer#createContext(String, HttpHandler)} to deal with boilerplate
-	 * around path matching. Using
-	 * {@code HttpServer#createContext(String, HttpHandler)}, the path {@code /}
-	 * will match all requests (as all requests will contain at least one {@code /}
-	 * in their path). When using this method, boilerplate for checking that the
-	 * matched path is what's intended (e.g., the handler for {@code /about.html}
-	 * will only match {@code /about.html}, not {@code /about.html-foo-bar}) is
-	 * added. If {@code HttpServer#createContext(String, HttpHandler)} matches a
-	 * request, but the path doesn't exactly match {@code path}, a response with a
-	 * 404 status and a body of {@link Server#notFound} is sent.
-	 * 
-	 * @param server   - The server that the handler is being added to. Cannot be
-	 *                 null.
-	 * @param path     - The path that must be matched.
-	 * @param callback - The callback to run if {@code path} exactly matches the
-	 *                 request path.
-	 */
-	private static void addPath(HttpServer server, String path, Consumer<HttpExchange> callback) {
-		addPath(server, path, List.of(path), callback);
-	}
-
-	/**
-	 * Serves as a wrapper around
-	 * {@link com.sun.net.httpserver.HttpServer#createContext(String, HttpHandler)
-	 * HttpServer#createContext(String, HttpHandler)} to deal with boilerplate
-	 * around path matching. Using
-	 * {@code HttpServer#createContext(String, HttpHandler)}, the path {@code /}
-	 * will match all requests (as all requests will contain at least one {@code /}
-	 * in their path). When using this method, boilerplate for checking that the
-	 * matched path is what's intended (e.g., the handler for {@code /} will only
-	 * match paths like {@code /}, {@code /index.html}, etc.) is added. If
-	 * {@code HttpServer#createContext(String, HttpHandler)} matches a request, but
-	 * the path is not contained within {@code paths}, a response with a 404 status
-	 * and a body of {@link Server#notFound} is sent.
-	 * 
-	 * @param server   - The server that the handler is being added to. Cannot be
-	 *                 null.
-	 * @param basePath - The base path, passed directly to
-	 *                 {@code HttpServer#createContext(String, HttpHandler)}. Cannot
-	 *                 be null.
-	 * @param paths    - The list of valid paths. This should include
-	 *                 {@code basePath} in the vast majority of cases. Cannot be
-	 *                 null.
-	 * @param callback - The callback to run if the request path is within
-	 *                 {@code paths}.
-	 */
-	private static void addPath(HttpServer server, String basePath, List<String> paths,
-			Consumer<HttpExchange> callback) {
-		server.createContext(basePath, (HttpExchange t) -> {
-			if (paths.contains(t.getRequestURI().getPath())) {
-				callback.accept(t);
+	 * Registers the gauges and counters that are read from other components when
+	 * metrics are scraped: the number of sessions, and the state of the caches,
+	 * executors and upstream queues.
+	 * 
+	 * @param executors - The executors of the servers.
+	 */
+	private static void registerMetrics(RequestExecutor... executors) {
+		Metrics metrics = Metrics.SHARED;
+		metrics.gauge("si_sessions", "Sessions currently open.", "", () -> sessions.size());
+		if (sessions instanceof ReplicatedSessionStore) {
+			ReplicatedSessionStore replicated = (ReplicatedSessionStore) sessions;
+			metrics.gauge("si_session_peers", "Servers sessions are currently shared with.", "",
+					() -> replicated.connectedPeers());
+			metrics.gauge("si_session_changes_pending", "Session changes waiting to be sent to other servers.", "",
+					() -> replicated.pending());
+		}
+		if (snapshots != null) {
+			metrics.counter("si_snapshots_recorded_total", "Snapshots of users' top tracks recorded.", "",
+					() -> snapshots.recorded());
+			metrics.gauge("si_snapshot_file_bytes", "Size of the snapshot file.", "", () -> snapshots.size());
+		}
+		metrics.gauge("si_token_refreshes_scheduled", "Sessions whose token refresh is scheduled.", "",
+				() -> tokenRefreshScheduler.size());
+		metrics.gauge("si_upstream_queued", "Requests to Spotify waiting to be sent.", "",
+				() -> spotifyClient.queued());
+
+		String insights = Metrics.labels("cache", "insights");
+		metrics.counter("si_cache_hits_total", "Cache lookups that found a fresh value.", insights,
+				() -> insightsCache.hitCount());
+		metrics.counter("si_cache_stale_hits_total", "Cache lookups served a stale value while it's refreshed.",
+				insights, () -> insightsCache.staleHitCount());
+		metrics.counter("si_cache_misses_total", "Cache lookups that had to wait for a load.", insights,
+				() -> insightsCache.missCount());
+		metrics.gauge("si_cache_entries", "Entries in a cache.", insights, () -> insightsCache.size());
+		Server.registerMetrics("tracks", Track.CANONICAL);
+		Server.registerMetrics("artists", Artist.CANONICAL);
+		metrics.gauge("si_cache_entries", "Entries in a cache.", Metrics.labels("cache", "audio_features"),
+				() -> audioFeatures.size());
+		metrics.gauge("si_cache_entries", "Entries in a cache.", Metrics.labels("cache", "strings"),
+				() -> StringPool.SHARED.size());
+
+		for (RequestExecutor executor : executors) {
+			if (executor == null) {
+				continue;
+			}
+			String labels = Metrics.labels("executor", executor.name());
+			metrics.gauge("si_executor_pending", "Requests queued, running or waiting to be answered on an executor.",
+					labels, () -> executor.pending());
+			metrics.counter("si_executor_shed_total", "Requests turned away because an executor was saturated.",
+					labels, () -> executor.shedCount());
+		}
+	}
+
+	/**
+	 * Registers the metrics of a {@code TinyLfuCache}.
+	 * 
+	 * @param name  - The name of the cache, as used in the {@code cache} label.
+	 * @param cache - The cache.
+	 */
+	private static void registerMetrics(String name, TinyLfuCache<?, ?> cache) {
+		String labels = Metrics.labels("cache", name);
+		Metrics.SHARED.counter("si_cache_hits_total", "Cache lookups that found a fresh value.", labels,
+				() -> cache.hitCount());
+		Metrics.SHARED.counter("si_cache_misses_total", "Cache lookups that had to wait for a load.", labels,
+				() -> cache.missCount());
+		Metrics.SHARED.counter("si_cache_evictions_total", "Entries evicted from, or refused by, a cache.", labels,
+				() -> cache.evictionCount());
+		Metrics.SHARED.gauge("si_cache_entries", "Entries in a cache.", labels, () -> cache.size());
+	}
+
+	/**
+	 * Creates an http server on {@code port}, run by the engine chosen by
+	 * {@code si.server.engine}.
+	 * 
+	 * @param port - The port to listen on.
+	 * @return The server, bound but not started.
+	 * @throws IOException If the port can't be bound.
+	 */
+	private static HttpServer createServer(int port) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(port);
+		return Server.useNioEngine() ? new NioHttpServer(address, BACKLOG) : HttpServer.create(address, BACKLOG);
+	}
+
+	/**
+	 * Creates an https server on {@code port}, run by the engine chosen by
+	 * {@code si.server.engine}.
+	 * 
+	 * @param port - The port to listen on.
+	 * @return The server, bound but not started or configured.
+	 * @throws IOException If the port can't be bound.
+	 */
+	private static HttpsServer createSecureServer(int port) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(port);
+		return Server.useNioEngine() ? new NioHttpServer(address, BACKLOG) : HttpsServer.create(address, BACKLOG);
+	}
+
+	/**
+	 * Returns whether {@link Server#ENGINE} is {@code nio} rather than
+	 * {@code jdk}.
+	 */
+	private static boolean useNioEngine() {
+		switch (ENGINE) {
+		case "jdk":
+			return false;
+		case "nio":
+			return true;
+		default:
+			throw new IllegalArgumentException("Unknown server engine: " + ENGINE);
+		}
+	}
+
+	/**
+	 * Registers the connection and buffer gauges of a server run by
+	 * {@link NioHttpServer}. The JDK's server doesn't expose them.
+	 * 
+	 * @param name   - The name of the server, as used in the {@code server} label.
+	 * @param server - The server.
+	 */
+	private static void registerMetrics(String name, HttpServer server) {
+		if (!(server instanceof NioHttpServer)) {
+			return;
+		}
+		NioHttpServer nioServer = (NioHttpServer) server;
+		String labels = Metrics.labels("server", name);
+		Metrics.SHARED.gauge("si_http_connections", "Open connections.", labels, () -> nioServer.connections());
+		Metrics.SHARED.gauge("si_http_buffers", "Direct buffers allocated for connections, in use or pooled.",
+				labels, () -> nioServer.buffers());
+	}
+
+	/**
+	 * Serves {@link Metrics#SHARED} at {@code /metrics}, in the Prometheus text
+	 * format, on a separate server that only listens on the loopback interface.
+	 * 
+	 * @param port - The port to listen on.
+	 * @throws IOException If the server can't be bound.
+	 */
+	private static void serveMetrics(int port) throws IOException {
+		HttpServer metricsServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+				0);
+		metricsServer.createContext("/metrics", (HttpExchange t) -> {
+			if (!t.getRequestURI().getPath().equals("/metrics")) {
+				Server.send(t, "text/plain", "Not found.", HttpURLConnection.HTTP_NOT_FOUND);
 			} else {
-				Server.send(t, "text/html", notFound, HttpURLConnection.HTTP_NOT_FOUND);
+				Server.send(t, "text/plain; version=0.0.4; charset=utf-8",
+						Metrics.SHARED.scrape().getBytes(StandardCharsets.UTF_8), HttpURLConnection.HTTP_OK);
 			}
 		});
+		metricsServer.start();
 	}
 
 	/**
-	 * Parses a query string into a {@code Map}. The values of the Map are
-	 * {@code List}s of all of the values that appeared with a given key, e.g. the
-	 * query string {@code exampleKey=val1&exampleKey=val2} would become
-	 * {@code [exampleKey, [val1, val2]]}.
-	 * 
-	 * @param query - The query string to decode. Should not include the
-	 *              {@literal ?} character that starts the query string. If null, an
-	 *              empty list is returned.
-	 * @return A map where each key is mapped to the list of values that appear with
-	 *         that key. All {@code List<String>}s will contain at least one value
-	 *         (i.e., no empty lists will be returned).
-	 */
-	private static Map<String, List<String>> parseQueryString(String query) {
-		Map<String, List<String>> output = new HashMap<>();
-		if (query != null) {
-			String[] keyValuePairs = query.split("&");
-			for (String queryKvp : keyValuePairs) {
-				String[] keyAndValue = queryKvp.split("=", 2);
-				String key = URLDecoder.decode(keyAndValue[0], StandardCharsets.UTF_8);
-				String value = URLDecoder.decode(keyAndValue[1], StandardCharsets.UTF_8);
-				if (!output.containsKey(key)) {
-					output.put(key, new ArrayList<>());
-				}
-				output.get(key).add(value);
+	 * Generates a new session ID from {@link Server#secureRandom}.
+	 * 
+	 * @return The new session ID.
+	 */
+	private static SessionId newSessionId() {
+		return SessionId.generate(secureRandom);
+	}
+
+	/**
+	 * Schedules the expiry of a stored session, and the background refreshes of
+	 * its token if this server owns it.
+	 * 
+	 * @param sessionId - The ID of the session.
+	 * @param session   - The session.
+	 */
+	private static void watchSession(SessionId sessionId, Session session) {
+		sessionExpiry.schedule(sessionId, session.sessionExpiresAt() * 1000L);
+		if (sessions.owns(sessionId)) {
+			tokenRefreshScheduler.schedule(sessionId, session);
+		}
+	}
+
+	/**
+	 * Answers a request that failed on a call to the Spotify api: with a
+	 * {@code 503} and a {@code Retry-After} if Spotify is rate limiting us, or a
+	 * {@code 500} otherwise.
+	 * 
+	 * @param t     - The exchange to answer.
+	 * @param cause - The unwrapped error of the call.
+	 */
+	private static void sendSpotifyError(HttpExchange t, Throwable cause) {
+		if (cause instanceof SpotifyApiException && ((SpotifyApiException) cause).statusCode() == 429) {
+			// Asks the user to come back once it's over rather than reporting an error.
+			Duration retryAfter = ((SpotifyApiException) cause).retryAfter();
+			long retryAfterSeconds = retryAfter == null ? 1L : Math.max(1L, (retryAfter.toMillis() + 999L) / 1000L);
+			t.getResponseHeaders().set("Retry-After", Long.toString(retryAfterSeconds));
+			Server.send(t, "text/plain",
+					"Spotify is busy right now. Please try again in " + retryAfterSeconds + " seconds.",
+					HttpURLConnection.HTTP_UNAVAILABLE);
+		} else {
+			System.err.println("Error accessing the Spotify api: " + cause);
+			Server.send(t, "text/plain", "Server error.", HttpURLConnection.HTTP_INTERNAL_ERROR);
+		}
+	}
+
+	/**
+	 * Ends the session with the given ID, dropping everything held for it.
+	 * 
+	 * @param sessionId - The ID of the session to end.
+	 */
+	private static void endSession(SessionId sessionId) {
+		Session session = sessions.remove(sessionId);
+		if (session != null) {
+			tokenRefreshScheduler.unschedule(session);
+		}
+		insightsCache.invalidate(sessionId);
+	}
+
+	/**
+	 * Renders a user's insights as the plain-text body of the results page.
+	 * 
+	 * @param insights - The insights to render.
+	 * @return The body of the results page.
+	 */
+	private static String renderInsights(Insights insights) {
+		StringBuilder output = new StringBuilder();
+		for (Insights.TimeRange range : Insights.TimeRange.values()) {
+			output.append("Your top tracks of ").append(range.description).append(" are:\n");
+			for (Track tr : insights.topTracks(range)) {
+				output.append(tr.getPrimaryArtist());
+				output.append(" - ");
+				output.append(tr.getTitle());
+				output.append("\n");
+			}
+			AudioFeatures average = insights.averageAudioFeatures(range);
+			if (average != null) {
+				output.append("On average: ").append(average).append("\n");
+			}
+			output.append("\nYour top artists of ").append(range.description).append(" are:\n");
+			for (Artist artist : insights.topArtists(range)) {
+				output.append(artist.getName());
+				output.append("\n");
+			}
+			output.append("\n");
+		}
+		if (!insights.hasAudioFeatures()) {
+			output.append("The audio features of your tracks couldn't be loaded.\n");
+		}
+		if (insights.isPartial()) {
+			output.append("Some of your insights couldn't be loaded: ");
+			output.append(String.join(", ", insights.missing()));
+			output.append(".\n");
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Returns the time range whose {@code time_range} parameter is {@code name}.
+	 * 
+	 * @param name - The name of the time range, e.g. {@code short_term}. If null,
+	 *             the short term.
+	 * @return The time range, or null if there's none called {@code name}.
+	 */
+	private static Insights.TimeRange timeRange(String name) {
+		if (name == null) {
+			return Insights.TimeRange.SHORT_TERM;
+		}
+		for (Insights.TimeRange range : Insights.TimeRange.values()) {
+			if (range.parameter.equals(name)) {
+				return range;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses the {@code days} query parameter of the history page.
+	 * 
+	 * @param value - The value of the parameter, or null if it's absent.
+	 * @return The number of days, 7 if {@code value} is null, or -1 if it's
+	 *         malformed or out of range.
+	 */
+	private static int days(String value) {
+		if (value == null) {
+			return 7;
+		}
+		try {
+			int days = Integer.parseInt(value);
+			return days >= 1 && days <= MAX_HISTORY_DAYS ? days : -1;
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Renders the changes to a user's top tracks as the plain-text body of the
+	 * history page.
+	 * 
+	 * @param range - The time range of the top tracks.
+	 * @param diff  - The changes, or null if there aren't enough snapshots yet.
+	 * @return The body of the history page.
+	 */
+	private static String renderHistory(Insights.TimeRange range, SnapshotStore.Diff diff) {
+		StringBuilder output = new StringBuilder();
+		if (diff == null) {
+			output.append("There's no history of your top tracks of ").append(range.description)
+					.append(" yet. They're recorded once a day; check back tomorrow.\n");
+			return output.toString();
+		}
+		output.append("Changes to your top tracks of ").append(range.description).append(" from ")
+				.append(diff.from()).append(" to ").append(diff.to()).append(":\n");
+		if (diff.entered().isEmpty() && diff.left().isEmpty() && diff.moved().isEmpty()) {
+			output.append("None.\n");
+		}
+		if (!diff.entered().isEmpty()) {
+			output.append("\nNew:\n");
+			for (SnapshotStore.Change change : diff.entered()) {
+				output.append('#').append(change.after()).append(' ');
+				Server.appendTrack(output, change.track());
+			}
+		}
+		if (!diff.left().isEmpty()) {
+			output.append("\nGone:\n");
+			for (SnapshotStore.Change change : diff.left()) {
+				output.append("was #").append(change.before()).append(' ');
+				Server.appendTrack(output, change.track());
+			}
+		}
+		if (!diff.moved().isEmpty()) {
+			output.append("\nMoved:\n");
+			for (SnapshotStore.Change change : diff.moved()) {
+				output.append('#').append(change.after())
+						.append(change.after() < change.before() ? " (up from #" : " (down from #")
+						.append(change.before()).append(") ");
+				Server.appendTrack(output, change.track());
 			}
 		}
-		return output;
+		return output.toString();
+	}
+
+	private static void appendTrack(StringBuilder output, Track track) {
+		output.append(track.getPrimaryArtist()).append(" - ").append(track.getTitle()).append('\n');
 	}
 
 	/**
-	 * Parses the value of an HTTP {@code Cookie} header into a Map where the keys
-	 * are cookie names and the values are cookie values.
+	 * A function that decodes a JSON document from an {@code InputStream}.
 	 * 
-	 * @param cookieHeaderValue - The value of an HTTP {@code Cookie} header.
-	 * @return A Map where the keys are cookie names and the values are cookie
-	 *         values.
+	 * @param <T> - The type of the decoded value.
+	 */
+	@FunctionalInterface
+	interface JsonDecoder<T> {
+		T decode(InputStream in) throws IOException;
+	}
+
+	/**
+	 * Returns a {@code BodyHandler} that decodes response bodies with
+	 * {@code decoder}. The body is decoded straight from the bytes received, with
+	 * no intermediate {@code String}.
+	 * 
+	 * @param <T>     - The type of the decoded value.
+	 * @param decoder - Decodes the body.
+	 * @return A {@code BodyHandler} that decodes response bodies with
+	 *         {@code decoder}.
+	 */
+	static <T> HttpResponse.BodyHandler<T> jsonBody(JsonDecoder<T> decoder) {
+		return (HttpResponse.ResponseInfo info) -> HttpResponse.BodySubscribers
+				.mapping(HttpResponse.BodySubscribers.ofByteArray(), (byte[] body) -> {
+					try {
+						return decoder.decode(new ByteArrayInputStream(body));
+					} catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+				});
+	}
+
+	/**
+	 * Handles a request to the HTTPS server: finds its route in {@code router}
+	 * and runs its handler. Requests for paths without a route get a response
+	 * with a 404 status and a body of {@link Server#notFound}, and requests with a
+	 * method their path has no route for get a 405. If the server's
+	 * {@link RequestExecutor} is saturated, a 503 is sent instead of running the
+	 * handler. The latency and status code of every response are recorded in
+	 * {@link Metrics#SHARED}, under the route matched (or
+	 * {@link Server#UNMATCHED_ROUTE}).
+	 * 
+	 * @param router   - The routes of the server.
+	 * @param exchange - The {@code HttpExchange} of the request.
+	 */
+	private static void dispatch(Router router, HttpExchange exchange) {
+		Router.Match match = router.match(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+		MeteredExchange.Route route = match.metricsRoute();
+		// Keeps the request counted against the executor's limit until it's answered,
+		// even if its handler answers asynchronously.
+		HttpExchange t = new MeteredExchange(exchange, route == null ? UNMATCHED_ROUTE : route,
+				RequestExecutor.takePermit());
+		if (RequestExecutor.isShedding()) {
+			Server.shed(t);
+		} else if (match.status() == HttpURLConnection.HTTP_NOT_FOUND) {
+			notFound.send(t, HttpURLConnection.HTTP_NOT_FOUND);
+		} else if (match.status() == HttpURLConnection.HTTP_BAD_METHOD) {
+			t.getResponseHeaders().set("Allow", match.allow());
+			Server.send(t, "text/plain", METHOD_NOT_ALLOWED, HttpURLConnection.HTTP_BAD_METHOD);
+		} else {
+			match.handle(t);
+		}
+	}
+
+	/**
+	 * The number of seconds clients are asked to wait (through the
+	 * {@code Retry-After} header) before retrying a shed request.
+	 */
+	private static final int SHED_RETRY_AFTER_SECONDS = 1;
+
+	/**
+	 * Sends a {@code 503 Service Unavailable} response to a request that's being
+	 * shed because the server is overloaded. The connection is closed afterwards
+	 * so that the client's retry can be picked up by a less busy server.
+	 * 
+	 * @param t - The {@code HttpExchange} of the request being shed.
+	 */
+	private static void shed(HttpExchange t) {
+		t.getResponseHeaders().set("Retry-After", Integer.toString(SHED_RETRY_AFTER_SECONDS));
+		t.getResponseHeaders().set("Connection", "close");
+		Server.send(t, "text/plain", "Server busy.", HttpURLConnection.HTTP_UNAVAILABLE);
+	}
+
+	/**
+	 * Returns the value of the cookie {@code name} sent with the request of
+	 * {@code t}. Each {@code Cookie} header is scanned in place, without parsing
+	 * the cookies into a map.
+	 * 
+	 * @param t    - The {@code HttpExchange} of the request.
+	 * @param name - The name of the cookie.
+	 * @return The value of the cookie, or null if it wasn't sent.
 	 * 
 	 * @see <a href=
 	 *      "https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/Cookie">The
 	 *      MDN docs for the Cookie header.</a>
 	 */
-	private static Map<String, String> parseCookieHeader(String cookieHeaderValue) {
-		Map<String, String> output = new HashMap<>();
-		String[] cookies = cookieHeaderValue.split(";");
-		for (String rawCookie : cookies) {
-			String[] nameAndVal = rawCookie.split("=");
-			output.put(nameAndVal[0].trim(), nameAndVal[1].trim());
+	private static String cookie(HttpExchange t, String name) {
+		List<String> headers = t.getRequestHeaders().get("Cookie");
+		if (headers == null) {
+			return null;
 		}
-		return output;
-
+		for (int i = 0; i < headers.size(); i++) {
+			String value = RequestFields.cookie(headers.get(i), name);
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -417,7 +932,7 @@ public class Server {
 	 *         separator of {@literal &} between the pairs.
 	 */
 	@SafeVarargs
-	private static String generateURLEscapedKVPs(KVP<String, String>... kvps) {
+	static String generateURLEscapedKVPs(KVP<String, String>... kvps) {
 		if (kvps.length == 0) {
 			return "";
 		}
@@ -443,11 +958,11 @@ public class Server {
 	 * @param <K> - Type of the key
 	 * @param <V> - Type of the value.
 	 */
-	private static class KVP<K, V> {
+	static class KVP<K, V> {
 		private K key;
 		private V val;
 
-		private KVP(K key, V val) {
+		KVP(K key, V val) {
 			this.key = key;
 			this.val = val;
 		}
@@ -464,19 +979,27 @@ public class Server {
 	 * @param content     - The content of the response (i.e., the response body).
 	 * @param statusCode  - The HTTP status code used in the response.
 	 */
-	private static void send(HttpExchange t, String contentType, byte[] content, int statusCode) {
+	static void send(HttpExchange t, String contentType, byte[] content, int statusCode) {
 		try {
 			t.getResponseHeaders().set("Content-Type", contentType);
 			t.getResponseHeaders().set("Strict-Transport-Security", "max-age=31536000; includeSubDomains");
-			if (content.length != 0) {
+			if (t.getRequestMethod().equals("HEAD")) {
+				// GET routes also serve HEAD: the headers are those of a GET, including the
+				// length of the body, but the body itself is left out.
+				t.getResponseHeaders().set("Content-Length", Integer.toString(content.length));
+				t.sendResponseHeaders(statusCode, -1);
+			} else if (content.length != 0) {
 				t.sendResponseHeaders(statusCode, content.length);
 				t.getResponseBody().write(content);
 			} else {
 				t.sendResponseHeaders(statusCode, -1);
 			}
-			t.getResponseBody().close();
+			// Closes the exchange rather than the response body, since there's no body
+			// stream to close after a 204 or 304.
+			t.close();
 		} catch (IOException ioe) {
 			System.err.println("Error sending response: " + ioe);
+			t.close();
 		}
 	}
 
@@ -538,9 +1061,10 @@ public class Server {
 			// For whatever reason, HttpURLConnection uses the HTTP/1.0 name of "Moved
 			// Temporarily" rather than HTTP/1.1 name of "Found".
 			t.sendResponseHeaders(HttpURLConnection.HTTP_MOVED_TEMP, -1);
-			t.getResponseBody().close();
 		} catch (IOException ioe) {
 			System.err.println("Error redirecting: " + ioe);
+		} finally {
+			t.close();
 		}
 	}
 
@@ -569,7 +1093,7 @@ public class Server {
 	 *      "https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/Date"> HTTP
 	 *      Date on MDN</a>
 	 */
-	private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter
+	static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter
 			.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH).withZone(ZoneId.of("GMT"));
 
 	/**
@@ -629,202 +1153,4 @@ public class Server {
 		}
 		t.getResponseHeaders().add("Set-Cookie", valueBuilder.toString());
 	}
-
-	/**
-	 * Makes a HTTP POST request to the specified {@code url}. The body of the
-	 * response is returned. {@code Content-Type} is assumed to be
-	 * {@code application/x-www-form-urlencoded}, {@code Accept} is assumed to be
-	 * {@code application/json}.
-	 * 
-	 * @param url         - The URL to make the request to. Must be an HTTP URL
-	 *                    (i.e., have a protocol of http).
-	 * @param requestBody - The body of the post request.
-	 * @return The body of the server response.
-	 * @throws IOException If there are exceptions thrown by the IO methods involved
-	 *                     in making/writing to the connection.
-	 */
-	private static String makePostRequest(URL url, String requestBody) throws IOException {
-		return makePostRequest(url, requestBody, "application/x-www-form-urlencoded", "application/json", null);
-	}
-
-	/**
-	 * Makes a HTTP POST request to the specified {@code url}. The body of the
-	 * response is returned.
-	 * 
-	 * @param url           - The URL to make the request to. Must be an HTTP URL
-	 *                      (i.e., have a protocol of http).
-	 * @param requestBody   - The body of the post request.
-	 * @param contentType   - The value of the {@code Content-Type} header, sent
-	 *                      directly to the server.
-	 * @param accept        - The value of the {@code Accept} header, sent directly
-	 *                      to the server.
-	 * @param authorization - The value of the {@code Authorization} header, sent
-	 *                      directly to the server. If null, the header is omitted.
-	 * 
-	 * @return The body of the server response.
-	 * @throws IOException If there are exceptions thrown by the IO methods involved
-	 *                     in making/writing to the connection.
-	 */
-	private static String makePostRequest(URL url, String requestBody, String contentType, String accept,
-			String authorization) throws IOException {
-		HttpURLConnection accountServiceConnection = (HttpURLConnection) url.openConnection();
-		accountServiceConnection.setDoOutput(true);
-		accountServiceConnection.setRequestMethod("POST");
-		accountServiceConnection.setRequestProperty("Content-Type", contentType);
-		accountServiceConnection.setRequestProperty("Accept", accept);
-		if (authorization != null) {
-			accountServiceConnection.setRequestProperty("Authorization", authorization);
-		}
-		System.out.println(accountServiceConnection.getRequestMethod());
-		try (OutputStream req = accountServiceConnection.getOutputStream()) {
-			req.write(requestBody.getBytes());
-		}
-		Map<String, List<String>> temp = accountServiceConnection.getHeaderFields();
-		String response;
-		try (InputStream res = accountServiceConnection.getInputStream()) {
-			response = (new String(res.readAllBytes()));
-		}
-		return response;
-	}
-
-	/**
-	 * Makes a HTTP GET request to the specified {@code url}. The body of the
-	 * response is returned.
-	 * 
-	 * @param url           - The URL to make the request to. Must be an HTTP URL
-	 *                      (i.e., have a protocol of http).
-	 * @param requestBody   - The body of the post request.
-	 * @param contentType   - The value of the {@code Content-Type} header, sent
-	 *                      directly to the server.
-	 * @param accept        - The value of the {@code Accept} header, sent directly
-	 *                      to the server.
-	 * @param authorization - The value of the {@code Authorization} header, sent
-	 *                      directly to the server. If null, the header is omitted.
-	 * 
-	 * @return The body of the server response.
-	 * @throws IOException If there are exceptions thrown by the IO methods involved
-	 *                     in making/writing to the connection.
-	 */
-	private static String makeGetRequest(URL url, String accept, String authorization) throws IOException {
-		HttpURLConnection accountServiceConnection = (HttpURLConnection) url.openConnection();
-		accountServiceConnection.setDoOutput(true);
-		accountServiceConnection.setRequestMethod("GET");
-		accountServiceConnection.setRequestProperty("Accept", accept);
-		if (authorization != null) {
-			accountServiceConnection.setRequestProperty("Authorization", authorization);
-		}
-
-		String response;
-		try (InputStream res = accountServiceConnection.getInputStream()) {
-			response = (new String(res.readAllBytes()));
-		}
-		return response;
-	}
-
-	/**
-	 * Represents a session with this Server.
-	 * 
-	 * @author Mitchell Levy
-	 *
-	 */
-	private static class Session {
-		/**
-		 * The most recently acquired Spotify session token.
-		 */
-		private String currentToken;
-		/**
-		 * The Unix time stamp that {@code this.currentToken} will expire at.
-		 */
-		private long tokenExpiresAt;
-		/**
-		 * The Spotify refresh token.
-		 */
-		private String refreshToken;
-		/**
-		 * The Unix time stamp that this session expires at (i.e., when it should be
-		 * removed from {@link Server#sessions}.
-		 */
-		private long sessionExpiresAt;
-		/**
-		 * A URL object that points to the Spotify acount service where access tokens
-		 * can be generated/refreshed.
-		 */
-		private static final URL SPOTIFY_ACCOUNT_SERVICE;
-		// Initializer block for SPOTIFY_ACCOUNT_SERVICE because you need to be able to
-		// deal with MalformedURLException.
-		static {
-			try {
-				SPOTIFY_ACCOUNT_SERVICE = new URL("https://accounts.spotify.com/api/token");
-			} catch (MalformedURLException e) {
-				throw new Error(e);
-			}
-		}
-
-		/**
-		 * Constructs a new {@code Session} by connecting to the Spotify account service
-		 * with the given access code.
-		 * 
-		 * @param accessCode - The access code that should be used to generate a Spotify
-		 *                   access token.
-		 * @throws IOException Thrown if there's an IOException while connecting to the
-		 *                     Spotify account service.
-		 */
-		private Session(String accessCode) throws IOException {
-			//@formatter:off
-			String requestBody = Server.generateURLEscapedKVPs(
-					new KVP<>("grant_type", "authorization_code"),
-					new KVP<>("code", accessCode),
-					new KVP<>("redirect_uri", SPOTIFY_OAUTH_CALLBACK),
-					new KVP<>("client_id", spotifyClientId),
-					new KVP<>("client_secret", spotifyClientSecret));
-			System.out.println("req body: " + requestBody);
-			String responseRaw = Server.makePostRequest(SPOTIFY_ACCOUNT_SERVICE, requestBody);
-			System.out.println("res body: " + responseRaw);
-			//@formatter:on
-			JSONObject response = new JSONObject(responseRaw);
-			this.currentToken = response.getString("access_token");
-			// Subtracts one just to make sure there aren't any edge cases where a token
-			// might *just barely* expire while still being shown as valid here.
-			this.tokenExpiresAt = response.getInt("expires_in") + Instant.now().getEpochSecond() - 1;
-			this.refreshToken = response.getString("refresh_token");
-			this.sessionExpiresAt = Server.SESSION_LENGTH_SECONDS + Instant.now().getEpochSecond() - 1;
-		}
-
-		/**
-		 * Refreshes the Spotify access token held at {@code currentToken} *if* it has
-		 * expired.
-		 * 
-		 * @throws IOException If the token is expired and there's an IOException
-		 *                     connecting to the Spotify account service while
-		 *                     refreshing it.
-		 */
-		private void softRefresh() throws IOException {
-			if (Instant.now().getEpochSecond() >= tokenExpiresAt) {
-				this.refresh();
-			}
-		}
-
-		/**
-		 * Refreshes the Spotify access token held at {@code currentToken}.
-		 * 
-		 * @throws IOException If there is an error making the request to the Spotify
-		 *                     account service.
-		 */
-		private void refresh() throws IOException {
-			//@formatter:off
-			String responseRaw = Server.makePostRequest(SPOTIFY_ACCOUNT_SERVICE, 
-					Server.generateURLEscapedKVPs(
-							new KVP<>("grant_type", "refresh_token"),
-							new KVP<>("refresh_token", this.refreshToken),
-							new KVP<>("client_id", spotifyClientId)
-							));
-			//@formatter:on
-			JSONObject response = new JSONObject(responseRaw);
-			this.currentToken = response.getString("access_token");
-			// Subtracts one just to make sure there aren't any edge cases where a token
-			// might *just barely* expire while still being shown as valid here.
-			this.tokenExpiresAt = response.getInt("expires_in") + Instant.now().getEpochSecond() - 1;
-			this.refreshToken = response.getString("refresh_token");
-		}
-	}
 }
@@ -0,0 +1,259 @@
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.json.*;
+
+/**
+ * Represents a session with this Server.
+ *
+ * @author Mitchell Levy
+ *
+ */
+class Session {
+	/**
+	 * The most recently acquired Spotify session token.
+	 */
+	private volatile String currentToken;
+	/**
+	 * The Unix time stamp that {@code this.currentToken} will expire at.
+	 */
+	private volatile long tokenExpiresAt;
+	/**
+	 * The Spotify refresh token.
+	 */
+	private volatile String refreshToken;
+	/**
+	 * The Unix time stamp that this session expires at (i.e., when it should be
+	 * removed from {@link Server#sessions}).
+	 */
+	private final long sessionExpiresAt;
+	/**
+	 * A URI that points to the Spotify acount service where access tokens can be
+	 * generated/refreshed.
+	 */
+	private static final URI SPOTIFY_ACCOUNT_SERVICE = SpotifyClient.ACCOUNTS_URL.resolve("api/token");
+	/**
+	 * Run whenever the tokens of this session change, so that its
+	 * {@link SessionStore} can persist them. May be null.
+	 */
+	private volatile Runnable updateListener;
+	/**
+	 * The token refreshes in flight, so that a session is never refreshed by two
+	 * requests at once (e.g., a page load and the background refresh, or several
+	 * tabs).
+	 */
+	private static final SingleFlight<Session, Void> refreshes = new SingleFlight<>();
+	/**
+	 * The sessions being created, by access code. An access code can only be
+	 * redeemed once, so a repeated callback (e.g., a reload) has to share the
+	 * first one's result.
+	 */
+	private static final SingleFlight<String, Session> creations = new SingleFlight<>();
+
+	/**
+	 * Constructs a new {@code Session} from the response of the Spotify account
+	 * service to an {@code authorization_code} request.
+	 *
+	 * @param response - The parsed response of the Spotify account service.
+	 */
+	private Session(JSONObject response) {
+		this.update(response);
+		this.sessionExpiresAt = Server.SESSION_LENGTH_SECONDS + Instant.now().getEpochSecond() - 1;
+	}
+
+	/**
+	 * Constructs a {@code Session} from previously saved state.
+	 *
+	 * @param currentToken     - The most recently acquired Spotify session token.
+	 * @param tokenExpiresAt   - The Unix time stamp {@code currentToken} expires at.
+	 * @param refreshToken     - The Spotify refresh token.
+	 * @param sessionExpiresAt - The Unix time stamp the session expires at.
+	 */
+	Session(String currentToken, long tokenExpiresAt, String refreshToken, long sessionExpiresAt) {
+		this.currentToken = currentToken;
+		this.tokenExpiresAt = tokenExpiresAt;
+		this.refreshToken = refreshToken;
+		this.sessionExpiresAt = sessionExpiresAt;
+	}
+
+	/**
+	 * Writes the state of this session to {@code out}, in a form
+	 * {@link Session#readFrom(DataInput)} can read back.
+	 *
+	 * @param out - Where to write the session.
+	 * @throws IOException If writing to {@code out} fails.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(this.currentToken);
+		out.writeLong(this.tokenExpiresAt);
+		out.writeUTF(this.refreshToken);
+		out.writeLong(this.sessionExpiresAt);
+	}
+
+	/**
+	 * Reads a session written by {@link Session#writeTo(DataOutput)}.
+	 *
+	 * @param in - Where to read the session from.
+	 * @return The session that was read.
+	 * @throws IOException If reading from {@code in} fails.
+	 */
+	static Session readFrom(DataInput in) throws IOException {
+		String currentToken = in.readUTF();
+		long tokenExpiresAt = in.readLong();
+		String refreshToken = in.readUTF();
+		return new Session(currentToken, tokenExpiresAt, refreshToken, in.readLong());
+	}
+
+	/**
+	 * Replaces the tokens of this session with those of {@code other}, a copy of
+	 * this session received from another server. The update listener isn't run,
+	 * since the change didn't start here.
+	 *
+	 * @param other - The copy of this session to take the tokens from.
+	 */
+	void copyTokensFrom(Session other) {
+		// In the same order as update(JSONObject), for the same reason.
+		this.refreshToken = other.refreshToken;
+		this.currentToken = other.currentToken;
+		this.tokenExpiresAt = other.tokenExpiresAt;
+	}
+
+	/**
+	 * Sets the listener run whenever the tokens of this session change.
+	 *
+	 * @param updateListener - The listener, or null to remove it.
+	 */
+	void setUpdateListener(Runnable updateListener) {
+		this.updateListener = updateListener;
+	}
+
+	/**
+	 * Creates a new {@code Session} by connecting to the Spotify account service
+	 * with the given access code.
+	 *
+	 * @param accessCode - The access code that should be used to generate a Spotify
+	 *                   access token.
+	 * @return A future completed with the new {@code Session}, or completed
+	 *         exceptionally if there's an error connecting to the Spotify account
+	 *         service.
+	 */
+	static CompletableFuture<Session> create(String accessCode) {
+		//@formatter:off
+		String requestBody = Server.generateURLEscapedKVPs(
+				new Server.KVP<>("grant_type", "authorization_code"),
+				new Server.KVP<>("code", accessCode),
+				new Server.KVP<>("redirect_uri", Server.SPOTIFY_OAUTH_CALLBACK),
+				new Server.KVP<>("client_id", Server.spotifyClientId),
+				new Server.KVP<>("client_secret", Server.spotifyClientSecret));
+		//@formatter:on
+		return creations.execute(accessCode, () -> Server.spotifyClient.post(SPOTIFY_ACCOUNT_SERVICE, requestBody)
+				.thenApply((String responseRaw) -> new Session(new JSONObject(responseRaw))));
+	}
+
+	/**
+	 * Refreshes the Spotify access token held at {@code currentToken} *if* it has
+	 * expired.
+	 *
+	 * @return A future completed once the token is valid, or completed
+	 *         exceptionally if the token is expired and there's an error
+	 *         connecting to the Spotify account service while refreshing it.
+	 */
+	CompletableFuture<Void> softRefresh() {
+		if (Instant.now().getEpochSecond() >= this.tokenExpiresAt) {
+			return this.refresh();
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Refreshes the Spotify access token held at {@code currentToken}.
+	 *
+	 * @return A future completed once the token has been refreshed, or completed
+	 *         exceptionally if there is an error making the request to the Spotify
+	 *         account service.
+	 */
+	CompletableFuture<Void> refresh() {
+		return this.refresh(UpstreamScheduler.Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Refreshes the Spotify access token held at {@code currentToken}. If a refresh
+	 * of this session is already in flight, its result is shared instead.
+	 *
+	 * @param priority - The lane the request to the Spotify account service waits
+	 *                 in.
+	 * @return A future completed once the token has been refreshed, or completed
+	 *         exceptionally if there is an error making the request to the Spotify
+	 *         account service.
+	 */
+	CompletableFuture<Void> refresh(UpstreamScheduler.Priority priority) {
+		return refreshes.execute(this, () -> {
+			//@formatter:off
+			String requestBody = Server.generateURLEscapedKVPs(
+					new Server.KVP<>("grant_type", "refresh_token"),
+					new Server.KVP<>("refresh_token", this.refreshToken),
+					new Server.KVP<>("client_id", Server.spotifyClientId));
+			//@formatter:on
+			return Server.spotifyClient.post(SPOTIFY_ACCOUNT_SERVICE, requestBody,
+					"application/x-www-form-urlencoded", "application/json", null, priority)
+					.thenAccept((String responseRaw) -> this.update(new JSONObject(responseRaw)))
+					.whenComplete((Void result, Throwable error) -> Metrics.SHARED.counter("si_token_refreshes_total",
+							"Spotify access token refreshes, by priority and result.",
+							Metrics.labels("priority", priority.name().toLowerCase(Locale.ROOT), "result",
+									error == null ? "success" : "failure"))
+							.increment());
+		});
+	}
+
+	/**
+	 * Updates the tokens of this session from a response of the Spotify account
+	 * service.
+	 *
+	 * @param response - The parsed response of the Spotify account service.
+	 */
+	private void update(JSONObject response) {
+		// Spotify may omit the refresh token when refreshing, in which case the old
+		// one is still valid.
+		this.refreshToken = response.optString("refresh_token", this.refreshToken);
+		// The token is set before its expiry, so that a reader never pairs the new
+		// expiry with the old token. Subtracts one just to make sure there aren't any
+		// edge cases where a token might *just barely* expire while still being shown
+		// as valid here.
+		this.currentToken = response.getString("access_token");
+		this.tokenExpiresAt = response.getInt("expires_in") + Instant.now().getEpochSecond() - 1;
+		Runnable listener = this.updateListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Returns the most recently acquired Spotify session token.
+	 *
+	 * @return The most recently acquired Spotify session token.
+	 */
+	String currentToken() {
+		return this.currentToken;
+	}
+
+	/**
+	 * Returns the Unix time stamp that {@link Session#currentToken()} expires at.
+	 *
+	 * @return The Unix time stamp that the current token expires at.
+	 */
+	long tokenExpiresAt() {
+		return this.tokenExpiresAt;
+	}
+
+	/**
+	 * Returns the Unix time stamp that this session expires at.
+	 *
+	 * @return The Unix time stamp that this session expires at.
+	 */
+	long sessionExpiresAt() {
+		return this.sessionExpiresAt;
+	}
+}
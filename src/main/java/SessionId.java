@@ -0,0 +1,198 @@
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A session ID: 256 random bits, held as four {@code long}s rather than as the
+ * text sent in the session cookie. Keys of the session table are then 48 bytes
+ * each, instead of the hundreds taken by a long hex {@code String}.
+ *
+ * <p>
+ * IDs are sent to browsers as 43 characters of unpadded base64url (RFC 4648
+ * section 5), encoded and decoded with lookup tables. The hash code is
+ * computed once, from bits that are already uniformly random, and
+ * {@link #equals(Object)} takes the same time however many bits match, so
+ * that lookups don't reveal how close a guessed ID is to a real one.
+ */
+class SessionId {
+	/**
+	 * The number of random bytes in an ID.
+	 */
+	static final int LENGTH_BYTES = 32;
+	/**
+	 * The number of characters in the text of an ID.
+	 */
+	static final int LENGTH_CHARS = (LENGTH_BYTES * 8 + 5) / 6;
+	private static final char[] ENCODE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.toCharArray();
+	/**
+	 * The 6-bit value of each base64url character, or -1 for other characters.
+	 */
+	private static final byte[] DECODE = new byte[128];
+	static {
+		Arrays.fill(DECODE, (byte) -1);
+		for (int i = 0; i < ENCODE.length; i++) {
+			DECODE[ENCODE[i]] = (byte) i;
+		}
+	}
+
+	private final long bits0;
+	private final long bits1;
+	private final long bits2;
+	private final long bits3;
+	private final int hash;
+
+	private SessionId(long bits0, long bits1, long bits2, long bits3) {
+		this.bits0 = bits0;
+		this.bits1 = bits1;
+		this.bits2 = bits2;
+		this.bits3 = bits3;
+		this.hash = (int) (bits0 ^ (bits0 >>> 32));
+	}
+
+	/**
+	 * Generates a new session ID.
+	 *
+	 * @param random - The secure RNG to take the bits of the ID from.
+	 * @return The new session ID.
+	 */
+	static SessionId generate(SecureRandom random) {
+		byte[] bytes = new byte[LENGTH_BYTES];
+		random.nextBytes(bytes);
+		return new SessionId(SessionId.longAt(bytes, 0), SessionId.longAt(bytes, 8), SessionId.longAt(bytes, 16),
+				SessionId.longAt(bytes, 24));
+	}
+
+	/**
+	 * Parses the text of a session ID, as produced by {@link #toString()}.
+	 *
+	 * @param text - The text of the ID, e.g. from a cookie. May be null.
+	 * @return The session ID, or null if {@code text} isn't a well-formed one.
+	 */
+	static SessionId parse(String text) {
+		if (text == null || text.length() != LENGTH_CHARS) {
+			return null;
+		}
+		byte[] bytes = new byte[LENGTH_BYTES];
+		int b = 0;
+		int c = 0;
+		// Every 4 characters hold 3 bytes; the last 3 hold the remaining 2.
+		while (b + 3 <= LENGTH_BYTES) {
+			int group = (SessionId.decode(text.charAt(c)) << 18) | (SessionId.decode(text.charAt(c + 1)) << 12)
+					| (SessionId.decode(text.charAt(c + 2)) << 6) | SessionId.decode(text.charAt(c + 3));
+			if (group < 0) {
+				return null;
+			}
+			bytes[b] = (byte) (group >>> 16);
+			bytes[b + 1] = (byte) (group >>> 8);
+			bytes[b + 2] = (byte) group;
+			b += 3;
+			c += 4;
+		}
+		int group = (SessionId.decode(text.charAt(c)) << 12) | (SessionId.decode(text.charAt(c + 1)) << 6)
+				| SessionId.decode(text.charAt(c + 2));
+		// The unused low bits of the last character must be 0, so that each ID has
+		// exactly one spelling.
+		if (group < 0 || (group & 0x3) != 0) {
+			return null;
+		}
+		bytes[b] = (byte) (group >>> 10);
+		bytes[b + 1] = (byte) (group >>> 2);
+		return new SessionId(SessionId.longAt(bytes, 0), SessionId.longAt(bytes, 8), SessionId.longAt(bytes, 16),
+				SessionId.longAt(bytes, 24));
+	}
+
+	/**
+	 * Returns the 6-bit value of base64url character {@code c}, or -1 if it isn't
+	 * one. Shifted left and combined with others, -1 keeps the result negative.
+	 */
+	private static int decode(char c) {
+		return c < DECODE.length ? DECODE[c] : -1;
+	}
+
+	/**
+	 * Reads a session ID written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in - The input to read from.
+	 * @return The session ID.
+	 * @throws IOException If {@code in} can't be read.
+	 */
+	static SessionId readFrom(DataInput in) throws IOException {
+		return new SessionId(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+	}
+
+	/**
+	 * Writes the ID in binary, to be read back by {@link #readFrom(DataInput)}.
+	 *
+	 * @param out - The output to write to.
+	 * @throws IOException If {@code out} can't be written to.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeLong(this.bits0);
+		out.writeLong(this.bits1);
+		out.writeLong(this.bits2);
+		out.writeLong(this.bits3);
+	}
+
+	/**
+	 * Returns the ID as unpadded base64url, as sent in the session cookie.
+	 */
+	@Override
+	public String toString() {
+		char[] text = new char[LENGTH_CHARS];
+		int b = 0;
+		int c = 0;
+		while (b + 3 <= LENGTH_BYTES) {
+			int group = (this.byteAt(b) << 16) | (this.byteAt(b + 1) << 8) | this.byteAt(b + 2);
+			text[c] = ENCODE[group >>> 18];
+			text[c + 1] = ENCODE[(group >>> 12) & 0x3F];
+			text[c + 2] = ENCODE[(group >>> 6) & 0x3F];
+			text[c + 3] = ENCODE[group & 0x3F];
+			b += 3;
+			c += 4;
+		}
+		int group = (this.byteAt(b) << 8) | this.byteAt(b + 1);
+		text[c] = ENCODE[group >>> 10];
+		text[c + 1] = ENCODE[(group >>> 4) & 0x3F];
+		text[c + 2] = ENCODE[(group << 2) & 0x3F];
+		return new String(text);
+	}
+
+	/**
+	 * Returns byte {@code index} of the ID, from 0 to 255.
+	 */
+	private int byteAt(int index) {
+		long bits = index < 16 ? (index < 8 ? this.bits0 : this.bits1) : (index < 24 ? this.bits2 : this.bits3);
+		return (int) (bits >>> (56 - 8 * (index & 7))) & 0xFF;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SessionId)) {
+			return false;
+		}
+		SessionId other = (SessionId) obj;
+		// Every word is compared, without short-circuiting, so that timing doesn't
+		// depend on where the IDs differ.
+		long difference = (this.bits0 ^ other.bits0) | (this.bits1 ^ other.bits1) | (this.bits2 ^ other.bits2)
+				| (this.bits3 ^ other.bits3);
+		return difference == 0L;
+	}
+
+	/**
+	 * Reads 8 bytes of {@code bytes} from {@code offset} as a big-endian
+	 * {@code long}.
+	 */
+	private static long longAt(byte[] bytes, int offset) {
+		long value = 0L;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFFL);
+		}
+		return value;
+	}
+}
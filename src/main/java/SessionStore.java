@@ -0,0 +1,137 @@
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Stores the sessions of the server, keyed by session ID. Lookups must be fast
+ * enough to be done on every request; implementations that persist sessions do
+ * so off the request path.
+ *
+ * <p>
+ * The implementation is chosen by the {@code si.sessions.store} system
+ * property: {@code memory} (the default) keeps sessions only in memory, and
+ * {@code log} also persists them to the append-only log at
+ * {@code si.sessions.path} (see {@link LogSessionStore}), and
+ * {@code replicated} shares them with the other servers in
+ * {@code si.sessions.peers} (see {@link ReplicatedSessionStore}).
+ */
+interface SessionStore {
+	/**
+	 * Returns the session with the given ID.
+	 *
+	 * @param id - The ID of the session.
+	 * @return The session, or null if there isn't one with that ID.
+	 */
+	Session get(SessionId id);
+
+	/**
+	 * Stores {@code session} under {@code id}, replacing any session already
+	 * stored under it. Later changes to the session's tokens are stored too.
+	 *
+	 * @param id      - The ID of the session.
+	 * @param session - The session.
+	 */
+	void put(SessionId id, Session session);
+
+	/**
+	 * Removes the session with the given ID.
+	 *
+	 * @param id - The ID of the session.
+	 * @return The removed session, or null if there wasn't one with that ID.
+	 */
+	Session remove(SessionId id);
+
+	/**
+	 * Returns the number of sessions stored.
+	 *
+	 * @return The number of sessions stored.
+	 */
+	int size();
+
+	/**
+	 * Runs {@code action} with every stored session and its ID.
+	 *
+	 * @param action - The action to run.
+	 */
+	void forEach(BiConsumer<SessionId, Session> action);
+
+	/**
+	 * Returns whether this server owns the session with the given ID, i.e. is the
+	 * one that refreshes its token in the background. Stores that aren't shared
+	 * with other servers own every session.
+	 *
+	 * @param id - The ID of the session.
+	 * @return Whether this server owns the session.
+	 */
+	default boolean owns(SessionId id) {
+		return true;
+	}
+
+	/**
+	 * Sets the listener told about sessions put or removed by other servers
+	 * sharing this store. Stores that aren't shared never call it.
+	 *
+	 * @param listener - The listener.
+	 */
+	default void setListener(Listener listener) {
+	}
+
+	/**
+	 * Told about the changes other servers make to a shared {@link SessionStore}.
+	 * Called from the store's own threads.
+	 */
+	interface Listener {
+		/**
+		 * Called when another server stores a session, or changes the tokens of one.
+		 *
+		 * @param id      - The ID of the session.
+		 * @param session - The session, as now stored here.
+		 */
+		void put(SessionId id, Session session);
+
+		/**
+		 * Called when another server removes a session.
+		 *
+		 * @param id      - The ID of the session.
+		 * @param session - The removed session.
+		 */
+		void removed(SessionId id, Session session);
+
+		/**
+		 * Called when servers join or leave, after which
+		 * {@link SessionStore#owns(SessionId)} may give different answers.
+		 */
+		void ownershipChanged();
+	}
+
+	/**
+	 * Creates the {@code SessionStore} selected by the {@code si.sessions.*}
+	 * system properties.
+	 *
+	 * @return The new {@code SessionStore}.
+	 * @throws IOException If the selected store can't be opened.
+	 */
+	static SessionStore fromSystemProperties() throws IOException {
+		String type = System.getProperty("si.sessions.store", "memory");
+		switch (type) {
+		case "memory":
+			return new InMemorySessionStore();
+		case "log":
+			return new LogSessionStore(Paths.get(System.getProperty("si.sessions.path", "sessions.log")),
+					Duration.ofMillis(Long.getLong("si.sessions.flushMillis", 100L)));
+		case "replicated":
+			List<String> peers = new ArrayList<>();
+			for (String peer : System.getProperty("si.sessions.peers", "").split(",")) {
+				if (!peer.trim().isEmpty()) {
+					peers.add(peer.trim());
+				}
+			}
+			return new ReplicatedSessionStore(System.getProperty("si.sessions.node", "localhost:7070"), peers,
+					Duration.ofMillis(Long.getLong("si.sessions.flushMillis", 100L)));
+		default:
+			throw new IllegalArgumentException("Unknown session store: " + type);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Coalesces concurrent calls with the same key into one: while a call for a key
+ * is in flight, further calls for that key don't start their own, and share
+ * its result instead. Once the call completes, the next call for the key
+ * starts a new one, so results are never reused after the fact (use a cache
+ * for that).
+ *
+ * @param <K> - The type of the keys.
+ * @param <V> - The type of the results.
+ */
+class SingleFlight<K, V> {
+	/**
+	 * The calls in flight, by key.
+	 */
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	/**
+	 * The number of calls that joined one already in flight.
+	 */
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * Starts {@code call}, unless a call for {@code key} is already in flight, in
+	 * which case that call's result is shared.
+	 *
+	 * @param key  - The key of the call. Cannot be null.
+	 * @param call - Starts the call. Cannot be null.
+	 * @return A future completed with the result of the call for {@code key}.
+	 */
+	CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+		CompletableFuture<V> shared = new CompletableFuture<>();
+		CompletableFuture<V> existing = this.inFlight.putIfAbsent(key, shared);
+		if (existing != null) {
+			this.coalesced.increment();
+			// Callers get their own copy so that none of them can complete (or cancel)
+			// the shared future for the others.
+			return existing.copy();
+		}
+		CompletableFuture<V> started;
+		try {
+			started = call.get();
+		} catch (RuntimeException re) {
+			started = new CompletableFuture<>();
+			started.completeExceptionally(re);
+		}
+		started.whenComplete((V value, Throwable error) -> {
+			// Removed before completing, so that anyone reacting to the result starts a
+			// new call rather than joining this one.
+			this.inFlight.remove(key, shared);
+			if (error != null) {
+				shared.completeExceptionally(error);
+			} else {
+				shared.complete(value);
+			}
+		});
+		return shared.copy();
+	}
+
+	/**
+	 * Returns the number of calls in flight.
+	 *
+	 * @return The number of calls in flight.
+	 */
+	int size() {
+		return this.inFlight.size();
+	}
+
+	/**
+	 * Returns the number of calls that joined one already in flight rather than
+	 * starting their own.
+	 *
+	 * @return The number of coalesced calls.
+	 */
+	long coalescedCount() {
+		return this.coalesced.sum();
+	}
+}
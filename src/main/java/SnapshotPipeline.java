@@ -0,0 +1,286 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Records a daily snapshot of every user's top tracks of each time range into
+ * a {@link SnapshotStore}, and computes the changes to them from there.
+ *
+ * <p>
+ * Session IDs change every time a user logs in, so snapshots are keyed by the
+ * user's Spotify id instead, looked up once per session. A user's top tracks
+ * are recorded whenever their insights are fetched for the results page, and
+ * by a pass over all sessions every {@code interval} (skipping users already
+ * recorded that day, and sessions another server owns), which fetches
+ * insights in the background lane of the Spotify client, with at most
+ * {@code maxConcurrent} sessions in flight at once. The pass bypasses the
+ * results page's cache, so it doesn't evict the insights of active users.
+ * Days are UTC days.
+ *
+ * <p>
+ * The store is only read and written from a single background thread, so
+ * request threads never wait on the disk.
+ *
+ * <p>
+ * Configured through the following system properties:
+ * <ul>
+ * <li>{@code si.snapshots.path} - The snapshot file. Snapshots are only
+ * recorded if it's set.</li>
+ * <li>{@code si.snapshots.intervalMinutes} - Defaults to 1440.</li>
+ * <li>{@code si.snapshots.maxConcurrent} - Defaults to 4.</li>
+ * </ul>
+ */
+class SnapshotPipeline {
+	/**
+	 * The Spotify web API endpoint of the current user's profile.
+	 */
+	private static final URI SPOTIFY_ME = SpotifyClient.API_URL.resolve("v1/me");
+
+	private final SnapshotStore store;
+	private final SpotifyClient client;
+	private final SessionStore sessions;
+	/**
+	 * Fetches the insights of a session in the background lane.
+	 */
+	private final Function<Session, CompletableFuture<Insights>> insights;
+	private final Duration interval;
+	private final AsyncLimiter limiter;
+	/**
+	 * The Spotify id of the user of each session. Sessions are compared by
+	 * identity, and forgotten along with the session.
+	 */
+	private final Map<Session, CompletableFuture<String>> userIds = Collections
+			.synchronizedMap(new WeakHashMap<>());
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "snapshots");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicLong recorded = new AtomicLong();
+
+	/**
+	 * Constructs a new {@code SnapshotPipeline}.
+	 *
+	 * @param store         - Where the snapshots are kept.
+	 * @param client        - The client used to look up users' Spotify ids.
+	 * @param sessions      - The sessions snapshotted by each pass.
+	 * @param insights      - Fetches the insights of a session in the background
+	 *                      lane.
+	 * @param interval      - How often all sessions are snapshotted.
+	 * @param maxConcurrent - The number of sessions a pass may be fetching at
+	 *                      once.
+	 */
+	SnapshotPipeline(SnapshotStore store, SpotifyClient client, SessionStore sessions,
+			Function<Session, CompletableFuture<Insights>> insights, Duration interval, int maxConcurrent) {
+		this.store = store;
+		this.client = client;
+		this.sessions = sessions;
+		this.insights = insights;
+		this.interval = interval;
+		this.limiter = new AsyncLimiter(maxConcurrent);
+	}
+
+	/**
+	 * Creates a {@code SnapshotPipeline} configured by the {@code si.snapshots.*}
+	 * system properties.
+	 *
+	 * @param client   - The client used to look up users' Spotify ids.
+	 * @param sessions - The sessions snapshotted by each pass.
+	 * @param insights - Fetches the insights of a session in the background lane.
+	 * @return The new {@code SnapshotPipeline}, or null if {@code si.snapshots.path}
+	 *         isn't set.
+	 * @throws IOException If the snapshot file can't be read or created.
+	 */
+	static SnapshotPipeline fromSystemProperties(SpotifyClient client, SessionStore sessions,
+			Function<Session, CompletableFuture<Insights>> insights) throws IOException {
+		String path = System.getProperty("si.snapshots.path");
+		if (path == null) {
+			return null;
+		}
+		return new SnapshotPipeline(new SnapshotStore(Paths.get(path)), client, sessions, insights,
+				Duration.ofMinutes(Long.getLong("si.snapshots.intervalMinutes", Duration.ofDays(1).toMinutes())),
+				Integer.getInteger("si.snapshots.maxConcurrent", 4));
+	}
+
+	/**
+	 * Starts snapshotting all sessions every {@code interval}, starting a minute
+	 * from now.
+	 */
+	void start() {
+		long intervalMinutes = Math.max(1L, this.interval.toMinutes());
+		this.executor.scheduleWithFixedDelay(this::snapshotAll, 1L, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Records the top tracks of a session's user, unless they've already been
+	 * recorded today. Partial insights aren't recorded, since the tracks missing
+	 * from them would look like they'd left.
+	 *
+	 * @param session  - The session.
+	 * @param insights - The session's insights.
+	 */
+	void record(Session session, Insights insights) {
+		if (insights.isPartial()) {
+			return;
+		}
+		this.userId(session, UpstreamScheduler.Priority.BACKGROUND)
+				.thenAcceptAsync((String userId) -> this.write(userId, insights), this.executor)
+				.exceptionally((Throwable error) -> {
+					System.err.println("Could not record a snapshot of top tracks: " + SpotifyClient.unwrap(error));
+					return null;
+				});
+	}
+
+	/**
+	 * Looks up the Spotify id of a session's user, once per session (unless the
+	 * lookup fails).
+	 *
+	 * @param session  - The session.
+	 * @param priority - The lane the lookup waits in, if it isn't already in
+	 *                 flight.
+	 * @return A future completed with the user's Spotify id, or completed
+	 *         exceptionally if it couldn't be looked up.
+	 */
+	CompletableFuture<String> userId(Session session, UpstreamScheduler.Priority priority) {
+		CompletableFuture<String> userId;
+		synchronized (this.userIds) {
+			userId = this.userIds.get(session);
+			if (userId == null) {
+				userId = session.softRefresh()
+						.thenCompose((Void ignored) -> this.client.get(SPOTIFY_ME, "application/json",
+								"Bearer " + session.currentToken(), Server.jsonBody(SnapshotPipeline::readUserId),
+								priority));
+				this.userIds.put(session, userId);
+				CompletableFuture<String> lookup = userId;
+				lookup.exceptionally((Throwable error) -> {
+					this.userIds.remove(session, lookup);
+					return null;
+				});
+			}
+		}
+		return userId;
+	}
+
+	/**
+	 * Computes the changes to the top tracks of a user.
+	 *
+	 * @param userId - The user's Spotify id.
+	 * @param range  - The time range of the top tracks.
+	 * @param days   - How many days back to compare against, at least 1.
+	 * @return A future completed with the changes, or with null if the user
+	 *         doesn't have two snapshots of {@code range} yet. Completed
+	 *         exceptionally if the snapshot file can't be read.
+	 * @see SnapshotStore#diff(String, Insights.TimeRange, int)
+	 */
+	CompletableFuture<SnapshotStore.Diff> diff(String userId, Insights.TimeRange range, int days) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return this.store.diff(userId, range, days);
+			} catch (IOException ioe) {
+				throw new CompletionException(ioe);
+			}
+		}, this.executor);
+	}
+
+	/**
+	 * Returns the number of snapshots recorded since the server started.
+	 *
+	 * @return The number of snapshots recorded.
+	 */
+	long recorded() {
+		return this.recorded.get();
+	}
+
+	/**
+	 * Returns the size of the snapshot file.
+	 *
+	 * @return The size of the snapshot file, in bytes.
+	 */
+	long size() {
+		return this.store.size();
+	}
+
+	/**
+	 * Snapshots every session this server owns whose user hasn't been recorded
+	 * today.
+	 */
+	private void snapshotAll() {
+		LocalDate today = LocalDate.now(ZoneOffset.UTC);
+		List<CompletableFuture<Void>> snapshots = new ArrayList<>();
+		this.sessions.forEach((SessionId sessionId, Session session) -> {
+			if (!this.sessions.owns(sessionId)) {
+				return;
+			}
+			snapshots.add(this.limiter.submit(() -> this.userId(session, UpstreamScheduler.Priority.BACKGROUND)
+					.thenComposeAsync((String userId) -> {
+						if (this.store.hasSnapshots(userId, today)) {
+							return CompletableFuture.completedFuture(null);
+						}
+						return this.insights.apply(session).thenAcceptAsync((Insights insights) -> {
+							if (!insights.isPartial()) {
+								this.write(userId, insights);
+							}
+						}, this.executor);
+					}, this.executor)));
+		});
+		AtomicInteger failed = new AtomicInteger();
+		AtomicReference<Throwable> firstError = new AtomicReference<>();
+		for (CompletableFuture<Void> snapshot : snapshots) {
+			snapshot.exceptionally((Throwable error) -> {
+				failed.incrementAndGet();
+				firstError.compareAndSet(null, SpotifyClient.unwrap(error));
+				return null;
+			});
+		}
+		CompletableFuture.allOf(snapshots.toArray(new CompletableFuture<?>[0])).whenComplete((Void ignored,
+				Throwable error) -> {
+			if (failed.get() > 0) {
+				System.err.println("Could not record snapshots of the top tracks of " + failed.get() + " of "
+						+ snapshots.size() + " sessions, e.g.: " + firstError.get());
+			}
+		});
+	}
+
+	/**
+	 * Writes the top tracks of each time range to the store. Only called from
+	 * {@link #executor}.
+	 */
+	private void write(String userId, Insights insights) {
+		LocalDate today = LocalDate.now(ZoneOffset.UTC);
+		try {
+			for (Insights.TimeRange range : Insights.TimeRange.values()) {
+				if (this.store.record(userId, today, range, insights.topTracks(range))) {
+					this.recorded.incrementAndGet();
+				}
+			}
+		} catch (IOException ioe) {
+			throw new CompletionException(ioe);
+		}
+	}
+
+	/**
+	 * Reads the {@code id} of a Spotify user object.
+	 */
+	private static String readUserId(InputStream in) throws IOException {
+		JsonReader json = new JsonReader(in);
+		String id = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			if (json.nextName().equals("id")) {
+				id = json.nextString();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		if (id == null) {
+			throw new IOException("The user has no id");
+		}
+		return id;
+	}
+}
@@ -0,0 +1,702 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Daily snapshots of users' top tracks, kept in an append-only file, from
+ * which the changes to a user's top tracks between two days are computed.
+ *
+ * <p>
+ * The file is dictionary encoded: each track (and each user) is written once,
+ * the first time it's seen, and is numbered by the order it was written in.
+ * Snapshots then list the numbers of their tracks in rank order, as varints,
+ * so a snapshot of 100 tracks takes about 200 bytes rather than the 2 KB or
+ * more of their ids alone. A snapshot that's the same as the user's previous
+ * one of the same time range is written as just a reference to that one.
+ *
+ * <p>
+ * Each snapshot also holds the distance back to the previous snapshot of the
+ * same user and time range, so the snapshots of one user form a chain through
+ * the file. In memory are only the file offsets of each track's record and of
+ * the latest snapshot of each user and time range (and the ids of the tracks
+ * and users, to number new snapshots with); computing a diff follows a chain
+ * back from its latest snapshot, reading the headers of the snapshots on the
+ * way and only the track lists of the two snapshots compared. However long
+ * the history, a diff holds two snapshots at a time.
+ *
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by
+ * records, each a type byte and then:
+ * <ul>
+ * <li>{@link #TRACK} - The track's id, title, and number of artists followed by
+ * their names.</li>
+ * <li>{@link #USER} - The user's Spotify id.</li>
+ * <li>{@link #SNAPSHOT} - The user's number, the day (days since the epoch),
+ * the time range's ordinal (a byte), the distance in bytes back to the previous
+ * snapshot of the user and time range (0 if there's none), the number of
+ * tracks and the tracks' numbers, most listened first.</li>
+ * <li>{@link #UNCHANGED} - A {@code SNAPSHOT} up to the distance back, whose
+ * tracks are those of the previous snapshot.</li>
+ * </ul>
+ * Numbers are unsigned varints (7 bits per byte, least significant first),
+ * and strings are their length in UTF-8 bytes as a varint followed by those
+ * bytes. A truncated record at the end of the file (e.g., from a crash
+ * mid-write) is discarded when the file is opened.
+ *
+ * <p>
+ * Thread-safe; writes are serialized, and meant to be made from a background
+ * thread.
+ */
+class SnapshotStore implements Closeable {
+	private static final int MAGIC = 0x5349534E; // "SISN"
+	private static final int VERSION = 1;
+	private static final byte TRACK = 1;
+	private static final byte USER = 2;
+	private static final byte SNAPSHOT = 3;
+	private static final byte UNCHANGED = 4;
+	private static final int HEADER_LENGTH = 8;
+	/**
+	 * The longest string read back, to tell a corrupt length from a real one.
+	 */
+	private static final int MAX_STRING_LENGTH = 64 * 1024;
+
+	/**
+	 * The changes to a user's top tracks between two snapshots.
+	 */
+	static class Diff {
+		private final LocalDate from;
+		private final LocalDate to;
+		private final List<Change> entered;
+		private final List<Change> left;
+		private final List<Change> moved;
+
+		private Diff(LocalDate from, LocalDate to, List<Change> entered, List<Change> left, List<Change> moved) {
+			this.from = from;
+			this.to = to;
+			this.entered = Collections.unmodifiableList(entered);
+			this.left = Collections.unmodifiableList(left);
+			this.moved = Collections.unmodifiableList(moved);
+		}
+
+		/**
+		 * Returns the day of the older snapshot.
+		 *
+		 * @return The day of the older snapshot.
+		 */
+		LocalDate from() {
+			return this.from;
+		}
+
+		/**
+		 * Returns the day of the newer snapshot.
+		 *
+		 * @return The day of the newer snapshot.
+		 */
+		LocalDate to() {
+			return this.to;
+		}
+
+		/**
+		 * Returns the tracks only in the newer snapshot.
+		 *
+		 * @return The tracks, by their rank in the newer snapshot.
+		 */
+		List<Change> entered() {
+			return this.entered;
+		}
+
+		/**
+		 * Returns the tracks only in the older snapshot.
+		 *
+		 * @return The tracks, by their rank in the older snapshot.
+		 */
+		List<Change> left() {
+			return this.left;
+		}
+
+		/**
+		 * Returns the tracks in both snapshots, at different ranks.
+		 *
+		 * @return The tracks, by their rank in the newer snapshot.
+		 */
+		List<Change> moved() {
+			return this.moved;
+		}
+	}
+
+	/**
+	 * The ranks of one track in the two snapshots of a {@link Diff}.
+	 */
+	static class Change {
+		private final Track track;
+		private final int before;
+		private final int after;
+
+		private Change(Track track, int before, int after) {
+			this.track = track;
+			this.before = before;
+			this.after = after;
+		}
+
+		/**
+		 * Returns the track.
+		 *
+		 * @return The track, with its title and artists as first recorded, and no
+		 *         artist ids.
+		 */
+		Track track() {
+			return this.track;
+		}
+
+		/**
+		 * Returns the rank of the track in the older snapshot.
+		 *
+		 * @return The rank, from 1, or 0 if the track entered since.
+		 */
+		int before() {
+			return this.before;
+		}
+
+		/**
+		 * Returns the rank of the track in the newer snapshot.
+		 *
+		 * @return The rank, from 1, or 0 if the track left since.
+		 */
+		int after() {
+			return this.after;
+		}
+	}
+
+	/**
+	 * The latest snapshot of a user and time range.
+	 */
+	private static class Latest {
+		private final long offset;
+		private final int day;
+
+		private Latest(long offset, int day) {
+			this.offset = offset;
+			this.day = day;
+		}
+	}
+
+	/**
+	 * The header of a snapshot record.
+	 */
+	private static class Header {
+		private long offset;
+		private int day;
+		/**
+		 * The distance back to the previous snapshot of the chain, or 0.
+		 */
+		private long back;
+		/**
+		 * The offset of the track list, or -1 if the record is {@link #UNCHANGED}.
+		 */
+		private long tracks;
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	/**
+	 * The length of the file up to the end of the last complete record, where the
+	 * next record is written.
+	 */
+	private long end;
+	/**
+	 * The number of each track, by id.
+	 */
+	private final Map<String, Integer> trackNumbers = new HashMap<>();
+	/**
+	 * The offset of the record of each track, by number.
+	 */
+	private long[] trackOffsets = new long[1024];
+	/**
+	 * The number of each user, by Spotify id.
+	 */
+	private final Map<String, Integer> userNumbers = new HashMap<>();
+	/**
+	 * The latest snapshot of each user and time range, by
+	 * {@link #key(int, Insights.TimeRange)}.
+	 */
+	private final Map<Long, Latest> latest = new HashMap<>();
+	/**
+	 * The records being written, reused between writes.
+	 */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * Constructs a new {@code SnapshotStore}, reading the file at {@code path}
+	 * (which is created, readable by its owner only, if it doesn't exist).
+	 *
+	 * @param path - The path of the file.
+	 * @throws IOException If the file can't be read or created.
+	 */
+	SnapshotStore(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		// Listening histories are personal.
+		LogSessionStore.restrictPermissions(path);
+		this.end = this.replay();
+		if (this.end == 0L) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			this.write(header, 0L);
+			this.end = HEADER_LENGTH;
+		}
+		// Drops anything after the last complete record.
+		this.channel.truncate(this.end);
+	}
+
+	/**
+	 * Returns whether a user has snapshots of every time range from
+	 * {@code date}.
+	 *
+	 * @param userId - The Spotify id of the user.
+	 * @param date   - The day.
+	 * @return Whether there's nothing left to record for the user that day.
+	 */
+	synchronized boolean hasSnapshots(String userId, LocalDate date) {
+		Integer user = this.userNumbers.get(userId);
+		if (user == null) {
+			return false;
+		}
+		for (Insights.TimeRange range : Insights.TimeRange.values()) {
+			Latest last = this.latest.get(SnapshotStore.key(user, range));
+			if (last == null || last.day < date.toEpochDay()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records a user's top tracks of one day and time range, unless a snapshot of
+	 * that (or a later) day was already recorded for them.
+	 *
+	 * @param userId - The Spotify id of the user.
+	 * @param date   - The day of the snapshot.
+	 * @param range  - The time range of the tracks.
+	 * @param tracks - The top tracks, most listened first. Tracks without ids are
+	 *               left out.
+	 * @return Whether the snapshot was recorded.
+	 * @throws IOException If the snapshot can't be written. Nothing is recorded
+	 *                     then.
+	 */
+	synchronized boolean record(String userId, LocalDate date, Insights.TimeRange range, List<Track> tracks)
+			throws IOException {
+		int day = (int) date.toEpochDay();
+		ByteArrayOutputStream out = this.pending;
+		out.reset();
+
+		Integer user = this.userNumbers.get(userId);
+		boolean newUser = user == null;
+		if (newUser) {
+			user = this.userNumbers.size();
+			out.write(USER);
+			SnapshotStore.writeString(out, userId);
+		}
+		long key = SnapshotStore.key(user, range);
+		Latest previous = this.latest.get(key);
+		if (previous != null && previous.day >= day) {
+			return false;
+		}
+
+		// New tracks are numbered here, but only kept once they're written.
+		List<String> newTrackIds = new ArrayList<>();
+		List<Long> newTrackOffsets = new ArrayList<>();
+		int[] numbers = new int[tracks.size()];
+		int count = 0;
+		for (Track track : tracks) {
+			String id = track.getId();
+			if (id == null) {
+				continue;
+			}
+			Integer number = this.trackNumbers.get(id);
+			if (number == null) {
+				int index = newTrackIds.indexOf(id);
+				if (index >= 0) {
+					number = this.trackNumbers.size() + index;
+				} else {
+					number = this.trackNumbers.size() + newTrackIds.size();
+					newTrackIds.add(id);
+					newTrackOffsets.add(this.end + out.size());
+					SnapshotStore.writeTrack(out, track);
+				}
+			}
+			numbers[count++] = number;
+		}
+		numbers = Arrays.copyOf(numbers, count);
+
+		long offset = this.end + out.size();
+		boolean unchanged = previous != null && Arrays.equals(numbers, this.tracksOf(previous.offset));
+		out.write(unchanged ? UNCHANGED : SNAPSHOT);
+		SnapshotStore.writeVarLong(out, user);
+		SnapshotStore.writeVarLong(out, day);
+		out.write(range.ordinal());
+		SnapshotStore.writeVarLong(out, previous == null ? 0L : offset - previous.offset);
+		if (!unchanged) {
+			SnapshotStore.writeVarLong(out, numbers.length);
+			for (int number : numbers) {
+				SnapshotStore.writeVarLong(out, number);
+			}
+		}
+
+		this.write(ByteBuffer.wrap(out.toByteArray()), this.end);
+		this.channel.force(false);
+		this.end += out.size();
+		if (newUser) {
+			this.userNumbers.put(userId, user);
+		}
+		for (int i = 0; i < newTrackIds.size(); i++) {
+			this.addTrack(newTrackIds.get(i), newTrackOffsets.get(i));
+		}
+		this.latest.put(key, new Latest(offset, day));
+		return true;
+	}
+
+	/**
+	 * Computes the changes to a user's top tracks of a time range, from the
+	 * latest snapshot that's at least {@code days} older than their latest one
+	 * (or their oldest one, if none is that old) to their latest one.
+	 *
+	 * @param userId - The Spotify id of the user.
+	 * @param range  - The time range.
+	 * @param days   - How many days back to compare against, at least 1.
+	 * @return The changes, or null if the user has fewer than two snapshots of
+	 *         the time range.
+	 * @throws IOException If the snapshots can't be read.
+	 */
+	synchronized Diff diff(String userId, Insights.TimeRange range, int days) throws IOException {
+		if (days < 1) {
+			throw new IllegalArgumentException("days must be at least 1");
+		}
+		Integer user = this.userNumbers.get(userId);
+		Latest last = user == null ? null : this.latest.get(SnapshotStore.key(user, range));
+		if (last == null) {
+			return null;
+		}
+		RecordReader reader = new RecordReader(this.channel, 512);
+		Header to = this.header(reader, last.offset);
+		Header from = to;
+		while (from.back != 0L) {
+			from = this.header(reader, from.offset - from.back);
+			if (from.day <= to.day - days) {
+				break;
+			}
+		}
+		if (from == to) {
+			return null;
+		}
+
+		int[] before = this.tracksOf(reader, from);
+		int[] after = this.tracksOf(reader, to);
+		Map<Integer, Integer> beforeRanks = new HashMap<>();
+		for (int i = 0; i < before.length; i++) {
+			beforeRanks.put(before[i], i + 1);
+		}
+		List<Change> entered = new ArrayList<>();
+		List<Change> moved = new ArrayList<>();
+		for (int i = 0; i < after.length; i++) {
+			Integer rank = beforeRanks.remove(after[i]);
+			if (rank == null) {
+				entered.add(new Change(this.track(reader, after[i]), 0, i + 1));
+			} else if (rank != i + 1) {
+				moved.add(new Change(this.track(reader, after[i]), rank, i + 1));
+			}
+		}
+		List<Change> left = new ArrayList<>();
+		for (int i = 0; i < before.length; i++) {
+			if (beforeRanks.containsKey(before[i])) {
+				left.add(new Change(this.track(reader, before[i]), i + 1, 0));
+			}
+		}
+		return new Diff(LocalDate.ofEpochDay(from.day), LocalDate.ofEpochDay(to.day), entered, left, moved);
+	}
+
+	/**
+	 * Returns the size of the file.
+	 *
+	 * @return The size of the file, in bytes.
+	 */
+	synchronized long size() {
+		return this.end;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * Reads the file into the in-memory indexes. Returns the length of the file up
+	 * to the end of the last complete record, or 0 if it's empty.
+	 */
+	private long replay() throws IOException {
+		if (this.channel.size() == 0L) {
+			return 0L;
+		}
+		RecordReader reader = new RecordReader(this.channel, 64 * 1024);
+		try {
+			if (reader.readInt() != MAGIC) {
+				throw new IOException(this.path + " is not a snapshot file");
+			}
+			int version = reader.readInt();
+			if (version != VERSION) {
+				throw new IOException(this.path + " is a version " + version + " snapshot file, not " + VERSION);
+			}
+		} catch (EOFException eofe) {
+			return 0L;
+		}
+		long validLength = reader.position();
+		while (true) {
+			long offset = reader.position();
+			try {
+				byte type = reader.readByte();
+				if (type == TRACK) {
+					// Only the id is kept; the rest is read when a diff needs the track.
+					String id = reader.readString();
+					reader.readString();
+					for (int i = reader.readVarInt(); i > 0; i--) {
+						reader.readString();
+					}
+					this.addTrack(id, offset);
+				} else if (type == USER) {
+					this.userNumbers.put(reader.readString(), this.userNumbers.size());
+				} else if (type == SNAPSHOT || type == UNCHANGED) {
+					int user = reader.readVarInt();
+					int day = reader.readVarInt();
+					int range = reader.readByte();
+					reader.readVarLong();
+					if (user >= this.userNumbers.size() || range < 0 || range >= Insights.TimeRange.values().length) {
+						throw new IOException("Corrupt snapshot record at " + offset);
+					}
+					if (type == SNAPSHOT) {
+						for (int i = reader.readVarInt(); i > 0; i--) {
+							if (reader.readVarInt() >= this.trackNumbers.size()) {
+								throw new IOException("Corrupt snapshot record at " + offset);
+							}
+						}
+					}
+					this.latest.put(SnapshotStore.key(user, Insights.TimeRange.values()[range]),
+							new Latest(offset, day));
+				} else {
+					throw new IOException("Corrupt snapshot record at " + offset);
+				}
+				validLength = reader.position();
+			} catch (EOFException eofe) {
+				return validLength;
+			}
+		}
+	}
+
+	/**
+	 * Numbers a track, whose record is at {@code offset}.
+	 */
+	private void addTrack(String id, long offset) {
+		int number = this.trackNumbers.size();
+		if (number == this.trackOffsets.length) {
+			this.trackOffsets = Arrays.copyOf(this.trackOffsets, number * 2);
+		}
+		this.trackOffsets[number] = offset;
+		this.trackNumbers.put(id, number);
+	}
+
+	/**
+	 * Reads the header of the snapshot record at {@code offset}.
+	 */
+	private Header header(RecordReader reader, long offset) throws IOException {
+		reader.seek(offset);
+		byte type = reader.readByte();
+		Header header = new Header();
+		header.offset = offset;
+		reader.readVarInt();
+		header.day = reader.readVarInt();
+		reader.readByte();
+		header.back = reader.readVarLong();
+		header.tracks = type == SNAPSHOT ? reader.position() : -1L;
+		return header;
+	}
+
+	/**
+	 * Reads the track numbers of the snapshot record at {@code offset}.
+	 */
+	private int[] tracksOf(long offset) throws IOException {
+		RecordReader reader = new RecordReader(this.channel, 512);
+		return this.tracksOf(reader, this.header(reader, offset));
+	}
+
+	/**
+	 * Reads the track numbers of a snapshot, following {@link #UNCHANGED}
+	 * snapshots back to the one they're the same as.
+	 */
+	private int[] tracksOf(RecordReader reader, Header header) throws IOException {
+		while (header.tracks < 0L) {
+			header = this.header(reader, header.offset - header.back);
+		}
+		reader.seek(header.tracks);
+		int[] numbers = new int[reader.readVarInt()];
+		for (int i = 0; i < numbers.length; i++) {
+			numbers[i] = reader.readVarInt();
+		}
+		return numbers;
+	}
+
+	/**
+	 * Reads the track numbered {@code number}.
+	 */
+	private Track track(RecordReader reader, int number) throws IOException {
+		reader.seek(this.trackOffsets[number] + 1L);
+		return SnapshotStore.readTrack(reader);
+	}
+
+	/**
+	 * Writes all of {@code buffer} to the file at {@code position}.
+	 */
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += this.channel.write(buffer, position);
+		}
+	}
+
+	private static long key(int user, Insights.TimeRange range) {
+		return ((long) user << 2) | range.ordinal();
+	}
+
+	private static void writeTrack(ByteArrayOutputStream out, Track track) {
+		out.write(TRACK);
+		SnapshotStore.writeString(out, track.getId());
+		SnapshotStore.writeString(out, track.getTitle());
+		List<String> artists = track.getArtists();
+		SnapshotStore.writeVarLong(out, artists.size());
+		for (String artist : artists) {
+			SnapshotStore.writeString(out, artist);
+		}
+	}
+
+	/**
+	 * Reads a track record, after its type byte.
+	 */
+	private static Track readTrack(RecordReader reader) throws IOException {
+		String id = reader.readString();
+		String title = reader.readString();
+		int artistCount = reader.readVarInt();
+		if (artistCount > MAX_STRING_LENGTH) {
+			throw new IOException("Corrupt track record");
+		}
+		List<String> artists = new ArrayList<>(artistCount);
+		for (int i = 0; i < artistCount; i++) {
+			artists.add(reader.readString());
+		}
+		return new Track(id, title, Arrays.asList(new String[artistCount]), artists);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		SnapshotStore.writeVarLong(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0L) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Reads records from the file, through a buffer, at any offset.
+	 */
+	private static class RecordReader {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		/**
+		 * The offset in the file of the start of {@link #buffer}.
+		 */
+		private long start;
+
+		private RecordReader(FileChannel channel, int bufferSize) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(bufferSize);
+			this.buffer.limit(0);
+		}
+
+		/**
+		 * Returns the offset in the file of the next byte read.
+		 */
+		private long position() {
+			return this.start + this.buffer.position();
+		}
+
+		/**
+		 * Moves to {@code position}, keeping what's buffered if it's in there.
+		 */
+		private void seek(long position) {
+			if (position >= this.start && position <= this.start + this.buffer.limit()) {
+				this.buffer.position((int) (position - this.start));
+			} else {
+				this.start = position;
+				this.buffer.limit(0);
+			}
+		}
+
+		private byte readByte() throws IOException {
+			if (!this.buffer.hasRemaining()) {
+				this.start += this.buffer.limit();
+				this.buffer.clear();
+				int read = this.channel.read(this.buffer, this.start);
+				this.buffer.flip();
+				if (read <= 0) {
+					throw new EOFException();
+				}
+			}
+			return this.buffer.get();
+		}
+
+		private int readInt() throws IOException {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | (this.readByte() & 0xFF);
+			}
+			return value;
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0L;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = this.readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		private int readVarInt() throws IOException {
+			long value = this.readVarLong();
+			if (value > Integer.MAX_VALUE) {
+				throw new IOException("Malformed varint");
+			}
+			return (int) value;
+		}
+
+		private String readString() throws IOException {
+			int length = this.readVarInt();
+			if (length > MAX_STRING_LENGTH) {
+				throw new IOException("Malformed string");
+			}
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = this.readByte();
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+import java.io.*;
+import java.time.*;
+
+/**
+ * Thrown when a Spotify API responds with a non-2xx status code.
+ */
+class SpotifyApiException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The HTTP status code of the response.
+	 */
+	private final int statusCode;
+	/**
+	 * The body of the response.
+	 */
+	private final String body;
+	/**
+	 * How long the response asked to wait before retrying, or null.
+	 */
+	private final Duration retryAfter;
+
+	/**
+	 * Constructs a new {@code SpotifyApiException}.
+	 *
+	 * @param uri        - The URI of the request that failed.
+	 * @param statusCode - The HTTP status code of the response.
+	 * @param body       - The body of the response.
+	 */
+	SpotifyApiException(String uri, int statusCode, String body) {
+		this(uri, statusCode, body, null);
+	}
+
+	/**
+	 * Constructs a new {@code SpotifyApiException}.
+	 *
+	 * @param uri        - The URI of the request that failed.
+	 * @param statusCode - The HTTP status code of the response.
+	 * @param body       - The body of the response.
+	 * @param retryAfter - The delay asked for by the response's
+	 *                   {@code Retry-After} header, or null if it had none.
+	 */
+	SpotifyApiException(String uri, int statusCode, String body, Duration retryAfter) {
+		super(uri + " responded with " + statusCode + ": " + body);
+		this.statusCode = statusCode;
+		this.body = body;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Returns the HTTP status code of the response.
+	 *
+	 * @return The HTTP status code of the response.
+	 */
+	int statusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * Returns the body of the response.
+	 *
+	 * @return The body of the response.
+	 */
+	String body() {
+		return this.body;
+	}
+
+	/**
+	 * Returns how long the response asked to wait before retrying.
+	 *
+	 * @return The delay from the response's {@code Retry-After} header, or null if
+	 *         it had none.
+	 */
+	Duration retryAfter() {
+		return this.retryAfter;
+	}
+}
@@ -0,0 +1,335 @@
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An asynchronous client for the Spotify account service and web API. A single
+ * {@code HttpClient} is shared by all requests so that (HTTP/2) connections to
+ * Spotify are kept alive and reused, and the number of requests in flight to
+ * each host is bounded by an {@link AsyncLimiter}. When requests may be sent,
+ * and whether failed ones are retried, is decided by an
+ * {@link UpstreamScheduler}. No method of this class blocks; all of them return
+ * a {@code CompletableFuture} that is completed with the body of the response,
+ * or completed exceptionally with an {@code IOException}
+ * ({@link SpotifyApiException} for non-2xx responses).
+ *
+ * <p>
+ * Configured through the following system properties:
+ * <ul>
+ * <li>{@code si.spotify.connectTimeoutMillis} - Defaults to 5000.</li>
+ * <li>{@code si.spotify.requestTimeoutMillis} - Defaults to 10000.</li>
+ * <li>{@code si.spotify.maxConcurrentPerHost} - Defaults to 64.</li>
+ * <li>{@code si.spotify.accountsUrl} - Defaults to
+ * {@code https://accounts.spotify.com/}.</li>
+ * <li>{@code si.spotify.apiUrl} - Defaults to
+ * {@code https://api.spotify.com/}.</li>
+ * </ul>
+ */
+class SpotifyClient {
+	/**
+	 * The base URL of the Spotify account service, set by
+	 * {@code si.spotify.accountsUrl} (e.g., to point at a stand-in for load
+	 * tests).
+	 */
+	static final URI ACCOUNTS_URL = SpotifyClient.baseUrl("si.spotify.accountsUrl", "https://accounts.spotify.com/");
+	/**
+	 * The base URL of the Spotify web API, set by {@code si.spotify.apiUrl}.
+	 */
+	static final URI API_URL = SpotifyClient.baseUrl("si.spotify.apiUrl", "https://api.spotify.com/");
+
+	/**
+	 * The client used to make all requests.
+	 */
+	private final HttpClient httpClient;
+	/**
+	 * How long to wait for a response before failing the request.
+	 */
+	private final Duration requestTimeout;
+	/**
+	 * The maximum number of requests in flight to a single host.
+	 */
+	private final int maxConcurrentPerHost;
+	/**
+	 * The limiters bounding the number of requests in flight, keyed by host.
+	 */
+	private final ConcurrentMap<String, AsyncLimiter> hostLimiters = new ConcurrentHashMap<>();
+	/**
+	 * Rate limits, retries and coalesces requests before they're sent.
+	 */
+	private final UpstreamScheduler scheduler;
+
+	/**
+	 * Constructs a new {@code SpotifyClient}.
+	 *
+	 * @param connectTimeout       - How long to wait while connecting to a host.
+	 * @param requestTimeout       - How long to wait for a response.
+	 * @param maxConcurrentPerHost - The maximum number of requests in flight to a
+	 *                             single host. Must be positive.
+	 */
+	SpotifyClient(Duration connectTimeout, Duration requestTimeout, int maxConcurrentPerHost) {
+		if (maxConcurrentPerHost <= 0) {
+			throw new IllegalArgumentException("maxConcurrentPerHost must be positive");
+		}
+		this.httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(connectTimeout)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.build();
+		this.requestTimeout = requestTimeout;
+		this.maxConcurrentPerHost = maxConcurrentPerHost;
+		this.scheduler = UpstreamScheduler.fromSystemProperties(this::sendNow);
+	}
+
+	/**
+	 * Constructs a new {@code SpotifyClient} based on the {@code si.spotify*}
+	 * system properties.
+	 *
+	 * @return The new {@code SpotifyClient}.
+	 */
+	static SpotifyClient fromSystemProperties() {
+		return new SpotifyClient(Duration.ofMillis(Long.getLong("si.spotify.connectTimeoutMillis", 5000L)),
+				Duration.ofMillis(Long.getLong("si.spotify.requestTimeoutMillis", 10000L)),
+				Integer.getInteger("si.spotify.maxConcurrentPerHost", 64));
+	}
+
+	/**
+	 * Reads a base URL from the system property {@code property}, so that paths can
+	 * be resolved against it.
+	 *
+	 * @param property     - The name of the system property.
+	 * @param defaultValue - The URL used if the property isn't set.
+	 * @return The URL, ending in {@code /}.
+	 */
+	private static URI baseUrl(String property, String defaultValue) {
+		String url = System.getProperty(property, defaultValue);
+		return URI.create(url.endsWith("/") ? url : url + "/");
+	}
+
+	/**
+	 * Makes a HTTP POST request to {@code uri}. {@code Content-Type} is assumed to
+	 * be {@code application/x-www-form-urlencoded}, {@code Accept} is assumed to be
+	 * {@code application/json}.
+	 *
+	 * @param uri         - The URI to make the request to.
+	 * @param requestBody - The body of the post request.
+	 * @return A future completed with the body of the response.
+	 */
+	CompletableFuture<String> post(URI uri, String requestBody) {
+		return this.post(uri, requestBody, "application/x-www-form-urlencoded", "application/json", null);
+	}
+
+	/**
+	 * Makes a HTTP POST request to {@code uri}.
+	 *
+	 * @param uri           - The URI to make the request to.
+	 * @param requestBody   - The body of the post request.
+	 * @param contentType   - The value of the {@code Content-Type} header.
+	 * @param accept        - The value of the {@code Accept} header.
+	 * @param authorization - The value of the {@code Authorization} header. If
+	 *                      null, the header is omitted.
+	 * @return A future completed with the body of the response.
+	 */
+	CompletableFuture<String> post(URI uri, String requestBody, String contentType, String accept,
+			String authorization) {
+		return this.post(uri, requestBody, contentType, accept, authorization, UpstreamScheduler.Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Makes a HTTP POST request to {@code uri}.
+	 *
+	 * @param uri           - The URI to make the request to.
+	 * @param requestBody   - The body of the post request.
+	 * @param contentType   - The value of the {@code Content-Type} header.
+	 * @param accept        - The value of the {@code Accept} header.
+	 * @param authorization - The value of the {@code Authorization} header. If
+	 *                      null, the header is omitted.
+	 * @param priority      - The lane the request waits in to be sent.
+	 * @return A future completed with the body of the response.
+	 */
+	CompletableFuture<String> post(URI uri, String requestBody, String contentType, String accept,
+			String authorization, UpstreamScheduler.Priority priority) {
+		HttpRequest.Builder request = this.newRequest(uri, accept, authorization)
+				.header("Content-Type", contentType)
+				.POST(HttpRequest.BodyPublishers.ofString(requestBody, StandardCharsets.UTF_8));
+		return this.send(request.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8), priority);
+	}
+
+	/**
+	 * Makes a HTTP GET request to {@code uri}.
+	 *
+	 * @param uri           - The URI to make the request to.
+	 * @param accept        - The value of the {@code Accept} header.
+	 * @param authorization - The value of the {@code Authorization} header. If
+	 *                      null, the header is omitted.
+	 * @return A future completed with the body of the response.
+	 */
+	CompletableFuture<String> get(URI uri, String accept, String authorization) {
+		return this.get(uri, accept, authorization, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Makes a HTTP GET request to {@code uri}, converting the body of the response
+	 * with {@code bodyHandler}.
+	 *
+	 * @param <T>           - The type the body is converted to.
+	 * @param uri           - The URI to make the request to.
+	 * @param accept        - The value of the {@code Accept} header.
+	 * @param authorization - The value of the {@code Authorization} header. If
+	 *                      null, the header is omitted.
+	 * @param bodyHandler   - Converts the body of 2xx responses.
+	 * @return A future completed with the converted body of the response.
+	 */
+	<T> CompletableFuture<T> get(URI uri, String accept, String authorization,
+			HttpResponse.BodyHandler<T> bodyHandler) {
+		return this.get(uri, accept, authorization, bodyHandler, UpstreamScheduler.Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Makes a HTTP GET request to {@code uri}, converting the body of the response
+	 * with {@code bodyHandler}.
+	 *
+	 * @param <T>           - The type the body is converted to.
+	 * @param uri           - The URI to make the request to.
+	 * @param accept        - The value of the {@code Accept} header.
+	 * @param authorization - The value of the {@code Authorization} header. If
+	 *                      null, the header is omitted.
+	 * @param bodyHandler   - Converts the body of 2xx responses.
+	 * @param priority      - The lane the request waits in to be sent.
+	 * @return A future completed with the converted body of the response.
+	 */
+	<T> CompletableFuture<T> get(URI uri, String accept, String authorization,
+			HttpResponse.BodyHandler<T> bodyHandler, UpstreamScheduler.Priority priority) {
+		return this.send(this.newRequest(uri, accept, authorization).GET().build(), bodyHandler, priority);
+	}
+
+	/**
+	 * Creates a request builder for {@code uri} with the common headers set.
+	 */
+	private HttpRequest.Builder newRequest(URI uri, String accept, String authorization) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+				.timeout(this.requestTimeout)
+				.header("Accept", accept);
+		if (authorization != null) {
+			request.header("Authorization", authorization);
+		}
+		return request;
+	}
+
+	/**
+	 * Sends {@code request} through the scheduler, then converts the body of the
+	 * response with {@code bodyHandler}. Non 2xx responses complete the returned
+	 * future with a {@link SpotifyApiException}.
+	 *
+	 * @param <T>         - The type the body is converted to.
+	 * @param request     - The request to send.
+	 * @param bodyHandler - Converts the body of 2xx responses.
+	 * @param priority    - The lane the request waits in to be sent.
+	 * @return A future completed with the converted body of the response.
+	 */
+	private <T> CompletableFuture<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+			UpstreamScheduler.Priority priority) {
+		// Responses are received as bytes so that one response can be shared by
+		// coalesced requests, each converting it with its own handler.
+		return this.scheduler.submit(request, priority)
+				.thenApply((HttpResponse<byte[]> response) -> SpotifyClient.convert(response, bodyHandler));
+	}
+
+	/**
+	 * Sends {@code request} as soon as the limiter for its host has a free permit,
+	 * recording its latency and status code in {@link Metrics#SHARED}.
+	 *
+	 * @param request - The request to send.
+	 * @return A future completed with the response, whatever its status code.
+	 */
+	private CompletableFuture<HttpResponse<byte[]>> sendNow(HttpRequest request) {
+		AsyncLimiter limiter = this.hostLimiters.computeIfAbsent(request.uri().getHost(),
+				(String host) -> new AsyncLimiter(this.maxConcurrentPerHost));
+		String endpoint = request.uri().getHost() + request.uri().getPath();
+		return limiter.submit(() -> {
+			long startNanos = System.nanoTime();
+			return this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+					.whenComplete((HttpResponse<byte[]> response, Throwable error) -> {
+						// Every try is recorded, including those that are retried.
+						Metrics.SHARED.timer("si_upstream_request_duration_seconds",
+								"Latency of requests to Spotify, by endpoint.", Metrics.labels("endpoint", endpoint))
+								.recordSince(startNanos);
+						Metrics.SHARED.counter("si_upstream_requests_total",
+								"Requests sent to Spotify, by endpoint and status code (\"error\" if none was received).",
+								Metrics.labels("endpoint", endpoint, "status",
+										response == null ? "error" : Integer.toString(response.statusCode())))
+								.increment();
+					});
+		});
+	}
+
+	/**
+	 * Returns the number of requests waiting to be sent by the scheduler, for
+	 * their endpoint's rate limit or a retry.
+	 *
+	 * @return The number of requests waiting to be sent.
+	 */
+	int queued() {
+		return this.scheduler.queued();
+	}
+
+	/**
+	 * Converts the body of a received response with {@code bodyHandler}, as if it
+	 * were being received again.
+	 */
+	private static <T> T convert(HttpResponse<byte[]> response, HttpResponse.BodyHandler<T> bodyHandler) {
+		HttpResponse.BodySubscriber<T> subscriber = bodyHandler.apply(new HttpResponse.ResponseInfo() {
+			@Override
+			public int statusCode() {
+				return response.statusCode();
+			}
+
+			@Override
+			public HttpHeaders headers() {
+				return response.headers();
+			}
+
+			@Override
+			public HttpClient.Version version() {
+				return response.version();
+			}
+		});
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				// The whole body is handed over at once.
+			}
+
+			@Override
+			public void cancel() {
+			}
+		});
+		subscriber.onNext(Collections.singletonList(ByteBuffer.wrap(response.body())));
+		subscriber.onComplete();
+		return subscriber.getBody().toCompletableFuture().join();
+	}
+
+	/**
+	 * Strips the wrappers ({@code CompletionException}, {@code ExecutionException},
+	 * {@code UncheckedIOException}) that asynchronous code puts around the cause of
+	 * a failure.
+	 *
+	 * @param error - The error a future was completed with.
+	 * @return The underlying cause of {@code error}.
+	 */
+	static Throwable unwrap(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof ExecutionException
+				|| error instanceof UncheckedIOException) && error.getCause() != null) {
+			error = error.getCause();
+		}
+		if (error instanceof IOException && error.getCause() instanceof SpotifyApiException) {
+			// HttpClient wraps exceptions thrown while reading a body in an IOException.
+			error = error.getCause();
+		}
+		return error;
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.zip.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A static resource that's loaded once at startup and served from memory. Along
+ * with the raw bytes, a gzip and a deflate (zlib) variant are precomputed (and
+ * kept only if they're actually smaller), as well as a strong {@code ETag} per
+ * variant. Each request is served the best variant its
+ * {@code Accept-Encoding} allows, and conditional requests
+ * ({@code If-None-Match}, {@code If-Modified-Since}) that still match are
+ * answered with a bodiless {@code 304 Not Modified}.
+ */
+class StaticAsset {
+	/**
+	 * One encoding of the asset.
+	 */
+	private static class Variant {
+		/**
+		 * The value of the {@code Content-Encoding} header, or null for identity.
+		 */
+		private final String encoding;
+		private final byte[] content;
+		private final String etag;
+
+		private Variant(String encoding, byte[] content, String etag) {
+			this.encoding = encoding;
+			this.content = content;
+			this.etag = etag;
+		}
+	}
+
+	private final String contentType;
+	private final String cacheControl;
+	/**
+	 * The time the asset was loaded, truncated to seconds (the resolution of HTTP
+	 * dates).
+	 */
+	private final Instant lastModified;
+	private final String lastModifiedHeader;
+	private final Variant identity;
+	/**
+	 * The gzip and deflate variants, or null where compression doesn't pay off.
+	 */
+	private final Variant gzip, deflate;
+
+	/**
+	 * Constructs a new {@code StaticAsset}.
+	 *
+	 * @param content      - The raw content of the asset.
+	 * @param contentType  - The MIME type of the asset.
+	 * @param cacheControl - The value of the {@code Cache-Control} header sent with
+	 *                     the asset.
+	 */
+	StaticAsset(byte[] content, String contentType, String cacheControl) {
+		this.contentType = contentType;
+		this.cacheControl = cacheControl;
+		this.lastModified = Instant.ofEpochSecond(Instant.now().getEpochSecond());
+		this.lastModifiedHeader = Server.HTTP_DATE_FORMATTER.format(this.lastModified);
+
+		String hash = StaticAsset.hash(content);
+		this.identity = new Variant(null, content, "\"" + hash + "\"");
+		this.gzip = StaticAsset.smallerVariant("gzip", StaticAsset.gzip(content), content, hash);
+		this.deflate = StaticAsset.smallerVariant("deflate", StaticAsset.deflate(content), content, hash);
+	}
+
+	/**
+	 * Loads the resource {@code name} (relative to {@code Server}) as a
+	 * {@code StaticAsset}.
+	 *
+	 * @param name         - The name of the resource.
+	 * @param contentType  - The MIME type of the asset.
+	 * @param cacheControl - The value of the {@code Cache-Control} header sent with
+	 *                     the asset.
+	 * @return The loaded asset.
+	 * @throws IOException If the resource can't be read.
+	 */
+	static StaticAsset load(String name, String contentType, String cacheControl) throws IOException {
+		try (InputStream in = Server.class.getResourceAsStream(name)) {
+			if (in == null) {
+				throw new FileNotFoundException(name);
+			}
+			return new StaticAsset(in.readAllBytes(), contentType, cacheControl);
+		}
+	}
+
+	/**
+	 * Sends this asset with a 200 status, or a 304 if the request's conditional
+	 * headers show the client already has it.
+	 *
+	 * @param t - The {@code HttpExchange} used to send the response.
+	 */
+	void send(HttpExchange t) {
+		this.send(t, HttpURLConnection.HTTP_OK);
+	}
+
+	/**
+	 * Sends this asset with the given status. Conditional headers are only
+	 * honored for 200 responses.
+	 *
+	 * @param t          - The {@code HttpExchange} used to send the response.
+	 * @param statusCode - The HTTP status code used in the response.
+	 */
+	void send(HttpExchange t, int statusCode) {
+		Headers requestHeaders = t.getRequestHeaders();
+		Variant variant = this.negotiate(requestHeaders.getFirst("Accept-Encoding"));
+
+		Headers responseHeaders = t.getResponseHeaders();
+		responseHeaders.set("Vary", "Accept-Encoding");
+		responseHeaders.set("Cache-Control", this.cacheControl);
+		responseHeaders.set("ETag", variant.etag);
+		responseHeaders.set("Last-Modified", this.lastModifiedHeader);
+		if (variant.encoding != null) {
+			responseHeaders.set("Content-Encoding", variant.encoding);
+		}
+
+		if (statusCode == HttpURLConnection.HTTP_OK && this.notModified(requestHeaders, variant)) {
+			responseHeaders.remove("Content-Encoding");
+			Server.send(t, this.contentType, new byte[0], HttpURLConnection.HTTP_NOT_MODIFIED);
+		} else {
+			Server.send(t, this.contentType, variant.content, statusCode);
+		}
+	}
+
+	/**
+	 * Returns whether the conditional headers of a request show that the client's
+	 * copy of {@code variant} is still current. As required by RFC 7232,
+	 * {@code If-Modified-Since} is ignored when {@code If-None-Match} is present.
+	 */
+	private boolean notModified(Headers requestHeaders, Variant variant) {
+		String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					// If-None-Match uses the weak comparison.
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(variant.etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+		if (ifModifiedSince != null) {
+			try {
+				Instant since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+				return !this.lastModified.isAfter(since);
+			} catch (DateTimeParseException dtpe) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Picks the variant to send based on the value of an {@code Accept-Encoding}
+	 * header. gzip is preferred over deflate when the client weighs them equally.
+	 */
+	private Variant negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return this.identity;
+		}
+		double gzipQ = -1.0, deflateQ = -1.0, wildcardQ = 0.0;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase(Locale.ROOT);
+			double q = 1.0;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2));
+					} catch (NumberFormatException nfe) {
+						q = 0.0;
+					}
+				}
+			}
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				gzipQ = q;
+			} else if (name.equals("deflate")) {
+				deflateQ = q;
+			} else if (name.equals("*")) {
+				wildcardQ = q;
+			}
+		}
+		// Codings that aren't listed get the weight of "*", if there is one.
+		gzipQ = gzipQ < 0.0 ? wildcardQ : gzipQ;
+		deflateQ = deflateQ < 0.0 ? wildcardQ : deflateQ;
+		if (this.gzip != null && gzipQ > 0.0 && (gzipQ >= deflateQ || this.deflate == null)) {
+			return this.gzip;
+		}
+		if (this.deflate != null && deflateQ > 0.0) {
+			return this.deflate;
+		}
+		return this.identity;
+	}
+
+	/**
+	 * Returns a variant with {@code compressed} as its content, or null if it's
+	 * not smaller than {@code original}.
+	 */
+	private static Variant smallerVariant(String encoding, byte[] compressed, byte[] original, String hash) {
+		if (compressed.length >= original.length) {
+			return null;
+		}
+		return new Variant(encoding, compressed, "\"" + hash + "-" + encoding + "\"");
+	}
+
+	/**
+	 * Returns the gzip encoding of {@code content}.
+	 */
+	private static byte[] gzip(byte[] content) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 32);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+			{
+				this.def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			gzip.write(content);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the deflate (zlib) encoding of {@code content}.
+	 */
+	private static byte[] deflate(byte[] content) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 32);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+			deflate.write(content);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns a URL-safe base64 SHA-256 hash of {@code content}, used in the
+	 * asset's {@code ETag}s.
+	 */
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16));
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+}
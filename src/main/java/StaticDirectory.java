@@ -0,0 +1,436 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Serves the files of a directory on disk under {@link #PREFIX}. Unlike
+ * {@link StaticAsset}, files aren't read onto the heap: each one is memory
+ * mapped the first time it's requested, and responses are written straight
+ * from the mapping, so large assets cost a bounded amount of heap no matter
+ * their size or how many requests are in flight. A mapping is reused until the
+ * file's size or modification time changes.
+ *
+ * <p>
+ * Single byte ranges ({@code Range: bytes=...}) are supported, with
+ * {@code If-Range}, as are {@code HEAD} requests and conditional requests
+ * against the file's {@code ETag} (derived from its size and modification
+ * time) and {@code Last-Modified} date. Requests for several ranges at once
+ * are answered with the whole file, which RFC 7233 allows.
+ */
+class StaticDirectory {
+	/**
+	 * The path the directory is served under.
+	 */
+	static final String PREFIX = "/static/";
+	/**
+	 * Files larger than this can't be mapped into a single buffer, so they're
+	 * copied from their {@code FileChannel} instead (or, for the NIO engine,
+	 * mapped a region at a time).
+	 */
+	private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+	/**
+	 * MIME types of common web assets, by file extension. Other files fall back
+	 * to {@link Files#probeContentType(Path)}.
+	 */
+	private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+	static {
+		CONTENT_TYPES.put("html", "text/html");
+		CONTENT_TYPES.put("css", "text/css");
+		CONTENT_TYPES.put("js", "text/javascript");
+		CONTENT_TYPES.put("json", "application/json");
+		CONTENT_TYPES.put("txt", "text/plain");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+		CONTENT_TYPES.put("webp", "image/webp");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+		CONTENT_TYPES.put("woff", "font/woff");
+		CONTENT_TYPES.put("woff2", "font/woff2");
+		CONTENT_TYPES.put("mp3", "audio/mpeg");
+		CONTENT_TYPES.put("mp4", "video/mp4");
+	}
+
+	/**
+	 * A file that has been opened for serving.
+	 */
+	private static class MappedFile {
+		private final Path path;
+		private final long size;
+		private final FileTime lastModifiedTime;
+		/**
+		 * The mapping of the whole file, or null if it's too large to map.
+		 */
+		private final MappedByteBuffer buffer;
+		private final String contentType;
+		private final String etag;
+		private final String lastModified;
+
+		private MappedFile(Path path, BasicFileAttributes attributes) throws IOException {
+			this.path = path;
+			this.size = attributes.size();
+			this.lastModifiedTime = attributes.lastModifiedTime();
+			if (this.size <= MAX_MAPPED_SIZE) {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					// The mapping stays valid after the channel is closed.
+					this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, this.size);
+				}
+			} else {
+				this.buffer = null;
+			}
+			this.contentType = StaticDirectory.contentTypeOf(path);
+			this.etag = "\"" + Long.toHexString(this.size) + "-" + Long.toHexString(this.lastModifiedTime.toMillis())
+					+ "\"";
+			this.lastModified = Server.HTTP_DATE_FORMATTER
+					.format(Instant.ofEpochSecond(this.lastModifiedTime.to(TimeUnit.SECONDS)));
+		}
+
+		/**
+		 * Returns whether this is still the current version of the file described by
+		 * {@code attributes}.
+		 */
+		private boolean isCurrent(BasicFileAttributes attributes) {
+			return this.size == attributes.size() && this.lastModifiedTime.equals(attributes.lastModifiedTime());
+		}
+	}
+
+	/**
+	 * The directory being served, as a real path.
+	 */
+	private final Path root;
+	/**
+	 * The value of the {@code Cache-Control} header sent with files.
+	 */
+	private final String cacheControl;
+	/**
+	 * The files opened so far, by real path.
+	 */
+	private final ConcurrentMap<Path, MappedFile> files = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructs a new {@code StaticDirectory}.
+	 *
+	 * @param root         - The directory to serve.
+	 * @param cacheControl - The value of the {@code Cache-Control} header sent
+	 *                     with files.
+	 * @throws IOException If {@code root} isn't a readable directory.
+	 */
+	StaticDirectory(Path root, String cacheControl) throws IOException {
+		this.root = root.toRealPath();
+		if (!Files.isDirectory(this.root)) {
+			throw new NotDirectoryException(root.toString());
+		}
+		this.cacheControl = cacheControl;
+	}
+
+	/**
+	 * Creates the {@code StaticDirectory} configured by the {@code si.static.*}
+	 * system properties.
+	 *
+	 * @return The {@code StaticDirectory}, or null if {@code si.static.dir} isn't
+	 *         set.
+	 * @throws IOException If the configured directory can't be served.
+	 */
+	static StaticDirectory fromSystemProperties() throws IOException {
+		String dir = System.getProperty("si.static.dir");
+		if (dir == null) {
+			return null;
+		}
+		long maxAge = Long.getLong("si.static.maxAgeSeconds", Duration.ofHours(1).getSeconds());
+		return new StaticDirectory(Paths.get(dir), "public, max-age=" + maxAge);
+	}
+
+	/**
+	 * Serves the file requested by {@code t}, if there is one.
+	 *
+	 * @param t - The {@code HttpExchange} of a request under {@link #PREFIX}.
+	 * @return Whether a response was sent. If false, the requested file doesn't
+	 *         exist (or may not be served) and the caller should send a 404.
+	 */
+	boolean serve(HttpExchange t) {
+		String method = t.getRequestMethod();
+		boolean head = method.equals("HEAD");
+		if (!head && !method.equals("GET")) {
+			t.getResponseHeaders().set("Allow", "GET, HEAD");
+			Server.send(t, "text/plain", "Method not allowed.".getBytes(), HttpURLConnection.HTTP_BAD_METHOD);
+			return true;
+		}
+
+		MappedFile file;
+		try {
+			file = this.open(t.getRequestURI().getPath());
+		} catch (IOException ioe) {
+			file = null;
+		}
+		if (file == null) {
+			return false;
+		}
+
+		Headers requestHeaders = t.getRequestHeaders();
+		Headers responseHeaders = t.getResponseHeaders();
+		responseHeaders.set("Content-Type", file.contentType);
+		responseHeaders.set("Strict-Transport-Security", "max-age=31536000; includeSubDomains");
+		responseHeaders.set("Cache-Control", this.cacheControl);
+		responseHeaders.set("ETag", file.etag);
+		responseHeaders.set("Last-Modified", file.lastModified);
+		responseHeaders.set("Accept-Ranges", "bytes");
+
+		try {
+			if (StaticDirectory.notModified(requestHeaders, file)) {
+				t.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+				return true;
+			}
+
+			long start = 0L, end = file.size - 1;
+			int statusCode = HttpURLConnection.HTTP_OK;
+			String range = requestHeaders.getFirst("Range");
+			if (range != null && StaticDirectory.rangeApplies(requestHeaders.getFirst("If-Range"), file)) {
+				long[] bounds = StaticDirectory.parseRange(range, file.size);
+				if (bounds == RANGE_NOT_SATISFIABLE) {
+					responseHeaders.set("Content-Range", "bytes */" + file.size);
+					Server.send(t, "text/plain", "Range not satisfiable.".getBytes(), 416);
+					return true;
+				} else if (bounds != null) {
+					start = bounds[0];
+					end = bounds[1];
+					statusCode = HttpURLConnection.HTTP_PARTIAL;
+					responseHeaders.set("Content-Range", "bytes " + start + "-" + end + "/" + file.size);
+				}
+			}
+
+			long length = end - start + 1;
+			if (head) {
+				responseHeaders.set("Content-Length", Long.toString(length));
+				t.sendResponseHeaders(statusCode, -1);
+				return true;
+			}
+			t.sendResponseHeaders(statusCode, length == 0 ? -1 : length);
+			if (length > 0) {
+				StaticDirectory.write(file, start, length, t.getResponseBody());
+			}
+		} catch (IOException | InternalError e) {
+			// An InternalError is thrown when a mapped file is truncated while it's
+			// being sent.
+			System.err.println("Error sending " + file.path + ": " + e);
+		} finally {
+			t.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the file that a request path refers to, mapping it if it hasn't
+	 * been yet (or has changed since). Returns null if the path is outside of the
+	 * served directory, names a hidden file or directory, or isn't a regular file.
+	 */
+	private MappedFile open(String requestPath) throws IOException {
+		if (!requestPath.startsWith(PREFIX) || requestPath.indexOf('\0') >= 0) {
+			return null;
+		}
+		String relative = requestPath.substring(PREFIX.length());
+		for (String segment : relative.split("/")) {
+			// Rejects "..", as well as dotfiles like .htaccess or .git.
+			if (segment.startsWith(".")) {
+				return null;
+			}
+		}
+		Path path;
+		try {
+			path = this.root.resolve(relative).normalize();
+		} catch (InvalidPathException ipe) {
+			return null;
+		}
+		if (!path.startsWith(this.root)) {
+			return null;
+		}
+		// Resolves symbolic links, which mustn't lead outside of the directory either.
+		path = path.toRealPath();
+		if (!path.startsWith(this.root)) {
+			return null;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+
+		MappedFile file = this.files.get(path);
+		if (file == null || !file.isCurrent(attributes)) {
+			file = new MappedFile(path, attributes);
+			this.files.put(path, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Writes {@code length} bytes of {@code file}, starting at {@code start}, to
+	 * {@code out}.
+	 */
+	private static void write(MappedFile file, long start, long length, OutputStream out) throws IOException {
+		// The NIO engine's response body is a channel that keeps read-only buffers
+		// rather than copying them, so the file isn't copied onto the heap.
+		boolean keepsBuffers = out instanceof WritableByteChannel;
+		WritableByteChannel target = keepsBuffers ? (WritableByteChannel) out : Channels.newChannel(out);
+		if (file.buffer != null) {
+			// Each request gets its own view of the mapping, so that they don't share a
+			// position.
+			ByteBuffer view = file.buffer.duplicate();
+			view.position((int) start);
+			view.limit((int) (start + length));
+			while (view.hasRemaining()) {
+				target.write(view);
+			}
+		} else if (keepsBuffers) {
+			// Hands over read-only mappings of the range, one region at a time.
+			try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+				if (channel.size() < start + length) {
+					throw new EOFException(file.path + " was truncated");
+				}
+				for (long position = start, end = start + length; position < end; position += MAX_MAPPED_SIZE) {
+					ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(MAX_MAPPED_SIZE, end - position));
+					while (region.hasRemaining()) {
+						target.write(region);
+					}
+				}
+			}
+		} else {
+			try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+				long position = start, remaining = length;
+				while (remaining > 0) {
+					long transferred = channel.transferTo(position, remaining, target);
+					if (transferred <= 0) {
+						throw new EOFException(file.path + " was truncated");
+					}
+					position += transferred;
+					remaining -= transferred;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the conditional headers of a request show that the client's
+	 * copy of {@code file} is still current. {@code If-Modified-Since} is ignored
+	 * when {@code If-None-Match} is present.
+	 */
+	private static boolean notModified(Headers requestHeaders, MappedFile file) {
+		String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(file.etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+		if (ifModifiedSince != null) {
+			try {
+				Instant since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+				return file.lastModifiedTime.to(TimeUnit.SECONDS) <= since.getEpochSecond();
+			} catch (DateTimeParseException dtpe) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether a {@code Range} header should be honored given the request's
+	 * {@code If-Range} header (which may be null), i.e. whether the client's
+	 * partial copy is of the current version of {@code file}.
+	 */
+	private static boolean rangeApplies(String ifRange, MappedFile file) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		// If-Range uses the strong comparison, so weak tags never match.
+		return ifRange.equals(file.etag) || ifRange.equals(file.lastModified);
+	}
+
+	/**
+	 * Returned by {@link #parseRange(String, long)} for ranges that don't overlap
+	 * the file.
+	 */
+	private static final long[] RANGE_NOT_SATISFIABLE = new long[0];
+
+	/**
+	 * Parses the value of a {@code Range} header into the first and last byte
+	 * (inclusive) it asks for. Returns null if the header should be ignored
+	 * (because it's malformed, not in bytes, or asks for several ranges), or
+	 * {@link #RANGE_NOT_SATISFIABLE} if it asks for bytes past the end of the
+	 * file.
+	 */
+	private static long[] parseRange(String range, long size) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// A suffix range, e.g. "-500" for the last 500 bytes.
+				long suffix = Long.parseLong(last);
+				if (suffix < 0) {
+					return null;
+				} else if (suffix == 0 || size == 0) {
+					return RANGE_NOT_SATISFIABLE;
+				}
+				return new long[] { Math.max(0L, size - suffix), size - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+			if (start < 0 || end < start) {
+				return null;
+			} else if (start >= size) {
+				return RANGE_NOT_SATISFIABLE;
+			}
+			return new long[] { start, Math.min(end, size - 1) };
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the MIME type of the file at {@code path}.
+	 */
+	private static String contentTypeOf(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			String type = CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+			if (type != null) {
+				return type;
+			}
+		}
+		try {
+			String type = Files.probeContentType(path);
+			if (type != null) {
+				return type;
+			}
+		} catch (IOException ioe) {
+			// Falls through to the default.
+		}
+		return "application/octet-stream";
+	}
+}
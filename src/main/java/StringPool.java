@@ -0,0 +1,67 @@
+import java.util.concurrent.*;
+
+/**
+ * A bounded pool of canonical {@code String}s, shared across sessions so that
+ * values that repeat across many users (artist names, Spotify ids, ...) are
+ * only held on the heap once. Unlike {@code String#intern()}, the pool has a
+ * fixed capacity: once it's full, new values are returned as-is rather than
+ * being pooled.
+ */
+class StringPool {
+	/**
+	 * The pool shared by all {@code Track}s for artist names and ids. Its
+	 * capacity is set by {@code si.pool.strings.maxEntries} (100000 by default).
+	 */
+	static final StringPool SHARED = new StringPool(Integer.getInteger("si.pool.strings.maxEntries", 100000));
+
+	/**
+	 * Maps each pooled value to its canonical instance.
+	 */
+	private final ConcurrentMap<String, String> pool = new ConcurrentHashMap<>();
+	/**
+	 * The maximum number of values in the pool.
+	 */
+	private final int maxEntries;
+
+	/**
+	 * Constructs a new {@code StringPool}.
+	 *
+	 * @param maxEntries - The maximum number of values in the pool.
+	 */
+	StringPool(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the canonical instance of {@code value}, adding {@code value} to the
+	 * pool if it isn't pooled yet and the pool isn't full.
+	 *
+	 * @param value - The value to look up. May be null, in which case null is
+	 *              returned.
+	 * @return The canonical instance of {@code value}, or {@code value} itself if
+	 *         it isn't pooled.
+	 */
+	String intern(String value) {
+		if (value == null) {
+			return null;
+		}
+		String canonical = this.pool.get(value);
+		if (canonical != null) {
+			return canonical;
+		}
+		if (this.pool.size() >= this.maxEntries) {
+			return value;
+		}
+		canonical = this.pool.putIfAbsent(value, value);
+		return canonical == null ? value : canonical;
+	}
+
+	/**
+	 * Returns the number of values in the pool.
+	 *
+	 * @return The number of values in the pool.
+	 */
+	int size() {
+		return this.pool.size();
+	}
+}
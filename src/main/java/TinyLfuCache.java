@@ -0,0 +1,341 @@
+import java.util.*;
+
+/**
+ * A size-bounded cache that decides what to keep with W-TinyLFU: new entries go
+ * into a small LRU window, and an entry leaving the window is only admitted to
+ * the main area (a segmented LRU) if it has been used more often than the entry
+ * it would replace there. Use counts are estimated by a count-min sketch of
+ * 4-bit counters that are halved periodically, so the cache tracks recent
+ * popularity in a small, fixed amount of memory, including for keys it no
+ * longer holds. This keeps popular entries around when a burst of one-off keys
+ * passes through, which a plain LRU doesn't.
+ *
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <K> - The type of the keys.
+ * @param <V> - The type of the values.
+ */
+class TinyLfuCache<K, V> {
+	/**
+	 * The part of the cache an entry is in.
+	 */
+	private enum Segment {
+		WINDOW, PROBATION, PROTECTED
+	}
+
+	/**
+	 * A cached value and the segment it's in.
+	 */
+	private static class Node<V> {
+		private V value;
+		private Segment segment;
+
+		private Node(V value, Segment segment) {
+			this.value = value;
+			this.segment = segment;
+		}
+	}
+
+	private final int maxEntries;
+	private final int windowCapacity;
+	private final int protectedCapacity;
+	/**
+	 * Every entry, by key. Guarded by {@code this}.
+	 */
+	private final Map<K, Node<V>> entries = new HashMap<>();
+	/**
+	 * The keys of each segment, least recently used first. Guarded by
+	 * {@code this}.
+	 */
+	private final LinkedHashMap<K, Node<V>> window = new LinkedHashMap<>();
+	private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<>();
+	private final LinkedHashMap<K, Node<V>> protectedSegment = new LinkedHashMap<>();
+	/**
+	 * Estimates how often each key has been used. Guarded by {@code this}.
+	 */
+	private final FrequencySketch sketch;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Constructs a new {@code TinyLfuCache}.
+	 *
+	 * @param maxEntries - The maximum number of entries. Must be positive.
+	 */
+	TinyLfuCache(int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+		// 1% of the cache is the window, and 80% of the rest is protected.
+		this.windowCapacity = Math.max(1, maxEntries / 100);
+		this.protectedCapacity = (int) ((maxEntries - this.windowCapacity) * 0.8);
+		this.sketch = new FrequencySketch(maxEntries);
+	}
+
+	/**
+	 * Returns the value cached for {@code key}.
+	 *
+	 * @param key - The key to look up. Cannot be null.
+	 * @return The cached value, or null if there isn't one.
+	 */
+	synchronized V get(K key) {
+		this.sketch.increment(key);
+		Node<V> node = this.entries.get(key);
+		if (node == null) {
+			this.missCount++;
+			return null;
+		}
+		this.hitCount++;
+		this.onAccess(key, node);
+		return node.value;
+	}
+
+	/**
+	 * Returns the canonical instance of {@code value}: the cached value for
+	 * {@code key} if it's equal to {@code value}, or else {@code value} itself,
+	 * which is then cached (if the admission policy lets it in) in place of
+	 * whatever was there.
+	 *
+	 * @param key   - The key of the value. Cannot be null.
+	 * @param value - The value. Cannot be null.
+	 * @return The canonical instance of {@code value}.
+	 */
+	synchronized V intern(K key, V value) {
+		this.sketch.increment(key);
+		Node<V> node = this.entries.get(key);
+		if (node != null) {
+			this.onAccess(key, node);
+			if (node.value.equals(value)) {
+				this.hitCount++;
+				return node.value;
+			}
+			// The value has changed (e.g., a track was renamed).
+			this.missCount++;
+			node.value = value;
+			return value;
+		}
+		this.missCount++;
+		node = new Node<>(value, Segment.WINDOW);
+		this.entries.put(key, node);
+		this.window.put(key, node);
+		this.evict();
+		return value;
+	}
+
+	/**
+	 * Removes the value cached for {@code key}, if there is one.
+	 *
+	 * @param key - The key to remove.
+	 */
+	synchronized void invalidate(K key) {
+		Node<V> node = this.entries.remove(key);
+		if (node != null) {
+			this.segmentOf(node).remove(key);
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 *
+	 * @return The number of entries in the cache.
+	 */
+	synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found an equal cached value.
+	 *
+	 * @return The number of hits.
+	 */
+	synchronized long hitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Returns the number of lookups that didn't find an equal cached value.
+	 *
+	 * @return The number of misses.
+	 */
+	synchronized long missCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Returns the number of entries evicted or refused admission.
+	 *
+	 * @return The number of evictions.
+	 */
+	synchronized long evictionCount() {
+		return this.evictionCount;
+	}
+
+	/**
+	 * Moves an entry that has just been used to the most recently used end of its
+	 * segment, promoting it from probation to protected.
+	 */
+	private void onAccess(K key, Node<V> node) {
+		switch (node.segment) {
+		case WINDOW:
+			this.window.remove(key);
+			this.window.put(key, node);
+			break;
+		case PROBATION:
+			this.probation.remove(key);
+			node.segment = Segment.PROTECTED;
+			this.protectedSegment.put(key, node);
+			if (this.protectedSegment.size() > this.protectedCapacity) {
+				// Demotes the least recently used protected entry to make room.
+				Map.Entry<K, Node<V>> demoted = TinyLfuCache.eldest(this.protectedSegment);
+				this.protectedSegment.remove(demoted.getKey());
+				demoted.getValue().segment = Segment.PROBATION;
+				this.probation.put(demoted.getKey(), demoted.getValue());
+			}
+			break;
+		case PROTECTED:
+			this.protectedSegment.remove(key);
+			this.protectedSegment.put(key, node);
+			break;
+		}
+	}
+
+	/**
+	 * Moves entries out of the window once it's over capacity, admitting each to
+	 * the main area only if it's used more often than the main area's next
+	 * victim.
+	 */
+	private void evict() {
+		while (this.window.size() > this.windowCapacity) {
+			Map.Entry<K, Node<V>> candidate = TinyLfuCache.eldest(this.window);
+			this.window.remove(candidate.getKey());
+			if (this.entries.size() <= this.maxEntries) {
+				// There's still room; no one has to go.
+				candidate.getValue().segment = Segment.PROBATION;
+				this.probation.put(candidate.getKey(), candidate.getValue());
+				continue;
+			}
+			LinkedHashMap<K, Node<V>> victims = this.probation.isEmpty() ? this.protectedSegment : this.probation;
+			Map.Entry<K, Node<V>> victim = TinyLfuCache.eldest(victims);
+			if (victim != null && this.sketch.frequency(candidate.getKey()) > this.sketch.frequency(victim.getKey())) {
+				victims.remove(victim.getKey());
+				this.entries.remove(victim.getKey());
+				candidate.getValue().segment = Segment.PROBATION;
+				this.probation.put(candidate.getKey(), candidate.getValue());
+			} else {
+				this.entries.remove(candidate.getKey());
+			}
+			this.evictionCount++;
+		}
+	}
+
+	/**
+	 * Returns the map holding the keys of {@code node}'s segment.
+	 */
+	private LinkedHashMap<K, Node<V>> segmentOf(Node<V> node) {
+		switch (node.segment) {
+		case WINDOW:
+			return this.window;
+		case PROBATION:
+			return this.probation;
+		default:
+			return this.protectedSegment;
+		}
+	}
+
+	/**
+	 * Returns the least recently used entry of a segment, or null if it's empty.
+	 */
+	private static <K, V> Map.Entry<K, Node<V>> eldest(LinkedHashMap<K, Node<V>> segment) {
+		Iterator<Map.Entry<K, Node<V>>> iterator = segment.entrySet().iterator();
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	/**
+	 * A count-min sketch of 4-bit counters, with 4 counters (one per row) per
+	 * key. Once as many increments as 10 times the cache's capacity have been
+	 * counted, every counter is halved, so old popularity fades.
+	 */
+	private static class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+				0xcbf29ce484222325L };
+		private static final long HALF_MASK = 0x7777777777777777L;
+
+		/**
+		 * Each row packs 16 counters per {@code long}.
+		 */
+		private final long[][] rows = new long[SEEDS.length][];
+		/**
+		 * The number of counters per row, minus one (it's a power of two).
+		 */
+		private final int counterMask;
+		private final int sampleSize;
+		private int additions;
+
+		private FrequencySketch(int maxEntries) {
+			int counters = Integer.highestOneBit(Math.max(16, maxEntries - 1) << 1);
+			for (int row = 0; row < SEEDS.length; row++) {
+				this.rows[row] = new long[counters / 16];
+			}
+			this.counterMask = counters - 1;
+			this.sampleSize = maxEntries <= Integer.MAX_VALUE / 10 ? 10 * maxEntries : Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Returns the estimated number of times {@code key} has been counted, at most
+		 * 15.
+		 */
+		private int frequency(Object key) {
+			int hash = key.hashCode();
+			int frequency = 15;
+			for (int row = 0; row < SEEDS.length; row++) {
+				int counter = this.counterOf(hash, row);
+				frequency = Math.min(frequency, (int) ((this.rows[row][counter >>> 4] >>> ((counter & 15) << 2)) & 15L));
+			}
+			return frequency;
+		}
+
+		/**
+		 * Counts one use of {@code key}.
+		 */
+		private void increment(Object key) {
+			int hash = key.hashCode();
+			boolean incremented = false;
+			for (int row = 0; row < SEEDS.length; row++) {
+				int counter = this.counterOf(hash, row);
+				int shift = (counter & 15) << 2;
+				long word = this.rows[row][counter >>> 4];
+				if (((word >>> shift) & 15L) != 15L) {
+					this.rows[row][counter >>> 4] = word + (1L << shift);
+					incremented = true;
+				}
+			}
+			if (incremented && ++this.additions >= this.sampleSize) {
+				this.reset();
+			}
+		}
+
+		/**
+		 * Halves every counter.
+		 */
+		private void reset() {
+			for (long[] row : this.rows) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (row[i] >>> 1) & HALF_MASK;
+				}
+			}
+			this.additions /= 2;
+		}
+
+		/**
+		 * Returns the index of {@code hash}'s counter within {@code row}.
+		 */
+		private int counterOf(int hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int) h & this.counterMask;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.net.ssl.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * The TLS setup of the HTTPS server: an {@code HttpsConfigurator} whose
+ * {@code SSLContext} is built once, with a session cache sized for returning
+ * browsers, and which sets up every connection to prefer TLS 1.3 and cipher
+ * suites that are cheap to run.
+ *
+ * <p>
+ * A full handshake costs the server a signature with its private key and a
+ * key exchange; a resumed one (from the session cache for TLS 1.2, or a
+ * session ticket for TLS 1.3) skips the signature. Resumption only works for
+ * as long as the {@code SSLContext} lives, so the certificate is never
+ * reloaded by replacing it: the context's key manager delegates to one built
+ * from the key store, and that one is swapped when the key store file changes.
+ * Handshakes after that present the new certificate, without a restart and
+ * without losing the sessions of returning browsers.
+ *
+ * <p>
+ * Both HTTP engines only speak HTTP/1.1, so that's the only protocol offered
+ * through ALPN.
+ *
+ * <p>
+ * Configured through the following system properties:
+ * <ul>
+ * <li>{@code si.tls.keyStore} - A key store file, reloaded when it changes.
+ * Defaults to the {@code keystore.jks} resource, which is never reloaded.</li>
+ * <li>{@code si.tls.keyStoreType} - Defaults to JKS.</li>
+ * <li>{@code si.tls.reloadSeconds} - How often {@code si.tls.keyStore} is
+ * checked for changes. Defaults to 60; 0 to never reload it.</li>
+ * <li>{@code si.tls.protocols} - Defaults to TLSv1.3,TLSv1.2.</li>
+ * <li>{@code si.tls.sessionCacheSize} - Defaults to 50000.</li>
+ * <li>{@code si.tls.sessionTimeoutSeconds} - Defaults to 86400.</li>
+ * </ul>
+ */
+class TlsConfig extends HttpsConfigurator {
+	/**
+	 * The cipher suites offered, most preferred first: AES-GCM (hardware
+	 * accelerated nearly everywhere) with the shorter key first, then
+	 * ChaCha20-Poly1305 for clients without AES instructions. Only forward-secret
+	 * AEAD suites are offered for TLS 1.2.
+	 */
+	private static final List<String> CIPHER_SUITES = List.of("TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384",
+			"TLS_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+			"TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+			"TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+			"TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256");
+	private static final String[] APPLICATION_PROTOCOLS = { "http/1.1" };
+
+	/**
+	 * The protocols enabled, most preferred first.
+	 */
+	private final String[] protocols;
+	/**
+	 * The cipher suites enabled, most preferred first.
+	 */
+	private final String[] cipherSuites;
+
+	/**
+	 * Constructs a new {@code TlsConfig}.
+	 *
+	 * @param context            - The {@code SSLContext} connections are made
+	 *                           with.
+	 * @param protocols          - The protocols enabled, most preferred first.
+	 *                           Those the context doesn't support are left out.
+	 * @param sessionCacheSize   - The number of sessions kept for resumption. 0
+	 *                           for no limit.
+	 * @param sessionTimeoutSecs - How long a session may be resumed for, in
+	 *                           seconds.
+	 * @throws IllegalArgumentException If none of {@code protocols} are
+	 *                                  supported.
+	 */
+	TlsConfig(SSLContext context, List<String> protocols, int sessionCacheSize, int sessionTimeoutSecs) {
+		super(context);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeoutSecs);
+
+		SSLParameters supported = context.getSupportedSSLParameters();
+		this.protocols = TlsConfig.retain(protocols, supported.getProtocols());
+		this.cipherSuites = TlsConfig.retain(CIPHER_SUITES, supported.getCipherSuites());
+		if (this.protocols.length == 0) {
+			throw new IllegalArgumentException("None of the TLS protocols " + protocols + " are supported");
+		}
+	}
+
+	/**
+	 * Creates a {@code TlsConfig} as configured by the {@code si.tls.*} system
+	 * properties, and starts watching {@code si.tls.keyStore} for changes if it's
+	 * set.
+	 *
+	 * @param defaultKeyStore - The key store used if {@code si.tls.keyStore} isn't
+	 *                        set.
+	 * @param password        - The password of the key store, and of the key in
+	 *                        it.
+	 * @return The {@code TlsConfig}.
+	 * @throws IOException              If the key store can't be read.
+	 * @throws GeneralSecurityException If the key store can't be loaded, or has no
+	 *                                  usable key.
+	 */
+	static TlsConfig fromSystemProperties(InputStream defaultKeyStore, char[] password)
+			throws IOException, GeneralSecurityException {
+		String type = System.getProperty("si.tls.keyStoreType", "JKS");
+		String path = System.getProperty("si.tls.keyStore");
+		ReloadingKeyManager keyManager;
+		KeyStore keyStore;
+		if (path == null) {
+			keyStore = TlsConfig.load(defaultKeyStore, type, password);
+			keyManager = new ReloadingKeyManager(keyStore, password);
+		} else {
+			Path file = Paths.get(path);
+			keyStore = TlsConfig.load(file, type, password);
+			keyManager = new ReloadingKeyManager(keyStore, password);
+			long reloadSeconds = Long.getLong("si.tls.reloadSeconds", 60L);
+			if (reloadSeconds > 0) {
+				keyManager.watch(file, type, password, reloadSeconds);
+			}
+		}
+
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(new KeyManager[] { keyManager }, tmf.getTrustManagers(), null);
+
+		List<String> protocols = Arrays.asList(System.getProperty("si.tls.protocols", "TLSv1.3,TLSv1.2").split(","));
+		return new TlsConfig(context, protocols, Integer.getInteger("si.tls.sessionCacheSize", 50000),
+				Integer.getInteger("si.tls.sessionTimeoutSeconds", 86400));
+	}
+
+	@Override
+	public void configure(HttpsParameters params) {
+		SSLParameters parameters = new SSLParameters(this.cipherSuites, this.protocols);
+		parameters.setUseCipherSuitesOrder(true);
+		parameters.setApplicationProtocols(APPLICATION_PROTOCOLS);
+		params.setSSLParameters(parameters);
+	}
+
+	/**
+	 * Returns the elements of {@code preferred} (trimmed) that are also in
+	 * {@code supported}, in the order of {@code preferred}.
+	 */
+	private static String[] retain(List<String> preferred, String[] supported) {
+		Set<String> available = new HashSet<>(Arrays.asList(supported));
+		List<String> retained = new ArrayList<>();
+		for (String name : preferred) {
+			if (available.contains(name.trim())) {
+				retained.add(name.trim());
+			}
+		}
+		return retained.toArray(new String[0]);
+	}
+
+	private static KeyStore load(InputStream in, String type, char[] password)
+			throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(type);
+		keyStore.load(in, password);
+		return keyStore;
+	}
+
+	private static KeyStore load(Path file, String type, char[] password)
+			throws IOException, GeneralSecurityException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return TlsConfig.load(in, type, password);
+		}
+	}
+
+	/**
+	 * A key manager that delegates to the key manager of a key store, which can
+	 * be replaced while handshakes are going on.
+	 */
+	private static class ReloadingKeyManager extends X509ExtendedKeyManager {
+		private volatile X509ExtendedKeyManager delegate;
+		/**
+		 * The last modified time and size of the watched key store when it was last
+		 * loaded. Only used by the watching thread.
+		 */
+		private FileTime loadedModified;
+		private long loadedSize;
+
+		ReloadingKeyManager(KeyStore keyStore, char[] password) throws GeneralSecurityException {
+			this.delegate = ReloadingKeyManager.keyManagerOf(keyStore, password);
+		}
+
+		private static X509ExtendedKeyManager keyManagerOf(KeyStore keyStore, char[] password)
+				throws GeneralSecurityException {
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, password);
+			for (KeyManager keyManager : kmf.getKeyManagers()) {
+				if (keyManager instanceof X509ExtendedKeyManager) {
+					return (X509ExtendedKeyManager) keyManager;
+				}
+			}
+			throw new KeyStoreException("No X.509 key manager for the key store");
+		}
+
+		/**
+		 * Checks {@code file} for changes every {@code intervalSecs}, and reloads it
+		 * when it has changed. If it can't be loaded, the current key manager is
+		 * kept.
+		 */
+		void watch(Path file, String type, char[] password, long intervalSecs) throws IOException {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			this.loadedModified = attributes.lastModifiedTime();
+			this.loadedSize = attributes.size();
+			ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+				Thread thread = new Thread(r, "tls-reload");
+				thread.setDaemon(true);
+				return thread;
+			});
+			watcher.scheduleWithFixedDelay(() -> {
+				try {
+					BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class);
+					if (current.lastModifiedTime().equals(this.loadedModified) && current.size() == this.loadedSize) {
+						return;
+					}
+					// Recorded first, so that a key store that fails to load is only
+					// reported once, rather than every interval until it changes again.
+					this.loadedModified = current.lastModifiedTime();
+					this.loadedSize = current.size();
+					this.delegate = ReloadingKeyManager.keyManagerOf(TlsConfig.load(file, type, password), password);
+					System.err.println("Reloaded the TLS key store " + file);
+				} catch (IOException | GeneralSecurityException e) {
+					System.err.println("Could not reload the TLS key store " + file + ", keeping the old one: " + e);
+				}
+			}, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+		}
+
+		@Override
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return this.delegate.getClientAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+			return this.delegate.chooseClientAlias(keyType, issuers, socket);
+		}
+
+		@Override
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return this.delegate.getServerAliases(keyType, issuers);
+		}
+
+		@Override
+		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			return this.delegate.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		@Override
+		public X509Certificate[] getCertificateChain(String alias) {
+			return this.delegate.getCertificateChain(alias);
+		}
+
+		@Override
+		public PrivateKey getPrivateKey(String alias) {
+			return this.delegate.getPrivateKey(alias);
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			return this.delegate.chooseEngineClientAlias(keyType, issuers, engine);
+		}
+
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			return this.delegate.chooseEngineServerAlias(keyType, issuers, engine);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.json.*;
+
+/**
+ * Refreshes the Spotify access tokens of sessions shortly before they expire,
+ * so that request handlers nearly always find a valid token and never have to
+ * wait on the Spotify account service themselves.
+ *
+ * <p>
+ * Sessions are kept in a {@code DelayQueue} ordered by when their token should
+ * be refreshed: {@code leadTime} before it expires, minus a random jitter so
+ * that sessions created together don't all refresh together. A single thread
+ * takes whatever is due in batches and starts the refreshes, with at most
+ * {@code maxConcurrent} of them in flight at once.
+ *
+ * <p>
+ * Refreshes that fail on an I/O error, a {@code 5xx} or a {@code 429} are
+ * retried after {@code retryDelay}, doubling with each failure in a row up to
+ * {@code maxRetryDelay} (and never sooner than Spotify's {@code Retry-After}),
+ * as are other {@code 4xx}s, which may come from a misconfigured client rather
+ * than the session. Only a {@code 400 invalid_grant}, meaning the refresh token
+ * was revoked, won't go away by retrying, so the session is unscheduled and
+ * handed to the revocation listener instead.
+ *
+ * <p>
+ * Configured through the following system properties:
+ * <ul>
+ * <li>{@code si.refresh.leadSeconds} - Defaults to 300.</li>
+ * <li>{@code si.refresh.jitterSeconds} - Defaults to 60.</li>
+ * <li>{@code si.refresh.retrySeconds} - Defaults to 30.</li>
+ * <li>{@code si.refresh.maxRetrySeconds} - Defaults to 600.</li>
+ * <li>{@code si.refresh.maxConcurrent} - Defaults to 8.</li>
+ * <li>{@code si.refresh.batchSize} - Defaults to 64.</li>
+ * </ul>
+ */
+class TokenRefreshScheduler {
+	/**
+	 * A session waiting in the queue.
+	 */
+	private static class Entry implements Delayed {
+		private final SessionId sessionId;
+		private final Session session;
+		/**
+		 * The epoch millisecond this entry is due at.
+		 */
+		private final long dueAt;
+		/**
+		 * The number of refreshes of the session that have failed in a row.
+		 */
+		private final int failures;
+		/**
+		 * Set once the session has been unscheduled.
+		 */
+		private volatile boolean cancelled;
+
+		private Entry(SessionId sessionId, Session session, long dueAt, int failures) {
+			this.sessionId = sessionId;
+			this.session = session;
+			this.dueAt = dueAt;
+			this.failures = failures;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(this.dueAt, ((Entry) other).dueAt);
+		}
+	}
+
+	/**
+	 * How long before a token expires it should be refreshed, in milliseconds.
+	 */
+	private final long leadMillis;
+	/**
+	 * The maximum random amount refreshes are moved earlier by, in milliseconds.
+	 */
+	private final long jitterMillis;
+	/**
+	 * How long to wait before retrying a failed refresh, in milliseconds.
+	 */
+	private final long retryMillis;
+	/**
+	 * The longest to wait before retrying a refresh that keeps failing, in
+	 * milliseconds.
+	 */
+	private final long maxRetryMillis;
+	/**
+	 * The maximum number of sessions taken off the queue at once.
+	 */
+	private final int batchSize;
+	/**
+	 * Bounds the number of refreshes in flight.
+	 */
+	private final AsyncLimiter limiter;
+	/**
+	 * The sessions waiting to be refreshed, ordered by when they're due.
+	 */
+	private final DelayQueue<Entry> queue = new DelayQueue<>();
+	/**
+	 * The current queue entry of each scheduled session.
+	 */
+	private final ConcurrentMap<Session, Entry> entries = new ConcurrentHashMap<>();
+	/**
+	 * Called with sessions whose refresh token Spotify rejected.
+	 */
+	private volatile BiConsumer<SessionId, Session> revocationListener = (SessionId sessionId, Session session) -> {
+	};
+
+	/**
+	 * Constructs a new {@code TokenRefreshScheduler}. {@link #start()} must be
+	 * called before any refreshes happen.
+	 *
+	 * @param leadTime      - How long before a token expires it should be
+	 *                      refreshed.
+	 * @param jitter        - The maximum random amount refreshes are moved
+	 *                      earlier by.
+	 * @param retryDelay    - How long to wait before retrying a failed refresh.
+	 * @param maxRetryDelay - The longest to wait before retrying a refresh that
+	 *                      keeps failing.
+	 * @param maxConcurrent - The maximum number of refreshes in flight at once.
+	 * @param batchSize     - The maximum number of sessions taken off the queue at
+	 *                      once.
+	 */
+	TokenRefreshScheduler(Duration leadTime, Duration jitter, Duration retryDelay, Duration maxRetryDelay,
+			int maxConcurrent, int batchSize) {
+		this.leadMillis = leadTime.toMillis();
+		this.jitterMillis = jitter.toMillis();
+		this.retryMillis = retryDelay.toMillis();
+		this.maxRetryMillis = Math.max(this.retryMillis, maxRetryDelay.toMillis());
+		this.limiter = new AsyncLimiter(maxConcurrent);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Constructs a new {@code TokenRefreshScheduler} based on the
+	 * {@code si.refresh*} system properties.
+	 *
+	 * @return The new {@code TokenRefreshScheduler}.
+	 */
+	static TokenRefreshScheduler fromSystemProperties() {
+		return new TokenRefreshScheduler(Duration.ofSeconds(Long.getLong("si.refresh.leadSeconds", 300L)),
+				Duration.ofSeconds(Long.getLong("si.refresh.jitterSeconds", 60L)),
+				Duration.ofSeconds(Long.getLong("si.refresh.retrySeconds", 30L)),
+				Duration.ofSeconds(Long.getLong("si.refresh.maxRetrySeconds", 600L)),
+				Integer.getInteger("si.refresh.maxConcurrent", 8), Integer.getInteger("si.refresh.batchSize", 64));
+	}
+
+	/**
+	 * Sets the listener called with sessions whose refresh token Spotify rejected.
+	 * They've already been unscheduled by then.
+	 *
+	 * @param listener - The listener.
+	 */
+	void setRevocationListener(BiConsumer<SessionId, Session> listener) {
+		this.revocationListener = listener;
+	}
+
+	/**
+	 * Starts the thread that refreshes due sessions.
+	 */
+	void start() {
+		Thread worker = new Thread(this::run, "token-refresh");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a refresh of {@code session}'s token shortly before it expires,
+	 * replacing any refresh already scheduled for it.
+	 *
+	 * @param sessionId - The ID of the session.
+	 * @param session   - The session to schedule.
+	 */
+	void schedule(SessionId sessionId, Session session) {
+		Entry entry = new Entry(sessionId, session, this.dueAt(session), 0);
+		Entry previous = this.entries.put(session, entry);
+		if (previous != null) {
+			previous.cancelled = true;
+		}
+		this.queue.add(entry);
+	}
+
+	/**
+	 * Stops refreshing {@code session}'s token.
+	 *
+	 * @param session - The session to unschedule.
+	 */
+	void unschedule(Session session) {
+		Entry entry = this.entries.remove(session);
+		if (entry != null) {
+			entry.cancelled = true;
+		}
+	}
+
+	/**
+	 * Returns the number of sessions currently scheduled.
+	 *
+	 * @return The number of sessions currently scheduled.
+	 */
+	int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Returns the epoch millisecond {@code session}'s token should be refreshed
+	 * at, with jitter applied.
+	 */
+	private long dueAt(Session session) {
+		long jitter = this.jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(this.jitterMillis) : 0L;
+		return session.tokenExpiresAt() * 1000L - this.leadMillis - jitter;
+	}
+
+	/**
+	 * Replaces {@code previous} with a new entry due at {@code dueAt}, unless the
+	 * session has been unscheduled or rescheduled in the meantime.
+	 */
+	private void reschedule(Entry previous, long dueAt, int failures) {
+		Entry next = new Entry(previous.sessionId, previous.session, dueAt, failures);
+		if (this.entries.replace(previous.session, previous, next)) {
+			this.queue.add(next);
+		}
+	}
+
+	/**
+	 * Takes due sessions off the queue, in batches, and refreshes them.
+	 */
+	private void run() {
+		List<Entry> batch = new ArrayList<>(this.batchSize);
+		while (true) {
+			try {
+				batch.add(this.queue.take());
+			} catch (InterruptedException ie) {
+				return;
+			}
+			this.queue.drainTo(batch, this.batchSize - 1);
+			for (Entry entry : batch) {
+				if (!entry.cancelled) {
+					this.refresh(entry);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Refreshes the session of {@code entry}, then schedules its next refresh.
+	 */
+	private void refresh(Entry entry) {
+		Session session = entry.session;
+		this.limiter.submit(() -> session.refresh(UpstreamScheduler.Priority.BACKGROUND))
+				.whenComplete((Void ignored, Throwable error) -> {
+					if (error == null) {
+						// Never loops faster than the retry delay, even if Spotify hands out tokens
+						// that expire sooner than the lead time.
+						this.reschedule(entry,
+								Math.max(this.dueAt(session), System.currentTimeMillis() + this.retryMillis), 0);
+						return;
+					}
+					Throwable cause = SpotifyClient.unwrap(error);
+					System.err.println("Error refreshing a session in the background: " + cause);
+					if (TokenRefreshScheduler.isInvalidGrant(cause)) {
+						if (this.entries.remove(session, entry)) {
+							this.revocationListener.accept(entry.sessionId, session);
+						}
+						return;
+					}
+					long delayMillis = this.retryDelay(entry.failures);
+					if (cause instanceof SpotifyApiException && ((SpotifyApiException) cause).retryAfter() != null) {
+						delayMillis = Math.max(delayMillis, ((SpotifyApiException) cause).retryAfter().toMillis());
+					}
+					this.reschedule(entry, System.currentTimeMillis() + delayMillis, entry.failures + 1);
+				});
+	}
+
+	/**
+	 * Returns whether the Spotify account service rejected a refresh token, i.e.
+	 * answered {@code 400} with an {@code invalid_grant} error.
+	 */
+	private static boolean isInvalidGrant(Throwable cause) {
+		if (!(cause instanceof SpotifyApiException) || ((SpotifyApiException) cause).statusCode() != 400) {
+			return false;
+		}
+		try {
+			return "invalid_grant".equals(new JSONObject(((SpotifyApiException) cause).body()).optString("error"));
+		} catch (JSONException je) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns how long to wait before retrying a refresh that has already failed
+	 * {@code failures} times in a row before this time, in milliseconds.
+	 */
+	private long retryDelay(int failures) {
+		// Stops doubling well before the shift overflows.
+		return failures >= 30 ? this.maxRetryMillis : Math.min(this.maxRetryMillis, this.retryMillis << failures);
+	}
+}
@@ -1,65 +1,237 @@
 import org.json.JSONArray;
 import org.json.JSONObject;
+import java.io.*;
 import java.util.*;
 
-//The Track class stores information of a Spotify track. 
+//The Track class stores information of a Spotify track. Tracks are immutable.
+//Artists are kept in plain arrays (the only access patterns are the first
+//artist and iteration), and artist names and ids are shared between all
+//sessions through StringPool.SHARED. Decoded tracks are resolved through
+//Track.CANONICAL, so a track in many users' results is held once.
 public class Track {
-	private String title;
-	private List<String> artists;
+	private static final String[] NO_ARTISTS = new String[0];
+	// The canonical Track of each Spotify id, shared by all sessions. Its
+	// capacity is set by si.cache.tracks.maxEntries (50000 by default).
+	static final TinyLfuCache<String, Track> CANONICAL = new TinyLfuCache<>(
+			Integer.getInteger("si.cache.tracks.maxEntries", 50000));
 
-	// post-condition: Constructs a new Track object.
-	public Track() {
-		this.title = null;
-		this.artists = null;
-	}
+	private final String id;
+	private final String title;
+	private final String[] artistIds;
+	private final String[] artists;
 
 	// pre-condition : Takes in a String representing the title of the track
 	//                 and a List<String> representing the artists of the track.
-	// post-condition: Constructs a new Track object.
+	// post-condition: Constructs a new Track object with no Spotify ids.
 	public Track(String title, List<String> artists) {
+		this(null, title, new String[artists.size()], artists.toArray(NO_ARTISTS));
+	}
+
+	// pre-condition : Takes in the Spotify id of the track (null for local
+	//                 tracks), the title of the track, and the Spotify ids and
+	//                 names of its artists (in the same order, ids may be null).
+	// post-condition: Constructs a new Track object.
+	public Track(String id, String title, List<String> artistIds, List<String> artists) {
+		this(id, title, artistIds.toArray(NO_ARTISTS), artists.toArray(NO_ARTISTS));
+	}
+
+	// pre-condition : Takes in arrays that are owned by the new Track.
+	// post-condition: Constructs a new Track object, pooling the artist strings.
+	private Track(String id, String title, String[] artistIds, String[] artists) {
+		if (artistIds.length != artists.length) {
+			throw new IllegalArgumentException("artistIds and artists must be the same size");
+		}
+		for (int i = 0; i < artists.length; i++) {
+			artistIds[i] = StringPool.SHARED.intern(artistIds[i]);
+			artists[i] = StringPool.SHARED.intern(artists[i]);
+		}
+		this.id = id;
 		this.title = title;
-		this.artists = artists;
+		this.artistIds = artistIds.length == 0 ? NO_ARTISTS : artistIds;
+		this.artists = artists.length == 0 ? NO_ARTISTS : artists;
 	}
 
 	// pre-condition : Takes in a String of the JSON representation of a track.
-	// post-condition: Constructs a new Track object.
-	public Track(String json) {
+	// post-condition: Returns the Track the JSON represents.
+	public static Track fromJson(String json) {
 		JSONObject obj = new JSONObject(json);
-		
-		this.title = obj.getString("name");
-		
-		List<Object> artistList = obj.getJSONArray("artists").toList();	
-		this.artists = new LinkedList<>();
-		for (int artist = 0; artist < artistList.size(); artist++) {
-			Map<String, String> map = (HashMap<String, String>) artistList.get(artist);
-			this.artists.add(map.get("name")); 
+		JSONArray artistList = obj.getJSONArray("artists");
+		String[] artistIds = new String[artistList.length()];
+		String[] artists = new String[artistList.length()];
+		for (int artist = 0; artist < artistList.length(); artist++) {
+			JSONObject current = artistList.getJSONObject(artist);
+			artistIds[artist] = current.optString("id", null);
+			artists[artist] = current.getString("name");
 		}
+		return canonical(new Track(obj.optString("id", null), obj.getString("name"), artistIds, artists));
 	}
-	
+
+	// pre-condition : Takes in a String of the JSON representation of a track.
+	// post-condition: Constructs a new Track object. Kept for compatibility;
+	//                 prefer Track.fromJson(String).
+	public Track(String json) {
+		this(fromJson(json));
+	}
+
+	// pre-condition : Takes in another Track.
+	// post-condition: Constructs a Track sharing its (immutable) state.
+	private Track(Track other) {
+		this.id = other.id;
+		this.title = other.title;
+		this.artistIds = other.artistIds;
+		this.artists = other.artists;
+	}
+
 	// pre-condition : Takes in a String of the JSON representation of the tracks.
 	// post-condition: Returns List<Track> of the inputted tracks.
 	public static List<Track> fromJsonArray(String json) {
 		JSONArray jsonTracks = new JSONArray(json);
-		List<Track> tracks = new LinkedList<>();
+		List<Track> tracks = new ArrayList<>(jsonTracks.length());
 		for (int t = 0; t < jsonTracks.length(); t++) {
-			Track current = new Track(jsonTracks.get(t).toString());
+			Track current = fromJson(jsonTracks.get(t).toString());
 			tracks.add(current);
 		}
 		return tracks;
 	}
 
+	// pre-condition : Takes in an InputStream of a UTF-8 JSON document that is
+	//                 either an array of tracks or a Spotify paging object
+	//                 (whose tracks are under "items").
+	// post-condition: Returns List<Track> of the tracks, decoded in a single
+	//                 pass straight from the stream. Only the fields a Track
+	//                 keeps are decoded; everything else is skipped. Throws an
+	//                 IOException if the stream can't be read or isn't valid JSON.
+	public static List<Track> fromJson(InputStream in) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+			return readTracks(reader);
+		}
+		List<Track> tracks = Collections.emptyList();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("items")) {
+				tracks = readTracks(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return tracks;
+	}
+
+	// pre-condition : Takes in a JsonReader positioned at an array of tracks.
+	// post-condition: Returns List<Track> of the tracks in the array.
+	static List<Track> readTracks(JsonReader reader) throws IOException {
+		List<Track> tracks = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			tracks.add(read(reader));
+		}
+		reader.endArray();
+		return tracks;
+	}
+
+	// pre-condition : Takes in a JsonReader positioned at a track object.
+	// post-condition: Returns the Track the object represents.
+	static Track read(JsonReader reader) throws IOException {
+		String id = null;
+		String title = null;
+		List<String> artistIds = new ArrayList<>(4);
+		List<String> artists = new ArrayList<>(4);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("id")) {
+				id = reader.nextStringOrNull();
+			} else if (field.equals("name")) {
+				title = reader.nextString();
+			} else if (field.equals("artists")) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					String artistId = null, artist = null;
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String artistField = reader.nextName();
+						if (artistField.equals("id")) {
+							artistId = reader.nextStringOrNull();
+						} else if (artistField.equals("name")) {
+							artist = reader.nextString();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+					artistIds.add(artistId);
+					artists.add(artist);
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return canonical(new Track(id, title, artistIds, artists));
+	}
+
+	// pre-condition : Takes in a Track.
+	// post-condition: Returns the cached Track equal to track if there is one,
+	//                 otherwise track itself (which is cached if admitted).
+	//                 Local tracks, which have no id, are returned as-is.
+	static Track canonical(Track track) {
+		return track.id == null ? track : CANONICAL.intern(track.id, track);
+	}
+
+	// post-condition: Returns String of the Spotify id of the track, or null
+	//                 for local tracks.
+	public String getId() {
+		return id;
+	}
+
 	// post-condition: Returns String of the title of the track.
 	public String getTitle() {
 		return title;
 	}
 
-	// post-condition: Returns List<String> of the artists of the track.
+	// post-condition: Returns an unmodifiable, RandomAccess List<String> of the
+	//                 artists of the track.
 	public List<String> getArtists() {
-		return artists;
+		return Collections.unmodifiableList(Arrays.asList(artists));
+	}
+
+	// post-condition: Returns an unmodifiable, RandomAccess List<String> of the
+	//                 Spotify ids of the artists of the track, in the same
+	//                 order as getArtists(). Ids may be null.
+	public List<String> getArtistIds() {
+		return Collections.unmodifiableList(Arrays.asList(artistIds));
+	}
+
+	// post-condition: Returns String of the first (primary) artist of the
+	//                 track, or null if it has no artists.
+	public String getPrimaryArtist() {
+		return artists.length == 0 ? null : artists[0];
+	}
+
+	// post-condition: Returns true if o is a Track with the same id, title and
+	//                 artists as this one.
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Track)) {
+			return false;
+		}
+		Track other = (Track) o;
+		return Objects.equals(id, other.id) && Objects.equals(title, other.title)
+				&& Arrays.equals(artistIds, other.artistIds) && Arrays.equals(artists, other.artists);
+	}
+
+	// post-condition: Returns a hash code consistent with equals.
+	public int hashCode() {
+		return id != null ? id.hashCode() : Objects.hash(title, Arrays.hashCode(artists));
 	}
 
 	// post-condition: Returns String representation of Track.
 	public String toString() {
-		return title + " " + artists.toString();
+		return title + " " + Arrays.toString(artists);
 	}
-}
\ No newline at end of file
+}
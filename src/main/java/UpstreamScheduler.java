@@ -0,0 +1,487 @@
+import java.io.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decides when requests to Spotify are sent, so that the server stays within
+ * Spotify's rate limits instead of turning a burst of traffic into a storm of
+ * {@code 429 Too Many Requests} responses and retries.
+ *
+ * <ul>
+ * <li>Each endpoint (host and path) has a token bucket refilled at
+ * {@code ratePerSecond}, holding up to {@code burst} tokens. A request waits
+ * until its endpoint's bucket has a token.</li>
+ * <li>A {@code 429} pauses its endpoint for as long as its {@code Retry-After}
+ * header asks, and the request is queued again.</li>
+ * <li>Server errors, and connection failures and timeouts, of {@code GET}s are
+ * retried after an exponential backoff with full jitter.</li>
+ * <li>Identical {@code GET}s (same URI and {@code Authorization}) that are
+ * queued or in flight at the same time are coalesced into one request.</li>
+ * <li>Requests wait in one of two lanes. {@link Priority#INTERACTIVE} requests,
+ * which a user is waiting on, are always sent before
+ * {@link Priority#BACKGROUND} ones to the same endpoint.</li>
+ * </ul>
+ *
+ * An interactive request that would have to wait longer than
+ * {@code maxInteractiveWait} for a {@code Retry-After} is failed instead with
+ * a {@code 429} {@link SpotifyApiException} carrying the time left, so the user
+ * gets a quick answer rather than a page that hangs. That holds for the request
+ * that got the {@code 429}, for requests submitted while its endpoint is
+ * paused, and for requests already queued when a pause gets longer.
+ */
+class UpstreamScheduler {
+	/**
+	 * The lane a request waits in.
+	 */
+	enum Priority {
+		/**
+		 * A request a user is waiting on, e.g. for a page load.
+		 */
+		INTERACTIVE,
+		/**
+		 * A request nobody is waiting on, e.g. a background token refresh.
+		 */
+		BACKGROUND
+	}
+
+	/**
+	 * Actually sends a request.
+	 */
+	@FunctionalInterface
+	interface Transport {
+		CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request);
+	}
+
+	/**
+	 * The delay before retrying a {@code 429} without a (valid)
+	 * {@code Retry-After} header.
+	 */
+	private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000L;
+
+	/**
+	 * The rate limit of one endpoint. Guarded by the scheduler.
+	 */
+	private class Bucket {
+		private double tokens = UpstreamScheduler.this.burst;
+		private long refilledAt = System.nanoTime();
+		/**
+		 * When the endpoint may be used again after a {@code 429}, or
+		 * {@code Long.MIN_VALUE}.
+		 */
+		private long pausedUntil = Long.MIN_VALUE;
+
+		/**
+		 * Takes a token if there is one. Returns 0 if one was taken, or else how
+		 * many nanoseconds to wait before trying again.
+		 */
+		private long tryAcquire(long now) {
+			long paused = this.pausedFor(now);
+			if (paused > 0L) {
+				return paused;
+			}
+			double rate = UpstreamScheduler.this.ratePerSecond;
+			this.tokens = Math.min(UpstreamScheduler.this.burst, this.tokens + (now - this.refilledAt) * rate / 1e9);
+			this.refilledAt = now;
+			if (this.tokens >= 1.0) {
+				this.tokens -= 1.0;
+				return 0L;
+			}
+			return Math.max(1L, (long) ((1.0 - this.tokens) / rate * 1e9));
+		}
+
+		/**
+		 * Returns how many nanoseconds are left of the endpoint's pause, or 0 if it
+		 * isn't paused.
+		 */
+		private long pausedFor(long now) {
+			if (this.pausedUntil != Long.MIN_VALUE && now - this.pausedUntil < 0) {
+				return this.pausedUntil - now;
+			}
+			return 0L;
+		}
+	}
+
+	/**
+	 * A request and everyone waiting on it.
+	 */
+	private static class Call {
+		private final HttpRequest request;
+		private final String endpoint;
+		/**
+		 * The key of the call in {@link UpstreamScheduler#coalescing}, or null if it
+		 * isn't a {@code GET}.
+		 */
+		private final String coalescingKey;
+		private final CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+		private Priority priority;
+		/**
+		 * Whether the call is waiting in a lane (rather than in flight or backing
+		 * off).
+		 */
+		private boolean queued;
+		private int attempts;
+
+		private Call(HttpRequest request, Priority priority, String coalescingKey) {
+			this.request = request;
+			this.priority = priority;
+			this.coalescingKey = coalescingKey;
+			this.endpoint = request.uri().getHost() + request.uri().getPath();
+		}
+	}
+
+	private final Transport transport;
+	private final double ratePerSecond;
+	private final int burst;
+	private final int maxAttempts;
+	private final long baseBackoffMillis;
+	private final long maxBackoffMillis;
+	private final long maxInteractiveWaitMillis;
+	/**
+	 * The rate limit of each endpoint. Guarded by {@code this}.
+	 */
+	private final Map<String, Bucket> buckets = new HashMap<>();
+	/**
+	 * The calls waiting to be sent, oldest first. Guarded by {@code this}.
+	 */
+	private final Deque<Call> interactive = new ArrayDeque<>();
+	private final Deque<Call> background = new ArrayDeque<>();
+	/**
+	 * The {@code GET}s that haven't completed yet, by URI and
+	 * {@code Authorization}. Guarded by {@code this}.
+	 */
+	private final Map<String, Call> coalescing = new HashMap<>();
+	/**
+	 * When {@link #dispatch()} is next scheduled to run, or null. Guarded by
+	 * {@code this}.
+	 */
+	private ScheduledFuture<?> wakeup;
+	private long wakeupAt;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+		Thread thread = new Thread(r, "upstream-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Constructs a new {@code UpstreamScheduler}.
+	 *
+	 * @param transport          - Sends the requests.
+	 * @param ratePerSecond      - The sustained number of requests per second to
+	 *                           each endpoint.
+	 * @param burst              - The number of requests that may be sent to an
+	 *                           idle endpoint at once.
+	 * @param maxAttempts        - The number of times a request is tried before
+	 *                           its failure is passed on.
+	 * @param baseBackoff        - The backoff before the first retry of a failed
+	 *                           request. Doubles with each further retry.
+	 * @param maxBackoff         - The longest backoff between retries.
+	 * @param maxInteractiveWait - The longest {@code Retry-After} an interactive
+	 *                           request waits out.
+	 */
+	UpstreamScheduler(Transport transport, double ratePerSecond, int burst, int maxAttempts, Duration baseBackoff,
+			Duration maxBackoff, Duration maxInteractiveWait) {
+		if (ratePerSecond <= 0.0 || burst <= 0 || maxAttempts <= 0) {
+			throw new IllegalArgumentException("ratePerSecond, burst and maxAttempts must be positive");
+		}
+		this.transport = transport;
+		this.ratePerSecond = ratePerSecond;
+		this.burst = burst;
+		this.maxAttempts = maxAttempts;
+		this.baseBackoffMillis = baseBackoff.toMillis();
+		this.maxBackoffMillis = maxBackoff.toMillis();
+		this.maxInteractiveWaitMillis = maxInteractiveWait.toMillis();
+	}
+
+	/**
+	 * Creates an {@code UpstreamScheduler} configured by the
+	 * {@code si.upstream.*} system properties.
+	 *
+	 * @param transport - Sends the requests.
+	 * @return The new {@code UpstreamScheduler}.
+	 */
+	static UpstreamScheduler fromSystemProperties(Transport transport) {
+		return new UpstreamScheduler(transport,
+				Double.parseDouble(System.getProperty("si.upstream.ratePerSecond", "20")),
+				Integer.getInteger("si.upstream.burst", 40), Integer.getInteger("si.upstream.maxAttempts", 4),
+				Duration.ofMillis(Long.getLong("si.upstream.baseBackoffMillis", 200L)),
+				Duration.ofMillis(Long.getLong("si.upstream.maxBackoffMillis", 5000L)),
+				Duration.ofMillis(Long.getLong("si.upstream.maxInteractiveWaitMillis", 5000L)));
+	}
+
+	/**
+	 * Sends {@code request} once its endpoint's rate limit allows, retrying it as
+	 * described above.
+	 *
+	 * @param request  - The request to send.
+	 * @param priority - The lane the request waits in.
+	 * @return A future completed with the 2xx response to the request, or
+	 *         completed exceptionally with a {@link SpotifyApiException} for other
+	 *         responses or an {@code IOException} if no response was received.
+	 */
+	CompletableFuture<HttpResponse<byte[]>> submit(HttpRequest request, Priority priority) {
+		Call call;
+		synchronized (this) {
+			if (priority == Priority.INTERACTIVE) {
+				String endpoint = request.uri().getHost() + request.uri().getPath();
+				SpotifyApiException paused = this.pausedTooLong(request, endpoint, System.nanoTime());
+				if (paused != null) {
+					// Also covers a background call that an interactive caller would share:
+					// it's left to wait in its own lane for its own callers.
+					CompletableFuture<HttpResponse<byte[]>> failed = new CompletableFuture<>();
+					failed.completeExceptionally(paused);
+					return failed;
+				}
+			}
+			String coalescingKey = null;
+			if (request.method().equals("GET")) {
+				coalescingKey = request.uri() + " " + request.headers().firstValue("Authorization").orElse("");
+				Call existing = this.coalescing.get(coalescingKey);
+				if (existing != null) {
+					if (priority == Priority.INTERACTIVE && existing.priority == Priority.BACKGROUND) {
+						// Someone is waiting on it now.
+						existing.priority = Priority.INTERACTIVE;
+						if (existing.queued && this.background.remove(existing)) {
+							this.interactive.addLast(existing);
+						}
+					}
+					return existing.result;
+				}
+			}
+			call = new Call(request, priority, coalescingKey);
+			if (coalescingKey != null) {
+				this.coalescing.put(coalescingKey, call);
+			}
+			this.enqueue(call, false);
+		}
+		this.dispatch();
+		return call.result;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be sent.
+	 *
+	 * @return The number of requests waiting to be sent.
+	 */
+	synchronized int queued() {
+		return this.interactive.size() + this.background.size();
+	}
+
+	/**
+	 * Sends every queued call whose endpoint has a token, interactive ones first,
+	 * and schedules another run for when the next token is due.
+	 */
+	private void dispatch() {
+		List<Call> ready = new ArrayList<>();
+		Map<Call, SpotifyApiException> failed = new HashMap<>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			long nextWait = Long.MAX_VALUE;
+			for (Deque<Call> lane : Arrays.asList(this.interactive, this.background)) {
+				for (Iterator<Call> calls = lane.iterator(); calls.hasNext();) {
+					Call call = calls.next();
+					SpotifyApiException paused = lane == this.interactive
+							? this.pausedTooLong(call.request, call.endpoint, now)
+							: null;
+					if (paused != null) {
+						calls.remove();
+						call.queued = false;
+						failed.put(call, paused);
+						continue;
+					}
+					long wait = this.buckets.computeIfAbsent(call.endpoint, (String endpoint) -> new Bucket())
+							.tryAcquire(now);
+					if (wait == 0L) {
+						calls.remove();
+						call.queued = false;
+						ready.add(call);
+					} else {
+						nextWait = Math.min(nextWait, wait);
+					}
+				}
+			}
+			if (nextWait != Long.MAX_VALUE) {
+				long due = now + nextWait;
+				if (this.wakeup == null || due - this.wakeupAt < 0) {
+					if (this.wakeup != null) {
+						this.wakeup.cancel(false);
+					}
+					this.wakeupAt = due;
+					this.wakeup = this.timer.schedule(() -> {
+						synchronized (this) {
+							this.wakeup = null;
+						}
+						this.dispatch();
+					}, nextWait, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		for (Map.Entry<Call, SpotifyApiException> entry : failed.entrySet()) {
+			this.finish(entry.getKey(), null, entry.getValue());
+		}
+		for (Call call : ready) {
+			this.start(call);
+		}
+	}
+
+	/**
+	 * Returns the error to fail an interactive request to {@code endpoint} with if
+	 * the endpoint is paused for longer than {@code maxInteractiveWait}, or null
+	 * if the request can wait. Must be called while holding the lock on
+	 * {@code this}.
+	 */
+	private SpotifyApiException pausedTooLong(HttpRequest request, String endpoint, long now) {
+		Bucket bucket = this.buckets.get(endpoint);
+		if (bucket == null) {
+			return null;
+		}
+		long pausedMillis = (bucket.pausedFor(now) + 999_999L) / 1_000_000L;
+		if (pausedMillis <= this.maxInteractiveWaitMillis) {
+			return null;
+		}
+		return new SpotifyApiException(request.uri().toString(), 429,
+				"Rate limited by Spotify for another " + pausedMillis + " ms", Duration.ofMillis(pausedMillis));
+	}
+
+	/**
+	 * Sends a call that has been given a token.
+	 */
+	private void start(Call call) {
+		call.attempts++;
+		CompletableFuture<HttpResponse<byte[]>> sent;
+		try {
+			sent = this.transport.send(call.request);
+		} catch (RuntimeException re) {
+			sent = new CompletableFuture<>();
+			sent.completeExceptionally(re);
+		}
+		sent.whenComplete((HttpResponse<byte[]> response, Throwable error) -> this.onResponse(call, response, error));
+	}
+
+	/**
+	 * Completes, retries or fails a call once a try of it has finished.
+	 */
+	private void onResponse(Call call, HttpResponse<byte[]> response, Throwable error) {
+		boolean canRetry = call.attempts < this.maxAttempts;
+		if (error != null) {
+			Throwable cause = SpotifyClient.unwrap(error);
+			if (canRetry && cause instanceof IOException && call.coalescingKey != null) {
+				this.retryAfter(call, this.backoffMillis(call.attempts));
+			} else {
+				this.finish(call, null, cause);
+			}
+			return;
+		}
+
+		int statusCode = response.statusCode();
+		if (statusCode / 100 == 2) {
+			this.finish(call, response, null);
+			return;
+		}
+		long retryAfterMillis = UpstreamScheduler.retryAfterMillis(response);
+		if (statusCode == 429) {
+			long pauseMillis = retryAfterMillis >= 0L ? retryAfterMillis : DEFAULT_RETRY_AFTER_MILLIS;
+			synchronized (this) {
+				Bucket bucket = this.buckets.get(call.endpoint);
+				long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pauseMillis);
+				if (bucket.pausedUntil == Long.MIN_VALUE || until - bucket.pausedUntil > 0) {
+					bucket.pausedUntil = until;
+				}
+			}
+			// A 429 means the request wasn't processed, so even POSTs can be sent again.
+			if (canRetry && (call.priority == Priority.BACKGROUND || pauseMillis <= this.maxInteractiveWaitMillis)) {
+				synchronized (this) {
+					this.enqueue(call, true);
+				}
+				this.dispatch();
+				return;
+			}
+		} else if (statusCode / 100 == 5 && canRetry && call.coalescingKey != null) {
+			this.retryAfter(call, Math.max(retryAfterMillis, this.backoffMillis(call.attempts)));
+			return;
+		}
+		this.finish(call, null, new SpotifyApiException(call.request.uri().toString(), statusCode,
+				new String(response.body(), StandardCharsets.UTF_8),
+				retryAfterMillis >= 0L ? Duration.ofMillis(retryAfterMillis) : null));
+	}
+
+	/**
+	 * Queues a call again once {@code delayMillis} has passed.
+	 */
+	private void retryAfter(Call call, long delayMillis) {
+		this.timer.schedule(() -> {
+			synchronized (this) {
+				this.enqueue(call, true);
+			}
+			this.dispatch();
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a call to its lane: at the back for new calls, at the front for
+	 * retries, which have already waited their turn. Must be called while holding
+	 * the lock on {@code this}.
+	 */
+	private void enqueue(Call call, boolean retry) {
+		Deque<Call> lane = call.priority == Priority.INTERACTIVE ? this.interactive : this.background;
+		if (retry) {
+			lane.addFirst(call);
+		} else {
+			lane.addLast(call);
+		}
+		call.queued = true;
+	}
+
+	/**
+	 * Completes a call, either with {@code response} or, if {@code error} isn't
+	 * null, exceptionally.
+	 */
+	private void finish(Call call, HttpResponse<byte[]> response, Throwable error) {
+		if (call.coalescingKey != null) {
+			synchronized (this) {
+				this.coalescing.remove(call.coalescingKey, call);
+			}
+		}
+		if (error != null) {
+			call.result.completeExceptionally(error);
+		} else {
+			call.result.complete(response);
+		}
+	}
+
+	/**
+	 * Returns the backoff before the next try of a call that has been tried
+	 * {@code attempts} times: a random delay up to {@code baseBackoff} doubled for
+	 * each earlier retry, capped at {@code maxBackoff}.
+	 */
+	private long backoffMillis(int attempts) {
+		long ceiling = this.baseBackoffMillis << Math.min(attempts - 1, 20);
+		return ThreadLocalRandom.current().nextLong(Math.min(ceiling, this.maxBackoffMillis) + 1);
+	}
+
+	/**
+	 * Returns the delay asked for by the {@code Retry-After} header of
+	 * {@code response} in milliseconds, or -1 if there's no valid one.
+	 */
+	private static long retryAfterMillis(HttpResponse<?> response) {
+		Optional<String> retryAfter = response.headers().firstValue("Retry-After");
+		if (!retryAfter.isPresent()) {
+			return -1L;
+		}
+		String value = retryAfter.get().trim();
+		try {
+			return Math.max(0L, Long.parseLong(value) * 1000L);
+		} catch (NumberFormatException nfe) {
+			// It may be a HTTP date instead.
+			try {
+				Instant at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+				return Math.max(0L, Duration.between(Instant.now(), at).toMillis());
+			} catch (DateTimeParseException dtpe) {
+				return -1L;
+			}
+		}
+	}
+}